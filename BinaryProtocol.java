@@ -0,0 +1,216 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Compact binary client protocol, accepted alongside the text lines. A client
+// selects it by sending MAGIC as the very first byte of the connection; every
+// message after that is a frame [int32 length][body], the length counting the
+// body only. Integers are big-endian, strings are [u16 length][UTF-8 bytes].
+// Lock names and client IDs may not contain ',', '\r' or '\n' (INVALID_FORMAT):
+// the servers still replicate and log them in comma-separated text lines.
+//
+//   request body:  [u8 opcode][i64 requestId][i64 ttlMs][i64 waitMs][i32 permits][lockName][clientId]
+//   response body: [u8 status][i64 requestId][payload]
+//
+// ttlMs = 0 means no explicit lease; waitMs is only used by LOCK_WAIT, and
+// permits (the size of a semaphore) only by ACQUIRE. The payload is the owner
+// (or the holders of a shared lock) for STATUS_OWNER and empty otherwise.
+// Requests on one connection are processed concurrently and answered as they
+// complete, so responses are matched to requests by requestId, not by order.
+public final class BinaryProtocol {
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final int MAX_FRAME_LENGTH = 32 * 1024;
+    public static final int REQUEST_HEADER_LENGTH = 1 + 8 + 8 + 8 + 4;
+    public static final int RESPONSE_HEADER_LENGTH = 1 + 8;
+
+    public static final byte OP_LOCK = 1;
+    public static final byte OP_UNLOCK = 2;
+    public static final byte OP_OWN = 3;
+    public static final byte OP_RENEW = 4;
+    public static final byte OP_LOCK_WAIT = 5;
+    // lockName holds the names of the batch separated by ';'
+    public static final byte OP_MLOCK = 6;
+    public static final byte OP_MUNLOCK = 7;
+    // Client sessions: lockName is empty, ttlMs is the session TTL of OPEN_SESSION
+    public static final byte OP_OPEN_SESSION = 8;
+    public static final byte OP_KEEPALIVE = 9;
+    public static final byte OP_CLOSE_SESSION = 10;
+    // Shared holds, released by OP_UNLOCK: a shared (reader) lock, and one permit of
+    // a semaphore whose number of permits is in permits
+    public static final byte OP_LOCK_SHARED = 11;
+    public static final byte OP_ACQUIRE = 12;
+
+    public static final byte STATUS_SUCCESS = 0;
+    public static final byte STATUS_FAIL = 1;
+    public static final byte STATUS_OWNER = 2;
+    public static final byte STATUS_NONE = 3;
+    public static final byte STATUS_TIMEOUT = 4;
+    public static final byte STATUS_NO_QUORUM = 5;
+    public static final byte STATUS_ERROR = 6;
+    public static final byte STATUS_INVALID_FORMAT = 7;
+    public static final byte STATUS_INVALID_COMMAND = 8;
+    // The server could not reach the current leader (none elected yet, or it changed); retry
+    public static final byte STATUS_NOT_LEADER = 9;
+    // The lock names of an MLOCK / MUNLOCK belong to different shards (see ShardMap)
+    public static final byte STATUS_CROSS_SHARD = 10;
+    // A follower has too many requests waiting on the leader already; retry later
+    public static final byte STATUS_BUSY = 11;
+
+    private BinaryProtocol() {
+    }
+
+    // Text command for an opcode (the shared constants used by the request path), or null
+    public static String commandOf(byte opcode) {
+        switch (opcode) {
+            case OP_LOCK: return "LOCK";
+            case OP_UNLOCK: return "UNLOCK";
+            case OP_OWN: return "OWN";
+            case OP_RENEW: return "RENEW";
+            case OP_LOCK_WAIT: return "LOCK_WAIT";
+            case OP_MLOCK: return "MLOCK";
+            case OP_MUNLOCK: return "MUNLOCK";
+            case OP_OPEN_SESSION: return "OPEN_SESSION";
+            case OP_KEEPALIVE: return "KEEPALIVE";
+            case OP_CLOSE_SESSION: return "CLOSE_SESSION";
+            case OP_LOCK_SHARED: return "LOCK_SHARED";
+            case OP_ACQUIRE: return "ACQUIRE";
+            default: return null;
+        }
+    }
+
+    public static byte opcodeOf(String command) {
+        switch (command) {
+            case "LOCK": return OP_LOCK;
+            case "UNLOCK": return OP_UNLOCK;
+            case "OWN": return OP_OWN;
+            case "RENEW": return OP_RENEW;
+            case "LOCK_WAIT": return OP_LOCK_WAIT;
+            case "MLOCK": return OP_MLOCK;
+            case "MUNLOCK": return OP_MUNLOCK;
+            case "OPEN_SESSION": return OP_OPEN_SESSION;
+            case "KEEPALIVE": return OP_KEEPALIVE;
+            case "CLOSE_SESSION": return OP_CLOSE_SESSION;
+            case "LOCK_SHARED": return OP_LOCK_SHARED;
+            case "ACQUIRE": return OP_ACQUIRE;
+            default: throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    // Read a [u16 length][UTF-8] string straight from the frame's backing array
+    public static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("String longer than the frame");
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    // Length of value in UTF-8, without encoding it
+    public static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++; // Unpaired: encoded as '?'
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public static ByteBuffer encodeRequest(byte opcode, long requestId, String lockName, String clientId, long ttlMs, long waitMs,
+                                           int permits) {
+        byte[] name = lockName.getBytes(StandardCharsets.UTF_8);
+        byte[] client = clientId.getBytes(StandardCharsets.UTF_8);
+        int length = REQUEST_HEADER_LENGTH + 2 + name.length + 2 + client.length;
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Request too large: " + length + " bytes");
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).put(opcode).putLong(requestId).putLong(ttlMs).putLong(waitMs).putInt(permits);
+        frame.putShort((short) name.length).put(name);
+        frame.putShort((short) client.length).put(client);
+        frame.flip();
+        return frame;
+    }
+
+    // Frame the server's answer to a request; response is the text protocol answer
+    // ("SUCCESS", "FAIL", an owner for OWN, ...). An owner that does not fit in a
+    // frame is answered STATUS_ERROR: its length prefix would wrap otherwise.
+    public static ByteBuffer encodeResponse(long requestId, String command, String response) {
+        byte status = statusOf(command, response);
+        byte[] payload = status == STATUS_OWNER ? response.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (RESPONSE_HEADER_LENGTH + 2 + payload.length > MAX_FRAME_LENGTH) {
+            status = STATUS_ERROR;
+            payload = new byte[0];
+        }
+        int length = RESPONSE_HEADER_LENGTH + 2 + payload.length;
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).put(status).putLong(requestId);
+        frame.putShort((short) payload.length).put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    // OWN answers an owner (or the holders of a shared lock), NONE, or one of the
+    // words any request may be answered (ERROR, TIMEOUT, NOT_LEADER, BUSY, ...); every
+    // other non-empty answer to it is an owner, even one called SUCCESS or FAIL.
+    // Other commands map their answer word to its status, and anything else to an error.
+    static byte statusOf(String command, String response) {
+        if ("OWN".equals(command)) {
+            switch (response) {
+                case "NONE": return STATUS_NONE;
+                case "TIMEOUT": return STATUS_TIMEOUT;
+                case "NO_QUORUM": return STATUS_NO_QUORUM;
+                case "ERROR": return STATUS_ERROR;
+                case "INVALID_FORMAT": return STATUS_INVALID_FORMAT;
+                case "INVALID_COMMAND": return STATUS_INVALID_COMMAND;
+                case "NOT_LEADER": return STATUS_NOT_LEADER;
+                case "CROSS_SHARD": return STATUS_CROSS_SHARD;
+                case "BUSY": return STATUS_BUSY;
+                default: return response.isEmpty() ? STATUS_ERROR : STATUS_OWNER;
+            }
+        }
+        switch (response) {
+            case "SUCCESS": return STATUS_SUCCESS;
+            case "NONE": return STATUS_NONE;
+            case "TIMEOUT": return STATUS_TIMEOUT;
+            case "NO_QUORUM": return STATUS_NO_QUORUM;
+            case "ERROR": return STATUS_ERROR;
+            case "INVALID_FORMAT": return STATUS_INVALID_FORMAT;
+            case "INVALID_COMMAND": return STATUS_INVALID_COMMAND;
+            case "NOT_LEADER": return STATUS_NOT_LEADER;
+            case "CROSS_SHARD": return STATUS_CROSS_SHARD;
+            case "BUSY": return STATUS_BUSY;
+            case "FAIL": return STATUS_FAIL;
+            default: return STATUS_ERROR;
+        }
+    }
+
+    // Text protocol equivalent of a response status, for callers that print or compare answers
+    public static String responseOf(byte status, String payload) {
+        switch (status) {
+            case STATUS_SUCCESS: return "SUCCESS";
+            case STATUS_FAIL: return "FAIL";
+            case STATUS_OWNER: return payload;
+            case STATUS_NONE: return "NONE";
+            case STATUS_TIMEOUT: return "TIMEOUT";
+            case STATUS_NO_QUORUM: return "NO_QUORUM";
+            case STATUS_INVALID_FORMAT: return "INVALID_FORMAT";
+            case STATUS_INVALID_COMMAND: return "INVALID_COMMAND";
+            case STATUS_NOT_LEADER: return "NOT_LEADER";
+            case STATUS_CROSS_SHARD: return "CROSS_SHARD";
+            case STATUS_BUSY: return "BUSY";
+            default: return "ERROR";
+        }
+    }
+}
@@ -1,19 +1,428 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class Client implements Closeable {
+    // How long a request on a pooled connection may go unanswered (LOCK_WAIT: plus its waitMs)
+    private static final long REQUEST_TIMEOUT_MS = Long.getLong("dls.client.timeoutMs", 30000);
+    // How often a leader-aware client asks for a cluster's topology again: while it
+    // has no leader, and otherwise (a leader that stepped down still forwards writes)
+    private static final long TOPOLOGY_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long TOPOLOGY_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // Internal answer when the connection was refused: the request was never sent.
+    // Callers are answered ERROR.
+    private static final String UNREACHABLE = "UNREACHABLE";
 
-public class Client {
     private String serverIp;
     private int serverPort;
     private String clientId;
+    // Use the binary protocol (see BinaryProtocol) instead of text lines
+    private boolean binary;
+    private AtomicLong nextRequestId = new AtomicLong();
+    // Sharded cluster: each request goes to a member of the shard owning its lock
+    // name (spread over the members) instead of serverIp:serverPort
+    private ShardMap shards;
+    private AtomicInteger nextMember = new AtomicInteger();
+    // Pooled mode (poolSize > 0): requests share poolSize long-lived binary connections
+    // per server (see ClientConnection) instead of opening one per request. The async
+    // methods always use them (one per server if poolSize is 0).
+    private int poolSize;
+    private final Map<String, AtomicReferenceArray<ClientConnection>> pools = new ConcurrentHashMap<>();
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private TimerWheel timeouts;
+    // Leader-aware routing (see setLeaderAware): the members and leader of each
+    // cluster ("" for the one at serverIp:serverPort, otherwise a shard), from TOPOLOGY
+    private volatile boolean leaderAware;
+    private final Map<String, Topology> topologies = new ConcurrentHashMap<>();
+    // Client session (see openSession): KEEPALIVE sent in the background while it is active
+    private ScheduledExecutorService keepAlive;
+    private volatile boolean sessionActive;
+
+    private static final class Topology {
+        // null while the cluster has no leader
+        final String leader;
+        final List<String> members;
+        final long fetchedNanos = System.nanoTime();
+
+        Topology(String leader, List<String> members) {
+            this.leader = leader;
+            this.members = members;
+        }
+    }
 
     public Client(String serverIp, int serverPort, String clientId) {
+        this(serverIp, serverPort, clientId, false);
+    }
+
+    public Client(String serverIp, int serverPort, String clientId, boolean binary) {
+        this(serverIp, serverPort, clientId, binary, 0);
+    }
+
+    public Client(String serverIp, int serverPort, String clientId, boolean binary, int poolSize) {
         this.serverIp = serverIp;
         this.serverPort = serverPort;
         this.clientId = clientId;
+        this.binary = binary;
+        this.poolSize = poolSize;
+    }
+
+    public Client(ShardMap shards, String clientId, boolean binary) {
+        this(shards, clientId, binary, 0);
+    }
+
+    public Client(ShardMap shards, String clientId, boolean binary, int poolSize) {
+        this(null, 0, clientId, binary, poolSize);
+        this.shards = shards;
+    }
+
+    // Leader-aware routing: the client asks its server (or shard) for the cluster's
+    // members and leader with TOPOLOGY, then sends writes straight to the leader,
+    // saving the follower's forwarding hop, and spreads OWN over all the members
+    // (answered from their own lock tables, see dls.followerReads). A write the
+    // supposed leader answers NOT_LEADER is sent once more after asking again.
+    public void setLeaderAware(boolean leaderAware) {
+        this.leaderAware = leaderAware;
+    }
+
+    // Send one request in the configured protocol; the answer is always given in its text form.
+    // Unlike the methods below, it prints nothing (for LoadGenerator). ACQUIRE, which
+    // also needs its permits, goes through tryAcquire / acquireAsync.
+    public String request(String cmd, String lockName, long ttlMs, long waitMs) {
+        return request(clusterOf(lockName), cmd, lockName, ttlMs, waitMs, 0);
+    }
+
+    private String request(String cluster, String cmd, String lockName, long ttlMs, long waitMs, int permits) {
+        if (poolSize > 0) {
+            return requestAsync(cluster, cmd, lockName, ttlMs, waitMs, permits).join();
+        }
+        String server = serverFor(cmd, cluster);
+        String response = send(server, cmd, lockName, ttlMs, waitMs, permits);
+        if (leaderGone(cmd, cluster, server, response)) {
+            String leader = serverFor(cmd, cluster);
+            if (!leader.equals(server)) {
+                response = send(leader, cmd, lockName, ttlMs, waitMs, permits);
+            }
+        }
+        return response.equals(UNREACHABLE) ? "ERROR" : response;
+    }
+
+    private String send(String server, String cmd, String lockName, long ttlMs, long waitMs, int permits) {
+        String[] address = server.split(":");
+        String host = address[0];
+        int port = Integer.parseInt(address[1]);
+        if (binary) {
+            return sendFrame(host, port, BinaryProtocol.opcodeOf(cmd), lockName, ttlMs, waitMs, permits);
+        }
+        if (isSessionCommand(cmd)) {
+            return sendMsg(host, port, cmd + "," + clientId + (ttlMs > 0 ? "," + ttlMs : ""));
+        }
+        return sendMsg(host, port, cmd + "," + lockName + "," + clientId + (cmd.equals("LOCK_WAIT") ? "," + waitMs : "")
+                + (cmd.equals("ACQUIRE") ? "," + permits : "") + (ttlMs > 0 ? "," + ttlMs : ""));
+    }
+
+    // Send one request on a pooled connection without waiting for the answer. Many
+    // requests can be in flight at once, from any number of threads; the future
+    // completes (never exceptionally) with the answer in its text form, ERROR if
+    // the connection broke and TIMEOUT if the server did not answer in time.
+    public CompletableFuture<String> requestAsync(String cmd, String lockName, long ttlMs, long waitMs) {
+        return requestAsync(clusterOf(lockName), cmd, lockName, ttlMs, waitMs, 0);
+    }
+
+    private CompletableFuture<String> requestAsync(String cluster, String cmd, String lockName, long ttlMs, long waitMs,
+                                                   int permits) {
+        String server = serverFor(cmd, cluster);
+        return sendAsync(server, cmd, lockName, ttlMs, waitMs, permits).thenCompose(response -> {
+            if (!leaderGone(cmd, cluster, server, response)) {
+                return CompletableFuture.completedFuture(response);
+            }
+            String leader = serverFor(cmd, cluster);
+            return leader.equals(server) ? CompletableFuture.completedFuture(response)
+                    : sendAsync(leader, cmd, lockName, ttlMs, waitMs, permits);
+        }).thenApply(response -> response.equals(UNREACHABLE) ? "ERROR" : response);
+    }
+
+    private CompletableFuture<String> sendAsync(String server, String cmd, String lockName, long ttlMs, long waitMs,
+                                                int permits) {
+        ClientConnection connection;
+        try {
+            connection = connectionTo(server);
+        } catch (IOException e) {
+            System.err.println("Connection error: " + e.getMessage());
+            return CompletableFuture.completedFuture(e instanceof ConnectException ? UNREACHABLE : "ERROR");
+        }
+        return connection.send(BinaryProtocol.opcodeOf(cmd), lockName, clientId, ttlMs, waitMs, permits);
+    }
+
+    public CompletableFuture<String> lockAsync(String lockName, long ttlMs) {
+        return requestAsync("LOCK", lockName, ttlMs, 0);
+    }
+
+    public CompletableFuture<String> unlockAsync(String lockName) {
+        return requestAsync("UNLOCK", lockName, 0, 0);
+    }
+
+    public CompletableFuture<String> lockSharedAsync(String lockName) {
+        return requestAsync("LOCK_SHARED", lockName, 0, 0);
+    }
+
+    public CompletableFuture<String> acquireAsync(String lockName, int permits) {
+        return requestAsync(clusterOf(lockName), "ACQUIRE", lockName, 0, 0, permits);
+    }
+
+    public CompletableFuture<String> ownAsync(String lockName) {
+        return requestAsync("OWN", lockName, 0, 0);
     }
 
-    private String sendMsg(String msg) {
-        try (Socket socket = new Socket(serverIp, serverPort);
+    // Open a client session of ttlMs (in every shard of a sharded cluster) and keep
+    // it alive with one KEEPALIVE every ttlMs / 3, however many locks the client
+    // holds. If the session is lost, because the client or its keepalives stopped
+    // for ttlMs or it was closed, the servers release all of the client's locks at
+    // once; a KEEPALIVE then answers FAIL and isSessionActive() turns false.
+    public synchronized boolean openSession(long ttlMs) {
+        String response = sessionRequest("OPEN_SESSION", ttlMs);
+        System.out.println("Client " + clientId + " - OpenSession(" + ttlMs + "ms) Response: " + response);
+        if (!response.equals("SUCCESS")) {
+            return false;
+        }
+        sessionActive = true;
+        if (keepAlive == null) {
+            keepAlive = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "keepalive-" + clientId);
+                t.setDaemon(true);
+                return t;
+            });
+            long periodMs = Math.max(1, ttlMs / 3);
+            keepAlive.scheduleWithFixedDelay(this::sendKeepAlive, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    public boolean isSessionActive() {
+        return sessionActive;
+    }
+
+    // End the session: the servers release all of the client's locks
+    public synchronized boolean closeSession() {
+        stopKeepAlive();
+        sessionActive = false;
+        String response = sessionRequest("CLOSE_SESSION", 0);
+        System.out.println("Client " + clientId + " - CloseSession Response: " + response);
+        return response.equals("SUCCESS");
+    }
+
+    // FAIL means the session is gone on the server, with the client's locks; any
+    // other failure (no leader yet, unreachable) is retried at the next period
+    private void sendKeepAlive() {
+        String response = sessionRequest("KEEPALIVE", 0);
+        if (response.equals("FAIL")) {
+            System.err.println("Client " + clientId + " - Session lost, its locks have been released");
+            sessionActive = false;
+            stopKeepAlive();
+        }
+    }
+
+    private synchronized void stopKeepAlive() {
+        if (keepAlive != null) {
+            keepAlive.shutdown();
+            keepAlive = null;
+        }
+    }
+
+    // A session command, sent to every cluster (shard): SUCCESS if all of them
+    // answer SUCCESS, otherwise the first other answer
+    private String sessionRequest(String cmd, long ttlMs) {
+        String result = "SUCCESS";
+        for (String cluster : shards != null ? shards.shardIds() : Collections.singleton("")) {
+            String response = request(cluster, cmd, "", ttlMs, 0, 0);
+            if (result.equals("SUCCESS")) {
+                result = response;
+            }
+        }
+        return result;
+    }
+
+    private static boolean isSessionCommand(String cmd) {
+        return cmd.equals("OPEN_SESSION") || cmd.equals("KEEPALIVE") || cmd.equals("CLOSE_SESSION");
+    }
+
+    // Close the pooled connections; requests still in flight are answered ERROR.
+    // Keepalives stop: an open session expires on the servers.
+    @Override
+    public synchronized void close() {
+        stopKeepAlive();
+        for (AtomicReferenceArray<ClientConnection> pool : pools.values()) {
+            synchronized (pool) {
+                for (int slot = 0; slot < pool.length(); slot++) {
+                    ClientConnection connection = pool.get(slot);
+                    if (connection != null) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+        pools.clear();
+        if (timeouts != null) {
+            timeouts.shutdown();
+            timeouts = null;
+        }
+    }
+
+    // Where a request goes: serverIp:serverPort, or in a sharded cluster a member of
+    // the shard (cluster, see clusterOf) owning its lock name (members taken in turn).
+    // Leader-aware, writes go to the leader instead and OWN to any member of the cluster.
+    private String serverFor(String cmd, String cluster) {
+        List<String> seeds = seedsOf(cluster);
+        Topology topology = leaderAware ? topologyOf(cluster, seeds) : null;
+        if (topology == null) {
+            return inTurn(seeds);
+        }
+        if (cmd.equals("OWN") || topology.leader == null) {
+            return inTurn(topology.members);
+        }
+        return topology.leader;
+    }
+
+    private String clusterOf(String lockName) {
+        if (shards == null) {
+            return "";
+        }
+        // MLOCK / MUNLOCK names in several shards: any server answers CROSS_SHARD
+        String shard = shards.shardOfAll(Arrays.asList(lockName.split(";")));
+        return shard != null ? shard : shards.shardOf(lockName);
+    }
+
+    private List<String> seedsOf(String cluster) {
+        return shards != null ? shards.membersOf(cluster) : Collections.singletonList(serverIp + ":" + serverPort);
+    }
+
+    private String inTurn(List<String> members) {
+        return members.get(Math.floorMod(nextMember.getAndIncrement(), members.size()));
+    }
+
+    // The cluster's topology, asked again once it is older than TOPOLOGY_REFRESH_NANOS
+    // (TOPOLOGY_RETRY_NANOS while it has no leader); null if no member answers
+    private Topology topologyOf(String cluster, List<String> seeds) {
+        Topology topology = topologies.get(cluster);
+        if (topology != null && System.nanoTime() - topology.fetchedNanos
+                < (topology.leader != null ? TOPOLOGY_REFRESH_NANOS : TOPOLOGY_RETRY_NANOS)) {
+            return topology;
+        }
+        synchronized (topologies) {
+            Topology known = topologies.get(cluster);
+            if (known != topology) {
+                return known; // Asked by another thread meanwhile
+            }
+            // The members known so far first: the seeds may have left the cluster
+            List<String> candidates = new ArrayList<>(topology != null ? topology.members : seeds);
+            for (String seed : seeds) {
+                if (!candidates.contains(seed)) {
+                    candidates.add(seed);
+                }
+            }
+            for (String candidate : candidates) {
+                String[] address = candidate.split(":");
+                String reply = sendMsg(address[0], Integer.parseInt(address[1]), "TOPOLOGY");
+                // TOPOLOGY,<term>,<leaderId or NONE>,<member;member;...>
+                String[] parts = reply.split(",");
+                if (parts.length == 4 && parts[0].equals("TOPOLOGY")) {
+                    Topology fetched = new Topology(parts[2].equals("NONE") ? null : parts[2],
+                            Arrays.asList(parts[3].split(";")));
+                    topologies.put(cluster, fetched);
+                    return fetched;
+                }
+            }
+            topologies.remove(cluster);
+            return null;
+        }
+    }
+
+    // A leader-aware write that the server taken for the leader refused (it is down),
+    // answered NOT_LEADER (it stepped down) or ERROR: its topology is forgotten, so
+    // the next request asks again. True if the request should be sent once more,
+    // which is safe unless it may have been applied (ERROR: outcome unknown).
+    private boolean leaderGone(String cmd, String cluster, String server, String response) {
+        boolean retry = response.equals(UNREACHABLE) || response.equals("NOT_LEADER");
+        if (!leaderAware || cmd.equals("OWN") || !(retry || response.equals("ERROR"))) {
+            return false;
+        }
+        topologies.computeIfPresent(cluster, (k, topology) -> server.equals(topology.leader) ? null : topology);
+        return retry;
+    }
+
+    // The next pooled connection to server in turn, (re)opened if it is missing or broken
+    private ClientConnection connectionTo(String server) throws IOException {
+        AtomicReferenceArray<ClientConnection> pool = pools.computeIfAbsent(server,
+                k -> new AtomicReferenceArray<>(Math.max(1, poolSize)));
+        int slot = Math.floorMod(nextConnection.getAndIncrement(), pool.length());
+        ClientConnection connection = pool.get(slot);
+        if (connection != null && !connection.isClosed()) {
+            return connection;
+        }
+        synchronized (pool) {
+            connection = pool.get(slot);
+            if (connection == null || connection.isClosed()) {
+                String[] address = server.split(":");
+                connection = ClientConnection.open(address[0], Integer.parseInt(address[1]), timeouts(), REQUEST_TIMEOUT_MS);
+                pool.set(slot, connection);
+            }
+            return connection;
+        }
+    }
+
+    private synchronized TimerWheel timeouts() {
+        if (timeouts == null) {
+            timeouts = new TimerWheel("client-timeouts", 10, 1024);
+            timeouts.start();
+        }
+        return timeouts;
+    }
+
+    private String sendFrame(String host, int port, byte opcode, String lockName, long ttlMs, long waitMs, int permits) {
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+
+            long requestId = nextRequestId.incrementAndGet();
+            ByteBuffer frame = BinaryProtocol.encodeRequest(opcode, requestId, lockName, clientId, ttlMs, waitMs, permits);
+            out.write(BinaryProtocol.MAGIC);
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            out.flush();
+
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            ByteBuffer response = ByteBuffer.wrap(body);
+            byte status = response.get();
+            if (response.getLong() != requestId) {
+                System.err.println("Response for an unexpected request ID");
+                return "ERROR";
+            }
+            return BinaryProtocol.responseOf(status, BinaryProtocol.getString(response));
+
+        } catch (ConnectException e) {
+            System.err.println("Connection error: " + e.getMessage());
+            return UNREACHABLE;
+        } catch (IOException e) {
+            System.err.println("Connection error: " + e.getMessage());
+            return "ERROR";
+        }
+    }
+
+    private String sendMsg(String host, int port, String msg) {
+        try (Socket socket = new Socket(host, port);
              PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
              BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
 
@@ -21,6 +430,9 @@ public class Client {
             String response = in.readLine();
             return response != null ? response : "ERROR";
 
+        } catch (ConnectException e) {
+            System.err.println("Connection error: " + e.getMessage());
+            return UNREACHABLE;
         } catch (IOException e) {
             System.err.println("Connection error: " + e.getMessage());
             return "ERROR";
@@ -34,17 +446,67 @@ public class Client {
     }
 
     public void tryLock(String lockName, String lockKey) {
-        String response = sendMsg("LOCK," + lockName + "," + clientId);
+        String response = request("LOCK", lockName, 0, 0);
         System.out.println("Client " + clientId + " - TryLock(" + lockName + ") Response: " + response);
     }
 
     public void tryUnLock(String lockName, String lockKey) {
-        String response = sendMsg("UNLOCK," + lockName + "," + clientId);
+        String response = request("UNLOCK", lockName, 0, 0);
         System.out.println("Client " + clientId + " - TryUnlock(" + lockName + ") Response: " + response);
     }
 
+    // Lock released by the leader after ttlMs unless renewed
+    public void tryLock(String lockName, long ttlMs) {
+        String response = request("LOCK", lockName, ttlMs, 0);
+        System.out.println("Client " + clientId + " - TryLock(" + lockName + ", " + ttlMs + "ms) Response: " + response);
+    }
+
+    // Queue on the leader until the lock is handed over (SUCCESS) or waitMs passed (TIMEOUT)
+    public boolean lockWait(String lockName, long waitMs) {
+        String response = request("LOCK_WAIT", lockName, 0, waitMs);
+        System.out.println("Client " + clientId + " - LockWait(" + lockName + ", " + waitMs + "ms) Response: " + response);
+        return "SUCCESS".equals(response);
+    }
+
+    // All-or-nothing acquisition of several locks in one request
+    public boolean tryLockAll(Collection<String> lockNames) {
+        String response = request("MLOCK", String.join(";", lockNames), 0, 0);
+        System.out.println("Client " + clientId + " - TryLockAll(" + lockNames + ") Response: " + response);
+        return "SUCCESS".equals(response);
+    }
+
+    public boolean tryUnLockAll(Collection<String> lockNames) {
+        String response = request("MUNLOCK", String.join(";", lockNames), 0, 0);
+        System.out.println("Client " + clientId + " - TryUnlockAll(" + lockNames + ") Response: " + response);
+        return "SUCCESS".equals(response);
+    }
+
+    public boolean renewLease(String lockName) {
+        String response = request("RENEW", lockName, 0, 0);
+        System.out.println("Client " + clientId + " - Renew(" + lockName + ") Response: " + response);
+        return "SUCCESS".equals(response);
+    }
+
+    // Shared (reader) lock: held along with the other LOCK_SHARED holders, never with
+    // an exclusive LOCK. Released with UNLOCK, like an exclusive lock.
+    public boolean tryLockShared(String lockName) {
+        String response = request("LOCK_SHARED", lockName, 0, 0);
+        System.out.println("Client " + clientId + " - TryLockShared(" + lockName + ") Response: " + response);
+        return "SUCCESS".equals(response);
+    }
+
+    // One permit of the semaphore lockName, which at most permits clients hold at a
+    // time (every holder must give the same number). Released with UNLOCK.
+    public boolean tryAcquire(String lockName, int permits) {
+        String response = request(clusterOf(lockName), "ACQUIRE", lockName, 0, 0, permits);
+        System.out.println("Client " + clientId + " - TryAcquire(" + lockName + ", " + permits + " permits) Response: " + response);
+        return "SUCCESS".equals(response);
+    }
+
+    // The owner, NONE, or for a name held in shared mode "SHARED:<holders>:<id>;..."
+    // or "SEMAPHORE:<holders>/<permits>:<id>;..."
     public String ownTheLock(String lockName, String lockKey) {
-        String response = sendMsg("OWN," + lockName + "," + clientId);
+        String response = request("OWN", lockName, 0, 0);
         System.out.println("Client " + clientId + " - Owner of " + lockName + ": " + response);
         return response;
     }
@@ -86,16 +548,29 @@ public class Client {
 
     public static void main(String[] args) {
         if (args.length < 3) {
-            System.out.println("Usage: java Client <server_ip> <server_port> <client_id>");
+            System.out.println("Usage: java Client <server_ip> <server_port> <client_id> [binary]");
             System.out.println("Example: java Client 127.0.0.1 5000 Client1");
+            System.out.println("With -Ddls.shardMap=<file>, requests go to the shard owning each lock name");
             return;
         }
         
         String serverIp = args[0];
         int serverPort = Integer.parseInt(args[1]);
         String clientId = args[2];
+        boolean binary = args.length > 3 && args[3].equals("binary");
         
-        Client client = new Client(serverIp, serverPort, clientId);
+        Client client;
+        String shardMap = System.getProperty("dls.shardMap", "");
+        if (shardMap.isEmpty()) {
+            client = new Client(serverIp, serverPort, clientId, binary);
+        } else {
+            try {
+                client = new Client(ShardMap.load(new File(shardMap)), clientId, binary);
+            } catch (IOException e) {
+                System.err.println("Cannot read shard map " + shardMap + ": " + e.getMessage());
+                return;
+            }
+        }
         
         // Test with multiple locks
         client.testLockSequence("lock1");
@@ -0,0 +1,136 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One long-lived binary-protocol connection from a Client to a server. Requests
+// are pipelined: send() writes a frame and returns a future at once, and a reader
+// thread completes each future when the frame carrying its request ID comes back,
+// in whatever order the server answers. A request not answered within its
+// timeout is answered TIMEOUT (a late answer is ignored). When the connection
+// breaks, every request in flight is answered ERROR, since its outcome is
+// unknown, and the connection stays closed: the Client opens a new one.
+public class ClientConnection implements Closeable {
+
+    private final String server;
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final TimerWheel timeouts;
+    private final long timeoutMs;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Map<Long, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private ClientConnection(String server, Socket socket, TimerWheel timeouts, long timeoutMs) throws IOException {
+        this.server = server;
+        this.socket = socket;
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.timeouts = timeouts;
+        this.timeoutMs = timeoutMs;
+    }
+
+    // Connect and select the binary protocol; requests time out after timeoutMs
+    // (plus, for LOCK_WAIT, the time they may wait for the lock)
+    public static ClientConnection open(String host, int port, TimerWheel timeouts, long timeoutMs) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), (int) timeoutMs);
+            socket.setTcpNoDelay(true);
+            ClientConnection connection = new ClientConnection(host + ":" + port, socket, timeouts, timeoutMs);
+            connection.out.write(BinaryProtocol.MAGIC);
+            Thread reader = new Thread(connection::readResponses, "client-" + connection.server);
+            reader.setDaemon(true);
+            reader.start();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    // Send one request; the future completes with the answer in its text form
+    // (INVALID_FORMAT at once for a request too large for a frame)
+    public CompletableFuture<String> send(byte opcode, String lockName, String clientId, long ttlMs, long waitMs,
+                                          int permits) {
+        long requestId = nextRequestId.incrementAndGet();
+        ByteBuffer frame;
+        try {
+            frame = BinaryProtocol.encodeRequest(opcode, requestId, lockName, clientId, ttlMs, waitMs, permits);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture("INVALID_FORMAT");
+        }
+        CompletableFuture<String> result = new CompletableFuture<>();
+        // Registered before the frame leaves: the answer may come back at once
+        inFlight.put(requestId, result);
+        try {
+            synchronized (out) {
+                if (closed) {
+                    throw new IOException("connection closed");
+                }
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Connection error: " + e.getMessage());
+            close();
+            return result;
+        }
+        TimerWheel.Timeout timeout = timeouts.schedule(() -> answer(requestId, "TIMEOUT"), timeoutMs + waitMs);
+        result.whenComplete((response, e) -> timeout.cancel());
+        return result;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Requests sent and not answered yet
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    // Answer every request in flight ERROR and close the socket
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        for (Long requestId : inFlight.keySet()) {
+            answer(requestId, "ERROR");
+        }
+    }
+
+    private void answer(long requestId, String response) {
+        CompletableFuture<String> result = inFlight.remove(requestId);
+        if (result != null) {
+            result.complete(response);
+        }
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                ByteBuffer response = ByteBuffer.wrap(body);
+                byte status = response.get();
+                long requestId = response.getLong();
+                answer(requestId, BinaryProtocol.responseOf(status, BinaryProtocol.getString(response)));
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Connection to " + server + " lost: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,585 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Lock table for tens of millions of locks (dls.lockTable=compact). A
+// HashLockTable entry costs about 200 bytes of small objects: a map node, the
+// lock name String, an owner String parsed from each request and a node of the
+// owner index. Here a lock costs a few ints in arrays plus its name's UTF-8
+// bytes, and there is no object per lock for the collector to trace:
+//
+// - Client IDs are dictionary-encoded into int handles (Clients), counted by the
+//   locks that reference them and reused once no lock does. get() answers the
+//   dictionary's String, so the owners of a million locks are one String.
+// - The table is split into SEGMENTS segments by the high bits of the name's
+//   hash, each an open-addressing table (linear probing) over three int arrays:
+//   owner handle (0 = empty, DELETED = removed), offset of the name in the
+//   segment's byte arena ([varint length][UTF-8]) and the next lock of the same
+//   owner. A segment is guarded by its own monitor, readers included, so writers
+//   of different segments (and stripes) do not contend.
+// - The owner index is a singly linked list per owner and segment, threaded
+//   through the slots, with the heads in a small int -> int map. A removed slot
+//   stays in its list as DELETED (new locks only take empty slots) and is
+//   unlinked by the next walk of that list or dropped by the next rehash.
+// - A rehash, when removed slots or names no longer used fill the segment,
+//   rebuilds its arrays, arena and lists from the live locks only.
+//
+// Names and entries are decoded into Strings only when read through the
+// iterators or locksOf (state transfers, hand-offs, sessions).
+public class CompactLockTable extends AbstractMap<String, String> implements LockTable {
+    private static final int SEGMENTS = 64;
+    private static final int SEGMENT_SHIFT = 26; // 32 - log2(SEGMENTS)
+    private static final int DELETED = -1;
+    private static final int NONE = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private final Clients clients = new Clients();
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public CompactLockTable() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(clients);
+        }
+    }
+
+    @Override
+    public String get(Object lockName) {
+        if (!(lockName instanceof String)) {
+            return null;
+        }
+        byte[] name = encode((String) lockName);
+        int hash = hash(name, 0, name.length);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(name, hash);
+            return slot >= 0 ? clients.idOf(segment.owners[slot]) : null;
+        }
+    }
+
+    @Override
+    public String getOrDefault(Object lockName, String defaultValue) {
+        String owner = get(lockName);
+        return owner != null ? owner : defaultValue;
+    }
+
+    @Override
+    public boolean containsKey(Object lockName) {
+        return get(lockName) != null;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    @Override
+    public String put(String lockName, String owner) {
+        byte[] name = encode(lockName);
+        int hash = hash(name, 0, name.length);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.put(name, hash, owner);
+        }
+    }
+
+    @Override
+    public String remove(Object lockName) {
+        if (!(lockName instanceof String)) {
+            return null;
+        }
+        byte[] name = encode((String) lockName);
+        int hash = hash(name, 0, name.length);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.remove(name, hash, null) ? segment.lastRemoved : null;
+        }
+    }
+
+    // Only if owner still holds it (a replicated EXPIRE)
+    @Override
+    public boolean remove(Object lockName, Object owner) {
+        if (!(lockName instanceof String) || !(owner instanceof String)) {
+            return false;
+        }
+        byte[] name = encode((String) lockName);
+        int hash = hash(name, 0, name.length);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.remove(name, hash, (String) owner);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    @Override
+    public List<String> locksOf(String owner) {
+        int handle = clients.handleOf(owner);
+        if (handle == 0) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.locksOf(handle, names);
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public int ownerCount() {
+        return clients.size();
+    }
+
+    // Bytes held by the arrays and arenas (not the client IDs), for comparing with the heap
+    public long footprintBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += 4L * (segment.owners.length + segment.names.length + segment.next.length
+                        + segment.headKeys.length + segment.headSlots.length) + segment.arena.length;
+            }
+        }
+        return bytes;
+    }
+
+    // Weakly consistent: each segment is copied under its monitor when the iteration reaches it
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    private int nextSegment;
+                    private Iterator<Map.Entry<String, String>> current = Collections.emptyIterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!current.hasNext() && nextSegment < SEGMENTS) {
+                            Segment segment = segments[nextSegment++];
+                            synchronized (segment) {
+                                current = segment.entries().iterator();
+                            }
+                        }
+                        return current.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return current.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CompactLockTable.this.size();
+            }
+        };
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> SEGMENT_SHIFT];
+    }
+
+    private static byte[] encode(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // FNV-1a over the UTF-8 bytes, then mixed so that both the high bits (segment)
+    // and the low bits (slot) are spread
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = 0x811C9DC5;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ bytes[i]) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    // Client IDs by handle (1, 2, ...). Handles are counted by the slots that hold
+    // them and reused once that count drops to 0. Only changed under the
+    // dictionary's monitor; idOf reads without it, which is safe for a handle
+    // read from a slot under its segment's monitor: the slot keeps it alive, and
+    // whoever wrote that slot got the handle under this monitor first.
+    private static final class Clients {
+        private final Map<String, Integer> handles = new HashMap<>();
+        private volatile String[] ids = new String[16];
+        private int[] refs = new int[16];
+        private int[] free = new int[16];
+        private int freeCount;
+        private int nextHandle = 1;
+
+        synchronized int acquire(String id) {
+            Integer handle = handles.get(id);
+            if (handle == null) {
+                handle = freeCount > 0 ? free[--freeCount] : nextHandle++;
+                if (handle >= refs.length) {
+                    refs = Arrays.copyOf(refs, refs.length * 2);
+                    ids = Arrays.copyOf(ids, refs.length);
+                }
+                ids[handle] = id;
+                handles.put(id, handle);
+            }
+            refs[handle]++;
+            return handle;
+        }
+
+        synchronized void release(int handle) {
+            if (--refs[handle] > 0) {
+                return;
+            }
+            handles.remove(ids[handle]);
+            ids[handle] = null;
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+            }
+            free[freeCount++] = handle;
+        }
+
+        // 0 if id holds no lock
+        synchronized int handleOf(String id) {
+            Integer handle = handles.get(id);
+            return handle != null ? handle : 0;
+        }
+
+        String idOf(int handle) {
+            return ids[handle];
+        }
+
+        synchronized int size() {
+            return handles.size();
+        }
+    }
+
+    // One open-addressing table; every method runs under the segment's monitor
+    private static final class Segment {
+        private final Clients clients;
+        // Per slot: owner handle (0 = empty, DELETED), name offset in arena, next slot of the same owner
+        int[] owners = new int[MIN_CAPACITY];
+        int[] names = new int[MIN_CAPACITY];
+        int[] next = new int[MIN_CAPACITY];
+        // Live locks (read without the monitor by size()) and live + deleted slots
+        volatile int size;
+        int used;
+        // Owner handle -> first slot of its list (key 0 = empty), linear probing
+        int[] headKeys = new int[MIN_CAPACITY];
+        int[] headSlots = new int[MIN_CAPACITY];
+        int heads;
+        // Names as [varint length][UTF-8 bytes]; garbage = bytes of removed names
+        byte[] arena = new byte[256];
+        int arenaUsed;
+        int garbage;
+        // Owner answered by the last remove()
+        String lastRemoved;
+
+        Segment(Clients clients) {
+            this.clients = clients;
+        }
+
+        int find(byte[] name, int hash) {
+            int mask = owners.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int owner = owners[slot];
+                if (owner == 0) {
+                    return -1;
+                }
+                if (owner != DELETED && nameEquals(names[slot], name)) {
+                    return slot;
+                }
+            }
+        }
+
+        String put(byte[] name, int hash, String owner) {
+            // Room for one more slot first: a rehash moves every slot and name
+            if (used + 1 > owners.length - (owners.length >>> 2) || (garbage > 4096 && garbage > arenaUsed / 2)) {
+                rehash();
+            }
+            int slot = find(name, hash);
+            int handle = clients.acquire(owner);
+            if (slot < 0) {
+                insert(hash, handle, append(name));
+                return null;
+            }
+            int previous = owners[slot];
+            String previousOwner = clients.idOf(previous);
+            if (previous == handle) {
+                clients.release(handle);
+                return previousOwner;
+            }
+            // Another owner: the lock moves to the new owner's list in a new slot, with the same name bytes
+            owners[slot] = DELETED;
+            size--;
+            insert(hash, handle, names[slot]);
+            clients.release(previous);
+            return previousOwner;
+        }
+
+        // owner = null: whoever holds it
+        boolean remove(byte[] name, int hash, String owner) {
+            int slot = find(name, hash);
+            if (slot < 0) {
+                return false;
+            }
+            int handle = owners[slot];
+            String holder = clients.idOf(handle);
+            if (owner != null && !owner.equals(holder)) {
+                return false;
+            }
+            owners[slot] = DELETED;
+            size--;
+            garbage += nameLength(names[slot]);
+            clients.release(handle);
+            lastRemoved = holder;
+            return true;
+        }
+
+        void clear() {
+            for (int slot = 0; slot < owners.length; slot++) {
+                if (owners[slot] > 0) {
+                    clients.release(owners[slot]);
+                }
+            }
+            owners = new int[MIN_CAPACITY];
+            names = new int[MIN_CAPACITY];
+            next = new int[MIN_CAPACITY];
+            headKeys = new int[MIN_CAPACITY];
+            headSlots = new int[MIN_CAPACITY];
+            size = 0;
+            used = 0;
+            heads = 0;
+            arena = new byte[256];
+            arenaUsed = 0;
+            garbage = 0;
+        }
+
+        // Append the live names of handle's list to out, unlinking the deleted slots
+        void locksOf(int handle, List<String> out) {
+            int head = headIndex(handle);
+            if (head < 0) {
+                return;
+            }
+            int previous = NONE;
+            for (int slot = headSlots[head]; slot != NONE; slot = next[slot]) {
+                if (owners[slot] == handle) {
+                    out.add(decode(names[slot]));
+                    previous = slot;
+                } else if (previous == NONE) {
+                    headSlots[head] = next[slot];
+                } else {
+                    next[previous] = next[slot];
+                }
+            }
+            if (headSlots[head] == NONE) {
+                removeHead(head);
+            }
+        }
+
+        List<Map.Entry<String, String>> entries() {
+            List<Map.Entry<String, String>> entries = new ArrayList<>(size);
+            for (int slot = 0; slot < owners.length; slot++) {
+                if (owners[slot] > 0) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(decode(names[slot]), clients.idOf(owners[slot])));
+                }
+            }
+            return entries;
+        }
+
+        // Place a lock in the first empty slot of its probe sequence (deleted slots
+        // stay in their owner's list, so they are not reused) and link it first in
+        // its owner's list
+        private void insert(int hash, int handle, int nameOffset) {
+            int mask = owners.length - 1;
+            int slot = hash & mask;
+            while (owners[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            owners[slot] = handle;
+            names[slot] = nameOffset;
+            used++;
+            size++;
+            int head = headIndex(handle);
+            if (head >= 0) {
+                next[slot] = headSlots[head];
+                headSlots[head] = slot;
+            } else {
+                next[slot] = NONE;
+                addHead(handle, slot);
+            }
+        }
+
+        // Rebuild from the live locks, at a load of at most one half
+        private void rehash() {
+            int capacity = MIN_CAPACITY;
+            while (capacity < 2 * (size + 1)) {
+                capacity <<= 1;
+            }
+            int[] oldOwners = owners;
+            int[] oldNames = names;
+            byte[] oldArena = arena;
+            int liveBytes = arenaUsed - garbage;
+            owners = new int[capacity];
+            names = new int[capacity];
+            next = new int[capacity];
+            headKeys = new int[MIN_CAPACITY];
+            headSlots = new int[MIN_CAPACITY];
+            heads = 0;
+            arena = new byte[Math.max(256, liveBytes + (liveBytes >>> 1))];
+            arenaUsed = 0;
+            garbage = 0;
+            used = 0;
+            size = 0;
+            for (int slot = 0; slot < oldOwners.length; slot++) {
+                if (oldOwners[slot] > 0) {
+                    int offset = oldNames[slot];
+                    int length = readVarint(oldArena, offset);
+                    int start = offset + varintSize(length);
+                    int copied = appendRaw(oldArena, start, length);
+                    insert(hash(oldArena, start, length), oldOwners[slot], copied);
+                }
+            }
+        }
+
+        private int headIndex(int handle) {
+            int mask = headKeys.length - 1;
+            for (int i = mix(handle) & mask; ; i = (i + 1) & mask) {
+                if (headKeys[i] == handle) {
+                    return i;
+                }
+                if (headKeys[i] == 0) {
+                    return -1;
+                }
+            }
+        }
+
+        private void addHead(int handle, int slot) {
+            if (heads + 1 > headKeys.length - (headKeys.length >>> 2)) {
+                int[] oldKeys = headKeys;
+                int[] oldSlots = headSlots;
+                headKeys = new int[oldKeys.length * 2];
+                headSlots = new int[oldKeys.length * 2];
+                heads = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != 0) {
+                        addHead(oldKeys[i], oldSlots[i]);
+                    }
+                }
+            }
+            int mask = headKeys.length - 1;
+            int i = mix(handle) & mask;
+            while (headKeys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            headKeys[i] = handle;
+            headSlots[i] = slot;
+            heads++;
+        }
+
+        // Backward-shift deletion: keys after the hole move up if their probe start allows it
+        private void removeHead(int index) {
+            int mask = headKeys.length - 1;
+            int hole = index;
+            for (int i = (hole + 1) & mask; headKeys[i] != 0; i = (i + 1) & mask) {
+                int home = mix(headKeys[i]) & mask;
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    headKeys[hole] = headKeys[i];
+                    headSlots[hole] = headSlots[i];
+                    hole = i;
+                }
+            }
+            headKeys[hole] = 0;
+            heads--;
+        }
+
+        private static int mix(int handle) {
+            int h = handle * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private int append(byte[] name) {
+            return appendRaw(name, 0, name.length);
+        }
+
+        private int appendRaw(byte[] bytes, int start, int length) {
+            int needed = varintSize(length) + length;
+            if (arenaUsed + needed > arena.length) {
+                long grown = Math.max((long) arena.length * 2, (long) arenaUsed + needed);
+                if (grown > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Lock table segment full (2 GB of lock names)");
+                }
+                arena = Arrays.copyOf(arena, (int) grown);
+            }
+            int offset = arenaUsed;
+            int position = offset;
+            int value = length;
+            while ((value & ~0x7F) != 0) {
+                arena[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            arena[position++] = (byte) value;
+            System.arraycopy(bytes, start, arena, position, length);
+            arenaUsed = position + length;
+            return offset;
+        }
+
+        private boolean nameEquals(int offset, byte[] name) {
+            int length = readVarint(arena, offset);
+            if (length != name.length) {
+                return false;
+            }
+            int start = offset + varintSize(length);
+            for (int i = 0; i < length; i++) {
+                if (arena[start + i] != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int nameLength(int offset) {
+            int length = readVarint(arena, offset);
+            return varintSize(length) + length;
+        }
+
+        private String decode(int offset) {
+            int length = readVarint(arena, offset);
+            return new String(arena, offset + varintSize(length), length, StandardCharsets.UTF_8);
+        }
+
+        private static int readVarint(byte[] bytes, int offset) {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[offset++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        private static int varintSize(int value) {
+            int size = 1;
+            while ((value & ~0x7F) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking line-oriented connection owned by one EventLoop.
+// A connection can be "parked": it stops delivering lines (and stops reading
+// from the socket) until resume() is called, which keeps request/response order
+// for the text protocol without holding a thread per client.
+// An accepted connection whose first byte is BinaryProtocol.MAGIC carries
+// length-prefixed frames instead of lines for the rest of its life. Its requests
+// are answered out of order, so it is not parked on each one: it is parked once
+// MAX_FRAMES_IN_FLIGHT of them are unanswered, and resumed by the answer (the
+// sendFrame) that makes room, which bounds what one client can queue on the server.
+public class Connection implements EventLoop.Handler {
+
+    public interface Listener {
+        void onLine(Connection connection, String line);
+        void onClose(Connection connection);
+
+        // frame is positioned on the body and only valid during the call
+        default void onFrame(Connection connection, ByteBuffer frame) {
+            Log.debug(null, "Binary frame on a text-only connection from {}, closing it", connection.getRemoteAddress());
+            connection.close();
+        }
+    }
+
+    private static final int MODE_UNKNOWN = 0;
+    private static final int MODE_TEXT = 1;
+    private static final int MODE_BINARY = 2;
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    static final int MAX_FRAMES_IN_FLIGHT = 1024;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final Listener listener;
+    private final String remoteAddress;
+    private SelectionKey key;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private boolean connecting;
+    private boolean parked;
+    private boolean closeAfterFlush;
+    // Frames delivered to the listener and not answered yet
+    private final AtomicInteger framesInFlight = new AtomicInteger();
+    private volatile boolean closed;
+    // Decided by the first byte received (outbound connections are always text)
+    private volatile int mode = MODE_UNKNOWN;
+
+    // Free slot for the server to keep per-connection state (e.g. a pending request key)
+    private volatile Object attachment;
+
+    public Connection(SocketChannel channel, EventLoop loop, Listener listener) {
+        this.channel = channel;
+        this.loop = loop;
+        this.listener = listener;
+        String address;
+        try {
+            address = String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            address = "unknown";
+        }
+        this.remoteAddress = address;
+    }
+
+    // Open an outbound connection; lines sent before the connect completes are queued
+    public static Connection connect(EventLoop loop, InetSocketAddress address, Listener listener) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = channel.connect(address);
+            Connection connection = new Connection(channel, loop, listener, address.toString());
+            connection.connecting = !connected;
+            connection.mode = MODE_TEXT;
+            loop.register(channel, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private Connection(SocketChannel channel, EventLoop loop, Listener listener, String remoteAddress) {
+        this.channel = channel;
+        this.loop = loop;
+        this.listener = listener;
+        this.remoteAddress = remoteAddress;
+    }
+
+    void attachKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public EventLoop getLoop() {
+        return loop;
+    }
+
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public boolean isConnecting() {
+        return connecting;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isBinary() {
+        return mode == MODE_BINARY;
+    }
+
+    // Stop delivering lines until resume(). Only called from the loop thread (inside onLine, or
+    // while delivering frames).
+    public void park() {
+        parked = true;
+        updateInterest();
+    }
+
+    // Deliver buffered lines again and resume reading; safe from any thread
+    public void resume() {
+        loop.executeLater(() -> {
+            if (closed || !parked) {
+                return;
+            }
+            parked = false;
+            deliverLines();
+            updateInterest();
+        });
+    }
+
+    // Queue a line for sending; safe from any thread
+    public void send(String line) {
+        if (closed) {
+            return;
+        }
+        writeQueue.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        loop.execute(this::flush);
+    }
+
+    // Queue the answer to a frame (see BinaryProtocol) for sending; safe from any thread
+    public void sendFrame(ByteBuffer frame) {
+        if (closed) {
+            return;
+        }
+        writeQueue.add(frame);
+        loop.execute(this::flush);
+        if (framesInFlight.getAndUpdate(n -> Math.max(0, n - 1)) == MAX_FRAMES_IN_FLIGHT) {
+            resume();
+        }
+    }
+
+    // Send the answer to the request this connection is parked on, then read the next one
+    public void reply(String line) {
+        send(line);
+        resume();
+    }
+
+    // Send a final line and close once it has been written
+    public void sendAndClose(String line) {
+        send(line);
+        loop.execute(() -> {
+            closeAfterFlush = true;
+            flush();
+        });
+    }
+
+    public void close() {
+        loop.execute(this::closeNow);
+    }
+
+    @Override
+    public void handleEvent(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            channel.finishConnect();
+            connecting = false;
+            updateInterest();
+            flush();
+            return;
+        }
+        if (key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    @Override
+    public void handleError(SelectionKey key, IOException e) {
+        closeNow();
+    }
+
+    private void read() throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= MAX_LINE_LENGTH) {
+                Log.debug(null, "{} too long from {}, closing connection", isBinary() ? "Frame" : "Line", remoteAddress);
+                closeNow();
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_LINE_LENGTH));
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            closeNow();
+            return;
+        }
+        deliverLines();
+    }
+
+    // Hand every complete line (or frame) in the read buffer to the listener, unless parked
+    private void deliverLines() {
+        readBuffer.flip();
+        byte[] data = readBuffer.array();
+        int start = readBuffer.position();
+        int limit = readBuffer.limit();
+        if (mode == MODE_UNKNOWN && start < limit) {
+            if (data[start] == BinaryProtocol.MAGIC) {
+                mode = MODE_BINARY;
+                start++;
+            } else {
+                mode = MODE_TEXT;
+            }
+        }
+        if (mode == MODE_BINARY) {
+            deliverFrames(start, limit);
+            return;
+        }
+        int i = start;
+        while (!parked && !closed && i < limit) {
+            if (data[i] == '\n') {
+                int end = i;
+                if (end > start && data[end - 1] == '\r') {
+                    end--;
+                }
+                String line = new String(data, start, end - start, StandardCharsets.UTF_8);
+                start = i + 1;
+                listener.onLine(this, line);
+            }
+            i++;
+        }
+        readBuffer.position(start);
+        readBuffer.compact();
+    }
+
+    // Frames are [int32 length][body]; the listener reads the body in place
+    private void deliverFrames(int start, int limit) {
+        while (!parked && !closed && limit - start >= 4) {
+            if (framesInFlight.get() >= MAX_FRAMES_IN_FLIGHT) {
+                park();
+                break;
+            }
+            int length = readBuffer.getInt(start);
+            if (length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                Log.debug(null, "Invalid frame length {} from {}, closing connection", length, remoteAddress);
+                closeNow();
+                return;
+            }
+            if (limit - start - 4 < length) {
+                break;
+            }
+            readBuffer.limit(start + 4 + length).position(start + 4);
+            framesInFlight.incrementAndGet();
+            listener.onFrame(this, readBuffer);
+            readBuffer.limit(limit);
+            start += 4 + length;
+        }
+        readBuffer.position(start);
+        readBuffer.compact();
+    }
+
+    private void flush() {
+        if (closed || connecting) {
+            return;
+        }
+        try {
+            ByteBuffer buffer;
+            while ((buffer = writeQueue.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+                writeQueue.poll();
+            }
+        } catch (IOException e) {
+            closeNow();
+            return;
+        }
+        if (writeQueue.isEmpty() && closeAfterFlush) {
+            closeNow();
+            return;
+        }
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        if (connecting) {
+            key.interestOps(SelectionKey.OP_CONNECT);
+            return;
+        }
+        int ops = 0;
+        if (!parked && !closeAfterFlush) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!writeQueue.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        listener.onClose(this);
+    }
+}
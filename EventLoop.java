@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Single-threaded selector loop. Every channel registered on a loop is only
+// ever touched by that loop's thread; other threads hand work over through execute().
+public class EventLoop implements Runnable {
+
+    // Implemented by whatever is attached to a SelectionKey (acceptor, connections)
+    public interface Handler {
+        void handleEvent(SelectionKey key) throws IOException;
+        void handleError(SelectionKey key, IOException e);
+    }
+
+    private final String name;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile Thread thread;
+    private volatile boolean running = true;
+
+    public EventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void start() {
+        Thread t = new Thread(this, name);
+        thread = t;
+        t.start();
+    }
+
+    public void join() throws InterruptedException {
+        Thread t = thread;
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Run a task on the loop thread (immediately if we are already on it)
+    public void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    // Always queue the task, even from the loop thread (avoids re-entrant callbacks)
+    public void executeLater(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public void register(SelectableChannel channel, int ops, Handler handler) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, ops, handler);
+                if (handler instanceof Connection) {
+                    ((Connection) handler).attachKey(key);
+                }
+            } catch (IOException e) {
+                Log.warn(name, "Error registering channel: {}", e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException e2) {
+                    // Ignore
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.error(name, "Selector error: {}", e.getMessage());
+                continue;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.error(name, "Task failed: {}", e);
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Handler handler = (Handler) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                try {
+                    handler.handleEvent(key);
+                } catch (IOException e) {
+                    handler.handleError(key, e);
+                } catch (CancelledKeyException e) {
+                    // Channel closed by another handler in the same round
+                } catch (RuntimeException e) {
+                    // A bug in one handler must not take the loop's other connections down:
+                    // treat it as an I/O error on this key (a connection closes, the acceptor goes on)
+                    Log.error(name, "Handler failed: {}", e);
+                    handler.handleError(key, new IOException(e));
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+// Group commit for replicated mutations: mutations submitted concurrently are
+// collected for up to windowMs (or until maxBatch are waiting) and shipped to the
+// followers as a single batched SYNC. Every submitter's future completes when
+// the batch it was part of has been acknowledged; mutations still waiting for
+// their batch when the committer shuts down fail.
+public class GroupCommitter implements Runnable {
+
+    // One or more mutations that must be shipped in the same batch
+    private static class Entry {
+        final List<String> messages;
+        final CompletableFuture<Long> committed = new CompletableFuture<>();
+
+        Entry(List<String> messages) {
+            this.messages = messages;
+        }
+    }
+
+    private final String serverIp;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final Function<List<String>, CompletableFuture<Long>> shipper;
+    private final Histogram batchSizes;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public GroupCommitter(String serverIp, long windowMs, int maxBatch,
+                          Function<List<String>, CompletableFuture<Long>> shipper, Histogram batchSizes) {
+        this.serverIp = serverIp;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.shipper = shipper;
+        this.batchSizes = batchSizes;
+        this.flusher = new Thread(this, "group-commit");
+        this.flusher.setDaemon(true);
+    }
+
+    public void start() {
+        flusher.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        flusher.interrupt();
+    }
+
+    // Queue a mutation; must be called in the order the mutations were applied.
+    // Completes with the sequence number of the batch once it is committed.
+    public CompletableFuture<Long> submit(String message) {
+        return submit(Collections.singletonList(message));
+    }
+
+    // Queue mutations that must reach the followers in the same SYNC (e.g. MLOCK)
+    public CompletableFuture<Long> submit(List<String> messages) {
+        Entry entry = new Entry(messages);
+        if (!running) {
+            entry.committed.completeExceptionally(stopped());
+            return entry.committed;
+        }
+        queue.add(entry);
+        // Shut down meanwhile: unless the flusher took it, nobody else will
+        if (!running && queue.remove(entry)) {
+            entry.committed.completeExceptionally(stopped());
+        }
+        return entry.committed;
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    @Override
+    public void run() {
+        List<Entry> batch = new ArrayList<>(maxBatch);
+        while (running) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatch) {
+                    // Take whatever is already queued, then wait out the rest of the window
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Entry next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                if (!running) {
+                    break;
+                }
+                continue;
+            }
+            ship(batch);
+            batch = new ArrayList<>(maxBatch);
+        }
+        // Taken into the batch being collected, or still queued: answered NO_QUORUM
+        // instead of leaving their clients to time out
+        queue.drainTo(batch);
+        for (Entry entry : batch) {
+            entry.committed.completeExceptionally(stopped());
+        }
+    }
+
+    private static Exception stopped() {
+        return new Replicator.NoQuorumException("Group commit stopped");
+    }
+
+    private void ship(List<Entry> batch) {
+        List<String> messages = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            messages.addAll(entry.messages);
+        }
+        batchSizes.record(messages.size());
+        Log.trace(serverIp, "Group commit: shipping batch of {} mutations", messages.size());
+        try {
+            shipper.apply(messages).whenComplete((seq, e) -> {
+                for (Entry entry : batch) {
+                    if (e == null) {
+                        entry.committed.complete(seq);
+                    } else {
+                        entry.committed.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            for (Entry entry : batch) {
+                entry.committed.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Default lock table (dls.lockTable=hash): a ConcurrentHashMap of lock name ->
+// owner, and a reverse index owner -> lock names. Both maps are concurrent; a
+// lock name's entry and its index entry are changed together by whoever holds
+// the name's stripe, and each owner's set of names is only changed inside
+// compute, so changes to different names of the same owner never lose each other.
+public class HashLockTable extends AbstractMap<String, String> implements LockTable {
+    private final ConcurrentHashMap<String, String> owners = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> byOwner = new ConcurrentHashMap<>();
+
+    @Override
+    public String get(Object lockName) {
+        return owners.get(lockName);
+    }
+
+    @Override
+    public boolean containsKey(Object lockName) {
+        return owners.containsKey(lockName);
+    }
+
+    @Override
+    public int size() {
+        return owners.size();
+    }
+
+    @Override
+    public String put(String lockName, String owner) {
+        String previous = owners.put(lockName, owner);
+        if (!owner.equals(previous)) {
+            if (previous != null) {
+                unindex(previous, lockName);
+            }
+            index(owner, lockName);
+        }
+        return previous;
+    }
+
+    @Override
+    public String remove(Object lockName) {
+        String previous = owners.remove(lockName);
+        if (previous != null) {
+            unindex(previous, (String) lockName);
+        }
+        return previous;
+    }
+
+    // Only if owner still holds it (a replicated EXPIRE)
+    @Override
+    public boolean remove(Object lockName, Object owner) {
+        if (!owners.remove(lockName, owner)) {
+            return false;
+        }
+        unindex((String) owner, (String) lockName);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        owners.clear();
+        byOwner.clear();
+    }
+
+    // Read-only view; iterating it takes no lock and sees concurrent changes or not
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return Collections.unmodifiableMap(owners).entrySet();
+    }
+
+    @Override
+    public List<String> locksOf(String owner) {
+        Set<String> names = byOwner.get(owner);
+        return names != null ? new ArrayList<>(names) : Collections.emptyList();
+    }
+
+    @Override
+    public int ownerCount() {
+        return byOwner.size();
+    }
+
+    private void index(String owner, String lockName) {
+        byOwner.compute(owner, (k, names) -> {
+            if (names == null) {
+                names = ConcurrentHashMap.newKeySet();
+            }
+            names.add(lockName);
+            return names;
+        });
+    }
+
+    private void unindex(String owner, String lockName) {
+        byOwner.computeIfPresent(owner, (k, names) -> {
+            names.remove(lockName);
+            return names.isEmpty() ? null : names;
+        });
+    }
+}
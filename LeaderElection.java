@@ -0,0 +1,335 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Term-based leader election among the cluster members (Raft's election rules).
+// Every node starts as a follower. A follower that hears nothing from a leader
+// for a randomized election timeout becomes a candidate: it starts a new term,
+// votes for itself and asks the others with
+//
+//   VOTE_REQUEST,<term>,<candidateId>,<lastSeq>,<lastTerm>   ->   VOTE,<term>,<1|0>
+//
+// A node grants one vote per term, and only to a candidate whose log is at least
+// as up to date as its own (higher last entry term, or same term and at least
+// as long), so a new leader always holds every committed entry. A candidate with
+// the votes of a majority becomes leader; anyone seeing a higher term steps down.
+// Before that, a pre-vote round (PRE_VOTE, same arguments and answer) checks that
+// a majority would vote at all: a node that was only cut off from a healthy
+// leader does not keep raising the term and then depose that leader on return.
+// Leaders assert themselves through their replication channels (LEADER hello,
+// SYNCs and heartbeats), which is what resets followers' election timers.
+//
+// The current term and vote are persisted in <dataDir>/election when a data
+// directory is configured, so a restarted node cannot vote twice in a term.
+public class LeaderElection {
+
+    public enum Role { FOLLOWER, CANDIDATE, LEADER }
+
+    // Callbacks into the server. They run while the election's monitor is held,
+    // so role changes are never observed half done.
+    public interface Listener {
+        // {seq, term} of the last log entry this node has
+        long[] logPosition();
+
+        void onLeader(long term);
+
+        void onFollower(long term);
+    }
+
+    private static final int VOTE_TIMEOUT_MS = 200;
+
+    private final String selfId;
+    private final List<String> peers;
+    private final long electionTimeoutMs;
+    private final Transport transport;
+    private final File stateFile;
+    private final Listener listener;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService voteExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "election");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Guarded by this
+    private long currentTerm;
+    private String votedFor;
+    private Role role = Role.FOLLOWER;
+    private String leaderId;
+    private long electionDeadlineNanos;
+    private long lastLeaderContactNanos;
+    private int votes;
+    // Pre-vote round in progress (0 = none) and its grants
+    private long preVoteRound;
+    private int preVotes;
+
+    public LeaderElection(String selfId, List<String> peers, ServerConfig config, Listener listener,
+                          ScheduledExecutorService scheduler) {
+        this.selfId = selfId;
+        this.peers = peers;
+        this.electionTimeoutMs = config.electionTimeoutMs;
+        this.transport = config.transport;
+        this.stateFile = config.dataDir.isEmpty() ? null : new File(config.dataDir, "election");
+        this.listener = listener;
+        this.scheduler = scheduler;
+    }
+
+    // Load the persisted term and vote; campaign at once if this node is the preferred
+    // leader (and no other leader is running)
+    public synchronized void start(boolean campaignNow) throws IOException {
+        if (stateFile != null && stateFile.exists()) {
+            String[] parts = new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8).trim().split(",");
+            currentTerm = Long.parseLong(parts[0]);
+            votedFor = parts.length > 1 && !parts[1].isEmpty() ? parts[1] : null;
+        }
+        resetElectionTimer();
+        if (campaignNow) {
+            startPreVote();
+        }
+        long tickMs = Math.max(10, electionTimeoutMs / 10);
+        scheduler.scheduleWithFixedDelay(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized long getCurrentTerm() {
+        return currentTerm;
+    }
+
+    public synchronized Role getRole() {
+        return role;
+    }
+
+    // "ip:port" of the current leader, or null while none is known
+    public synchronized String getLeaderId() {
+        return leaderId;
+    }
+
+    public String getSelfId() {
+        return selfId;
+    }
+
+    public int clusterSize() {
+        return peers.size() + 1;
+    }
+
+    // A message from the leader of term (leaderId = null: same leader as before).
+    // Returns false if that term is stale and the message must be rejected.
+    public synchronized boolean onLeaderContact(long term, String leader) {
+        if (term < currentTerm) {
+            return false;
+        }
+        if (term > currentTerm || role != Role.FOLLOWER) {
+            becomeFollower(term);
+        }
+        if (leader != null && !leader.equals(leaderId)) {
+            leaderId = leader;
+            Log.info(selfId, "Following leader {} in term {}", leader, term);
+        }
+        lastLeaderContactNanos = System.nanoTime();
+        resetElectionTimer();
+        return true;
+    }
+
+    // Some peer answered with a higher term: this node's term is over
+    public synchronized void observeTerm(long term) {
+        if (term > currentTerm) {
+            becomeFollower(term);
+        }
+    }
+
+    // PRE_VOTE: would this node vote for the candidate in term? Changes nothing.
+    public synchronized String handlePreVote(long term, String candidate, long lastSeq, long lastTerm) {
+        boolean granted = term > currentTerm && !leaderAlive() && isUpToDate(lastSeq, lastTerm);
+        return "VOTE," + currentTerm + "," + (granted ? 1 : 0);
+    }
+
+    public synchronized String handleVoteRequest(long term, String candidate, long lastSeq, long lastTerm) {
+        // While a leader is known to be alive, its term is not given up for a
+        // candidate that merely lost touch with it. This is also what lets the
+        // leader answer READ_INDEX from recent contact with a majority.
+        if (leaderAlive()) {
+            Log.info(selfId, "Vote for {} in term {}: denied (leader {} is alive)", candidate, term, leaderId);
+            return "VOTE," + currentTerm + ",0";
+        }
+        if (term > currentTerm) {
+            becomeFollower(term);
+        }
+        boolean granted = false;
+        if (term == currentTerm && (votedFor == null || votedFor.equals(candidate)) && isUpToDate(lastSeq, lastTerm)) {
+            votedFor = candidate;
+            persist();
+            resetElectionTimer();
+            granted = true;
+        }
+        Log.info(selfId, "Vote for {} in term {}: {}", candidate, term, granted ? "granted" : "denied");
+        return "VOTE," + currentTerm + "," + (granted ? 1 : 0);
+    }
+
+    // Caller holds this
+    private boolean leaderAlive() {
+        return leaderId != null && (role == Role.LEADER
+                || System.nanoTime() - lastLeaderContactNanos < TimeUnit.MILLISECONDS.toNanos(electionTimeoutMs));
+    }
+
+    // Caller holds this. The candidate's last entry is at least as recent as ours.
+    private boolean isUpToDate(long lastSeq, long lastTerm) {
+        long[] mine = listener.logPosition();
+        return lastTerm > mine[1] || (lastTerm == mine[1] && lastSeq >= mine[0]);
+    }
+
+    private void tick() {
+        try {
+            synchronized (this) {
+                if (role != Role.LEADER && System.nanoTime() - electionDeadlineNanos > 0) {
+                    startPreVote();
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.error(selfId, "Election tick failed: {}", e);
+        }
+    }
+
+    // Caller holds this
+    private void startPreVote() {
+        resetElectionTimer();
+        leaderId = null;
+        preVoteRound++;
+        preVotes = 1;
+        if (preVotes > clusterSize() / 2) {
+            startElection();
+            return;
+        }
+        long round = preVoteRound;
+        long[] position = listener.logPosition();
+        String request = "PRE_VOTE," + (currentTerm + 1) + "," + selfId + "," + position[0] + "," + position[1];
+        for (String peer : peers) {
+            voteExecutor.execute(() -> {
+                String[] vote = ask(peer, request);
+                if (vote == null) {
+                    return;
+                }
+                synchronized (this) {
+                    if (round != preVoteRound || role == Role.LEADER || !vote[2].equals("1")) {
+                        return;
+                    }
+                    preVotes++;
+                    if (preVotes == clusterSize() / 2 + 1) {
+                        startElection();
+                    }
+                }
+            });
+        }
+    }
+
+    // Caller holds this
+    private void startElection() {
+        preVoteRound++;
+        currentTerm++;
+        role = Role.CANDIDATE;
+        votedFor = selfId;
+        leaderId = null;
+        votes = 1;
+        persist();
+        resetElectionTimer();
+        long term = currentTerm;
+        long[] position = listener.logPosition();
+        Log.info(selfId, "Starting election for term {} (log at seq {}, term {})", term, position[0], position[1]);
+        if (votes > clusterSize() / 2) {
+            becomeLeader();
+            return;
+        }
+        String request = "VOTE_REQUEST," + term + "," + selfId + "," + position[0] + "," + position[1];
+        for (String peer : peers) {
+            voteExecutor.execute(() -> requestVote(peer, term, request));
+        }
+    }
+
+    private void requestVote(String peer, long term, String request) {
+        String[] vote = ask(peer, request);
+        if (vote == null) {
+            return;
+        }
+        long voterTerm = Long.parseLong(vote[1]);
+        synchronized (this) {
+            if (voterTerm > currentTerm) {
+                becomeFollower(voterTerm);
+                return;
+            }
+            if (role != Role.CANDIDATE || currentTerm != term || !vote[2].equals("1")) {
+                return;
+            }
+            votes++;
+            if (votes > clusterSize() / 2) {
+                becomeLeader();
+            }
+        }
+    }
+
+    // "VOTE,<term>,<granted>" split, or null if the peer did not answer
+    private String[] ask(String peer, String request) {
+        String response;
+        try (Socket socket = new Socket()) {
+            socket.connect(transport.addressOf(peer), VOTE_TIMEOUT_MS);
+            socket.setSoTimeout(VOTE_TIMEOUT_MS);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.println(request);
+            response = in.readLine();
+        } catch (IOException e) {
+            return null; // Unreachable peers simply do not vote
+        }
+        if (response == null || !response.startsWith("VOTE,")) {
+            return null;
+        }
+        String[] vote = response.split(",");
+        return vote.length == 3 ? vote : null;
+    }
+
+    // Caller holds this
+    private void becomeLeader() {
+        role = Role.LEADER;
+        leaderId = selfId;
+        Log.info(selfId, "Elected leader for term {} with {} of {} votes", currentTerm, votes, clusterSize());
+        listener.onLeader(currentTerm);
+    }
+
+    // Caller holds this
+    private void becomeFollower(long term) {
+        boolean wasLeader = role == Role.LEADER;
+        if (term > currentTerm) {
+            currentTerm = term;
+            votedFor = null;
+            leaderId = null;
+            persist();
+        }
+        role = Role.FOLLOWER;
+        if (wasLeader) {
+            Log.info(selfId, "Stepping down: term {} has started", term);
+        }
+        listener.onFollower(currentTerm);
+    }
+
+    // Caller holds this. Randomized so that followers rarely campaign at the same time.
+    private void resetElectionTimer() {
+        long timeoutMs = electionTimeoutMs + ThreadLocalRandom.current().nextLong(electionTimeoutMs + 1);
+        electionDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    // Caller holds this. Written before the vote or term is acted upon.
+    private void persist() {
+        if (stateFile == null) {
+            return;
+        }
+        try {
+            Path tmp = new File(stateFile.getPath() + ".tmp").toPath();
+            Files.write(tmp, (currentTerm + "," + (votedFor != null ? votedFor : "")).getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE,
+                    StandardOpenOption.SYNC);
+            Files.move(tmp, stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot persist the election state", e);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Load generator built on Client: a number of clients, each on its own thread,
+// send a mix of commands on lock names drawn uniformly or from a Zipf
+// distribution, then throughput and latency percentiles are printed per command.
+//
+// Closed loop (default): every client sends its next request as soon as the last
+// one is answered, so the offered load follows the server's speed.
+// Open loop (--rate): requests are due at a fixed total rate, spread evenly over
+// the clients, and latency is measured from when a request was due rather than
+// when it was sent. A slow answer delays the client's next requests, and that
+// delay is counted in their latency instead of hidden (coordinated omission).
+// With --pool, clients keep persistent binary connections, and in the open loop
+// they send each request when due without waiting for the previous answers.
+//
+// LOCK takes a name and keeps it if granted; UNLOCK and RENEW act on the name the
+// client has held the longest (or a drawn one if it holds none), so the mix can be
+// balanced. Locks still held at the end are released.
+public class LoadGenerator {
+
+    private static final String[] COMMANDS = {"LOCK", "UNLOCK", "OWN", "RENEW", "LOCK_WAIT"};
+    // In the client IDs, so that generators running at the same time do not share locks
+    private static final String PROCESS_ID = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+
+    // Options, from --name value arguments
+    private final List<String> servers = new ArrayList<>();
+    private ShardMap shards;
+    private int clients = 16;
+    private long durationMs = 30000;
+    private long warmupMs = 5000;
+    private long rate = 0;
+    private int keys = 10000;
+    private double zipf = 0;
+    private long ttlMs = 0;
+    private long waitMs = 100;
+    private boolean binary = false;
+    private int pool = 0;
+    private boolean leaderAware = false;
+    private final Map<String, Integer> mix = new LinkedHashMap<>();
+
+    // Per command, measured requests only
+    private final Map<String, Histogram> latency = new LinkedHashMap<>();
+    private final Map<String, Map<String, LongAdder>> outcomes = new ConcurrentHashMap<>();
+    // Last answer to a measured request, in nanoseconds after the measurement started
+    private final LongAccumulator lastAnswer = new LongAccumulator(Math::max, 0);
+
+    private String[] names;
+    // Cumulative Zipf probabilities by rank (null: uniform)
+    private double[] zipfCumulative;
+    private String[] mixTable;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            return;
+        }
+        generator.run();
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java LoadGenerator [options]");
+        System.out.println("  --servers <ip:port,...>  servers, assigned to the clients in turn (default 127.0.0.1:5000)");
+        System.out.println("                           with -Ddls.shardMap=<file>, each request goes to its lock name's shard");
+        System.out.println("  --clients <n>            concurrent clients, one thread each (16)");
+        System.out.println("  --duration <s>           measured seconds (30), after --warmup <s> (5)");
+        System.out.println("  --rate <req/s>           open loop at this total rate; 0 = closed loop (0)");
+        System.out.println("  --mix <CMD:weight,...>   command mix (LOCK:40,UNLOCK:40,OWN:20)");
+        System.out.println("                           commands: LOCK, UNLOCK, OWN, RENEW, LOCK_WAIT");
+        System.out.println("  --keys <n>               distinct lock names (10000)");
+        System.out.println("  --zipf <s>               Zipf exponent of the lock name popularity; 0 = uniform (0)");
+        System.out.println("  --ttl <ms>               lease of LOCK / LOCK_WAIT; 0 = none (0)");
+        System.out.println("  --wait <ms>              LOCK_WAIT timeout (100)");
+        System.out.println("  --binary                 binary protocol instead of text lines");
+        System.out.println("  --pool <n>               persistent binary connections per server and client; 0 = one per request (0)");
+        System.out.println("                           with --rate, requests are sent when due without waiting for answers");
+        System.out.println("  --leader-aware           writes straight to the leader, OWN spread over the members (see TOPOLOGY)");
+        System.out.println("Example: java LoadGenerator --servers 127.0.0.1:5000,127.0.0.1:5001,127.0.0.1:5002 --clients 32 --zipf 0.99");
+    }
+
+    private void parse(String[] args) throws IOException {
+        String serverList = "127.0.0.1:5000";
+        String mixList = "LOCK:40,UNLOCK:40,OWN:20";
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--binary")) {
+                binary = true;
+                continue;
+            }
+            if (option.equals("--leader-aware")) {
+                leaderAware = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--servers": serverList = value; break;
+                case "--clients": clients = Integer.parseInt(value); break;
+                case "--duration": durationMs = (long) (Double.parseDouble(value) * 1000); break;
+                case "--warmup": warmupMs = (long) (Double.parseDouble(value) * 1000); break;
+                case "--rate": rate = Long.parseLong(value); break;
+                case "--mix": mixList = value; break;
+                case "--keys": keys = Integer.parseInt(value); break;
+                case "--zipf": zipf = Double.parseDouble(value); break;
+                case "--ttl": ttlMs = Long.parseLong(value); break;
+                case "--wait": waitMs = Long.parseLong(value); break;
+                case "--pool": pool = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (clients < 1 || keys < 1 || durationMs <= 0 || warmupMs < 0 || rate < 0 || zipf < 0 || pool < 0) {
+            throw new IllegalArgumentException("Invalid option value");
+        }
+        for (String server : serverList.split(",")) {
+            if (!server.trim().isEmpty()) {
+                servers.add(server.trim());
+            }
+        }
+        String shardMap = System.getProperty("dls.shardMap", "");
+        if (!shardMap.isEmpty()) {
+            shards = ShardMap.load(new File(shardMap));
+        }
+        List<String> table = new ArrayList<>();
+        for (String entry : mixList.split(",")) {
+            String[] parts = entry.split(":");
+            String cmd = parts[0].trim().toUpperCase();
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            if (!Arrays.asList(COMMANDS).contains(cmd) || weight < 0) {
+                throw new IllegalArgumentException("Invalid mix entry " + entry);
+            }
+            mix.merge(cmd, weight, Integer::sum);
+            for (int w = 0; w < weight; w++) {
+                table.add(cmd);
+            }
+        }
+        if (table.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix " + mixList);
+        }
+        mixTable = table.toArray(new String[0]);
+    }
+
+    private void run() throws InterruptedException {
+        names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "lock-" + i;
+        }
+        if (zipf > 0) {
+            zipfCumulative = new double[keys];
+            double total = 0;
+            for (int rank = 1; rank <= keys; rank++) {
+                total += 1 / Math.pow(rank, zipf);
+                zipfCumulative[rank - 1] = total;
+            }
+            for (int i = 0; i < keys; i++) {
+                zipfCumulative[i] /= total;
+            }
+        }
+        for (String cmd : mix.keySet()) {
+            latency.put(cmd, new Histogram());
+            outcomes.put(cmd, new ConcurrentHashMap<>());
+        }
+
+        System.out.println("=== Load: " + clients + " clients, " + (rate > 0 ? rate + " req/s open loop" : "closed loop")
+                + ", mix " + mix + ", " + keys + " keys" + (zipf > 0 ? " (zipf " + zipf + ")" : " (uniform)")
+                + ", " + (shards != null ? "shard map " + shards : "servers " + servers)
+                + (pool > 0 ? ", " + pool + " pooled connections" : binary ? ", binary" : "")
+                + (leaderAware ? ", leader-aware" : "") + " ===");
+
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.MILLISECONDS.toNanos(warmupMs);
+        long end = measureStart + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int c = 0; c < clients; c++) {
+            int index = c;
+            Thread thread = new Thread(() -> {
+                try {
+                    runClient(index, start, measureStart, end);
+                } finally {
+                    done.countDown();
+                }
+            }, "load-client-" + c);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        while (!done.await(1, TimeUnit.SECONDS)) {
+            long now = System.nanoTime();
+            if (now - end > TimeUnit.SECONDS.toNanos(30)) {
+                System.err.println("Clients still busy 30s after the end, reporting anyway");
+                break;
+            }
+        }
+        // Late open-loop requests are answered after the end: throughput is over the time they took
+        report(Math.max(end - measureStart, lastAnswer.get()));
+    }
+
+    private void runClient(int index, long start, long measureStart, long end) {
+        String clientId = "load-" + PROCESS_ID + "-" + index;
+        Client client;
+        if (shards != null) {
+            client = new Client(shards, clientId, binary, pool);
+        } else {
+            String[] server = servers.get(index % servers.size()).split(":");
+            client = new Client(server[0], Integer.parseInt(server[1]), clientId, binary, pool);
+        }
+        client.setLeaderAware(leaderAware);
+        SplittableRandom random = new SplittableRandom(start + index);
+        // Answers of asynchronous requests arrive on the connections' reader threads
+        Deque<String> held = new ConcurrentLinkedDeque<>();
+        AtomicInteger inFlight = new AtomicInteger();
+        // Open loop: this client's share of the rate, first requests staggered over one interval
+        long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) * clients / rate : 0;
+        long due = start + (rate > 0 ? intervalNanos * index / clients : 0);
+
+        while (true) {
+            if (rate > 0) {
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                due = System.nanoTime();
+            }
+            if (due - end >= 0) {
+                break;
+            }
+            String cmd = mixTable[random.nextInt(mixTable.length)];
+            String lockName;
+            if ((cmd.equals("UNLOCK") || cmd.equals("RENEW")) && !held.isEmpty()) {
+                lockName = cmd.equals("UNLOCK") ? held.pollFirst() : held.peekFirst();
+            } else {
+                lockName = nextName(random);
+            }
+            long requestTtlMs = cmd.equals("LOCK") || cmd.equals("LOCK_WAIT") ? ttlMs : 0;
+            long requestWaitMs = cmd.equals("LOCK_WAIT") ? waitMs : 0;
+            if (pool > 0 && rate > 0) {
+                long sent = due;
+                inFlight.incrementAndGet();
+                client.requestAsync(cmd, lockName, requestTtlMs, requestWaitMs).thenAccept(response -> {
+                    record(cmd, lockName, response, sent, measureStart, held);
+                    inFlight.decrementAndGet();
+                });
+            } else {
+                String response = client.request(cmd, lockName, requestTtlMs, requestWaitMs);
+                record(cmd, lockName, response, due, measureStart, held);
+            }
+            due += intervalNanos;
+        }
+        while (inFlight.get() > 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        for (String lockName : held) {
+            client.request("UNLOCK", lockName, 0, 0);
+        }
+        client.close();
+    }
+
+    private void record(String cmd, String lockName, String response, long due, long measureStart, Deque<String> held) {
+        long finished = System.nanoTime();
+        if ((cmd.equals("LOCK") || cmd.equals("LOCK_WAIT")) && response.equals("SUCCESS")) {
+            held.addLast(lockName);
+        }
+        if (due - measureStart >= 0) {
+            latency.get(cmd).record(TimeUnit.NANOSECONDS.toMicros(finished - due));
+            outcomes.get(cmd).computeIfAbsent(outcomeOf(response), k -> new LongAdder()).increment();
+            lastAnswer.accumulate(finished - measureStart);
+        }
+    }
+
+    private String nextName(SplittableRandom random) {
+        if (zipfCumulative == null) {
+            return names[random.nextInt(keys)];
+        }
+        int rank = Arrays.binarySearch(zipfCumulative, random.nextDouble());
+        return names[Math.min(keys - 1, rank < 0 ? -rank - 1 : rank)];
+    }
+
+    // OWN answers the owner's client ID: count them all as one outcome
+    private static String outcomeOf(String response) {
+        int comma = response.indexOf(',');
+        String status = comma < 0 ? response : response.substring(0, comma);
+        return status.startsWith("load-") ? "OWNER" : status;
+    }
+
+    private void report(long measuredNanos) {
+        double seconds = measuredNanos / 1e9;
+        boolean behind = measuredNanos > TimeUnit.MILLISECONDS.toNanos(durationMs) * 11 / 10;
+        long total = 0;
+        System.out.println();
+        System.out.printf("%-10s %10s %10s %9s %9s %9s %9s %9s  %s%n",
+                "command", "requests", "req/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "outcomes");
+        for (Map.Entry<String, Histogram> entry : latency.entrySet()) {
+            Histogram h = entry.getValue();
+            total += h.getCount();
+            System.out.printf("%-10s %10d %10.0f %9d %9d %9d %9d %9d  %s%n", entry.getKey(), h.getCount(),
+                    h.getCount() / seconds, h.getPercentile(50), h.getPercentile(90), h.getPercentile(99),
+                    h.getPercentile(99.9), h.getMax(), new TreeMap<>(outcomes.get(entry.getKey())));
+        }
+        System.out.printf("%-10s %10d %10.0f%n", "total", total, total / seconds);
+        System.out.printf("measured over %.1f s%n", seconds);
+        if (rate > 0 && behind) {
+            System.out.println("Offered load not reached: the clients fell behind the schedule"
+                    + " (latencies include the wait)");
+        }
+    }
+
+}
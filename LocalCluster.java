@@ -0,0 +1,489 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.ObjIntConsumer;
+
+// Several Servers in one JVM, for replication experiments and failure tests on
+// one machine. Node i listens on 127.0.0.1:<basePort + i> for clients, and its
+// member ID is "127.0.0.<i + 1>:<basePort + i>" so that every node has its own log
+// tag. The servers reach each other through the Transport each of them is given:
+// a connection from node a to node b goes to an in-process relay for the link
+// a -> b, which forwards the bytes both ways and injects the faults set on the
+// link:
+//
+//   latency    each chunk is held for the link's one-way delay (per direction,
+//              so answers take the delay of the reverse link)
+//   drops      each chunk is lost with the link's drop rate; as the servers talk
+//              over byte streams, losing one means closing the connection, with
+//              whatever else was in flight on it (the servers reconnect and retry)
+//   partitions connections between the two sides are closed and refused
+//
+// Drops are drawn from one random generator per link, seeded from the cluster
+// seed, so a run with the same seed and the same traffic drops the same chunks.
+//
+// The nodes form one cluster, unless the configuration callback gives them a shard
+// map (ServerConfig.shardMap) over their memberId()s: then each shard is its own
+// replication group, and leader() only makes sense for a single shard.
+//
+//   java LocalCluster 3 5000     then commands on stdin (see COMMANDS)
+public class LocalCluster implements Closeable {
+
+    private static final String COMMANDS = "leader | stop <node> | start <node> | latency <from> <to> <ms>"
+            + " | drop <from> <to> <rate> | partition <node>... | heal | status | quit";
+
+    private final int size;
+    private final int basePort;
+    private final long seed;
+    private final ObjIntConsumer<ServerConfig> configure;
+    private final List<String> members = new ArrayList<>();
+    private final Server[] servers;
+    private final Thread[] serverThreads;
+    // Relay of the link from -> to, at [from][to]
+    private final Link[][] links;
+    // Side of each node in the current partition (all 0 when healed)
+    private volatile int[] sides;
+    private volatile boolean closed;
+
+    // One-way faults of a link; a link carries the connections its source opens
+    private final class Link {
+        final int from;
+        final int to;
+        final ServerSocket listener;
+        final Random random;
+        volatile long latencyMs;
+        volatile double dropRate;
+        final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+        Link(int from, int to) throws IOException {
+            this.from = from;
+            this.to = to;
+            this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            this.random = new Random(seed * 31 * 31 + from * 31 + to);
+            Thread acceptor = new Thread(this::accept, "link-" + from + "-" + to);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        InetSocketAddress address() {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        }
+
+        boolean drop() {
+            double rate = dropRate;
+            if (rate <= 0) {
+                return false;
+            }
+            synchronized (random) {
+                return random.nextDouble() < rate;
+            }
+        }
+
+        private void accept() {
+            while (!closed) {
+                Socket inbound;
+                try {
+                    inbound = listener.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                if (partitioned(from, to)) {
+                    closeQuietly(inbound);
+                    continue;
+                }
+                Socket outbound = new Socket();
+                try {
+                    outbound.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), basePort + to), 5000);
+                    inbound.setTcpNoDelay(true);
+                    outbound.setTcpNoDelay(true);
+                } catch (IOException e) {
+                    // Node down: the source sees the connection close, as with a refused one
+                    closeQuietly(inbound);
+                    closeQuietly(outbound);
+                    continue;
+                }
+                sockets.add(inbound);
+                sockets.add(outbound);
+                relay(inbound, outbound, this);
+                relay(outbound, inbound, links[to][from]);
+            }
+        }
+
+        // Close every connection of this link
+        void cut() {
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+            sockets.clear();
+        }
+    }
+
+    private static final class Chunk {
+        final long dueNanos;
+        final byte[] data;
+
+        Chunk(long dueNanos, byte[] data) {
+            this.dueNanos = dueNanos;
+            this.data = data;
+        }
+    }
+
+    public LocalCluster(int size, int basePort, long seed, ObjIntConsumer<ServerConfig> configure) throws IOException {
+        this.size = size;
+        this.basePort = basePort;
+        this.seed = seed;
+        this.configure = configure;
+        this.servers = new Server[size];
+        this.serverThreads = new Thread[size];
+        this.links = new Link[size][size];
+        this.sides = new int[size];
+        for (int i = 0; i < size; i++) {
+            members.add("127.0.0." + (i + 1) + ":" + (basePort + i));
+        }
+        for (int from = 0; from < size; from++) {
+            for (int to = 0; to < size; to++) {
+                if (from != to) {
+                    links[from][to] = new Link(from, to);
+                }
+            }
+        }
+    }
+
+    public LocalCluster(int size, int basePort) throws IOException {
+        this(size, basePort, 1, (config, node) -> { });
+    }
+
+    // First of size consecutive client ports that are free right now, picked at random
+    // below the ephemeral range (where the links listen), so that clusters started side
+    // by side (test classes run in parallel or in forked JVMs) do not take each other's
+    public static int freeBasePort(int size) throws IOException {
+        Random random = new Random();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            int basePort = 20_000 + random.nextInt(10_000 - size);
+            if (portsFree(basePort, size)) {
+                return basePort;
+            }
+        }
+        throw new IOException("No " + size + " consecutive free ports found");
+    }
+
+    private static boolean portsFree(int basePort, int size) {
+        for (int port = basePort; port < basePort + size; port++) {
+            try (ServerSocket probe = new ServerSocket(port)) {
+                probe.setReuseAddress(true);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Member ID of a node, as the other nodes know it
+    public String memberId(int node) {
+        return members.get(node);
+    }
+
+    // Where clients reach a node
+    public InetSocketAddress clientAddress(int node) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), basePort + node);
+    }
+
+    // The node's server, or null while it is stopped
+    public Server server(int node) {
+        return servers[node];
+    }
+
+    // Start every node; node 0 campaigns at once
+    public void start() throws IOException {
+        for (int i = 0; i < size; i++) {
+            start(i, i == 0);
+        }
+    }
+
+    // (Re)start a stopped node, with the same configuration (and data directory, if any)
+    public synchronized void start(int node) throws IOException {
+        start(node, false);
+    }
+
+    private synchronized void start(int node, boolean preferLeader) throws IOException {
+        if (servers[node] != null) {
+            return;
+        }
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        config.cluster = String.join(",", members);
+        config.shardMap = "";
+        configure.accept(config, node);
+        config.transport = member -> {
+            int to = members.indexOf(member);
+            if (to < 0 || to == node) {
+                return Transport.DIRECT.addressOf(member);
+            }
+            return links[node][to].address();
+        };
+        String[] self = members.get(node).split(":");
+        Server server = new Server(self[0], Integer.parseInt(self[1]), preferLeader, config);
+        Thread thread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                Log.error(memberId(node), "Node {} failed: {}", node, e.getMessage());
+            }
+        }, "node-" + node);
+        thread.setDaemon(true);
+        servers[node] = server;
+        serverThreads[node] = thread;
+        thread.start();
+    }
+
+    // Stop a node as if its process died: its connections close and its port is released
+    public synchronized void stop(int node) {
+        Server server = servers[node];
+        if (server == null) {
+            return;
+        }
+        servers[node] = null;
+        server.shutdown();
+        for (int other = 0; other < size; other++) {
+            if (other != node) {
+                links[node][other].cut();
+                links[other][node].cut();
+            }
+        }
+        try {
+            serverThreads[node].join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Index of the node that leads, or -1 if none does (or more than one thinks so)
+    public int leader() {
+        int leader = -1;
+        for (int i = 0; i < size; i++) {
+            Server server = servers[i];
+            if (server != null && server.isLeader()) {
+                if (leader >= 0) {
+                    return -1;
+                }
+                leader = i;
+            }
+        }
+        return leader;
+    }
+
+    // Wait until exactly one node leads; returns it, or -1 after timeoutMs
+    public int awaitLeader(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        int leader;
+        while ((leader = leader()) < 0 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        return leader;
+    }
+
+    // One-way delay of every chunk sent from -> to
+    public void setLatency(int from, int to, long latencyMs) {
+        links[from][to].latencyMs = latencyMs;
+    }
+
+    // Same delay on every link
+    public void setLatency(long latencyMs) {
+        forEachLink(link -> link.latencyMs = latencyMs);
+    }
+
+    // Probability that a chunk sent from -> to is lost (and its connection with it)
+    public void setDropRate(int from, int to, double dropRate) {
+        links[from][to].dropRate = dropRate;
+    }
+
+    public void setDropRate(double dropRate) {
+        forEachLink(link -> link.dropRate = dropRate);
+    }
+
+    // Cut the given nodes off from the others (both ways) until heal()
+    public synchronized void partition(int... side) {
+        int[] newSides = new int[size];
+        for (int node : side) {
+            newSides[node] = 1;
+        }
+        sides = newSides;
+        forEachLink(link -> {
+            if (partitioned(link.from, link.to)) {
+                link.cut();
+            }
+        });
+    }
+
+    public synchronized void heal() {
+        sides = new int[size];
+    }
+
+    public boolean partitioned(int from, int to) {
+        int[] current = sides;
+        return current[from] != current[to];
+    }
+
+    // Stop every node and every link
+    @Override
+    public synchronized void close() {
+        for (int i = 0; i < size; i++) {
+            stop(i);
+        }
+        closed = true;
+        forEachLink(link -> {
+            closeQuietly(link.listener);
+            link.cut();
+        });
+    }
+
+    private void forEachLink(java.util.function.Consumer<Link> action) {
+        for (Link[] row : links) {
+            for (Link link : row) {
+                if (link != null) {
+                    action.accept(link);
+                }
+            }
+        }
+    }
+
+    // Copy in -> out through the faults of link: a reader thread timestamps chunks,
+    // a writer thread sends them once their delay has passed
+    private void relay(Socket in, Socket out, Link link) {
+        BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[16 * 1024];
+            try {
+                InputStream input = in.getInputStream();
+                int n;
+                while ((n = input.read(buffer)) >= 0) {
+                    if (partitioned(link.from, link.to) || link.drop()) {
+                        break;
+                    }
+                    long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(link.latencyMs);
+                    queue.add(new Chunk(due, Arrays.copyOf(buffer, n)));
+                }
+            } catch (IOException e) {
+                // Closed by the other direction, a cut or the peer
+            }
+            closeQuietly(in);
+            queue.add(new Chunk(0, null));
+        }, "link-" + link.from + "-" + link.to + "-read");
+        Thread writer = new Thread(() -> {
+            try {
+                OutputStream output = out.getOutputStream();
+                while (true) {
+                    Chunk chunk = queue.take();
+                    if (chunk.data == null) {
+                        break;
+                    }
+                    long wait = chunk.dueNanos - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    output.write(chunk.data);
+                }
+            } catch (IOException | InterruptedException e) {
+                // Connection gone
+            }
+            closeQuietly(out);
+            closeQuietly(in);
+            link.sockets.remove(in);
+            link.sockets.remove(out);
+        }, "link-" + link.from + "-" + link.to + "-write");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    public String status() {
+        StringBuilder status = new StringBuilder();
+        int leader = leader();
+        for (int i = 0; i < size; i++) {
+            Server server = servers[i];
+            status.append("node ").append(i).append(' ').append(memberId(i))
+                    .append(" clients on ").append(clientAddress(i).getPort())
+                    .append(server == null ? " stopped" : i == leader ? " leader" : " follower")
+                    .append(server == null ? "" : ", " + server.lockTable().size() + " locks")
+                    .append(sides[i] != 0 ? ", partitioned" : "").append('\n');
+        }
+        return status.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java LocalCluster <nodes> <base_port> [seed]");
+            System.out.println("Example: java LocalCluster 3 5000");
+            System.out.println("Commands: " + COMMANDS);
+            return;
+        }
+        int size = Integer.parseInt(args[0]);
+        int basePort = Integer.parseInt(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        LocalCluster cluster = new LocalCluster(size, basePort, seed, (config, node) -> { });
+        Runtime.getRuntime().addShutdownHook(new Thread(cluster::close));
+        cluster.start();
+        System.out.println("Leader: node " + cluster.awaitLeader(10000));
+        System.out.print(cluster.status());
+        System.out.println("Commands: " + COMMANDS);
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] words = line.trim().split("\\s+");
+            try {
+                switch (words[0]) {
+                    case "":
+                        break;
+                    case "leader":
+                        System.out.println("Leader: node " + cluster.leader());
+                        break;
+                    case "stop":
+                        cluster.stop(Integer.parseInt(words[1]));
+                        break;
+                    case "start":
+                        cluster.start(Integer.parseInt(words[1]));
+                        break;
+                    case "latency":
+                        cluster.setLatency(Integer.parseInt(words[1]), Integer.parseInt(words[2]), Long.parseLong(words[3]));
+                        break;
+                    case "drop":
+                        cluster.setDropRate(Integer.parseInt(words[1]), Integer.parseInt(words[2]), Double.parseDouble(words[3]));
+                        break;
+                    case "partition":
+                        int[] side = new int[words.length - 1];
+                        for (int i = 1; i < words.length; i++) {
+                            side[i - 1] = Integer.parseInt(words[i]);
+                        }
+                        cluster.partition(side);
+                        break;
+                    case "heal":
+                        cluster.heal();
+                        break;
+                    case "status":
+                        System.out.print(cluster.status());
+                        break;
+                    case "quit":
+                        System.exit(0);
+                        break;
+                    default:
+                        System.out.println("Commands: " + COMMANDS);
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Invalid command: " + e);
+            }
+        }
+    }
+}
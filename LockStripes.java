@@ -0,0 +1,85 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Lock-name striping: every lock name maps to one of a fixed number of
+// ReentrantLocks. State transitions on the same lock name are serialized (and
+// so keep their order), while unrelated lock names almost never contend.
+public class LockStripes {
+    private final ReentrantLock[] stripes;
+    private final int mask;
+    // lock() calls that found their stripe taken and had to wait
+    private final LongAdder contended = new LongAdder();
+
+    // Counts the waits; tryLock barges just like the non-fair lock() would
+    private final class Stripe extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void lock() {
+            if (!tryLock()) {
+                contended.increment();
+                super.lock();
+            }
+        }
+    }
+
+    public LockStripes(int count) {
+        int size = 1;
+        while (size < count) {
+            size <<= 1;
+        }
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+        mask = size - 1;
+    }
+
+    public int size() {
+        return stripes.length;
+    }
+
+    public long getContendedCount() {
+        return contended.sum();
+    }
+
+    public int indexOf(String lockName) {
+        int h = lockName.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public ReentrantLock lockFor(String lockName) {
+        return stripes[indexOf(lockName)];
+    }
+
+    // Stripes of several lock names, deduplicated and in ascending order. Every
+    // thread taking several stripes does so in this order, so they cannot deadlock.
+    public int[] indicesOf(Collection<String> lockNames) {
+        int[] indices = new int[lockNames.size()];
+        int n = 0;
+        for (String lockName : lockNames) {
+            indices[n++] = indexOf(lockName);
+        }
+        Arrays.sort(indices);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || indices[distinct - 1] != indices[i]) {
+                indices[distinct++] = indices[i];
+            }
+        }
+        return Arrays.copyOf(indices, distinct);
+    }
+
+    public void lockAll(int[] indices) {
+        for (int index : indices) {
+            stripes[index].lock();
+        }
+    }
+
+    public void unlockAll(int[] indices) {
+        for (int i = indices.length - 1; i >= 0; i--) {
+            stripes[indices[i]].unlock();
+        }
+    }
+}
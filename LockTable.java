@@ -0,0 +1,31 @@
+import java.util.List;
+import java.util.Map;
+
+// The lock table of a server, lock name -> owner, on the leader and on the
+// followers alike. Besides the Map operations it finds everything a client
+// holds (see the client sessions in Server) without scanning the table.
+// Writers hold the lock name's stripe; reads take no stripe, so get and
+// containsKey must be safe against concurrent writes, and iteration is weakly
+// consistent, like a ConcurrentHashMap's. remove(name, owner) is atomic.
+//
+// dls.lockTable picks the implementation: "hash" (HashLockTable, the default)
+// or "compact" (CompactLockTable, for tables of tens of millions of locks).
+public interface LockTable extends Map<String, String> {
+
+    // The lock names owner holds, as of now (a copy)
+    List<String> locksOf(String owner);
+
+    // Clients holding at least one lock
+    int ownerCount();
+
+    static LockTable create(String kind) {
+        switch (kind.trim().toLowerCase()) {
+            case "hash":
+                return new HashLockTable();
+            case "compact":
+                return new CompactLockTable();
+            default:
+                throw new IllegalArgumentException("Unknown lock table " + kind + " (hash or compact)");
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+// Server logging. A call only checks the level and puts its tag, format and
+// arguments in a bounded lock-free ring buffer; a single "log-writer" thread
+// formats the messages and writes them in batches, so request threads never
+// build strings, touch the console or wait, even while holding a lock stripe.
+// When the buffer is full messages are dropped (and the writer reports how many)
+// rather than slowing the server down.
+//
+// The level is fixed at startup with -Ddls.log.level: ERROR, WARN, INFO (default),
+// DEBUG (plus connections and replication details) or TRACE (plus every request,
+// response and replicated mutation). A disabled call returns at once: the levels
+// are constants, and messages take their arguments as {} placeholders, formatted
+// only on the writer thread. Arguments must not be changed after the call.
+//
+// Output is "[tag] message" per line; WARN and ERROR go to stderr, the rest to stdout.
+public final class Log {
+
+    public enum Level { ERROR, WARN, INFO, DEBUG, TRACE }
+
+    public static final Level LEVEL = Level.valueOf(System.getProperty("dls.log.level", "INFO").toUpperCase());
+    public static final boolean WARN = LEVEL.compareTo(Level.WARN) >= 0;
+    public static final boolean INFO = LEVEL.compareTo(Level.INFO) >= 0;
+    public static final boolean DEBUG = LEVEL.compareTo(Level.DEBUG) >= 0;
+    public static final boolean TRACE = LEVEL.compareTo(Level.TRACE) >= 0;
+
+    private static final int BATCH_CHARS = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final class Event {
+        final Level level;
+        final String tag;
+        final String format;
+        final int arity;
+        final Object a, b, c, d;
+
+        Event(Level level, String tag, String format, int arity, Object a, Object b, Object c, Object d) {
+            this.level = level;
+            this.arity = arity;
+            this.tag = tag;
+            this.format = format;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.d = d;
+        }
+    }
+
+    // Multi-producer, single-consumer ring: a producer claims slot tail with a CAS and
+    // then fills it; the writer takes slots in order, waiting for a claimed one to fill
+    private static final AtomicReferenceArray<Event> slots;
+    private static final int mask;
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head;
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile long droppedTotal;
+    private static final Thread writer;
+
+    static {
+        int size = 1;
+        while (size < Integer.getInteger("dls.log.bufferSize", 8192)) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static void error(String tag, String msg) { log(Level.ERROR, tag, msg, 0, null, null, null, null); }
+    public static void error(String tag, String fmt, Object a) { log(Level.ERROR, tag, fmt, 1, a, null, null, null); }
+    public static void error(String tag, String fmt, Object a, Object b) { log(Level.ERROR, tag, fmt, 2, a, b, null, null); }
+    public static void error(String tag, String fmt, Object a, Object b, Object c) { log(Level.ERROR, tag, fmt, 3, a, b, c, null); }
+    public static void error(String tag, String fmt, Object a, Object b, Object c, Object d) { log(Level.ERROR, tag, fmt, 4, a, b, c, d); }
+
+    public static void warn(String tag, String msg) { if (WARN) log(Level.WARN, tag, msg, 0, null, null, null, null); }
+    public static void warn(String tag, String fmt, Object a) { if (WARN) log(Level.WARN, tag, fmt, 1, a, null, null, null); }
+    public static void warn(String tag, String fmt, Object a, Object b) { if (WARN) log(Level.WARN, tag, fmt, 2, a, b, null, null); }
+    public static void warn(String tag, String fmt, Object a, Object b, Object c) { if (WARN) log(Level.WARN, tag, fmt, 3, a, b, c, null); }
+    public static void warn(String tag, String fmt, Object a, Object b, Object c, Object d) { if (WARN) log(Level.WARN, tag, fmt, 4, a, b, c, d); }
+
+    public static void info(String tag, String msg) { if (INFO) log(Level.INFO, tag, msg, 0, null, null, null, null); }
+    public static void info(String tag, String fmt, Object a) { if (INFO) log(Level.INFO, tag, fmt, 1, a, null, null, null); }
+    public static void info(String tag, String fmt, Object a, Object b) { if (INFO) log(Level.INFO, tag, fmt, 2, a, b, null, null); }
+    public static void info(String tag, String fmt, Object a, Object b, Object c) { if (INFO) log(Level.INFO, tag, fmt, 3, a, b, c, null); }
+    public static void info(String tag, String fmt, Object a, Object b, Object c, Object d) { if (INFO) log(Level.INFO, tag, fmt, 4, a, b, c, d); }
+
+    public static void debug(String tag, String msg) { if (DEBUG) log(Level.DEBUG, tag, msg, 0, null, null, null, null); }
+    public static void debug(String tag, String fmt, Object a) { if (DEBUG) log(Level.DEBUG, tag, fmt, 1, a, null, null, null); }
+    public static void debug(String tag, String fmt, Object a, Object b) { if (DEBUG) log(Level.DEBUG, tag, fmt, 2, a, b, null, null); }
+    public static void debug(String tag, String fmt, Object a, Object b, Object c) { if (DEBUG) log(Level.DEBUG, tag, fmt, 3, a, b, c, null); }
+    public static void debug(String tag, String fmt, Object a, Object b, Object c, Object d) { if (DEBUG) log(Level.DEBUG, tag, fmt, 4, a, b, c, d); }
+
+    public static void trace(String tag, String msg) { if (TRACE) log(Level.TRACE, tag, msg, 0, null, null, null, null); }
+    public static void trace(String tag, String fmt, Object a) { if (TRACE) log(Level.TRACE, tag, fmt, 1, a, null, null, null); }
+    public static void trace(String tag, String fmt, Object a, Object b) { if (TRACE) log(Level.TRACE, tag, fmt, 2, a, b, null, null); }
+    public static void trace(String tag, String fmt, Object a, Object b, Object c) { if (TRACE) log(Level.TRACE, tag, fmt, 3, a, b, c, null); }
+    public static void trace(String tag, String fmt, Object a, Object b, Object c, Object d) { if (TRACE) log(Level.TRACE, tag, fmt, 4, a, b, c, d); }
+
+    private static void log(Level level, String tag, String format, int arity, Object a, Object b, Object c, Object d) {
+        Event event = new Event(level, tag, format, arity, a, b, c, d);
+        long t;
+        do {
+            t = tail.get();
+            if (t - head > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        slots.lazySet((int) t & mask, event);
+    }
+
+    // Messages dropped so far because the buffer was full
+    public static long getDroppedCount() {
+        return droppedTotal + dropped.sum();
+    }
+
+    // Wait (up to a second) until everything logged so far is written
+    public static void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (head < target && System.nanoTime() - deadline < 0 && writer.isAlive()) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private static void drain() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        long next = head;
+        while (true) {
+            int index = (int) next & mask;
+            Event event = slots.get(index);
+            if (event != null) {
+                slots.lazySet(index, null);
+                format(event, event.level.compareTo(Level.WARN) <= 0 ? err : out);
+                next++;
+                if (out.length() + err.length() < BATCH_CHARS) {
+                    continue;
+                }
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                droppedTotal += lost;
+                err.append("[log] ").append(lost).append(" messages dropped: log buffer full\n");
+            }
+            write(out, err);
+            // head moves only after the batch is out, so flush() sees it written
+            head = next;
+            if (event == null) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private static void write(StringBuilder out, StringBuilder err) {
+        if (out.length() > 0) {
+            System.out.print(out);
+            System.out.flush();
+            out.setLength(0);
+        }
+        if (err.length() > 0) {
+            System.err.print(err);
+            System.err.flush();
+            err.setLength(0);
+        }
+    }
+
+    private static void format(Event event, StringBuilder sb) {
+        if (event.tag != null) {
+            sb.append('[').append(event.tag).append("] ");
+        }
+        String format = event.format;
+        Object[] args = {event.a, event.b, event.c, event.d};
+        int arg = 0;
+        int from = 0;
+        int at;
+        while (arg < event.arity && (at = format.indexOf("{}", from)) >= 0) {
+            sb.append(format, from, at);
+            Object value = args[arg++];
+            try {
+                sb.append(value);
+            } catch (RuntimeException e) {
+                sb.append("<").append(e).append(">");
+            }
+            from = at + 2;
+        }
+        sb.append(format, from, format.length()).append('\n');
+    }
+}
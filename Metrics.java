@@ -0,0 +1,82 @@
+import java.util.*;
+
+// One reading of a server's metrics, in the Prometheus text format: a
+// "name{labels} value" line per sample, under a "# TYPE" line per metric.
+// Server.collectMetrics fills one for every STATS command and every scrape of
+// the metrics endpoint (dls.metrics.port).
+public final class Metrics {
+    private final StringBuilder text = new StringBuilder();
+    private final Set<String> typed = new HashSet<>();
+    // The summaries' maxima, a "<name>_max" gauge family of their own (a summary has no
+    // _max sample), written out once the summary family ends: a family's lines stay together
+    private final StringBuilder maxima = new StringBuilder();
+    private String maximaOf;
+
+    public Metrics gauge(String name, long value) {
+        return sample("gauge", name, "", "", value);
+    }
+
+    public Metrics gauge(String name, String labels, long value) {
+        return sample("gauge", name, labels, "", value);
+    }
+
+    public Metrics counter(String name, long value) {
+        return sample("counter", name, "", "", value);
+    }
+
+    // Quantiles, sum and count of a histogram, and its maximum as the gauge
+    // "<name>_max"; labels like "cmd=\"LOCK\""
+    public Metrics summary(String name, String labels, Histogram histogram) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        sample("summary", name, prefix + "quantile=\"0.5\"", "", histogram.getPercentile(50));
+        sample("summary", name, prefix + "quantile=\"0.99\"", "", histogram.getPercentile(99));
+        sample("summary", name, prefix + "quantile=\"0.999\"", "", histogram.getPercentile(99.9));
+        sample("summary", name, labels, "_sum", histogram.getSum());
+        sample("summary", name, labels, "_count", histogram.getCount());
+        maximaOf = name;
+        append(maxima, "gauge", name + "_max", labels, "", histogram.getMax());
+        return this;
+    }
+
+    private Metrics sample(String type, String name, String labels, String suffix, long value) {
+        if (maximaOf != null && !maximaOf.equals(name)) {
+            flushMaxima();
+        }
+        append(text, type, name, labels, suffix, value);
+        return this;
+    }
+
+    private void append(StringBuilder out, String type, String name, String labels, String suffix, long value) {
+        if (typed.add(name)) {
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+        out.append(name).append(suffix);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private void flushMaxima() {
+        text.append(maxima);
+        maxima.setLength(0);
+        maximaOf = null;
+    }
+
+    // Scrape endpoint body
+    public String toText() {
+        flushMaxima();
+        return text.toString();
+    }
+
+    // Answer to STATS: "STAT <sample> <value>" lines and a final "END"
+    public String toStatsReply() {
+        StringBuilder reply = new StringBuilder();
+        for (String line : toText().split("\n")) {
+            if (!line.startsWith("#")) {
+                reply.append("STAT ").append(line).append('\n');
+            }
+        }
+        return reply.append("END").toString();
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Follower requests waiting on the leader: mutations forwarded to it (answered
+// with its answer, or once the entry it committed is applied here) and
+// linearizable reads (answered once the read index is applied). Each request
+// gets its own ID, so identical requests never share an entry, and a deadline
+// on the timer wheel. Whatever comes first removes the entry: the answer, the
+// client closing its connection, or the deadline, which answers TIMEOUT and
+// closes the request's connection to the leader. Nothing outlives its deadline,
+// whether the leader never answers or the entry it committed never arrives.
+//
+// At most maxPending requests wait at a time; add() refuses more (the client
+// is answered BUSY), which bounds the memory a slow or absent leader can pin.
+public class PendingRequests {
+
+    public static final class Entry {
+        private final long id;
+        private final Consumer<String> answer;
+        // Linearizable read: what to answer once the read index is applied (null for mutations)
+        private final Supplier<CompletableFuture<String>> read;
+        private TimerWheel.Timeout deadline;
+        // Sequence number whose apply completes this entry (0 until known; guarded by waiting)
+        private long applySeq;
+        // Connection forwarding the request to the leader, closed if the entry expires
+        private volatile Socket forward;
+
+        private Entry(long id, Consumer<String> answer, Supplier<CompletableFuture<String>> read) {
+            this.id = id;
+            this.answer = answer;
+            this.read = read;
+        }
+
+        public long getId() {
+            return id;
+        }
+    }
+
+    private final String serverIp;
+    private final TimerWheel wheel;
+    private final int maxPending;
+    // Highest sequence number applied on this node
+    private final LongSupplier appliedSeq;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    // Entries the leader committed, by the sequence number they wait for
+    private final TreeMap<Long, List<Entry>> waiting = new TreeMap<>();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public PendingRequests(String serverIp, TimerWheel wheel, int maxPending, LongSupplier appliedSeq) {
+        this.serverIp = serverIp;
+        this.wheel = wheel;
+        this.maxPending = maxPending;
+        this.appliedSeq = appliedSeq;
+    }
+
+    // A forwarded mutation, answered through answer within timeoutMs; null if too
+    // many requests are pending already
+    public Entry add(Consumer<String> answer, long timeoutMs) {
+        return add(answer, null, timeoutMs);
+    }
+
+    // A linearizable read: once awaitApply's sequence number is applied, read's result is the answer
+    public Entry addRead(Consumer<String> answer, Supplier<CompletableFuture<String>> read, long timeoutMs) {
+        return add(answer, read, timeoutMs);
+    }
+
+    private Entry add(Consumer<String> answer, Supplier<CompletableFuture<String>> read, long timeoutMs) {
+        if (entries.size() >= maxPending) {
+            rejected.increment();
+            return null;
+        }
+        Entry entry = new Entry(nextId.incrementAndGet(), answer, read);
+        entry.deadline = wheel.schedule(() -> expire(entry), timeoutMs);
+        entries.put(entry.id, entry);
+        return entry;
+    }
+
+    // Remove the entry and answer it; false if it was already answered, expired or dropped
+    public boolean complete(long id, String response) {
+        Entry entry = take(id);
+        if (entry == null) {
+            return false;
+        }
+        entry.answer.accept(response);
+        return true;
+    }
+
+    // Forget the entry without answering (its client went away)
+    public boolean drop(long id) {
+        return take(id) != null;
+    }
+
+    // The leader committed the request as entry seq: answer once it is applied here
+    public void awaitApply(long id, long seq) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return;
+        }
+        synchronized (waiting) {
+            // Checked again under the lock, which take() also holds: an entry is never
+            // left behind in waiting
+            if (!entries.containsKey(id)) {
+                return;
+            }
+            if (appliedSeq.getAsLong() < seq) {
+                entry.applySeq = seq;
+                waiting.computeIfAbsent(seq, k -> new ArrayList<>()).add(entry);
+                return;
+            }
+        }
+        applied(entry);
+    }
+
+    // Entries up to seq are applied (called after the applied sequence number moved)
+    public void appliedUpTo(long seq) {
+        List<Entry> ready = new ArrayList<>();
+        synchronized (waiting) {
+            Map<Long, List<Entry>> applied = waiting.headMap(seq, true);
+            applied.values().forEach(ready::addAll);
+            applied.clear();
+        }
+        for (Entry entry : ready) {
+            applied(entry);
+        }
+    }
+
+    private void applied(Entry entry) {
+        if (entry.read == null) {
+            complete(entry.id, "SUCCESS");
+            return;
+        }
+        entry.read.get().thenAccept(response -> complete(entry.id, response));
+    }
+
+    // Remember the connection forwarding the request; false if the entry is gone (do not send it)
+    public boolean setForward(long id, Socket socket) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return false;
+        }
+        entry.forward = socket;
+        // expire() may have run in between and missed the socket
+        return entries.containsKey(id);
+    }
+
+    // Close the connections of every forwarded request: their entries then fail with ERROR
+    public void closeForwards() {
+        for (Entry entry : entries.values()) {
+            closeForward(entry);
+        }
+    }
+
+    private Entry take(long id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return null;
+        }
+        entry.deadline.cancel();
+        synchronized (waiting) {
+            if (entry.applySeq > 0) {
+                List<Entry> list = waiting.get(entry.applySeq);
+                if (list != null && list.remove(entry) && list.isEmpty()) {
+                    waiting.remove(entry.applySeq);
+                }
+            }
+        }
+        return entry;
+    }
+
+    private void expire(Entry entry) {
+        if (take(entry.id) == null) {
+            return;
+        }
+        expired.increment();
+        closeForward(entry);
+        Log.debug(serverIp, "Pending request {} expired", entry.id);
+        entry.answer.accept("TIMEOUT");
+    }
+
+    private static void closeForward(Entry entry) {
+        Socket socket = entry.forward;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Entries the leader committed that wait for their entry to be applied here
+    public int awaitingApplyCount() {
+        synchronized (waiting) {
+            int count = 0;
+            for (List<Entry> list : waiting.values()) {
+                count += list.size();
+            }
+            return count;
+        }
+    }
+
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+}
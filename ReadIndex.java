@@ -0,0 +1,115 @@
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+// Follower side of linearizable reads (dls.followerReads=readIndex). Before
+// answering OWN from its own lock table, a follower asks the leader for its
+// commit point ("READ_INDEX", answered "INDEX,<commitSeq>") and waits until
+// it has applied that entry. Any write answered before the read started is at
+// or below that point, so the read sees it.
+//
+// One round trip serves every read that arrived before it was sent: reads
+// arriving while a round trip is in flight wait for the next one, which is
+// sent as soon as the current one returns. Under load the leader therefore
+// sees one small request per round trip time, whatever the read rate.
+// Requests go to whichever node currently leads; a node that is not (or no
+// longer) leader answers "NOT_LEADER" and the read fails.
+public class ReadIndex {
+    private final String serverIp;
+    // "ip:port" of the current leader, or null while none is known
+    private final Supplier<String> leader;
+    private final long timeoutMs;
+    private final Transport transport;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "read-index");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Reads waiting for the next round trip, and whether one is in flight (guarded by this)
+    private CompletableFuture<Long> next;
+    private boolean inFlight;
+
+    // Read-index thread only
+    private Socket socket;
+    private String socketLeader;
+    private BufferedReader in;
+    private PrintWriter out;
+
+    public ReadIndex(String serverIp, Supplier<String> leader, long timeoutMs, Transport transport) {
+        this.serverIp = serverIp;
+        this.leader = leader;
+        this.timeoutMs = timeoutMs;
+        this.transport = transport;
+    }
+
+    // The leader's commit point, as seen after this call
+    public synchronized CompletableFuture<Long> readIndex() {
+        if (next == null) {
+            next = new CompletableFuture<>();
+        }
+        CompletableFuture<Long> index = next;
+        if (!inFlight) {
+            startRound();
+        }
+        return index;
+    }
+
+    // Caller holds this
+    private void startRound() {
+        CompletableFuture<Long> round = next;
+        next = null;
+        inFlight = true;
+        executor.execute(() -> {
+            try {
+                round.complete(query());
+            } catch (IOException | RuntimeException e) {
+                closeSocket();
+                round.completeExceptionally(e);
+            }
+            synchronized (this) {
+                inFlight = false;
+                if (next != null) {
+                    startRound();
+                }
+            }
+        });
+    }
+
+    private long query() throws IOException {
+        String leaderId = leader.get();
+        if (leaderId == null) {
+            throw new IOException("No leader known");
+        }
+        if (socket != null && !leaderId.equals(socketLeader)) {
+            closeSocket();
+        }
+        if (socket == null) {
+            socket = new Socket();
+            socketLeader = leaderId;
+            socket.connect(transport.addressOf(leaderId), (int) timeoutMs);
+            socket.setSoTimeout((int) timeoutMs);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+        out.println("READ_INDEX");
+        String response = in.readLine();
+        if (response == null || !response.startsWith("INDEX,")) {
+            throw new IOException("Unexpected read index response from " + leaderId + ": " + response);
+        }
+        return Long.parseLong(response.substring(6));
+    }
+
+    private void closeSocket() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.warn(serverIp, "Error closing read index connection: {}", e.getMessage());
+            }
+            socket = null;
+        }
+    }
+}
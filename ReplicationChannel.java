@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Long-lived leader -> follower connection. Every connection starts with a
+// handshake: the leader announces itself with "LEADER,<term>,<leaderId>" and
+// the follower answers "POSITION,<appliedSeq>,<appliedTerm>" (or "STALE,<term>"
+// if it already knows a newer leader). Log entries are then sent in sequence
+// order and pipelined on the same connection; the follower answers "ACK,<seq>"
+// once it has applied an entry. The channel remembers how far the follower got
+// (ackedSeq), so after a disconnect it resumes from the first unacknowledged entry.
+// A follower whose position is not in the leader's log is sent a state transfer
+// instead (see StateTransfer); entries are held back until it has been installed.
+// Idle connections carry "HEARTBEAT" lines, answered "HEARTBEAT_OK", which keep
+// the follower from starting an election. Every answer proves that the follower
+// heard from this leader after the answered line was sent; the latest such send
+// time (lastContactSentAt) bounds the leader's lease, see Replicator.hasQuorumContact.
+public class ReplicationChannel implements Connection.Listener {
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+    private static final long RECONNECT_BACKOFF_MS = 1000;
+    private static final int MAX_IN_FLIGHT = 1024;
+
+    private final String serverIp;
+    private final String follower;
+    private final InetSocketAddress address;
+    private final EventLoop loop;
+    private final Replicator replicator;
+
+    private Connection connection;
+    // The follower answered the handshake of the current connection
+    private boolean handshaken;
+    private long connectStartedAt;
+    // When the handshake of the current connection was sent, and the unanswered heartbeats (oldest first)
+    private long handshakeSentAt;
+    private final ArrayDeque<Long> heartbeatsSentAt = new ArrayDeque<>();
+    private long lastFailureAt;
+    // Highest sequence number acknowledged by / sent to the follower
+    private volatile long ackedSeq;
+    private long sentSeq;
+    private volatile boolean needsResync;
+    // A state transfer as of transferSeq is in progress; the channel sends nothing meanwhile
+    private volatile boolean transferring;
+    private volatile long transferSeq;
+    private long lastTransferFailureAt;
+    private long transferStartedAt;
+    // System.nanoTime() at which the latest line the follower answered was sent
+    private volatile long lastContactSentAt = System.nanoTime() - Long.MAX_VALUE / 2;
+    private final AtomicBoolean pumpScheduled = new AtomicBoolean();
+    // When each in-flight entry was sent (slot seq % MAX_IN_FLIGHT), and the time
+    // from sending an entry to its ACK in microseconds
+    private final long[] sentAtNanos = new long[MAX_IN_FLIGHT];
+    private final Histogram ackLatency = new Histogram();
+
+    public ReplicationChannel(String serverIp, String follower, EventLoop loop, Replicator replicator) {
+        this.serverIp = serverIp;
+        this.follower = follower;
+        this.address = replicator.addressOf(follower);
+        this.loop = loop;
+        this.replicator = replicator;
+    }
+
+    public String getFollower() {
+        return follower;
+    }
+
+    public long getAckedSeq() {
+        return ackedSeq;
+    }
+
+    public synchronized long getSentSeq() {
+        return sentSeq;
+    }
+
+    public boolean needsResync() {
+        return needsResync;
+    }
+
+    public boolean isTransferring() {
+        return transferring;
+    }
+
+    public long getTransferSeq() {
+        return transferSeq;
+    }
+
+    // Needs a state transfer and is not waiting for a retry after a failed one
+    public synchronized boolean isTransferDue() {
+        return needsResync && !transferring && System.currentTimeMillis() - lastTransferFailureAt >= RECONNECT_BACKOFF_MS;
+    }
+
+    public boolean isConnected() {
+        Connection conn = connection;
+        return conn != null && !conn.isClosed() && !conn.isConnecting();
+    }
+
+    public long getLastContactSentAt() {
+        return lastContactSentAt;
+    }
+
+    public Histogram getAckLatency() {
+        return ackLatency;
+    }
+
+    // Ask the channel's I/O thread to pump. Appends from many threads coalesce into a
+    // single pump, so writers never contend on the channel.
+    public void requestPump() {
+        if (pumpScheduled.compareAndSet(false, true)) {
+            loop.executeLater(() -> {
+                pumpScheduled.set(false);
+                pump();
+            });
+        }
+    }
+
+    // Send every log entry the follower has not been sent yet (bounded by MAX_IN_FLIGHT).
+    // Called after each append and periodically, so a lagging follower catches up.
+    public synchronized void pump() {
+        if (needsResync || transferring) {
+            return;
+        }
+        Connection conn = ensureConnected();
+        if (conn == null || !handshaken) {
+            return;
+        }
+        long last = replicator.getLastSeq();
+        while (sentSeq < last && sentSeq - ackedSeq < MAX_IN_FLIGHT) {
+            long seq = sentSeq + 1;
+            Replicator.Entry entry = replicator.getEntry(seq);
+            if (entry == null) {
+                // Already dropped from the in-memory log: the follower is too far behind
+                needsResync = true;
+                Log.warn(serverIp, "Follower {} is behind the replication log (needs seq {}), sending it a state transfer", follower, seq);
+                return;
+            }
+            conn.send(encode(seq, entry));
+            sentSeq = seq;
+            sentAtNanos[(int) (seq % MAX_IN_FLIGHT)] = System.nanoTime();
+        }
+    }
+
+    // Keep the follower's election timer from running out while no entries flow
+    public synchronized void heartbeat() {
+        if (connection != null && handshaken && !transferring && !connection.isClosed()
+                && heartbeatsSentAt.size() < MAX_IN_FLIGHT) {
+            heartbeatsSentAt.add(System.nanoTime());
+            connection.send("HEARTBEAT");
+        }
+    }
+
+    // "SYNC,<seq>,<term>,<message>" for a single mutation, or a "SYNC_BATCH,<seq>,<term>,<count>"
+    // header followed by one line per mutation
+    static String encode(long seq, Replicator.Entry entry) {
+        List<String> messages = entry.messages;
+        if (messages.size() == 1) {
+            return "SYNC," + seq + "," + entry.term + "," + messages.get(0);
+        }
+        StringBuilder batch = new StringBuilder("SYNC_BATCH,").append(seq).append(',').append(entry.term)
+                .append(',').append(messages.size());
+        for (String message : messages) {
+            batch.append('\n').append(message);
+        }
+        return batch.toString();
+    }
+
+    // The follower restarted: drop the old connection and handshake again at once
+    public synchronized void reconnect() {
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+        handshaken = false;
+        heartbeatsSentAt.clear();
+        lastFailureAt = 0;
+        sentSeq = ackedSeq;
+    }
+
+    // Stop sending entries while the follower receives the state as of seq; false
+    // if a transfer is already running
+    public synchronized boolean beginTransfer(long seq) {
+        if (transferring) {
+            return false;
+        }
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+        heartbeatsSentAt.clear();
+        transferring = true;
+        transferSeq = seq;
+        transferStartedAt = System.nanoTime();
+        needsResync = false;
+        return true;
+    }
+
+    // The follower installed the state as of transferSeq (or the transfer failed and
+    // is retried later); entries after it are sent from now on, after a new handshake
+    public synchronized void endTransfer(boolean installed) {
+        transferring = false;
+        if (installed) {
+            ackedSeq = Math.max(ackedSeq, transferSeq);
+            sentSeq = ackedSeq;
+            contactSince(transferStartedAt);
+        } else {
+            needsResync = true;
+            lastTransferFailureAt = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized void close() {
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+
+    private Connection ensureConnected() {
+        long now = System.currentTimeMillis();
+        if (connection != null && !connection.isClosed()) {
+            if (!connection.isConnecting() || now - connectStartedAt < CONNECT_TIMEOUT_MS) {
+                return connection;
+            }
+            Log.warn(serverIp, "Timeout connecting to follower {}", follower);
+            connection.close();
+            connection = null;
+            lastFailureAt = now;
+            sentSeq = ackedSeq;
+        }
+        if (now - lastFailureAt < RECONNECT_BACKOFF_MS) {
+            return null;
+        }
+        try {
+            Log.info(serverIp, "Opening replication channel to {} (term {})", follower, replicator.getTerm());
+            connection = Connection.connect(loop, address, this);
+            connectStartedAt = now;
+            handshakeSentAt = System.nanoTime();
+            handshaken = false;
+            heartbeatsSentAt.clear();
+            connection.send("LEADER," + replicator.getTerm() + "," + replicator.getSelfId());
+            return connection;
+        } catch (IOException e) {
+            Log.warn(serverIp, "Failed to connect to follower {}: {}", follower, e.getMessage());
+            lastFailureAt = now;
+            return null;
+        }
+    }
+
+    @Override
+    public void onLine(Connection conn, String line) {
+        if (line.equals("HEARTBEAT_OK")) {
+            synchronized (this) {
+                Long sentAt = conn == connection ? heartbeatsSentAt.poll() : null;
+                if (sentAt != null) {
+                    contactSince(sentAt);
+                }
+            }
+            return;
+        }
+        String[] parts = line.split(",");
+        long seq;
+        try {
+            seq = Long.parseLong(parts[1]);
+        } catch (RuntimeException e) {
+            Log.warn(serverIp, "Unexpected response from {}: {}", follower, line);
+            return;
+        }
+        if (parts[0].equals("STALE")) {
+            // The follower knows a newer term: this node is no longer the leader
+            Log.warn(serverIp, "Follower {} is already in term {}", follower, seq);
+            replicator.onHigherTerm(seq);
+            return;
+        }
+        if (parts[0].equals("POSITION") && parts.length > 2) {
+            onPosition(conn, seq, Long.parseLong(parts[2]));
+            return;
+        }
+        if (!parts[0].equals("ACK")) {
+            Log.warn(serverIp, "Unexpected response from {}: {}", follower, line);
+            return;
+        }
+        synchronized (this) {
+            if (conn != connection) {
+                return;
+            }
+            if (seq <= ackedSeq) {
+                return;
+            }
+            // Entries are applied in order, so this ACK covers every earlier entry too
+            ackedSeq = seq;
+            if (seq <= sentSeq) {
+                long sentAt = sentAtNanos[(int) (seq % MAX_IN_FLIGHT)];
+                contactSince(sentAt);
+                ackLatency.record((System.nanoTime() - sentAt) / 1000);
+            }
+        }
+        replicator.onAck(this, seq);
+        pump();
+    }
+
+    // Handshake answer: continue after the follower's position if it is in our log
+    private void onPosition(Connection conn, long seq, long term) {
+        boolean matches = replicator.matchesLog(seq, term);
+        synchronized (this) {
+            if (conn != connection) {
+                return;
+            }
+            handshaken = true;
+            contactSince(handshakeSentAt);
+            if (matches) {
+                ackedSeq = seq;
+                sentSeq = seq;
+            } else {
+                needsResync = true;
+                Log.warn(serverIp, "Follower {} is at seq {} of term {}, which is not in this leader's log: sending it a state transfer",
+                        follower, seq, term);
+                return;
+            }
+        }
+        Log.info(serverIp, "Follower {} resumes after seq {}", follower, seq);
+        replicator.onAck(this, seq);
+        pump();
+    }
+
+    // Caller holds this. The follower answered a line sent at sentAt (System.nanoTime()).
+    private void contactSince(long sentAt) {
+        if (sentAt - lastContactSentAt > 0) {
+            lastContactSentAt = sentAt;
+        }
+    }
+
+    @Override
+    public void onClose(Connection conn) {
+        synchronized (this) {
+            if (conn != connection) {
+                return; // An older connection that was already replaced
+            }
+            connection = null;
+            handshaken = false;
+            heartbeatsSentAt.clear();
+            lastFailureAt = System.currentTimeMillis();
+            // Whatever was not acknowledged is sent again after reconnecting
+            sentSeq = ackedSeq;
+        }
+        Log.warn(serverIp, "Replication channel to {} closed (acked up to seq {})", follower, ackedSeq);
+    }
+}
@@ -0,0 +1,441 @@
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+// The replicated log and, while this node leads, one ReplicationChannel per
+// follower and the commit rule. An entry is committed once enough followers have
+// acknowledged it (majority by default); lagging followers keep receiving entries
+// in the background and catch up from the log. With a write-ahead log, an entry
+// is also only committed once it is durable locally. Followers that the log
+// cannot bring up to date receive a StateTransfer.
+//
+// Every entry carries the term of the leader that appended it (see
+// LeaderElection). Followers append the entries they receive too, so that a
+// follower elected leader can feed the others from its own log.
+public class Replicator {
+
+    // Thrown (through the commit future) when an entry was not acknowledged by a quorum in time
+    public static class NoQuorumException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public NoQuorumException(String message) {
+            super(message);
+        }
+    }
+
+    // One entry: the mutations of a request (or a group-commit batch) and the term it was appended in
+    public static class Entry {
+        public final long term;
+        public final List<String> messages;
+
+        Entry(long term, List<String> messages) {
+            this.term = term;
+            this.messages = messages;
+        }
+    }
+
+    private final String serverIp;
+    // "ip:port" this node is known by, announced to followers while leading
+    private final String selfId;
+    private final ServerConfig config;
+    private final Supplier<EventLoop> loops;
+    private final ScheduledExecutorService scheduler;
+    // Local durability of appended entries (null = in memory only)
+    private final WriteAheadLog wal;
+    private final StateTransfer stateTransfer;
+    // A follower answered with a higher term than ours
+    private final LongConsumer onHigherTerm;
+    // The commit rule, parsed once: COMMIT_MAJORITY, COMMIT_ALL or a number of follower ACKs
+    private static final int COMMIT_MAJORITY = -1;
+    private static final int COMMIT_ALL = -2;
+    private final int commitAcks;
+
+    private final ConcurrentSkipListMap<Long, Entry> log = new ConcurrentSkipListMap<>();
+    private final Map<String, ReplicationChannel> channels = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Long>> commitWaiters = new ConcurrentSkipListMap<>();
+    private volatile long lastSeq;
+    private volatile long lastTerm;
+    private volatile long commitSeq;
+    private volatile long commitTerm;
+    // Term this node leads in, while it does
+    private volatile boolean leading;
+    private volatile long term;
+
+    public Replicator(String serverIp, String selfId, ServerConfig config, Supplier<EventLoop> loops,
+                      ScheduledExecutorService scheduler, WriteAheadLog wal, StateTransfer stateTransfer,
+                      LongConsumer onHigherTerm) {
+        this.serverIp = serverIp;
+        this.selfId = selfId;
+        this.config = config;
+        this.loops = loops;
+        this.scheduler = scheduler;
+        this.wal = wal;
+        this.stateTransfer = stateTransfer;
+        this.onHigherTerm = onHigherTerm;
+        this.commitAcks = parseCommitQuorum(config.commitQuorum);
+    }
+
+    // dls.commitQuorum: "majority", "all" or a number of follower ACKs
+    private static int parseCommitQuorum(String commitQuorum) {
+        String rule = commitQuorum.trim().toLowerCase();
+        if (rule.equals("majority")) {
+            return COMMIT_MAJORITY;
+        }
+        if (rule.equals("all")) {
+            return COMMIT_ALL;
+        }
+        try {
+            int acks = Integer.parseInt(rule);
+            if (acks >= 0) {
+                return acks;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid dls.commitQuorum " + commitQuorum + " (majority, all or a number of followers)");
+    }
+
+    // Check the commit rule at startup, for a cluster of followers + 1 members. A number of
+    // ACKs below a majority is refused: the next leader, elected by any majority, could
+    // then lack entries that were committed and answered.
+    public static void checkCommitQuorum(String commitQuorum, int followers) {
+        int acks = parseCommitQuorum(commitQuorum);
+        int majority = (followers + 1) / 2;
+        if (acks >= 0 && acks < majority) {
+            throw new IllegalArgumentException("dls.commitQuorum " + acks + " is below a majority of the cluster (" + majority
+                    + " follower ACKs): failover could lose committed locks");
+        }
+    }
+
+    // Continue numbering after the entries recovered from the write-ahead log (before start())
+    public void restore(long seq, long entryTerm) {
+        lastSeq = seq;
+        lastTerm = entryTerm;
+    }
+
+    public void start() {
+        // Heartbeats and background catch-up: reconnect to and feed followers that fell behind
+        scheduler.scheduleWithFixedDelay(this::pumpAll, config.heartbeatMs, config.heartbeatMs, TimeUnit.MILLISECONDS);
+    }
+
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public long getLastTerm() {
+        return lastTerm;
+    }
+
+    public long getCommitSeq() {
+        return commitSeq;
+    }
+
+    public boolean isLeading() {
+        return leading;
+    }
+
+    public long getTerm() {
+        return term;
+    }
+
+    // {lastSeq, lastTerm}, read together
+    public synchronized long[] getLogPosition() {
+        return new long[] {lastSeq, lastTerm};
+    }
+
+    public String getSelfId() {
+        return selfId;
+    }
+
+    public InetSocketAddress addressOf(String member) {
+        return config.transport.addressOf(member);
+    }
+
+    public Entry getEntry(long seq) {
+        return log.get(seq);
+    }
+
+    public Collection<ReplicationChannel> getChannels() {
+        return channels.values();
+    }
+
+    // Term of the entry at seq: 0 before the first entry, -1 if the log no longer has it
+    public long termAt(long seq) {
+        if (seq == lastSeq) {
+            return lastTerm;
+        }
+        if (seq == 0) {
+            return 0;
+        }
+        Entry entry = log.get(seq);
+        return entry != null ? entry.term : -1;
+    }
+
+    // A follower that applied everything up to seq, the last of it in entryTerm, can be
+    // resumed from the log if our entry at seq has that term and the log still holds
+    // every entry after it
+    public synchronized boolean matchesLog(long seq, long entryTerm) {
+        return seq >= 0 && seq <= lastSeq && entryTerm >= 0 && termAt(seq) == entryTerm
+                && (seq == lastSeq || log.containsKey(seq + 1));
+    }
+
+    // This node was elected leader of newTerm: open a channel to every other member
+    public synchronized void startLeading(long newTerm, Collection<String> followers) {
+        term = newTerm;
+        leading = true;
+        for (String follower : followers) {
+            channels.computeIfAbsent(follower, f -> new ReplicationChannel(serverIp, f, loops.get(), this));
+        }
+    }
+
+    // Another node leads now: drop the channels and fail the entries still waiting
+    // for a quorum (they may or may not survive under the new leader)
+    public void stopLeading() {
+        List<ReplicationChannel> closed;
+        List<CompletableFuture<Long>> waiting;
+        synchronized (this) {
+            if (!leading) {
+                return;
+            }
+            leading = false;
+            closed = new ArrayList<>(channels.values());
+            channels.clear();
+            waiting = new ArrayList<>(commitWaiters.values());
+            commitWaiters.clear();
+        }
+        for (ReplicationChannel channel : closed) {
+            channel.close();
+        }
+        for (CompletableFuture<Long> committed : waiting) {
+            committed.completeExceptionally(new NoQuorumException("Leadership of term " + term + " lost"));
+        }
+    }
+
+    // Follower: an entry received from the leader, after the ones before it
+    public synchronized void appendReceived(long seq, long entryTerm, List<String> messages) {
+        log.put(seq, new Entry(entryTerm, messages));
+        lastSeq = seq;
+        lastTerm = entryTerm;
+        truncateLog();
+    }
+
+    // Follower: a state transfer as of seq replaced everything received before
+    public synchronized void resetTo(long seq, long entryTerm) {
+        log.clear();
+        lastSeq = seq;
+        lastTerm = entryTerm;
+    }
+
+    void onHigherTerm(long higherTerm) {
+        onHigherTerm.accept(higherTerm);
+    }
+
+    // A follower asked to be resynchronized (it restarted): handshake again right away
+    public void registerFollower(String follower) {
+        if (!leading) {
+            return;
+        }
+        channels.computeIfAbsent(follower, f -> new ReplicationChannel(serverIp, f, loops.get(), this)).reconnect();
+    }
+
+    // A majority of the cluster answered lines sent within the lease, so no other leader
+    // can have been elected meanwhile: a follower denies votes for electionTimeoutMs after
+    // it last heard from a leader, which is after the leader sent the line. The lease is
+    // a tenth shorter than that, for clocks that run at slightly different rates.
+    public boolean hasQuorumContact() {
+        long now = System.nanoTime();
+        long leaseNanos = TimeUnit.MILLISECONDS.toNanos(config.electionTimeoutMs) * 9 / 10;
+        int inContact = 1;
+        for (ReplicationChannel channel : channels.values()) {
+            if (now - channel.getLastContactSentAt() < leaseNanos) {
+                inContact++;
+            }
+        }
+        return inContact > (channels.size() + 1) / 2;
+    }
+
+    // commitSeq may serve as a read index: an entry of the current term is committed
+    // (so commitSeq covers everything earlier leaders committed) and this node is still the leader
+    public boolean isCommitCurrent() {
+        return leading && commitTerm == term && hasQuorumContact();
+    }
+
+    // Stream the lock table to a follower, then resume its entries after the
+    // transfer's seq. Everything up to lastSeq is applied to the lock table, and
+    // truncateLog keeps the entries after it while the transfer runs.
+    private void startTransfer(ReplicationChannel channel) {
+        long seq;
+        long entryTerm;
+        synchronized (this) {
+            seq = lastSeq;
+            entryTerm = lastTerm;
+        }
+        if (!channel.beginTransfer(seq)) {
+            return;
+        }
+        stateTransfer.send(channel.getFollower(), seq, entryTerm, term).whenComplete((count, e) -> {
+            if (e != null) {
+                Log.warn(serverIp, "State transfer to {} failed: {}", channel.getFollower(), e.getCause() != null ? e.getCause() : e);
+                channel.endTransfer(false);
+                return;
+            }
+            channel.endTransfer(true);
+            advanceCommit();
+            channel.requestPump();
+        });
+    }
+
+    // Follower ACKs needed to commit an entry, from the commit rule and the current cluster size
+    public int requiredAcks() {
+        int followers = channels.size();
+        int required;
+        if (commitAcks == COMMIT_ALL) {
+            required = followers;
+        } else if (commitAcks == COMMIT_MAJORITY) {
+            // Majority of the cluster (followers + leader); the leader counts as one
+            required = (followers + 1) / 2;
+        } else {
+            required = commitAcks;
+        }
+        return Math.min(required, followers);
+    }
+
+    // Append one entry (a mutation or a group-commit batch) and send it to the followers.
+    // Mutations of the same lock name must be appended in the order they were applied
+    // (the caller holds the lock name's stripe). The future completes with
+    // the entry's sequence number once it is committed, or fails with NoQuorumException
+    // (also when this node is not, or stops being, the leader) or the write-ahead log's IOException.
+    public CompletableFuture<Long> replicate(List<String> messages) {
+        long seq;
+        CompletableFuture<Long> committed = new CompletableFuture<>();
+        CompletableFuture<Void> durable = null;
+        synchronized (this) {
+            if (!leading) {
+                committed.completeExceptionally(new NoQuorumException("Not the leader"));
+                return committed;
+            }
+            seq = lastSeq + 1;
+            log.put(seq, new Entry(term, messages));
+            lastSeq = seq;
+            lastTerm = term;
+            commitWaiters.put(seq, committed);
+            if (wal != null) {
+                durable = wal.append(seq, term, messages);
+            }
+        }
+
+        for (ReplicationChannel channel : channels.values()) {
+            channel.requestPump();
+        }
+        advanceCommit();
+
+        if (!committed.isDone()) {
+            ScheduledFuture<?> timeout = scheduler.schedule(() -> {
+                if (commitWaiters.remove(seq, committed)) {
+                    committed.completeExceptionally(new NoQuorumException(
+                            "Entry " + seq + " not acknowledged by " + requiredAcks() + " followers within "
+                                    + config.replicationTimeoutMs + "ms"));
+                }
+            }, config.replicationTimeoutMs, TimeUnit.MILLISECONDS);
+            committed.whenComplete((v, e) -> timeout.cancel(false));
+        }
+        return durable == null ? committed : committed.thenCombine(durable, (committedSeq, v) -> committedSeq);
+    }
+
+    void onAck(ReplicationChannel channel, long seq) {
+        advanceCommit();
+    }
+
+    // commitSeq = highest seq acknowledged by at least requiredAcks() followers. As in
+    // Raft, only an entry of the current term is committed by counting ACKs; earlier
+    // entries are committed with it.
+    private void advanceCommit() {
+        if (!leading) {
+            return;
+        }
+        int required = requiredAcks();
+        long newCommit;
+        if (required == 0) {
+            newCommit = lastSeq;
+        } else {
+            List<Long> acked = new ArrayList<>();
+            for (ReplicationChannel channel : channels.values()) {
+                acked.add(channel.getAckedSeq());
+            }
+            acked.sort(Collections.reverseOrder());
+            newCommit = acked.get(required - 1);
+        }
+
+        synchronized (this) {
+            if (newCommit > commitSeq && termAt(newCommit) == term) {
+                commitSeq = newCommit;
+                commitTerm = term;
+            }
+        }
+
+        Map<Long, CompletableFuture<Long>> ready = commitWaiters.headMap(commitSeq, true);
+        for (Iterator<Map.Entry<Long, CompletableFuture<Long>>> it = ready.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, CompletableFuture<Long>> entry = it.next();
+            it.remove();
+            entry.getValue().complete(entry.getKey());
+        }
+        truncateLog();
+    }
+
+    // Keep entries some follower still needs, but never more than the configured
+    // maximum. A follower keeps that many, for when it becomes leader.
+    private void truncateLog() {
+        long keepAfter = lastSeq - config.replicationLogMaxEntries;
+        if (leading) {
+            long needed = commitSeq;
+            for (ReplicationChannel channel : channels.values()) {
+                if (channel.isTransferring()) {
+                    needed = Math.min(needed, channel.getTransferSeq());
+                } else if (!channel.needsResync()) {
+                    needed = Math.min(needed, channel.getAckedSeq());
+                }
+            }
+            keepAfter = Math.max(keepAfter, needed);
+        }
+        while (true) {
+            Map.Entry<Long, Entry> first = log.firstEntry();
+            if (first == null || first.getKey() > keepAfter) {
+                break;
+            }
+            log.remove(first.getKey());
+        }
+    }
+
+    private void pumpAll() {
+        if (!leading) {
+            return;
+        }
+        try {
+            for (ReplicationChannel channel : channels.values()) {
+                if (channel.isTransferDue()) {
+                    startTransfer(channel);
+                } else {
+                    channel.pump();
+                    channel.heartbeat();
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.error(serverIp, "Replication catch-up failed: {}", e);
+        }
+    }
+
+    public void printStatus() {
+        System.out.println("Replication: last seq " + lastSeq + " (term " + lastTerm + "), committed seq " + commitSeq
+                + (leading ? ", commit rule " + config.commitQuorum + " (" + requiredAcks() + " follower ACKs)" : "")
+                + ", log entries " + log.size());
+        for (ReplicationChannel channel : channels.values()) {
+            System.out.println("   - " + channel.getFollower() + ": acked " + channel.getAckedSeq()
+                    + ", lag " + (lastSeq - channel.getAckedSeq())
+                    + (channel.isConnected() ? "" : ", disconnected")
+                    + (channel.isTransferring() ? ", receiving state as of seq " + channel.getTransferSeq() : "")
+                    + (channel.needsResync() ? ", needs resync" : ""));
+        }
+    }
+}
@@ -1,539 +1,2471 @@
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.util.*;
+import java.util.function.*;
 
-public class Server {
+public class Server implements Connection.Listener {
     private int port;
-    private boolean isLeader;
-    private Map<String, String> lockMap = new ConcurrentHashMap<>();
-    private List<String> followerServers = new ArrayList<>();
+    // Changes when this node wins or loses an election (see LeaderElection)
+    private volatile boolean isLeader;
+    // Lock name -> owner, indexed by owner for the client sessions (dls.lockTable picks the implementation)
+    private LockTable lockMap;
+    // Lock names held in shared mode (reader locks and semaphores); never in lockMap at the same time
+    private final SharedLocks sharedLocks = new SharedLocks();
+    // Serializes state transitions per lock name (instead of one Server-wide monitor)
+    private LockStripes lockStripes;
+    private List<String> followerServers = new CopyOnWriteArrayList<>();
     private String serverIp;
-    private ServerSocket serverSocket;
-    private ExecutorService threadPool = Executors.newCachedThreadPool();
+    // "ip:port" of this node, as known to the other cluster members
+    private String selfId;
+    private boolean preferLeader;
+    // Term-based leader election among the cluster members
+    private LeaderElection election;
+    private ServerConfig config;
+    private ServerSocketChannel serverChannel;
+    private EventLoop acceptLoop;
+    private EventLoop[] ioLoops;
+    private AtomicInteger nextIoLoop = new AtomicInteger();
+    // Client requests run here, never on an I/O thread
+    private ThreadPoolExecutor requestExecutor;
+    // Outbound blocking calls (forwarding to leader)
+    private ThreadPoolExecutor threadPool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+    // Calls to other shards (see ShardRouter), bounded by dls.shardMap.routerThreads and routerQueueMax
+    private ThreadPoolExecutor routingExecutor;
+    // Microseconds from the arrival of a request to its answer, per command (see collectMetrics)
+    private final Map<String, Histogram> requestLatency = new LinkedHashMap<>();
+    // Scrape endpoint (null unless dls.metrics.port is set)
+    private HttpServer metricsServer;
+    // Leader side: replication log, one persistent channel per follower, commit rule
+    private Replicator replicator;
+    // Group commit (optional) and its batch size distribution
+    private GroupCommitter groupCommitter;
+    private Histogram replicationBatchSizes = new Histogram();
+    // Follower side: highest replicated sequence number applied to lockMap
+    private volatile long appliedSeq;
+    // Term of the entry at appliedSeq (-1 = unknown: the state may hold unreplicated changes)
+    private volatile long appliedTerm;
+    // Follower side: serializes applying replicated entries with installing a state
+    // transfer; while one is received, entries still in flight from before it are stale
+    private final Object applyLock = new Object();
+    private volatile boolean receivingState;
+    // Follower side: leader commit points for linearizable OWN (null = stale reads)
+    private ReadIndex readIndex;
+    // Leader side: leases of locks taken with a TTL, FIFO queues of LOCK_WAIT clients
+    // (both guarded by the lock name's stripe), and the timer wheel that expires them
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final Map<String, ArrayDeque<Waiter>> waitQueues = new ConcurrentHashMap<>();
+    private TimerWheel timerWheel;
+    // Follower side: lease TTL of the replicated locks that have one, re-granted if
+    // this node is elected leader
+    private final Map<String, Long> leaseTtls = new ConcurrentHashMap<>();
+    // Client sessions: on the leader, the session of each client ID, guarded by the
+    // client ID's stripe and expired by the timer wheel unless kept alive; on a
+    // follower, their TTLs, re-granted if this node is elected leader
+    private final Map<String, Lease> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Long> sessionTtls = new ConcurrentHashMap<>();
+    private final LongAdder sessionsExpired = new LongAdder();
+    private int[] allStripes;
+    // Durable log of the replicated entries applied here, with snapshots (null = in memory only)
+    private WriteAheadLog wal;
+    // Shard map and calls to the other shards (null = the cluster serves every lock name)
+    private ShardRouter shards;
+    private final AtomicBoolean handOffRunning = new AtomicBoolean();
+    // Lock names whose lock is being adopted by another shard (guarded by the lock name's
+    // stripe): requests that would change them run again once the future completes
+    private final Map<String, CompletableFuture<Void>> handingOff = new ConcurrentHashMap<>();
+    // Replication timeouts and background catch-up
+    private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "scheduler");
+        t.setDaemon(true);
+        return t;
+    });
     
-    // Pending requests: key = lockName+clientId+cmd, value = PendingRequestInfo (socket and writer)
-    private static class PendingRequestInfo {
-        Socket socket;
-        PrintWriter writer;
+    // A SYNC_BATCH being received on a replication connection
+    private static class SyncBatch {
+        final String seq;
+        final long term;
+        final int size;
+        final List<String> messages = new ArrayList<>();
+
+        SyncBatch(String seq, long term, int size) {
+            this.seq = seq;
+            this.term = term;
+            this.size = size;
+        }
+    }
+
+    // A replication connection opened by the leader of term (after its LEADER line)
+    private static class LeaderSession {
+        final long term;
+        SyncBatch batch;
+
+        LeaderSession(long term) {
+            this.term = term;
+        }
+    }
+
+    // A state transfer being received from the leader (see StateTransfer). The chunks
+    // are staged here and only replace the node's state once the transfer is complete,
+    // so an interrupted one leaves the state (and its position) as it was.
+    private static class SnapshotReceive {
+        final long seq;
+        final long term;
+        final long leaderTerm;
+        final LockTable locks;
+        final SharedLocks shared = new SharedLocks();
+        final Map<String, Long> leaseTtls = new HashMap<>();
+        final Map<String, Long> sessionTtls = new HashMap<>();
+        int received;
+
+        SnapshotReceive(long seq, long term, long leaderTerm, LockTable locks) {
+            this.seq = seq;
+            this.term = term;
+            this.leaderTerm = leaderTerm;
+            this.locks = locks;
+        }
+    }
+
+    // A lock held for ttlMs unless its owner renews it (also a client session, kept
+    // alive by KEEPALIVE). RENEW only moves the deadline; the wheel timeout is
+    // re-armed when it fires before the (renewed) deadline.
+    private static class Lease {
+        final String owner;
+        volatile long ttlMs;
+        volatile long expiresAtNanos;
+        volatile TimerWheel.Timeout timeout;
+
+        Lease(String owner, long ttlMs) {
+            this.owner = owner;
+            renew(ttlMs);
+        }
+
+        void renew(long newTtlMs) {
+            if (newTtlMs > 0) {
+                ttlMs = newTtlMs;
+            }
+            expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        }
+
+        long remainingMs() {
+            return TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime());
+        }
+    }
+
+    // A LOCK_WAIT queued behind the current owner. response completes when the lock
+    // has been handed over (and replicated) or the wait timed out; it is cancelled
+    // if the client goes away, and cancelled waiters are skipped.
+    private static class Waiter {
+        final String lockName;
+        final String clientId;
+        final long ttlMs;
+        final long waitUntilNanos;
+        final boolean forwarded;
+        final CompletableFuture<String> response = new CompletableFuture<>();
+        TimerWheel.Timeout timeout;
+
+        Waiter(String lockName, String clientId, long ttlMs, long waitMs, boolean forwarded) {
+            this.lockName = lockName;
+            this.clientId = clientId;
+            this.ttlMs = ttlMs;
+            this.waitUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+            this.forwarded = forwarded;
+        }
+    }
+
+    // Where the answer to a client request goes: the parked text connection, or a
+    // binary frame carrying the request ID
+    private interface Responder {
+        void respond(String response);
+    }
+
+    // Follower side: requests forwarded to the leader and linearizable reads, each
+    // under its own ID and deadline (see PendingRequests)
+    private PendingRequests pendingRequests;
+    
+    // Cluster members (VM setup), unless dls.cluster lists them. Which one leads is
+    // decided by election; any of them can take over when the leader fails.
+    private static final Map<String, Integer> SERVER_PORTS = new HashMap<>();
+    static {
+        SERVER_PORTS.put("10.0.2.3", 5000);   // VM 1
+        SERVER_PORTS.put("10.0.2.4", 5000);   // VM 2
+        SERVER_PORTS.put("10.0.2.5", 5000);   // VM 3
+    }
+
+    public Server(String serverIp, int port, boolean preferLeader) throws IOException {
+        this(serverIp, port, preferLeader, ServerConfig.fromSystemProperties());
+    }
+
+    // preferLeader = campaign as soon as the server starts instead of waiting for an election timeout
+    public Server(String serverIp, int port, boolean preferLeader, ServerConfig config) throws IOException {
+        this.serverIp = serverIp;
+        this.port = port;
+        this.selfId = serverIp + ":" + port;
+        this.preferLeader = preferLeader;
+        this.config = config;
+        this.requestExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(config.workerThreads);
+        for (String cmd : new String[] {"LOCK", "UNLOCK", "OWN", "RENEW", "LOCK_WAIT", "MLOCK", "MUNLOCK",
+                "OPEN_SESSION", "KEEPALIVE", "CLOSE_SESSION", "LOCK_SHARED", "ACQUIRE"}) {
+            requestLatency.put(cmd, new Histogram());
+        }
+        this.lockMap = LockTable.create(config.lockTable);
+        this.lockStripes = new LockStripes(config.lockStripes);
+        this.allStripes = new int[lockStripes.size()];
+        for (int i = 0; i < allStripes.length; i++) {
+            allStripes[i] = i;
+        }
+        
+        // Every other member (of this node's shard, if the lock names are sharded) is a
+        // follower while this node leads
+        if (!config.shardMap.isEmpty()) {
+            routingExecutor = new ThreadPoolExecutor(config.shardRouterThreads, config.shardRouterThreads,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(config.shardRouterQueueMax));
+            routingExecutor.allowCoreThreadTimeOut(true);
+            shards = new ShardRouter(serverIp, selfId, new File(config.shardMap), routingExecutor, this::startHandOff,
+                    config.transport);
+        }
+        List<String> members = shards != null ? shards.shardMembers() : clusterMembers(config);
+        if (!members.contains(selfId)) {
+            throw new IllegalArgumentException(selfId + " is not a cluster member " + members
+                    + " (see SERVER_PORTS, dls.cluster and dls.shardMap)");
+        }
+        // Before anything is opened: a bad commit rule would otherwise fail every write
+        Replicator.checkCommitQuorum(config.commitQuorum, members.size() - 1);
+        for (String member : members) {
+            if (!member.equals(selfId)) {
+                followerServers.add(member);
+            }
+        }
+        election = new LeaderElection(selfId, followerServers, config, new LeaderElection.Listener() {
+            @Override
+            public long[] logPosition() {
+                return replicator.getLogPosition();
+            }
+
+            @Override
+            public void onLeader(long term) {
+                abortForwards();
+                becomeLeader(term);
+            }
+
+            @Override
+            public void onFollower(long term) {
+                abortForwards();
+                becomeFollower();
+            }
+        }, scheduler);
+
+        if (!config.dataDir.isEmpty()) {
+            wal = new WriteAheadLog(serverIp, config);
+        }
+        if (config.followerReads.equalsIgnoreCase("readIndex")) {
+            readIndex = new ReadIndex(serverIp, election::getLeaderId, config.replicationTimeoutMs, config.transport);
+        }
+        replicator = new Replicator(serverIp, selfId, config, this::nextIoLoop, scheduler, wal,
+                new StateTransfer(serverIp, lockMap, sharedLocks, this::leaseTtlOf, this::sessionTtlsOf, config.replicationTimeoutMs,
+                        config.transport),
+                election::observeTerm);
+        if (config.groupCommit) {
+            groupCommitter = new GroupCommitter(serverIp, config.groupCommitWindowMs, config.groupCommitMaxBatch,
+                    replicator::replicate, replicationBatchSizes);
+        }
+        timerWheel = new TimerWheel("timer-wheel", config.leaseTickMs, config.leaseWheelSize);
+        pendingRequests = new PendingRequests(serverIp, timerWheel, config.pendingMax, () -> appliedSeq);
+        if (wal != null) {
+            recoverState();
+        }
+    }
+
+    // "ip:port" of every voting member, in a fixed order
+    private static List<String> clusterMembers(ServerConfig config) {
+        List<String> members = new ArrayList<>();
+        if (config.cluster.trim().isEmpty()) {
+            SERVER_PORTS.forEach((ip, memberPort) -> members.add(ip + ":" + memberPort));
+        } else {
+            for (String member : config.cluster.split(",")) {
+                if (!member.trim().isEmpty()) {
+                    members.add(member.trim());
+                }
+            }
+        }
+        Collections.sort(members);
+        return members;
+    }
+
+    // Rebuild the lock table from the latest snapshot and the log tail before serving.
+    // Leases and sessions are re-granted with their full TTL if this node is elected
+    // leader; waiters are not recovered.
+    private void recoverState() throws IOException {
+        WriteAheadLog.State state = wal.recover();
+        lockMap.putAll(state.owners);
+        state.shared.entrySet().forEach(entry -> entry.getValue().clients()
+                .forEach(clientId -> sharedLocks.acquire(entry.getKey(), clientId, entry.getValue().permits)));
+        leaseTtls.putAll(state.leaseTtls);
+        sessionTtls.putAll(state.sessionTtls);
+        appliedSeq = state.seq;
+        appliedTerm = state.term;
+        replicator.restore(state.seq, state.term);
+        wal.start();
+    }
+
+    // Election won (called by LeaderElection): take over the leases of the replicated
+    // locks and the client sessions, then append an entry of the new term. Its commit also commits whatever
+    // earlier leaders left uncommitted, and only then is READ_INDEX answered.
+    // Package-private, like processRequest and applySyncEntry, for the benchmarks.
+    void becomeLeader(long term) {
+        synchronized (applyLock) {
+            lockStripes.lockAll(allStripes);
+            try {
+                isLeader = true;
+                leaseTtls.forEach((lockName, ttlMs) -> {
+                    String owner = lockMap.get(lockName);
+                    if (owner != null) {
+                        grantLease(lockName, owner, ttlMs);
+                    }
+                });
+                leaseTtls.clear();
+                sessionTtls.forEach(this::grantSession);
+                sessionTtls.clear();
+                replicator.startLeading(term, followerServers);
+            } finally {
+                lockStripes.unlockAll(allStripes);
+            }
+        }
+        replicator.replicate(Collections.singletonList("NOOP," + term + "," + selfId)).whenComplete((seq, e) -> {
+            if (e == null) {
+                Log.info(serverIp, "Leadership of term {} committed at seq {}", term, seq);
+                startHandOff();
+            }
+        });
+    }
+
+    // Another node leads (called by LeaderElection). A former leader keeps its leases
+    // and sessions as TTLs, turns its waiters away, and may hold changes that never reached a
+    // quorum: appliedTerm = -1 makes the next leader send it a state transfer.
+    private void becomeFollower() {
+        if (!isLeader) {
+            return;
+        }
+        List<Waiter> waiters = new ArrayList<>();
+        synchronized (applyLock) {
+            lockStripes.lockAll(allStripes);
+            try {
+                isLeader = false;
+                leases.forEach((lockName, lease) -> {
+                    lease.timeout.cancel();
+                    leaseTtls.put(lockName, lease.ttlMs);
+                });
+                leases.clear();
+                sessions.forEach((clientId, session) -> {
+                    session.timeout.cancel();
+                    sessionTtls.put(clientId, session.ttlMs);
+                });
+                sessions.clear();
+                waitQueues.values().forEach(waiters::addAll);
+                waitQueues.clear();
+                appliedSeq = replicator.getLastSeq();
+                appliedTerm = -1;
+            } finally {
+                lockStripes.unlockAll(allStripes);
+            }
+        }
+        replicator.stopLeading();
+        for (Waiter waiter : waiters) {
+            waiter.timeout.cancel();
+            waiter.response.complete("NOT_LEADER");
+        }
+    }
+
+    // A new term started (or this node was elected): requests forwarded to the previous leader fail with ERROR
+    // (their outcome is unknown) instead of waiting for a leader that may be gone
+    private void abortForwards() {
+        pendingRequests.closeForwards();
+    }
+
+    // Whether this node currently leads its cluster (for LocalCluster)
+    boolean isLeader() {
+        return isLeader;
+    }
+
+    // Read-only view of this node's lock table, lock name -> owner (for LocalCluster)
+    Map<String, String> lockTable() {
+        return Collections.unmodifiableMap(lockMap);
+    }
+
+    // This node's shard map and hand-off state, or null if lock names are not sharded (for LocalCluster)
+    ShardRouter shardRouter() {
+        return shards;
+    }
+
+    // Client ID -> TTL of the open sessions, for a state transfer
+    private Map<String, Long> sessionTtlsOf() {
+        Map<String, Long> ttls = new HashMap<>(sessionTtls);
+        sessions.forEach((clientId, session) -> ttls.put(clientId, session.ttlMs));
+        return ttls;
+    }
+
+    // Lease TTL of a lock for a state transfer (0 = none)
+    private long leaseTtlOf(String lockName) {
+        Lease lease = leases.get(lockName);
+        if (lease != null) {
+            return lease.ttlMs;
+        }
+        return leaseTtls.getOrDefault(lockName, 0L);
+    }
+
+    // Stop serving: close the listening socket and every connection, stop the
+    // election and replication timers and the request threads, then sync and close
+    // the write-ahead log. start() returns once its accept loop has stopped. Called by
+    // the shutdown hook, and by LocalCluster to stop one node of a running cluster.
+    public void shutdown() {
+        scheduler.shutdownNow();
+        replicator.stopLeading();
+        if (acceptLoop != null) {
+            acceptLoop.shutdown();
+        }
+        if (ioLoops != null) {
+            for (EventLoop loop : ioLoops) {
+                loop.shutdown();
+            }
+        }
+        abortForwards();
+        timerWheel.shutdown();
+        if (groupCommitter != null) {
+            groupCommitter.shutdown();
+        }
+        requestExecutor.shutdown();
+        threadPool.shutdown();
+        if (routingExecutor != null) {
+            routingExecutor.shutdown();
+        }
+        try {
+            if (acceptLoop != null) {
+                acceptLoop.join();
+            }
+            if (ioLoops != null) {
+                for (EventLoop loop : ioLoops) {
+                    loop.join();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (wal != null) {
+            wal.close();
+        }
+        if (metricsServer != null) {
+            metricsServer.stop(0);
+        }
+        Log.flush();
+    }
+
+    public void start() throws IOException {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+
+            ioLoops = new EventLoop[config.ioThreads];
+            for (int i = 0; i < ioLoops.length; i++) {
+                ioLoops[i] = new EventLoop("io-" + i);
+                ioLoops[i].start();
+            }
+            replicator.start();
+            timerWheel.start();
+            if (groupCommitter != null) {
+                groupCommitter.start();
+            }
+            acceptLoop = new EventLoop("accept");
+            acceptLoop.register(serverChannel, SelectionKey.OP_ACCEPT, new EventLoop.Handler() {
+                @Override
+                public void handleEvent(SelectionKey key) throws IOException {
+                    acceptConnections();
+                }
+
+                @Override
+                public void handleError(SelectionKey key, IOException e) {
+                    Log.warn(serverIp, "Error accepting connection: {}", e.getMessage());
+                    // Continue listening for other connections
+                }
+            });
+
+            System.out.println("==========================================");
+            System.out.println("Server started successfully!");
+            System.out.println("Address: " + serverIp + ":" + port);
+            System.out.println("Cluster: " + selfId + " and " + followerServers
+                    + (preferLeader ? " (campaigning for leader)" : ""));
+            System.out.println("Config: " + config);
+            if (config.metricsPort > 0) {
+                startMetricsEndpoint();
+                System.out.println("Metrics: http://" + serverIp + ":" + config.metricsPort + "/metrics");
+            }
+            if (shards != null) {
+                System.out.println("Shard: " + shards.getShard() + " of shard map " + shards.getMap());
+                // New map versions, and hand-offs that could not finish (new shard unreachable)
+                scheduler.scheduleWithFixedDelay(() -> {
+                    shards.poll();
+                    startHandOff();
+                }, config.shardMapPollMs, config.shardMapPollMs, TimeUnit.MILLISECONDS);
+            }
+            System.out.println("==========================================");
+            election.start(preferLeader);
+        } catch (IOException e) {
+            System.err.println("Failed to start server on " + serverIp + ":" + port);
+            System.err.println("Make sure the port is not already in use");
+            throw e;
+        }
+
+        // The accept loop runs on the calling thread, like the old blocking accept()
+        acceptLoop.run();
+    }
+
+    // Plain-text scrape endpoint: GET /metrics answers collectMetrics() in the Prometheus format
+    private void startMetricsEndpoint() throws IOException {
+        metricsServer = HttpServer.create(new InetSocketAddress(config.metricsPort), 0);
+        metricsServer.createContext("/metrics", exchange -> {
+            byte[] body = collectMetrics().toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        metricsServer.start();
+    }
+
+    // TOPOLOGY,<term>,<leaderId or NONE>,<member;member;...>: the members of this
+    // node's cluster (its shard, if sharded) and the leader it follows
+    private String topology() {
+        String leaderId = isLeader ? selfId : election.getLeaderId();
+        List<String> members = new ArrayList<>(followerServers);
+        members.add(selfId);
+        Collections.sort(members);
+        return "TOPOLOGY," + election.getCurrentTerm() + "," + (leaderId != null ? leaderId : "NONE")
+                + "," + String.join(";", members);
+    }
+
+    // What STATS and the metrics endpoint report. Latencies are in microseconds; each
+    // value is read on its own, without stopping the server.
+    Metrics collectMetrics() {
+        Metrics metrics = new Metrics();
+        requestLatency.forEach((cmd, latency) -> metrics.summary("dls_request_latency_us", "cmd=\"" + cmd + "\"", latency));
+        Collection<ReplicationChannel> channels = replicator.getChannels();
+        for (ReplicationChannel channel : channels) {
+            metrics.summary("dls_replication_ack_latency_us", "follower=\"" + channel.getFollower() + "\"", channel.getAckLatency());
+        }
+        long lastSeq = replicator.getLastSeq();
+        for (ReplicationChannel channel : channels) {
+            metrics.gauge("dls_replication_lag", "follower=\"" + channel.getFollower() + "\"", lastSeq - channel.getAckedSeq());
+        }
+        metrics.gauge("dls_leader", isLeader ? 1 : 0)
+                .gauge("dls_term", election.getCurrentTerm())
+                .gauge("dls_replication_last_seq", lastSeq)
+                .gauge("dls_replication_commit_seq", replicator.getCommitSeq())
+                .gauge("dls_applied_seq", appliedSeq)
+                .gauge("dls_locks_held", lockMap.size())
+                .gauge("dls_shared_locks_held", sharedLocks.size())
+                .gauge("dls_shared_holds", sharedLocks.holdCount())
+                .gauge("dls_leases", leases.size())
+                .gauge("dls_sessions", isLeader ? sessions.size() : sessionTtls.size())
+                .gauge("dls_locks_with_waiters", waitQueues.size())
+                .gauge("dls_pending_requests", pendingRequests.size())
+                .gauge("dls_pending_awaiting_apply", pendingRequests.awaitingApplyCount())
+                .gauge("dls_worker_threads_active", requestExecutor.getActiveCount())
+                .gauge("dls_worker_queue_depth", requestExecutor.getQueue().size())
+                .gauge("dls_outbound_threads_active", threadPool.getActiveCount())
+                .counter("dls_pending_expired_total", pendingRequests.getExpiredCount())
+                .counter("dls_pending_rejected_total", pendingRequests.getRejectedCount())
+                .counter("dls_sessions_expired_total", sessionsExpired.sum())
+                .counter("dls_stripe_contended_total", lockStripes.getContendedCount())
+                .counter("dls_log_dropped_total", Log.getDroppedCount());
+        if (groupCommitter != null) {
+            metrics.summary("dls_group_commit_batch_size", "", replicationBatchSizes)
+                    .gauge("dls_group_commit_queued", groupCommitter.getQueuedCount());
+        }
+        if (wal != null) {
+            metrics.gauge("dls_wal_durable_seq", wal.getDurableSeq());
+        }
+        return metrics;
+    }
+
+    private void acceptConnections() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            EventLoop loop = nextIoLoop();
+            Connection connection = new Connection(channel, loop, this);
+            Log.debug(serverIp, "New connection from: {}", connection.getRemoteAddress());
+            loop.register(channel, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private EventLoop nextIoLoop() {
+        return ioLoops[Math.floorMod(nextIoLoop.getAndIncrement(), ioLoops.length)];
+    }
+
+    // Called on the connection's I/O thread for every line received
+    @Override
+    public void onLine(Connection connection, String msg) {
+        // Chunks of a state transfer are large and many, heartbeats frequent: not logged
+        Object state = connection.getAttachment();
+        if (state instanceof SnapshotReceive) {
+            handleSnapshotLine((SnapshotReceive) state, msg, connection);
+            return;
+        }
+        if (msg.equals("HEARTBEAT")) {
+            if (currentSession(connection) != null) {
+                connection.send("HEARTBEAT_OK");
+            }
+            return;
+        }
+        Log.trace(serverIp, "Received message: {}", msg);
+
+        // Lines belonging to a SYNC_BATCH that is being received
+        if (state instanceof LeaderSession && ((LeaderSession) state).batch != null) {
+            handleSyncBatchLine((LeaderSession) state, msg, connection);
+            return;
+        }
+
+        // Handle different types of messages
+        if (msg.startsWith("LEADER,")) {
+            // A leader opens its replication channel to this follower
+            handleLeaderHello(msg, connection);
+
+        } else if (msg.startsWith("VOTE_REQUEST,") || msg.startsWith("PRE_VOTE,")) {
+            // A candidate asks for this node's vote
+            handleVoteMessage(msg, connection);
+
+        } else if (msg.startsWith("SYNC_BATCH,")) {
+            // Batched synchronization from the leader (group commit)
+            startSyncBatch(msg, connection);
+
+        } else if (msg.startsWith("SYNC,")) {
+            // Synchronization message from leader to followers
+            handleSyncMessage(msg, connection);
+
+        } else if (msg.startsWith("SNAPSHOT_BEGIN,")) {
+            // State transfer from the leader to this (joining or lagging) follower
+            startSnapshot(msg, connection);
+        
+        } else if (msg.startsWith("REGISTER,")) {
+            // Registration message from follower to leader
+            handleRegistrationMessage(msg, connection);
+
+        } else if (msg.equals("READ_INDEX")) {
+            // A follower serving a linearizable OWN asks for the commit point, which
+            // is only up to date on a leader still in touch with a majority
+            connection.send(replicator.isCommitCurrent() ? "INDEX," + replicator.getCommitSeq() : "NOT_LEADER");
+            
+        } else if (msg.startsWith("ROUTE,") || msg.startsWith("IMPORT,") || msg.startsWith("ADOPT,")) {
+            // From another shard (see ShardRouter)
+            handleShardRequest(msg, connection);
+
+        } else if (msg.startsWith("SHARD_MAP,") && shards != null) {
+            try {
+                shards.install(ShardMap.parse(msg.substring(10)));
+            } catch (IllegalArgumentException e) {
+                Log.warn(serverIp, "Invalid shard map received: {}", e.getMessage());
+            }
+            connection.send("OK");
+
+        } else if (msg.startsWith("HANDOFF_DONE,") && shards != null) {
+            String[] parts = msg.split(",");
+            if (parts.length == 3 && isSequenceNumber(parts[2], parts[2].length())) {
+                shards.markHandoffDone(parts[1], Long.parseLong(parts[2]));
+            }
+            connection.send("OK");
+
+        } else if (msg.equals("TOPOLOGY")) {
+            // Leader-aware clients learn where to send writes and reads
+            connection.send(topology());
+
+        } else if (msg.equals("STATS")) {
+            // Metrics of this node as "STAT <name> <value>" lines ended by "END"
+            connection.park();
+            requestExecutor.execute(() -> connection.reply(collectMetrics().toStatsReply()));
+
+        } else if (msg.startsWith("FWD,")) {
+            // LOCK/UNLOCK/RENEW forwarded by a follower: mutations are answered with the commit sequence number
+            long receivedNanos = System.nanoTime();
+            connection.park();
+            requestExecutor.execute(() -> handleClientRequest(msg.substring(4), connection, true, false, receivedNanos));
+
+        } else {
+            // Client request message (LOCK/UNLOCK/RENEW/OWN): park the connection so that
+            // the next line is only read once this request has been answered
+            long receivedNanos = System.nanoTime();
+            connection.park();
+            requestExecutor.execute(() -> handleClientRequest(msg, connection, false, false, receivedNanos));
+        }
+    }
+
+    // Called on the connection's I/O thread for every frame of a binary client
+    // connection. The frame is decoded in place; requests are not parked, several
+    // can be in flight and each answer carries its request ID.
+    @Override
+    public void onFrame(Connection connection, ByteBuffer frame) {
+        long receivedNanos = System.nanoTime();
+        if (!(connection.getAttachment() instanceof Set)) {
+            // LOCK_WAIT requests of this connection, cancelled if it closes
+            connection.setAttachment(ConcurrentHashMap.newKeySet());
+        }
+        long requestId = 0;
+        String cmd = null;
+        String lockName;
+        String clientId;
+        long ttlMs;
+        long waitMs;
+        int permits;
+        try {
+            byte opcode = frame.get();
+            requestId = frame.getLong();
+            cmd = BinaryProtocol.commandOf(opcode);
+            ttlMs = frame.getLong();
+            waitMs = frame.getLong();
+            permits = frame.getInt();
+            lockName = BinaryProtocol.getString(frame);
+            clientId = BinaryProtocol.getString(frame);
+        } catch (RuntimeException e) {
+            Log.debug(serverIp, "Invalid frame from {}: {}", connection.getRemoteAddress(), e);
+            connection.sendFrame(BinaryProtocol.encodeResponse(requestId, null, "INVALID_FORMAT"));
+            return;
+        }
+        String command = cmd;
+        long id = requestId;
+        Responder responder = response -> connection.sendFrame(BinaryProtocol.encodeResponse(id, command, response));
+        if (command == null) {
+            responder.respond("INVALID_COMMAND");
+            return;
+        }
+        // The replication log is made of text lines; session commands have no lock name,
+        // shared holds no lease, and only a semaphore has permits
+        boolean shared = command.equals("LOCK_SHARED") || command.equals("ACQUIRE");
+        if ((lockName.isEmpty() != isSessionCommand(command)) || clientId.isEmpty() || !isValidName(lockName) || !isValidName(clientId)
+                || ttlMs < 0 || waitMs < 0 || (command.equals("LOCK_WAIT") && waitMs == 0)
+                || (command.equals("OPEN_SESSION") && ttlMs == 0) || (shared && ttlMs > 0)
+                || (command.equals("ACQUIRE") ? permits <= 0 : permits != 0)) {
+            responder.respond("INVALID_FORMAT");
+            return;
+        }
+        if (ttlMs == 0 && (command.equals("LOCK") || command.equals("MLOCK") || command.equals("LOCK_WAIT"))) {
+            ttlMs = config.leaseDefaultTtlMs;
+        }
+        long ttl = ttlMs;
+        long wait = waitMs;
+        requestExecutor.execute(() -> dispatchRequest(command, lockName, clientId, ttl, wait, permits, false, false, connection,
+                timed(command, receivedNanos, responder)));
+    }
+
+    static boolean isSessionCommand(String cmd) {
+        return cmd.equals("OPEN_SESSION") || cmd.equals("KEEPALIVE") || cmd.equals("CLOSE_SESSION");
+    }
+
+    // Whether a binary lock name or client ID can go into the text lines of the
+    // replication log, the write-ahead log and the requests between servers, which
+    // neither escape nor length-prefix them (the text protocol cannot send these
+    // characters at all)
+    private static boolean isValidName(String name) {
+        return name.indexOf(',') < 0 && name.indexOf('\n') < 0 && name.indexOf('\r') < 0;
+    }
+
+    @Override
+    public void onClose(Connection connection) {
+        Object pendingKey = connection.getAttachment();
+        // A state transfer that broke off: its staged chunks are dropped, and the leader sends a new one
+        if (pendingKey instanceof SnapshotReceive) {
+            receivingState = false;
+            Log.warn(serverIp, "State transfer {} interrupted", ((SnapshotReceive) pendingKey).seq);
+            return;
+        }
+        // Binary connection: give up the LOCK_WAIT requests still queued
+        if (pendingKey instanceof Set) {
+            for (Object waiting : (Set<?>) pendingKey) {
+                ((CompletableFuture<?>) waiting).cancel(false);
+            }
+            return;
+        }
+        // Leader: a client that went away while queued in LOCK_WAIT gives up its place
+        if (pendingKey instanceof CompletableFuture) {
+            ((CompletableFuture<?>) pendingKey).cancel(false);
+            Log.debug(serverIp, "Client closed connection while waiting for a lock");
+            return;
+        }
+        // Drop the pending request of a client that went away before it was answered
+        if (pendingKey instanceof Long && pendingRequests.drop((Long) pendingKey)) {
+            Log.debug(serverIp, "Client closed connection, dropped pending request: {}", pendingKey);
+        }
+    }
+
+    // "LEADER,<term>,<leaderId>" opens a replication connection: accepted if that term
+    // is current, and answered with how far this node's state goes ("POSITION,<seq>,<term>")
+    private void handleLeaderHello(String msg, Connection connection) {
+        String[] parts = msg.split(",");
+        long term;
+        try {
+            term = Long.parseLong(parts[1]);
+        } catch (RuntimeException e) {
+            Log.warn(serverIp, "Invalid leader hello: {}", msg);
+            connection.close();
+            return;
+        }
+        if (parts.length < 3 || !election.onLeaderContact(term, parts[2])) {
+            connection.sendAndClose("STALE," + election.getCurrentTerm());
+            return;
+        }
+        connection.setAttachment(new LeaderSession(term));
+        synchronized (applyLock) {
+            connection.send("POSITION," + appliedSeq + "," + appliedTerm);
+        }
+    }
+
+    // The session of a replication connection, if its leader's term is still current
+    // (which also resets the election timer); otherwise that leader learns the newer
+    // term and the connection is closed
+    private LeaderSession currentSession(Connection connection) {
+        Object state = connection.getAttachment();
+        if (state instanceof LeaderSession && election.onLeaderContact(((LeaderSession) state).term, null)) {
+            return (LeaderSession) state;
+        }
+        connection.sendAndClose("STALE," + election.getCurrentTerm());
+        return null;
+    }
+
+    // "VOTE_REQUEST,<term>,<candidate>,<lastSeq>,<lastTerm>" or the same as "PRE_VOTE"
+    private void handleVoteMessage(String msg, Connection connection) {
+        String[] parts = msg.split(",");
+        try {
+            long term = Long.parseLong(parts[1]);
+            long lastSeq = Long.parseLong(parts[3]);
+            long lastTerm = Long.parseLong(parts[4]);
+            connection.send(parts[0].equals("PRE_VOTE") ? election.handlePreVote(term, parts[2], lastSeq, lastTerm)
+                    : election.handleVoteRequest(term, parts[2], lastSeq, lastTerm));
+        } catch (RuntimeException e) {
+            Log.warn(serverIp, "Invalid vote request: {}", msg);
+            connection.close();
+        }
+    }
+
+    private void handleSyncMessage(String msg, Connection connection) {
+        Log.trace(serverIp, "Processing sync message: {}", msg);
+        // Replication channel: "SYNC,<seq>,<term>,CMD,lockName,clientId", answered with "ACK,<seq>"
+        // Legacy one-shot:     "SYNC,CMD,lockName,clientId", answered with "ACK"
+        String commandData = msg.substring(5);
+        int comma = commandData.indexOf(',');
+        if (comma > 0 && isSequenceNumber(commandData, comma)) {
+            if (currentSession(connection) == null) {
+                return;
+            }
+            String seq = commandData.substring(0, comma);
+            int termEnd = commandData.indexOf(',', comma + 1);
+            if (termEnd < 0 || !isSequenceNumber(commandData.substring(comma + 1), termEnd - comma - 1)) {
+                Log.warn(serverIp, "Invalid sync message: {}", msg);
+                connection.close();
+                return;
+            }
+            long term = Long.parseLong(commandData.substring(comma + 1, termEnd));
+            CompletableFuture<Void> durable = applySyncEntry(Long.parseLong(seq), term,
+                    Collections.singletonList(commandData.substring(termEnd + 1)));
+            acknowledge(connection, seq, durable, "sync message");
+        } else {
+            processSync(commandData);
+            connection.send("ACK");
+            Log.trace(serverIp, "Sent ACK for sync message");
+        }
+    }
+
+    private void startSyncBatch(String msg, Connection connection) {
+        // "SYNC_BATCH,<seq>,<term>,<count>", followed by <count> lines "CMD,lockName,clientId"
+        LeaderSession session = currentSession(connection);
+        if (session == null) {
+            return;
+        }
+        String[] parts = msg.split(",");
+        long term;
+        int size;
+        try {
+            Long.parseLong(parts[1]);
+            term = Long.parseLong(parts[2]);
+            size = Integer.parseInt(parts[3]);
+        } catch (RuntimeException e) {
+            Log.warn(serverIp, "Invalid batch header: {}", msg);
+            connection.close();
+            return;
+        }
+        session.batch = new SyncBatch(parts[1], term, size);
+    }
+
+    private void handleSyncBatchLine(LeaderSession session, String msg, Connection connection) {
+        SyncBatch batch = session.batch;
+        batch.messages.add(msg);
+        if (batch.messages.size() < batch.size) {
+            return;
+        }
+        session.batch = null;
+        Log.trace(serverIp, "Processing sync batch {} of {} mutations", batch.seq, batch.size);
+        CompletableFuture<Void> durable = applySyncEntry(Long.parseLong(batch.seq), batch.term, batch.messages);
+        acknowledge(connection, batch.seq, durable, "sync batch");
+    }
+
+    // ACK an entry once the write-ahead log made it durable, so that a quorum of
+    // ACKs means the entry survives a crash of those followers. An entry that does
+    // not follow the last one applied (null) closes the connection: the leader
+    // reconnects and resumes from this node's position.
+    private void acknowledge(Connection connection, String seq, CompletableFuture<Void> durable, String what) {
+        if (durable == null) {
+            connection.close();
+            return;
+        }
+        durable.whenComplete((v, e) -> {
+            if (e != null) {
+                Log.error(serverIp, "Not acknowledging {} {}: {}", what, seq, e);
+                return;
+            }
+            connection.send("ACK," + seq);
+            Log.trace(serverIp, "Sent ACK for {} {}", what, seq);
+        });
+    }
+
+    // Apply one replicated entry in sequence order; entries re-sent after a
+    // reconnect are acknowledged again but not re-applied. The returned future
+    // completes when the entry is durable in the write-ahead log (null: the entry
+    // does not follow the last one applied).
+    CompletableFuture<Void> applySyncEntry(long seq, long term, List<String> messages) {
+        CompletableFuture<Void> durable;
+        synchronized (applyLock) {
+            if (seq <= appliedSeq || receivingState || isLeader) {
+                Log.debug(serverIp, "Sync entry {} already applied", seq);
+                return CompletableFuture.completedFuture(null);
+            }
+            if (seq != appliedSeq + 1) {
+                Log.warn(serverIp, "Sync entry {} does not follow applied seq {}", seq, appliedSeq);
+                return null;
+            }
+            for (String message : messages) {
+                processSync(message);
+            }
+            appliedSeq = seq;
+            appliedTerm = term;
+            replicator.appendReceived(seq, term, messages);
+            durable = wal != null ? wal.append(seq, term, messages) : CompletableFuture.completedFuture(null);
+        }
+        answerApplied(seq);
+        return durable;
+    }
+
+    // "SNAPSHOT_BEGIN,<seq>,<term>,<leaderTerm>": the leader's lock table replaces ours
+    // at the end of the transfer, followed by "SNAPSHOT,<name>,<owner>,<leaseTtlMs>,..." chunks, the shared holds
+    // ("SHARES,<name>,<holder>,<permits>,...") and sessions, and "SNAPSHOT_END,<seq>,<count>"
+    private void startSnapshot(String msg, Connection connection) {
+        SnapshotReceive snapshot;
+        try {
+            String[] parts = msg.split(",");
+            snapshot = new SnapshotReceive(Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                    LockTable.create(config.lockTable));
+        } catch (RuntimeException e) {
+            Log.warn(serverIp, "Invalid state transfer header: {}", msg);
+            connection.close();
+            return;
+        }
+        if (!election.onLeaderContact(snapshot.leaderTerm, null)) {
+            connection.sendAndClose("STALE," + election.getCurrentTerm());
+            return;
+        }
+        synchronized (applyLock) {
+            receivingState = true;
+        }
+        connection.setAttachment(snapshot);
+    }
+
+    private void handleSnapshotLine(SnapshotReceive snapshot, String msg, Connection connection) {
+        if (msg.startsWith("SNAPSHOT,")) {
+            String[] parts = msg.split(",");
+            for (int i = 1; i + 2 < parts.length; i += 3) {
+                snapshot.locks.put(parts[i], parts[i + 1]);
+                long ttl = Long.parseLong(parts[i + 2]);
+                if (ttl > 0) {
+                    snapshot.leaseTtls.put(parts[i], ttl);
+                }
+                snapshot.received++;
+            }
+            // A long transfer is contact with the leader too
+            election.onLeaderContact(snapshot.leaderTerm, null);
+            return;
+        }
+        if (msg.startsWith("SHARES,")) {
+            String[] parts = msg.split(",");
+            for (int i = 1; i + 2 < parts.length; i += 3) {
+                snapshot.shared.acquire(parts[i], parts[i + 1], Integer.parseInt(parts[i + 2]));
+            }
+            return;
+        }
+        if (msg.startsWith("SESSIONS,")) {
+            String[] parts = msg.split(",");
+            for (int i = 1; i + 1 < parts.length; i += 2) {
+                snapshot.sessionTtls.put(parts[i], Long.parseLong(parts[i + 1]));
+            }
+            return;
+        }
+        String[] parts = msg.split(",");
+        if (!parts[0].equals("SNAPSHOT_END") || parts.length < 3 || !parts[1].equals(String.valueOf(snapshot.seq))
+                || !parts[2].equals(String.valueOf(snapshot.received))) {
+            Log.warn(serverIp, "State transfer {} ended unexpectedly after {} locks: {}", snapshot.seq, snapshot.received, msg);
+            connection.close();
+            return;
+        }
+        connection.setAttachment(null);
+        CompletableFuture<Void> durable;
+        synchronized (applyLock) {
+            if (isLeader) {
+                // Elected while the transfer was under way: this node's state is the cluster's now
+                receivingState = false;
+                Log.warn(serverIp, "Dropping state transfer {}: this node leads", snapshot.seq);
+                connection.close();
+                return;
+            }
+            // Install the staged state; becomeLeader and applySyncEntry wait on applyLock meanwhile
+            lockMap.clear();
+            lockMap.putAll(snapshot.locks);
+            sharedLocks.clear();
+            for (Map.Entry<String, SharedLocks.Holders> entry : snapshot.shared.entrySet()) {
+                for (String holder : entry.getValue().clients()) {
+                    sharedLocks.acquire(entry.getKey(), holder, entry.getValue().permits);
+                }
+            }
+            leaseTtls.clear();
+            leaseTtls.putAll(snapshot.leaseTtls);
+            sessionTtls.clear();
+            sessionTtls.putAll(snapshot.sessionTtls);
+            appliedSeq = snapshot.seq;
+            appliedTerm = snapshot.term;
+            receivingState = false;
+            replicator.resetTo(snapshot.seq, snapshot.term);
+            durable = wal != null ? wal.reset(snapshot.seq, snapshot.term, lockMap, sharedLocks, leaseTtls, sessionTtls)
+                    : CompletableFuture.completedFuture(null);
+        }
+        Log.info(serverIp, "Installed state transfer of {} locks as of seq {}", snapshot.received, snapshot.seq);
+        answerApplied(snapshot.seq);
+        durable.whenComplete((v, e) -> {
+            if (e != null) {
+                Log.error(serverIp, "Failed to persist the state transfer: {}", e);
+                connection.close();
+                return;
+            }
+            connection.send("SNAPSHOT_DONE," + snapshot.seq);
+        });
+    }
+
+    // Answer forwarded requests that were waiting for entries up to seq
+    private void answerApplied(long seq) {
+        pendingRequests.appliedUpTo(seq);
+    }
+
+    private static boolean isSequenceNumber(String s, int end) {
+        for (int i = 0; i < end; i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void handleRegistrationMessage(String msg, Connection connection) {
+        Log.info(serverIp, "Received registration: {}", msg);
+        // "REGISTER,ip:port" from a cluster member that restarted: its old replication
+        // connection is dead, so the leader handshakes with it again right away
+        String[] parts = msg.split(",", -1);
+        if (parts.length != 2 || parts[1].isEmpty()) {
+            Log.warn(serverIp, "Invalid registration: {}", msg);
+            connection.send("INVALID_FORMAT");
+            return;
+        }
+        String followerInfo = parts[1];
+        if (!isLeader) {
+            connection.send("NOT_LEADER");
+        } else if (!followerServers.contains(followerInfo)) {
+            connection.send("NOT_MEMBER");
+        } else {
+            replicator.registerFollower(followerInfo);
+            connection.send("REGISTERED");
+        }
+    }
+
+    // Text protocol request. Runs on a worker thread; the connection stays parked until it is answered.
+    // forwarded = the request comes from a follower (see forwardToLeaderForPending),
+    // imported = from the shard taking its lock name over (see ShardRouter)
+    private void handleClientRequest(String msg, Connection connection, boolean forwarded, boolean imported, long receivedNanos) {
+        TextRequest request = parseRequest(msg, config.leaseDefaultTtlMs);
+        if (request == null) {
+            Log.debug(serverIp, "Invalid message format: {}", msg);
+            connection.reply("INVALID_FORMAT");
+            return;
+        }
+        dispatchRequest(request.cmd, request.lockName, request.clientId, request.ttlMs, request.waitMs, request.permits,
+                forwarded, imported, connection, timed(request.cmd, receivedNanos, connection::reply));
+    }
+
+    // The fields of a text request line
+    static final class TextRequest {
+        final String cmd;
+        final String lockName;
+        final String clientId;
+        final long ttlMs;
+        final long waitMs;
+        final int permits;
+
+        TextRequest(String cmd, String lockName, String clientId, long ttlMs, long waitMs, int permits) {
+            this.cmd = cmd;
+            this.lockName = lockName;
+            this.clientId = clientId;
+            this.ttlMs = ttlMs;
+            this.waitMs = waitMs;
+            this.permits = permits;
+        }
+    }
+
+    // "CMD,lockName,clientId" with its arguments, or null if the line is malformed:
+    // "LOCK,lockName,clientId[,ttlMs]", "MLOCK,name1;name2;...,clientId[,ttlMs]",
+    // "RENEW,lockName,clientId[,ttlMs]" and "LOCK_WAIT,lockName,clientId,waitMs[,ttlMs]".
+    // A LOCK without a TTL gets defaultTtlMs. Shared holds have no lease:
+    // "LOCK_SHARED,lockName,clientId" and "ACQUIRE,lockName,clientId,permits" (a
+    // positive int). Session commands have no lock name:
+    // "OPEN_SESSION,clientId,ttlMs", "KEEPALIVE,clientId" and "CLOSE_SESSION,clientId".
+    static TextRequest parseRequest(String msg, long defaultTtlMs) {
+        String[] parts = msg.split(",");
+        String cmd = parts[0];
+        if (isSessionCommand(cmd)) {
+            long ttlMs = cmd.equals("OPEN_SESSION") ? parseDuration(parts, 2, -1) : 0;
+            if (parts.length < 2 || parts[1].isEmpty() || ttlMs < 0) {
+                return null;
+            }
+            return new TextRequest(cmd, "", parts[1], ttlMs, 0, 0);
+        }
+        if (parts.length < 3) {
+            return null;
+        }
+        boolean waits = cmd.equals("LOCK_WAIT");
+        long ttlMs = 0;
+        long waitMs = 0;
+        int permits = 0;
+        if (cmd.equals("LOCK") || cmd.equals("MLOCK") || waits) {
+            ttlMs = parseDuration(parts, waits ? 4 : 3, defaultTtlMs);
+        } else if (cmd.equals("RENEW")) {
+            ttlMs = parseDuration(parts, 3, 0);
+        } else if (cmd.equals("ACQUIRE")) {
+            permits = parsePermits(parts, 3);
+        }
+        if (waits) {
+            waitMs = parseDuration(parts, 3, -1);
+        }
+        if (ttlMs < 0 || waitMs < 0 || permits < 0) {
+            return null;
+        }
+        return new TextRequest(cmd, parts[1], parts[2], ttlMs, waitMs, permits);
+    }
+
+    // ROUTE / IMPORT / ADOPT from another shard, tagged with the sender's map version.
+    // A node with an older map gets the sender's map first (OLD_MAP), so both serve
+    // the request under the same map.
+    private void handleShardRequest(String msg, Connection connection) {
+        int start = msg.indexOf(',') + 1;
+        int end = msg.indexOf(',', start);
+        if (shards == null || end < 0 || !isSequenceNumber(msg.substring(start, end), end - start)) {
+            connection.send("INVALID_FORMAT");
+            return;
+        }
+        if (Long.parseLong(msg.substring(start, end)) > shards.getMap().getVersion()) {
+            connection.send("OLD_MAP");
+            return;
+        }
+        String request = msg.substring(end + 1);
+        boolean imported = msg.startsWith("IMPORT,");
+        long receivedNanos = System.nanoTime();
+        connection.park();
+        if (msg.startsWith("ADOPT,")) {
+            requestExecutor.execute(() -> handleAdopt(request, connection));
+        } else {
+            requestExecutor.execute(() -> handleClientRequest(request, connection, false, imported, receivedNanos));
+        }
+    }
+
+    // Common path of text and binary requests, on a worker thread. With a shard map,
+    // a request for another shard's lock names is sent there, and a name this shard
+    // is taking over is first checked with the shard handing it over.
+    private void dispatchRequest(String cmd, String lockName, String clientId, long ttlMs, long waitMs, int permits,
+                                 boolean forwarded, boolean imported, Connection connection, Responder responder) {
+        Log.trace(serverIp, "Processing client request: {} for lock: {} by client: {}", cmd, lockName, clientId);
+        // Sessions are per cluster: a client opens one in every shard it uses
+        if (shards == null || isSessionCommand(cmd)) {
+            dispatchLocally(cmd, lockName, clientId, ttlMs, waitMs, permits, forwarded, connection, responder);
+            return;
+        }
+        ShardMap map = shards.getMap();
+        boolean multi = cmd.equals("MLOCK") || cmd.equals("MUNLOCK");
+        Set<String> names = multi ? splitLockNames(lockName) : Collections.singleton(lockName);
+        if (names == null) {
+            responder.respond("INVALID_FORMAT");
+            return;
+        }
+        String owner = map.shardOfAll(names);
+        if (owner == null) {
+            responder.respond("CROSS_SHARD");
+            return;
+        }
+        if (imported) {
+            answerImport(cmd, lockName, clientId, ttlMs, waitMs, permits, owner, connection, responder);
+            return;
+        }
+        if (!owner.equals(shards.getShard())) {
+            // Moved to another shard, but still held here until the hand-off reaches it:
+            // the leader keeps serving it (processRequest checks again under the stripe)
+            boolean held = !multi && isLeader && shards.isHandingOff() && isHeld(lockName);
+            if (!held) {
+                routeToShard(owner, cmd, lockName, clientId, ttlMs, waitMs, permits).thenAccept(responder::respond);
+                return;
+            }
+            if (cmd.equals("OWN")) {
+                String holder = ownerOf(lockName);
+                if (!holder.equals("NONE")) {
+                    responder.respond(holder);
+                } else {
+                    routeToShard(owner, cmd, lockName, clientId, ttlMs, waitMs, permits).thenAccept(responder::respond);
+                }
+                return;
+            }
+        } else if (isLeader || cmd.equals("OWN")) {
+            String source = null;
+            for (String name : names) {
+                String from = shards.importSource(name);
+                if (from != null && multi) {
+                    // All or nothing across two shards is not possible: retry once the hand-off is done
+                    responder.respond("CROSS_SHARD");
+                    return;
+                }
+                source = from;
+            }
+            if (source != null) {
+                importFrom(source, cmd, lockName, clientId, ttlMs, waitMs, permits, forwarded, connection, responder);
+                return;
+            }
+        }
+        dispatchLocally(cmd, lockName, clientId, ttlMs, waitMs, permits, forwarded, connection, responder);
+    }
+
+    // This shard takes lockName over from source, which may still hold it: source
+    // serves the request if it does, and answers MOVED once the name is only served here
+    private void importFrom(String source, String cmd, String lockName, String clientId, long ttlMs, long waitMs, int permits,
+                            boolean forwarded, Connection connection, Responder responder) {
+        long version = shards.getMap().getVersion();
+        shards.call(source, "IMPORT," + version + "," + requestLine(cmd, lockName, clientId, ttlMs, waitMs, permits),
+                config.replicationTimeoutMs + waitMs + 5000).thenAccept(response -> {
+            if (response.equals("MOVED") || response.equals("MOVED,DONE")) {
+                if (response.equals("MOVED,DONE")) {
+                    shards.markHandoffDone(source, version);
+                }
+                requestExecutor.execute(() -> dispatchLocally(cmd, lockName, clientId, ttlMs, waitMs, permits, forwarded,
+                        connection, responder));
+            } else {
+                responder.respond(response);
+            }
+        });
+    }
+
+    // IMPORT from the shard that lockName moved to: serve it while the lock is still
+    // held here, MOVED (MOVED,DONE once this shard holds no moved lock) otherwise
+    private void answerImport(String cmd, String lockName, String clientId, long ttlMs, long waitMs, int permits, String owner,
+                              Connection connection, Responder responder) {
+        if (!isLeader) {
+            responder.respond("NOT_LEADER");
+        } else if (owner.equals(shards.getShard())) {
+            // Not moved after all under this node's (newer) map
+            dispatchLocally(cmd, lockName, clientId, ttlMs, waitMs, permits, false, connection, responder);
+        } else if (cmd.equals("MLOCK") || cmd.equals("MUNLOCK")) {
+            responder.respond("CROSS_SHARD");
+        } else {
+            CompletableFuture<String> result = serveIfStillHeld(cmd, lockName, clientId, ttlMs, waitMs, permits);
+            if (result != null) {
+                respondWhenDone(cmd, result, connection, responder);
+            } else {
+                responder.respond(shards.isHandoffDone(shards.getShard()) ? "MOVED,DONE" : "MOVED");
+            }
+        }
+    }
+
+    // Leader handing off a name that moved to another shard: the lock is served here
+    // as long as it is still held here, null once it has moved (or was free)
+    private CompletableFuture<String> serveIfStillHeld(String cmd, String lockName, String clientId, long ttlMs, long waitMs,
+                                                       int permits) {
+        ReentrantLock stripe = lockStripes.lockFor(lockName);
+        stripe.lock();
+        try {
+            if (!isLeader || !isHeld(lockName)) {
+                return null;
+            }
+            CompletableFuture<Void> moving = handingOff.get(lockName);
+            if (moving != null) {
+                // Being adopted by the importing shard right now: answered once that is settled
+                return moving.thenComposeAsync(v -> {
+                    CompletableFuture<String> result = serveIfStillHeld(cmd, lockName, clientId, ttlMs, waitMs, permits);
+                    return result != null ? result : CompletableFuture.completedFuture("MOVED");
+                }, requestExecutor);
+            }
+            return handleLeaderRequest(cmd, lockName, clientId, ttlMs, waitMs, permits, false);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    // Send a request to the shard owning its lock names and relay the answer
+    private CompletableFuture<String> routeToShard(String owner, String cmd, String lockName, String clientId, long ttlMs,
+                                                   long waitMs, int permits) {
+        return shards.call(owner, "ROUTE," + shards.getMap().getVersion() + ","
+                + requestLine(cmd, lockName, clientId, ttlMs, waitMs, permits), config.replicationTimeoutMs + waitMs + 5000);
+    }
+
+    // Text form of a parsed request
+    private static String requestLine(String cmd, String lockName, String clientId, long ttlMs, long waitMs, int permits) {
+        if (isSessionCommand(cmd)) {
+            return cmd + "," + clientId + (ttlMs > 0 ? "," + ttlMs : "");
+        }
+        return cmd + "," + lockName + "," + clientId + (cmd.equals("LOCK_WAIT") ? "," + waitMs : "")
+                + (cmd.equals("ACQUIRE") ? "," + permits : "") + (ttlMs > 0 ? "," + ttlMs : "");
+    }
+
+    private void dispatchLocally(String cmd, String lockName, String clientId, long ttlMs, long waitMs, int permits,
+                                 boolean forwarded, Connection connection, Responder responder) {
+        boolean binary = connection.isBinary();
+
+        // Forwarded by a follower that still takes this node for the leader
+        if (forwarded && !isLeader) {
+            responder.respond("NOT_LEADER");
+            return;
+        }
+        
+        // Linearizable OWN on a follower: read once everything the leader committed
+        // before the request is applied here
+        if (cmd.equals("OWN") && !isLeader && readIndex != null) {
+            readIndex.readIndex().whenComplete((index, e) -> {
+                if (e != null) {
+                    Log.warn(serverIp, "Read index unavailable: {}", e);
+                    responder.respond("ERROR");
+                    return;
+                }
+                // Answered like a forwarded mutation, except that the answer is the owner
+                PendingRequests.Entry pending = addPending(connection, responder, config.replicationTimeoutMs,
+                        () -> processRequest(cmd, lockName, clientId, 0, 0, 0, false));
+                if (pending != null) {
+                    pendingRequests.awaitApply(pending.getId(), index);
+                }
+            });
+            return;
+        }
+
+        // The same guarantee on the leader: its own table is only current while it still
+        // holds its lease (a partitioned leader may already have been replaced)
+        if (cmd.equals("OWN") && isLeader && readIndex != null && !replicator.isCommitCurrent()) {
+            responder.respond("NOT_LEADER");
+            return;
+        }
+
+        // For OWN requests, and LOCK/UNLOCK/RENEW/LOCK_WAIT on the leader, respond as soon
+        // as the result is known (for a leader mutation: once it has been replicated)
+        if (cmd.equals("OWN") || isLeader) {
+            respondWhenDone(cmd, processRequest(cmd, lockName, clientId, ttlMs, waitMs, permits, forwarded), connection, responder);
+            return;
+        }
+        
+        // For LOCK/UNLOCK/RENEW/LOCK_WAIT/MLOCK/MUNLOCK, the shared holds and the session commands on
+        // follower: mark as pending and forward to leader
+        // The response will be sent once the leader committed it and the SYNC was
+        // applied here (RENEW, KEEPALIVE: as soon as the leader answers); until then a text
+        // connection simply stays parked on its I/O thread
+        if (cmd.equals("LOCK") || cmd.equals("UNLOCK") || cmd.equals("RENEW") || cmd.equals("LOCK_WAIT")
+                || cmd.equals("MLOCK") || cmd.equals("MUNLOCK") || cmd.equals("LOCK_SHARED") || cmd.equals("ACQUIRE")
+                || isSessionCommand(cmd)) {
+            // The leader answers within its replication timeout (plus, for LOCK_WAIT, the
+            // time the request may wait in the queue); the SYNC follows right after
+            PendingRequests.Entry pending = addPending(connection, responder,
+                    config.replicationTimeoutMs + waitMs + 5000, null);
+            if (pending == null) {
+                return;
+            }
+            Log.trace(serverIp, "Marked request as pending: {} ({} {} by {})", pending.getId(), cmd, lockName, clientId);
+            
+            // Forward to leader (but don't respond to client yet - will respond once the
+            // leader committed it and the SYNC has been applied here)
+            forwardToLeaderForPending(cmd, lockName, clientId, ttlMs, waitMs, permits, pending.getId());
+            return;
+        }
+        
+        responder.respond("INVALID_COMMAND");
+    }
+
+    // Answers through responder and records the time since the request arrived in requestLatency
+    private Responder timed(String cmd, long receivedNanos, Responder responder) {
+        Histogram latency = requestLatency.get(cmd);
+        if (latency == null) {
+            return responder;
+        }
+        return response -> {
+            responder.respond(response);
+            latency.record((System.nanoTime() - receivedNanos) / 1000);
+        };
+    }
+
+    private void respondWhenDone(String cmd, CompletableFuture<String> result, Connection connection, Responder responder) {
+        boolean queued = cmd.equals("LOCK_WAIT") && !result.isDone();
+        if (queued) {
+            // Queued behind the owner: closing the connection leaves the queue
+            trackWaiting(connection, result, true);
+        }
+        result.thenAccept(response -> {
+            if (queued || !connection.isBinary()) {
+                trackWaiting(connection, result, false);
+            }
+            responder.respond(response);
+            Log.trace(serverIp, "Sent response: {}", response);
+        });
+    }
+
+    // Remember (or forget) a queued LOCK_WAIT so that onClose can cancel it
+    @SuppressWarnings("unchecked")
+    private void trackWaiting(Connection connection, CompletableFuture<String> result, boolean add) {
+        if (!connection.isBinary()) {
+            connection.setAttachment(add ? result : null);
+            return;
+        }
+        Set<CompletableFuture<String>> waiting = (Set<CompletableFuture<String>>) connection.getAttachment();
+        if (add) {
+            waiting.add(result);
+        } else {
+            waiting.remove(result);
+        }
+    }
+
+    // Optional positive duration in parts[index]: defaultValue when absent, -1 when invalid
+    private static long parseDuration(String[] parts, int index, long defaultValue) {
+        if (parts.length <= index) {
+            return defaultValue;
+        }
+        try {
+            long value = Long.parseLong(parts[index]);
+            return value > 0 ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Required positive int in parts[index] (the permits of a semaphore): -1 when absent or invalid
+    private static int parsePermits(String[] parts, int index) {
+        if (parts.length <= index) {
+            return -1;
+        }
+        try {
+            int value = Integer.parseInt(parts[index]);
+            return value > 0 ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Register a follower request that waits on the leader (read = null: a forwarded
+    // mutation). A parked text connection keeps the ID so that onClose can drop it,
+    // and reads its next request once answered. Null, with BUSY answered, if too
+    // many requests are pending.
+    private PendingRequests.Entry addPending(Connection connection, Responder responder, long timeoutMs,
+                                             Supplier<CompletableFuture<String>> read) {
+        boolean binary = connection.isBinary();
+        Consumer<String> answer = response -> {
+            if (!binary) {
+                connection.setAttachment(null);
+            }
+            responder.respond(response);
+        };
+        PendingRequests.Entry pending = read == null ? pendingRequests.add(answer, timeoutMs)
+                : pendingRequests.addRead(answer, read, timeoutMs);
+        if (pending == null) {
+            Log.debug(serverIp, "Too many pending requests ({}), answering BUSY", config.pendingMax);
+            responder.respond("BUSY");
+            return null;
+        }
+        if (!binary) {
+            connection.setAttachment(pending.getId());
+        }
+        return pending;
+    }
+
+    // One replicated op (of an entry, from applySyncEntry, or a legacy one-shot SYNC),
+    // applied under its lock name's stripe only
+    private void processSync(String commandData) {
+        // commandData est "CMD,lockName,clientId" (sans "SYNC," ni numéro de séquence)
+        String[] parts = commandData.split(",");
+        if (parts.length < 3) return; // Format invalide
+        
+        String cmd = parts[0];
+        String lockName = parts[1];
+        String clientId = parts[2];
+
+        // "SESSION,clientId,ttlMs" / "SESSION_END,clientId,reason": the locks of an
+        // ended session are released by the ops before it, in the same entry
+        if (cmd.equals("SESSION")) {
+            sessionTtls.put(parts[1], Long.parseLong(parts[2]));
+            Log.trace(serverIp, "Synced SESSION of {}", parts[1]);
+            return;
+        } else if (cmd.equals("SESSION_END")) {
+            sessionTtls.remove(parts[1]);
+            Log.trace(serverIp, "Synced SESSION_END of {} ({})", parts[1], parts[2]);
+            return;
+        }
         
-        PendingRequestInfo(Socket socket, PrintWriter writer) {
-            this.socket = socket;
-            this.writer = writer;
+        // Modifier la map locale comme demandé par le leader (verrou de la stripe du lock uniquement)
+        ReentrantLock stripe = lockStripes.lockFor(lockName);
+        stripe.lock();
+        try {
+            if (cmd.equals("LOCK")) {
+                lockMap.put(lockName, clientId);
+                syncLeaseTtl(lockName, parts, 3);
+                Log.trace(serverIp, "Synced LOCK {} -> {}", lockName, clientId);
+            } else if (cmd.equals("UNLOCK")) {
+                lockMap.remove(lockName);
+                leaseTtls.remove(lockName);
+                Log.trace(serverIp, "Synced UNLOCK {}", lockName);
+            } else if (cmd.equals("HANDOFF")) {
+                // "HANDOFF,lockName,newOwner,previousOwner[,ttlMs]": released and taken by the next waiter at once
+                lockMap.put(lockName, clientId);
+                syncLeaseTtl(lockName, parts, 4);
+                Log.trace(serverIp, "Synced HANDOFF {} -> {}", lockName, clientId);
+            } else if (cmd.equals("EXPIRE")) {
+                // Lease expired on the leader: only release it if that owner still holds it
+                if (lockMap.remove(lockName, clientId)) {
+                    leaseTtls.remove(lockName);
+                }
+                Log.trace(serverIp, "Synced EXPIRE {} ({})", lockName, clientId);
+            } else if (cmd.equals("SHARE")) {
+                // "SHARE,lockName,clientId,permits": one more holder of a shared lock (0) or semaphore
+                sharedLocks.acquire(lockName, clientId, Integer.parseInt(parts[3]));
+                Log.trace(serverIp, "Synced SHARE {} + {}", lockName, clientId);
+            } else if (cmd.equals("RELEASE")) {
+                sharedLocks.release(lockName, clientId);
+                Log.trace(serverIp, "Synced RELEASE {} - {}", lockName, clientId);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    // Lease TTL of a replicated LOCK / HANDOFF, in parts[index] if it has one
+    private void syncLeaseTtl(String lockName, String[] parts, int index) {
+        if (parts.length > index) {
+            leaseTtls.put(lockName, Long.parseLong(parts[index]));
+        } else {
+            leaseTtls.remove(lockName);
+        }
+    }
+
+    // Only the state change and the hand-off to replication happen under the lock
+    // name's stripe, so unrelated locks do not serialize; waiting for follower ACKs
+    // happens outside it, through the returned future. OWN reads lockMap without locking.
+    CompletableFuture<String> processRequest(String cmd, String lockName, String clientId, long ttlMs, long waitMs,
+                                             int permits, boolean forwarded) {
+        if (isLeader) {
+            if (cmd.equals("OWN")) {
+                return handleLeaderRequest(cmd, lockName, clientId, ttlMs, waitMs, permits, forwarded);
+            }
+            if (cmd.equals("MLOCK") || cmd.equals("MUNLOCK")) {
+                return handleMultiLockRequest(cmd, lockName, clientId, ttlMs, forwarded);
+            }
+            if (isSessionCommand(cmd)) {
+                return handleSessionRequest(cmd, clientId, ttlMs, forwarded);
+            }
+            ReentrantLock stripe = lockStripes.lockFor(lockName);
+            stripe.lock();
+            try {
+                if (!isLeader) {
+                    return CompletableFuture.completedFuture("NOT_LEADER"); // Stepped down meanwhile
+                }
+                CompletableFuture<Void> moving = handingOff.get(lockName);
+                if (moving != null) {
+                    return moving.thenComposeAsync(v -> processRequest(cmd, lockName, clientId, ttlMs, waitMs, permits, forwarded),
+                            requestExecutor);
+                }
+                if (shards != null && !shards.getShard().equals(shards.getMap().shardOf(lockName)) && !isHeld(lockName)) {
+                    // Moved to another shard (new shard map) and not held here: served there
+                    return routeToShard(shards.getMap().shardOf(lockName), cmd, lockName, clientId, ttlMs, waitMs, permits);
+                }
+                return handleLeaderRequest(cmd, lockName, clientId, ttlMs, waitMs, permits, forwarded);
+            } finally {
+                stripe.unlock();
+            }
+        } else {
+            return CompletableFuture.completedFuture(handleFollowerRequest(cmd, lockName, clientId));
+        }
+    }
+
+    private CompletableFuture<String> handleLeaderRequest(String cmd, String lockName, String clientId, long ttlMs, long waitMs,
+                                                          int permits, boolean forwarded) {
+        String response = "FAIL";
+        CompletableFuture<Long> replicated = null;
+        
+        // First check if operation is legal (command correctness, lock existence, ownership)
+        if (cmd.equals("LOCK_WAIT") && isHeld(lockName)) {
+            if (clientId.equals(lockMap.get(lockName)) || holdsShared(lockName, clientId)) {
+                return CompletableFuture.completedFuture("FAIL"); // Already the owner (a shared holder cannot upgrade)
+            }
+            // Queue behind the owner; answered when the lock is handed over or the wait times out
+            return enqueueWaiter(lockName, clientId, ttlMs, waitMs, forwarded);
+        } else if (cmd.equals("LOCK") || cmd.equals("LOCK_WAIT")) {
+            // Check if lock doesn't exist, in either mode (preempt success condition)
+            if (!isHeld(lockName)) {
+                lockMap.put(lockName, clientId);
+                if (ttlMs > 0) {
+                    grantLease(lockName, clientId, ttlMs);
+                }
+                // Notify all followers to perform dictionary modification
+                replicated = notifyFollowers("LOCK," + lockName + "," + clientId + (ttlMs > 0 ? "," + ttlMs : ""));
+                response = "SUCCESS";
+            }
+            // Otherwise preempt fails (lock already exists)
+        } else if (cmd.equals("LOCK_SHARED") || cmd.equals("ACQUIRE")) {
+            // One more holder, unless the name is held exclusively, in the other mode or
+            // with other permits, is full, or has clients waiting to take it exclusively
+            // (readers do not starve them). A moved name held here is left to drain.
+            SharedLocks.Holders holders = sharedLocks.get(lockName);
+            boolean moving = shards != null && !shards.getShard().equals(shards.getMap().shardOf(lockName));
+            if (!lockMap.containsKey(lockName) && !moving && !hasWaiters(lockName) && (holders == null
+                    || (holders.permits == permits && !holders.isFull() && !holders.clients().contains(clientId)))) {
+                sharedLocks.acquire(lockName, clientId, permits);
+                replicated = notifyFollowers("SHARE," + lockName + "," + clientId + "," + permits);
+                response = "SUCCESS";
+            }
+        } else if (cmd.equals("UNLOCK")) {
+            // Check if client owns the lock (release success condition)
+            if (lockMap.containsKey(lockName) && lockMap.get(lockName).equals(clientId)) {
+                // Notify all followers to perform dictionary modification (or the hand-off to the next waiter)
+                replicated = releaseLock(lockName, clientId, "UNLOCK");
+                response = "SUCCESS";
+            } else if (holdsShared(lockName, clientId)) {
+                List<String> ops = new ArrayList<>(2);
+                List<Waiter> handedTo = new ArrayList<>(1);
+                releaseShared(lockName, clientId, ops, handedTo);
+                replicated = notifyFollowers(ops);
+                answerWaiters(replicated, handedTo);
+                response = "SUCCESS";
+            }
+            // Otherwise release fails (client doesn't own lock)
+        } else if (cmd.equals("RENEW")) {
+            // Only the leader's deadline moves: nothing is replicated, followers
+            // only hear about the lease if it expires
+            Lease lease = leases.get(lockName);
+            if (lease != null && lease.owner.equals(clientId) && clientId.equals(lockMap.get(lockName))) {
+                lease.renew(ttlMs);
+                response = "SUCCESS";
+            }
+        } else if (cmd.equals("OWN")) {
+            // Any client can check the owner (or holders) of a distributed lock
+            response = ownerOf(lockName);
+        }
+        
+        if (replicated == null) {
+            return CompletableFuture.completedFuture(response);
+        }
+        return committedResponse(replicated, response, cmd, lockName, clientId, forwarded);
+    }
+
+    // Only report SUCCESS once a quorum has the change. Without a quorum the change
+    // stays applied here and keeps replicating in the background, but the client is
+    // told NO_QUORUM: the outcome is not guaranteed and should be checked with OWN.
+    // A follower forwarding the request also gets the commit sequence number.
+    private CompletableFuture<String> committedResponse(CompletableFuture<Long> replicated, String result, String cmd,
+                                                        String lockName, String clientId, boolean forwarded) {
+        return replicated.handle((seq, e) -> {
+            if (e != null) {
+                Log.warn(serverIp, "{} {} by {} not committed: {}", cmd, lockName, clientId,
+                        e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+                return "NO_QUORUM";
+            }
+            return forwarded ? result + "," + seq : result;
+        });
+    }
+
+    // Leader, under the lock name's stripe: release the lock held by owner (cmd is
+    // UNLOCK or EXPIRE). If clients are waiting, the first one gets the lock in the
+    // same replicated entry ("HANDOFF"), so the lock is never seen free in between.
+    private CompletableFuture<Long> releaseLock(String lockName, String owner, String cmd) {
+        List<Waiter> handedTo = new ArrayList<>(1);
+        CompletableFuture<Long> replicated = notifyFollowers(releaseOp(lockName, owner, cmd, handedTo));
+        answerWaiters(replicated, handedTo);
+        return replicated;
+    }
+
+    // Leader, under the lock name's stripe: apply the release and return the op to
+    // replicate; a waiter that got the lock is added to handedTo
+    private String releaseOp(String lockName, String owner, String cmd, List<Waiter> handedTo) {
+        cancelLease(lockName);
+        Waiter next = nextWaiter(lockName);
+        if (next == null) {
+            lockMap.remove(lockName);
+            return cmd + "," + lockName + "," + owner;
         }
+        next.timeout.cancel();
+        lockMap.put(lockName, next.clientId);
+        if (next.ttlMs > 0) {
+            grantLease(lockName, next.clientId, next.ttlMs);
+        }
+        handedTo.add(next);
+        Log.trace(serverIp, "{} of {} by {}: handed to waiting client {}", cmd, lockName, owner, next.clientId);
+        return "HANDOFF," + lockName + "," + next.clientId + "," + owner + (next.ttlMs > 0 ? "," + next.ttlMs : "");
     }
-    private Map<String, PendingRequestInfo> pendingRequests = new ConcurrentHashMap<>();
-    
-    // Configuration for multiple servers (VM setup)
-    private static final Map<String, Integer> SERVER_PORTS = new HashMap<>();
-    static {
-        SERVER_PORTS.put("10.0.2.3", 5000);   // Leader VM
-        SERVER_PORTS.put("10.0.2.4", 5000);   // Follower VM 1
-        SERVER_PORTS.put("10.0.2.5", 5000);   // Follower VM 2
+
+    // Waiters that were handed a lock are answered when the hand-off commits
+    private void answerWaiters(CompletableFuture<Long> replicated, List<Waiter> handedTo) {
+        for (Waiter waiter : handedTo) {
+            committedResponse(replicated, "SUCCESS", "LOCK_WAIT", waiter.lockName, waiter.clientId, waiter.forwarded)
+                    .thenAccept(waiter.response::complete);
+        }
     }
 
-    public Server(String serverIp, int port, boolean isLeader) {
-        this.serverIp = serverIp;
-        this.port = port;
-        this.isLeader = isLeader;
-        
-        // Initialize follower servers list
-        if (isLeader) {
-            followerServers.add("10.0.2.4:5000");
-            followerServers.add("10.0.2.5:5000");
+    // Leader, under the lock name's stripe: drop clientId from the holders of a shared
+    // lock or semaphore and add the ops to replicate. Once the last holder is gone,
+    // the first waiting client takes the lock in the same entry ("RELEASE" then "LOCK").
+    private void releaseShared(String lockName, String clientId, List<String> ops, List<Waiter> handedTo) {
+        sharedLocks.release(lockName, clientId);
+        ops.add("RELEASE," + lockName + "," + clientId);
+        if (sharedLocks.isHeld(lockName)) {
+            return;
+        }
+        Waiter next = nextWaiter(lockName);
+        if (next == null) {
+            return;
+        }
+        next.timeout.cancel();
+        lockMap.put(lockName, next.clientId);
+        if (next.ttlMs > 0) {
+            grantLease(lockName, next.clientId, next.ttlMs);
         }
+        handedTo.add(next);
+        Log.trace(serverIp, "Last shared hold of {} released by {}: handed to waiting client {}", lockName, clientId, next.clientId);
+        ops.add("LOCK," + lockName + "," + next.clientId + (next.ttlMs > 0 ? "," + next.ttlMs : ""));
     }
 
-    public void start() throws IOException {
-        try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("==========================================");
-            System.out.println("Server started successfully!");
-            System.out.println("Address: " + serverIp + ":" + port);
-            System.out.println("Role: " + (isLeader ? "LEADER" : "FOLLOWER"));
-            System.out.println("Followers configured: " + followerServers.size());
-            System.out.println("==========================================");
+    // Held exclusively or in shared mode
+    private boolean isHeld(String lockName) {
+        return lockMap.containsKey(lockName) || sharedLocks.isHeld(lockName);
+    }
 
-            while (true) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    System.out.println("New connection from: " + clientSocket.getRemoteSocketAddress());
-                    threadPool.submit(() -> handleClient(clientSocket));
-                } catch (IOException e) {
-                    System.err.println("Error accepting connection: " + e.getMessage());
-                    // Continue listening for other connections
+    private boolean holdsShared(String lockName, String clientId) {
+        SharedLocks.Holders holders = sharedLocks.get(lockName);
+        return holders != null && holders.clients().contains(clientId);
+    }
+
+    // What OWN answers: the owner of an exclusive lock, "SHARED:<holders>:<id>;<id>;..."
+    // for a shared lock, "SEMAPHORE:<holders>/<permits>:<id>;<id>;..." for a semaphore,
+    // NONE if free. The list of IDs ends with "..." past OWN_MAX_BYTES of UTF-8.
+    private String ownerOf(String lockName) {
+        String owner = lockMap.get(lockName);
+        if (owner != null) {
+            return owner;
+        }
+        SharedLocks.Holders holders = sharedLocks.get(lockName);
+        Set<String> clients = holders != null ? holders.clients() : Collections.emptySet();
+        StringBuilder ids = new StringBuilder();
+        int count = 0;
+        int bytes = 0;
+        boolean cut = false;
+        for (String clientId : clients) {
+            if (!cut) {
+                bytes += (count > 0 ? 1 : 0) + BinaryProtocol.utf8Length(clientId);
+                if (bytes <= OWN_MAX_BYTES) {
+                    ids.append(count > 0 ? ";" : "").append(clientId);
+                } else {
+                    ids.append(count > 0 ? ";..." : "...");
+                    cut = true;
                 }
             }
-        } catch (IOException e) {
-            System.err.println("Failed to start server on " + serverIp + ":" + port);
-            System.err.println("Make sure the port is not already in use");
-            throw e;
+            count++;
+        }
+        if (count == 0) {
+            return "NONE"; // Free, or its last holder left while it was read
         }
+        return holders.permits == 0 ? "SHARED:" + count + ":" + ids
+                : "SEMAPHORE:" + count + "/" + holders.permits + ":" + ids;
     }
 
-    // Dans Server.java
+    // Leader, under the lock name's stripe: whether a client still waits for lockName
+    // (the queue is cleared of clients that went away)
+    private boolean hasWaiters(String lockName) {
+        ArrayDeque<Waiter> queue = waitQueues.get(lockName);
+        if (queue == null) {
+            return false;
+        }
+        queue.removeIf(waiter -> {
+            if (waiter.response.isDone()) {
+                waiter.timeout.cancel();
+                return true;
+            }
+            return false;
+        });
+        if (queue.isEmpty()) {
+            waitQueues.remove(lockName);
+            return false;
+        }
+        return true;
+    }
 
-    private void handleClient(Socket socket) {
+    // MLOCK / MUNLOCK on the leader: all or nothing over the lock names of the batch.
+    // Their stripes are taken in ascending order (no deadlock with other batches) and
+    // the whole batch is replicated as one entry, acknowledged once by each follower.
+    private CompletableFuture<String> handleMultiLockRequest(String cmd, String lockNames, String clientId, long ttlMs,
+                                                             boolean forwarded) {
+        Set<String> names = splitLockNames(lockNames);
+        if (names == null) {
+            return CompletableFuture.completedFuture("INVALID_FORMAT");
+        }
+        int[] stripes = lockStripes.indicesOf(names);
+        lockStripes.lockAll(stripes);
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-
-            String msg = in.readLine();
-            if (msg == null) {
-                socket.close();
-                return;
+            if (!isLeader) {
+                return CompletableFuture.completedFuture("NOT_LEADER"); // Stepped down meanwhile
             }
-
-            System.out.println("[" + serverIp + "] Received message: " + msg);
-
-            // Handle different types of messages
-            if (msg.startsWith("SYNC,")) {
-                // Synchronization message from leader to followers
-                handleSyncMessage(msg, out);
-                socket.close();
-            
-            } else if (msg.startsWith("REGISTER,")) {
-                // Registration message from follower to leader
-                handleRegistrationMessage(msg, out);
-                socket.close();
-                
+            String owner = shards != null ? shards.getMap().shardOfAll(names) : null;
+            if (shards != null && !shards.getShard().equals(owner)) {
+                // The shard map changed since the request was dispatched
+                return owner == null ? CompletableFuture.completedFuture("CROSS_SHARD")
+                        : routeToShard(owner, cmd, lockNames, clientId, ttlMs, 0, 0);
+            }
+            CompletableFuture<Void> moving = handOffOf(names);
+            if (moving != null) {
+                return moving.thenComposeAsync(v -> handleMultiLockRequest(cmd, lockNames, clientId, ttlMs, forwarded),
+                        requestExecutor);
+            }
+            List<String> ops = new ArrayList<>(names.size());
+            List<Waiter> handedTo = new ArrayList<>();
+            if (cmd.equals("MLOCK")) {
+                for (String name : names) {
+                    if (isHeld(name)) {
+                        return CompletableFuture.completedFuture("FAIL");
+                    }
+                }
+                for (String name : names) {
+                    lockMap.put(name, clientId);
+                    if (ttlMs > 0) {
+                        grantLease(name, clientId, ttlMs);
+                    }
+                    ops.add("LOCK," + name + "," + clientId + (ttlMs > 0 ? "," + ttlMs : ""));
+                }
             } else {
-                // Client request message (LOCK/UNLOCK/OWN)
-                boolean keepOpen = handleClientRequest(msg, out, socket);
-                if (!keepOpen) {
-                    socket.close();
+                for (String name : names) {
+                    if (!clientId.equals(lockMap.get(name))) {
+                        return CompletableFuture.completedFuture("FAIL");
+                    }
+                }
+                for (String name : names) {
+                    ops.add(releaseOp(name, clientId, "UNLOCK", handedTo));
                 }
-                // If keepOpen is true, socket will be closed when pending request is fulfilled
-            }
-
-        } catch (IOException e) {
-            System.err.println("Error handling client connection: " + e.getMessage());
-            e.printStackTrace();
-            try {
-                socket.close();
-            } catch (IOException e2) {
-                // Ignore
             }
+            CompletableFuture<Long> replicated = notifyFollowers(ops);
+            answerWaiters(replicated, handedTo);
+            return committedResponse(replicated, "SUCCESS", cmd, names.size() + " locks", clientId, forwarded);
+        } finally {
+            lockStripes.unlockAll(stripes);
         }
     }
 
-    private void handleSyncMessage(String msg, PrintWriter out) {
-        System.out.println("[" + serverIp + "] Processing sync message: " + msg);
-        processSync(msg);
-        out.println("ACK");
-        System.out.println("[" + serverIp + "] Sent ACK for sync message");
+    // "a;b;c" -> distinct lock names, or null if empty or above dls.multiLockMax
+    private Set<String> splitLockNames(String lockNames) {
+        Set<String> names = new LinkedHashSet<>();
+        int start = 0;
+        while (start <= lockNames.length()) {
+            int end = lockNames.indexOf(';', start);
+            if (end < 0) {
+                end = lockNames.length();
+            }
+            if (end == start) {
+                return null;
+            }
+            names.add(lockNames.substring(start, end));
+            start = end + 1;
+        }
+        return names.size() <= config.multiLockMax ? names : null;
     }
 
-    private void handleRegistrationMessage(String msg, PrintWriter out) {
-        System.out.println("[" + serverIp + "] Received registration: " + msg);
-        if (isLeader) {
-            // Extract follower info and add to list
-            String followerInfo = msg.substring(9); // Remove "REGISTER,"
-            if (!followerServers.contains(followerInfo)) {
-                followerServers.add(followerInfo);
-                System.out.println("[" + serverIp + "] Added follower: " + followerInfo);
+    // Session commands on the leader. OPEN_SESSION starts (or restarts, with a new
+    // TTL) the client's session and is replicated, so that a new leader takes it
+    // over; KEEPALIVE only moves its deadline, like RENEW; CLOSE_SESSION ends it.
+    // One KEEPALIVE keeps the session alive for all of the client's locks, and when
+    // the session ends they are all released together (see endSession).
+    private CompletableFuture<String> handleSessionRequest(String cmd, String clientId, long ttlMs, boolean forwarded) {
+        if (cmd.equals("CLOSE_SESSION")) {
+            return endSession(clientId, null, forwarded);
+        }
+        ReentrantLock stripe = lockStripes.lockFor(clientId);
+        stripe.lock();
+        try {
+            if (!isLeader) {
+                return CompletableFuture.completedFuture("NOT_LEADER"); // Stepped down meanwhile
             }
-            out.println("REGISTERED");
-        } else {
-            out.println("NOT_LEADER");
+            Lease session = sessions.get(clientId);
+            if (cmd.equals("KEEPALIVE")) {
+                if (session == null) {
+                    return CompletableFuture.completedFuture("FAIL"); // Expired (its locks are gone) or never opened
+                }
+                session.renew(0);
+                return CompletableFuture.completedFuture("SUCCESS");
+            }
+            if (session != null) {
+                session.renew(ttlMs);
+            } else {
+                grantSession(clientId, ttlMs);
+            }
+            CompletableFuture<Long> replicated = notifyFollowers("SESSION," + clientId + "," + ttlMs);
+            return committedResponse(replicated, "SUCCESS", cmd, "session", clientId, forwarded);
+        } finally {
+            stripe.unlock();
         }
     }
 
-    private boolean handleClientRequest(String msg, PrintWriter out, Socket socket) {
-        String[] parts = msg.split(",");
-        if (parts.length < 3) {
-            System.out.println("[" + serverIp + "] Invalid message format: " + msg);
-            out.println("INVALID_FORMAT");
-            return false; // Close socket
+    // End the session of clientId and release every lock the client holds, shared
+    // holds included, in one replicated entry: the releases (or hand-offs to waiting clients) followed by
+    // "SESSION_END,clientId,<CLOSED|EXPIRED>". expired = the session whose deadline
+    // passed (null: CLOSE_SESSION). The locks are found through the lock table's
+    // owner index, then their stripes are taken with the client ID's, in ascending
+    // order; a lock taken meanwhile under a stripe not held means trying again.
+    private CompletableFuture<String> endSession(String clientId, Lease expired, boolean forwarded) {
+        while (true) {
+            List<String> names = new ArrayList<>(lockMap.locksOf(clientId));
+            names.addAll(sharedLocks.locksOf(clientId));
+            names.add(clientId);
+            int[] stripes = lockStripes.indicesOf(names);
+            lockStripes.lockAll(stripes);
+            try {
+                if (!isLeader) {
+                    return CompletableFuture.completedFuture("NOT_LEADER");
+                }
+                Lease session = sessions.get(clientId);
+                if (session == null || (expired != null && session != expired)) {
+                    return CompletableFuture.completedFuture("FAIL"); // Not open, or ended meanwhile
+                }
+                if (expired != null && session.remainingMs() > 0) {
+                    session.timeout = timerWheel.schedule(() -> onSessionTimeout(clientId, session), session.remainingMs());
+                    return CompletableFuture.completedFuture("SUCCESS"); // Kept alive in the meantime
+                }
+                List<String> held = lockMap.locksOf(clientId);
+                List<String> heldShared = sharedLocks.locksOf(clientId);
+                if (!coversAll(stripes, held) || !coversAll(stripes, heldShared)) {
+                    continue;
+                }
+                CompletableFuture<Void> moving = handOffOf(held);
+                if (moving != null) {
+                    return moving.thenComposeAsync(v -> endSession(clientId, expired, forwarded), requestExecutor);
+                }
+                sessions.remove(clientId);
+                session.timeout.cancel();
+                if (expired != null) {
+                    sessionsExpired.increment();
+                }
+                List<String> ops = new ArrayList<>(held.size() + heldShared.size() + 1);
+                List<Waiter> handedTo = new ArrayList<>();
+                for (String name : held) {
+                    ops.add(releaseOp(name, clientId, "UNLOCK", handedTo));
+                }
+                for (String name : heldShared) {
+                    releaseShared(name, clientId, ops, handedTo);
+                }
+                String reason = expired != null ? "EXPIRED" : "CLOSED";
+                ops.add("SESSION_END," + clientId + "," + reason);
+                int released = held.size() + heldShared.size();
+                Log.debug(serverIp, "Session of {} {}, releasing {} locks", clientId, reason.toLowerCase(), released);
+                CompletableFuture<Long> replicated = notifyFollowers(ops);
+                answerWaiters(replicated, handedTo);
+                return committedResponse(replicated, "SUCCESS", "CLOSE_SESSION", released + " locks", clientId, forwarded);
+            } finally {
+                lockStripes.unlockAll(stripes);
+            }
         }
-        
-        String cmd = parts[0];
-        String lockName = parts[1];
-        String clientId = parts[2];
+    }
 
-        System.out.println("[" + serverIp + "] Processing client request: " + cmd + " for lock: " + lockName + " by client: " + clientId);
-        
-        // For OWN requests, respond immediately (no pending mechanism needed)
-        if (cmd.equals("OWN")) {
-            String response = processRequest(cmd, lockName, clientId);
-            out.println(response);
-            System.out.println("[" + serverIp + "] Sent response: " + response);
-            return false; // Close socket
-        }
-        
-        // For LOCK/UNLOCK on leader, respond immediately
-        if (isLeader) {
-            String response = processRequest(cmd, lockName, clientId);
-            out.println(response);
-            System.out.println("[" + serverIp + "] Sent response: " + response);
-            return false; // Close socket
+    // Leader, under the stripes of lockNames: a hand-off in flight for one of them, or null
+    private CompletableFuture<Void> handOffOf(Collection<String> lockNames) {
+        if (handingOff.isEmpty()) {
+            return null;
         }
-        
-        // For LOCK/UNLOCK on follower: mark as pending and forward to leader
-        // The response will be sent when SYNC is received
-        if (cmd.equals("LOCK") || cmd.equals("UNLOCK")) {
-            String pendingKey = lockName + ":" + clientId + ":" + cmd;
-            pendingRequests.put(pendingKey, new PendingRequestInfo(socket, out));
-            System.out.println("[" + serverIp + "] Marked request as pending: " + pendingKey);
-            
-            // Forward to leader (but don't respond to client yet - will respond when SYNC arrives)
-            forwardToLeaderForPending(cmd, lockName, clientId, pendingKey);
-            
-            // Keep connection open - will be closed when SYNC response is sent
-            // Set timeout to prevent hanging connections
-            try {
-                socket.setSoTimeout(30000); // 30 seconds timeout for pending requests
-            } catch (IOException e) {
-                System.err.println("[" + serverIp + "] Error setting timeout: " + e.getMessage());
+        for (String name : lockNames) {
+            CompletableFuture<Void> moving = handingOff.get(name);
+            if (moving != null) {
+                return moving;
             }
-            return true; // Keep socket open
         }
-        
-        return false; // Close socket
+        return null;
     }
 
-    // AJOUTER CETTE NOUVELLE MÉTHODE DANS Server.java
-    // (Elle contient la logique de votre ancienne méthode handleServerMessage)
-    private synchronized void processSync(String syncMsg) {
-        // syncMsg est "SYNC,CMD,lockName,clientId"
-        // On enlève "SYNC,"
-        String commandData = syncMsg.substring(5); 
-        
-        String[] parts = commandData.split(",");
-        if (parts.length < 3) return; // Format invalide
-        
-        String cmd = parts[0];
-        String lockName = parts[1];
-        String clientId = parts[2];
-        
-        // Modifier la map locale comme demandé par le leader
-        if (cmd.equals("LOCK")) {
-            lockMap.put(lockName, clientId);
-            System.out.println("FOLLOWER (" + serverIp + "): Synced LOCK " + lockName + " -> " + clientId);
-        } else if (cmd.equals("UNLOCK")) {
-            lockMap.remove(lockName);
-            System.out.println("FOLLOWER (" + serverIp + "): Synced UNLOCK " + lockName);
-        }
-        
-        // Check if this request is pending (according to subject requirements)
-        String pendingKey = lockName + ":" + clientId + ":" + cmd;
-        PendingRequestInfo pendingInfo = pendingRequests.remove(pendingKey);
-        
-        if (pendingInfo != null) {
-            // Request is pending - send answer to client (as per subject)
-            pendingInfo.writer.println("SUCCESS");
-            System.out.println("[" + serverIp + "] Request was pending, sent SUCCESS to client for: " + pendingKey);
-            // Close socket after sending response
-            try {
-                pendingInfo.socket.close();
-            } catch (IOException e) {
-                System.err.println("[" + serverIp + "] Error closing socket after pending response: " + e.getMessage());
+    // Whether the stripes of every lock name are among stripes (ascending)
+    private boolean coversAll(int[] stripes, List<String> lockNames) {
+        for (String name : lockNames) {
+            if (Arrays.binarySearch(stripes, lockStripes.indexOf(name)) < 0) {
+                return false;
             }
-        } else {
-            System.out.println("[" + serverIp + "] No pending request found for: " + pendingKey + " (may have been from leader or already processed)");
         }
+        return true;
     }
 
-    private synchronized String processRequest(String cmd, String lockName, String clientId) {
-        if (isLeader) {
-            return handleLeaderRequest(cmd, lockName, clientId);
-        } else {
-            return handleFollowerRequest(cmd, lockName, clientId);
+    // Leader, under the lock name's stripe
+    private CompletableFuture<String> enqueueWaiter(String lockName, String clientId, long ttlMs, long waitMs, boolean forwarded) {
+        Waiter waiter = new Waiter(lockName, clientId, ttlMs, waitMs, forwarded);
+        ArrayDeque<Waiter> queue = waitQueues.computeIfAbsent(lockName, k -> new ArrayDeque<>());
+        queue.add(waiter);
+        waiter.timeout = timerWheel.schedule(() -> requestExecutor.execute(() -> waitTimedOut(lockName, waiter)), waitMs);
+        Log.trace(serverIp, "{} waits for {} ({} in queue)", clientId, lockName, queue.size());
+        return waiter.response;
+    }
+
+    // Leader, under the lock name's stripe: first waiter whose client is still there
+    private Waiter nextWaiter(String lockName) {
+        ArrayDeque<Waiter> queue = waitQueues.get(lockName);
+        if (queue == null) {
+            return null;
         }
+        Waiter next;
+        while ((next = queue.poll()) != null && next.response.isDone()) {
+            next.timeout.cancel(); // The client went away
+        }
+        if (queue.isEmpty()) {
+            waitQueues.remove(lockName);
+        }
+        return next;
     }
 
-    private String handleLeaderRequest(String cmd, String lockName, String clientId) {
-        String response = "FAIL";
-        
-        // First check if operation is legal (command correctness, lock existence, ownership)
-        if (cmd.equals("LOCK")) {
-            // Check if lock doesn't exist (preempt success condition)
-            if (!lockMap.containsKey(lockName)) {
-                lockMap.put(lockName, clientId);
-                // Notify all followers to perform dictionary modification
-                notifyFollowers("LOCK," + lockName + "," + clientId);
-                response = "SUCCESS";
+    private void waitTimedOut(String lockName, Waiter waiter) {
+        ReentrantLock stripe = lockStripes.lockFor(lockName);
+        stripe.lock();
+        try {
+            ArrayDeque<Waiter> queue = waitQueues.get(lockName);
+            if (queue == null || !queue.remove(waiter)) {
+                return; // Already handed the lock
             }
-            // Otherwise preempt fails (lock already exists)
-        } else if (cmd.equals("UNLOCK")) {
-            // Check if client owns the lock (release success condition)
-            if (lockMap.containsKey(lockName) && lockMap.get(lockName).equals(clientId)) {
-                lockMap.remove(lockName);
-                // Notify all followers to perform dictionary modification
-                notifyFollowers("UNLOCK," + lockName + "," + clientId);
-                response = "SUCCESS";
+            if (queue.isEmpty()) {
+                waitQueues.remove(lockName);
             }
-            // Otherwise release fails (client doesn't own lock)
-        } else if (cmd.equals("OWN")) {
-            // Any client can check the owner of a distributed lock
-            response = lockMap.getOrDefault(lockName, "NONE");
+        } finally {
+            stripe.unlock();
         }
-        
-        return response;
+        waiter.response.complete("TIMEOUT");
     }
 
     private String handleFollowerRequest(String cmd, String lockName, String clientId) {
-        System.out.println("[" + serverIp + "] Follower processing request: " + cmd + " for lock: " + lockName);
+        Log.trace(serverIp, "Follower processing request: {} for lock: {}", cmd, lockName);
         
         // First check the validity of the operation
         if (cmd.equals("OWN")) {
             // To check the owner of a distributed lock, follower accesses its map directly
-            String owner = lockMap.getOrDefault(lockName, "NONE");
-            System.out.println("[" + serverIp + "] Follower returning owner: " + owner);
+            String owner = ownerOf(lockName);
+            Log.trace(serverIp, "Follower returning owner: {}", owner);
             return owner;
             
         } else {
             // LOCK/UNLOCK handled in handleClientRequest with pending mechanism
-            System.out.println("[" + serverIp + "] Invalid command or should be handled with pending: " + cmd);
+            Log.debug(serverIp, "Invalid command or should be handled with pending: {}", cmd);
             return "INVALID_COMMAND";
         }
     }
 
-    private void forwardToLeaderForPending(String cmd, String lockName, String clientId, String pendingKey) {
+    private void forwardToLeaderForPending(String cmd, String lockName, String clientId, long ttlMs, long waitMs, int permits,
+                                           long pendingKey) {
         // This method forwards to leader but doesn't respond to client
         // The response will be sent when SYNC is received
         threadPool.submit(() -> {
-            try (Socket leaderSocket = new Socket("10.0.2.3", 5000);
-                 PrintWriter out = new PrintWriter(leaderSocket.getOutputStream(), true);
-                 BufferedReader in = new BufferedReader(new InputStreamReader(leaderSocket.getInputStream()))) {
-
-                // Set timeout for the socket
-                leaderSocket.setSoTimeout(10000); // 10 seconds timeout
+            String leaderId = election.getLeaderId();
+            if (leaderId == null || leaderId.equals(selfId)) {
+                // No leader elected yet (or this node just became it): the client retries
+                pendingRequests.complete(pendingKey, "NOT_LEADER");
+                return;
+            }
+            try (Socket leaderSocket = new Socket()) {
+                // No read timeout: the request's deadline closes the socket (and answers TIMEOUT)
+                if (!pendingRequests.setForward(pendingKey, leaderSocket)) {
+                    return; // Expired or the client went away
+                }
+                leaderSocket.connect(config.transport.addressOf(leaderId), 5000);
+                PrintWriter out = new PrintWriter(leaderSocket.getOutputStream(), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(leaderSocket.getInputStream()));
 
-                String request = cmd + "," + lockName + "," + clientId;
-                System.out.println("[" + serverIp + "] Forwarding to leader (pending): " + request);
+                String request = "FWD," + requestLine(cmd, lockName, clientId, ttlMs, waitMs, permits);
+                Log.trace(serverIp, "Forwarding to leader (pending): {}", request);
                 out.println(request);
                 
                 String response = in.readLine();
-                System.out.println("[" + serverIp + "] Received from leader: " + response);
+                Log.trace(serverIp, "Received from leader: {}", response);
                 
-                // If leader returns FAIL, respond immediately (no need to wait for SYNC)
-                if (response != null && response.equals("FAIL")) {
-                    PendingRequestInfo pendingInfo = pendingRequests.remove(pendingKey);
-                    if (pendingInfo != null) {
-                        pendingInfo.writer.println("FAIL");
-                        System.out.println("[" + serverIp + "] Sent FAIL response for pending request: " + pendingKey);
-                        try {
-                            pendingInfo.socket.close();
-                        } catch (IOException e) {
-                            System.err.println("[" + serverIp + "] Error closing socket: " + e.getMessage());
-                        }
-                    }
+                if (response != null && response.startsWith("SUCCESS,")) {
+                    // Committed by a quorum: answer once this follower has applied it too
+                    pendingRequests.awaitApply(pendingKey, Long.parseLong(response.substring(8)));
+                } else if (pendingRequests.complete(pendingKey, response != null ? response : "ERROR")) {
+                    // FAIL, NO_QUORUM, ...: respond immediately (no need to wait for SYNC)
+                    Log.trace(serverIp, "Sent {} response for pending request: {}", response, pendingKey);
                 }
-                // If SUCCESS, wait for SYNC message to respond
                 
-            } catch (java.net.SocketTimeoutException e) {
-                System.err.println("[" + serverIp + "] Timeout while forwarding to leader: " + e.getMessage());
-                PendingRequestInfo pendingInfo = pendingRequests.remove(pendingKey);
-                if (pendingInfo != null) {
-                    pendingInfo.writer.println("TIMEOUT");
-                    System.out.println("[" + serverIp + "] Sent TIMEOUT response for pending request: " + pendingKey);
-                    try {
-                        pendingInfo.socket.close();
-                    } catch (IOException e2) {
-                        System.err.println("[" + serverIp + "] Error closing socket: " + e2.getMessage());
-                    }
-                }
+            } catch (ConnectException e) {
+                // The leader is down; an election is (or will soon be) under way
+                Log.warn(serverIp, "Leader {} unreachable: {}", leaderId, e.getMessage());
+                pendingRequests.complete(pendingKey, "NOT_LEADER");
             } catch (IOException e) {
-                System.err.println("[" + serverIp + "] Error forwarding to leader: " + e.getMessage());
-                PendingRequestInfo pendingInfo = pendingRequests.remove(pendingKey);
-                if (pendingInfo != null) {
-                    pendingInfo.writer.println("ERROR");
-                    System.out.println("[" + serverIp + "] Sent ERROR response for pending request: " + pendingKey);
-                    try {
-                        pendingInfo.socket.close();
-                    } catch (IOException e2) {
-                        System.err.println("[" + serverIp + "] Error closing socket: " + e2.getMessage());
-                    }
+                // Also an expired request whose socket was closed: it has been answered already
+                if (pendingRequests.complete(pendingKey, "ERROR")) {
+                    Log.warn(serverIp, "Error forwarding to leader: {}", e.getMessage());
+                    Log.trace(serverIp, "Sent ERROR response for pending request: {}", pendingKey);
                 }
             }
         });
     }
 
-    private void notifyFollowers(String message) {
-        System.out.println("[" + serverIp + "] Notifying " + followerServers.size() + " followers with message: " + message);
-        
-        if (followerServers.isEmpty()) {
-            System.out.println("[" + serverIp + "] No followers to notify");
+    // ADOPT,<name>,<owner>[,<ttlMs>] from the shard lockName moved away from: the
+    // lock is taken here for that owner before the old shard drops it. Taking it
+    // twice for the same owner succeeds, so a hand-off can be repeated.
+    private void handleAdopt(String msg, Connection connection) {
+        String[] parts = msg.split(",");
+        long ttlMs = parseDuration(parts, 2, 0);
+        if (parts.length < 2 || ttlMs < 0) {
+            connection.reply("INVALID_FORMAT");
             return;
         }
-        
-        // Use CountDownLatch to wait for all ACKs (synchronous replication)
-        CountDownLatch latch = new CountDownLatch(followerServers.size());
-        List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
-        
-        for (String follower : followerServers) {
-            String[] parts = follower.split(":");
-            String ip = parts[0];
-            int port = Integer.parseInt(parts[1]);
-            
-            threadPool.submit(() -> {
-                try (Socket socket = new Socket(ip, port);
-                     PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-                    
-                    // Set timeout for the socket
-                    socket.setSoTimeout(5000); // 5 seconds timeout
-                    
-                    System.out.println("[" + serverIp + "] Sending SYNC to " + follower + ": " + message);
-                    out.println("SYNC," + message);
-                    
-                    // Wait for ACK (synchronous replication)
-                    String ack = in.readLine();
-                    if ("ACK".equals(ack)) {
-                        System.out.println("[" + serverIp + "] Received ACK from " + follower);
-                    } else {
-                        System.err.println("[" + serverIp + "] Unexpected response from " + follower + ": " + ack);
-                        errors.add(new IOException("Unexpected ACK: " + ack));
-                    }
-                    
-                } catch (IOException e) {
-                    System.err.println("[" + serverIp + "] Failed to notify follower " + follower + ": " + e.getMessage());
-                    errors.add(e);
-                } finally {
-                    // Decrement latch count (even if there was an error)
-                    latch.countDown();
-                }
-            });
+        String lockName = parts[0];
+        String owner = parts[1];
+        if (!isLeader) {
+            connection.reply("NOT_LEADER");
+            return;
         }
-        
-        // Wait for all followers to acknowledge (synchronous replication)
+        CompletableFuture<String> result;
+        ReentrantLock stripe = lockStripes.lockFor(lockName);
+        stripe.lock();
         try {
-            boolean allAcked = latch.await(10, java.util.concurrent.TimeUnit.SECONDS);
-            if (!allAcked) {
-                System.err.println("[" + serverIp + "] Timeout waiting for ACKs from all followers");
-            } else if (!errors.isEmpty()) {
-                System.err.println("[" + serverIp + "] Some followers failed to acknowledge: " + errors.size() + " errors");
-                // Continue anyway - replication attempted but some followers may not have received it
+            String holder = lockMap.get(lockName);
+            if (!isLeader) {
+                result = CompletableFuture.completedFuture("NOT_LEADER");
+            } else if (!shards.getShard().equals(shards.getMap().shardOf(lockName))) {
+                result = CompletableFuture.completedFuture("MOVED");
+            } else if (holder != null) {
+                result = CompletableFuture.completedFuture(holder.equals(owner) ? "SUCCESS" : "FAIL");
+            } else if (sharedLocks.isHeld(lockName)) {
+                result = CompletableFuture.completedFuture("FAIL");
             } else {
-                System.out.println("[" + serverIp + "] All followers acknowledged (synchronous replication complete)");
+                lockMap.put(lockName, owner);
+                if (ttlMs > 0) {
+                    grantLease(lockName, owner, ttlMs);
+                }
+                CompletableFuture<Long> replicated = notifyFollowers("LOCK," + lockName + "," + owner + (ttlMs > 0 ? "," + ttlMs : ""));
+                result = committedResponse(replicated, "SUCCESS", "ADOPT", lockName, owner, false);
             }
-        } catch (InterruptedException e) {
-            System.err.println("[" + serverIp + "] Interrupted while waiting for ACKs");
-            Thread.currentThread().interrupt();
+        } finally {
+            stripe.unlock();
         }
+        result.thenAccept(response -> {
+            Log.debug(serverIp, "Adopted {} for {}: {}", lockName, owner, response);
+            connection.reply(response);
+        });
     }
 
-    public void newThread(String newIp) {
-        // This method handles incoming connections from other servers
-        threadPool.submit(() -> {
+    // Leader of a shard that lost lock names to another shard (new shard map): move
+    // the locks it still holds there in the background, one at a time, while both
+    // shards keep serving. Retried on every map poll until done.
+    private void startHandOff() {
+        if (shards == null || !isLeader || !shards.isHandingOff() || !handOffRunning.compareAndSet(false, true)) {
+            return;
+        }
+        threadPool.execute(() -> {
             try {
-                String[] parts = newIp.split(":");
-                String ip = parts[0];
-                int port = Integer.parseInt(parts[1]);
-                
-                Socket socket = new Socket(ip, port);
-                handleServerMessage(socket);
-                
-            } catch (IOException e) {
-                e.printStackTrace();
+                handOffMovedLocks();
+            } catch (RuntimeException e) {
+                Log.error(serverIp, "Shard hand-off failed: {}", e);
+            } finally {
+                handOffRunning.set(false);
             }
         });
     }
 
-    private void handleServerMessage(Socket socket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            
-            String msg = in.readLine();
-            if (msg == null) return;
-            
-            if (msg.startsWith("SYNC,")) {
-                String syncMsg = msg.substring(5);
-                String[] parts = syncMsg.split(",");
-                if (parts.length >= 3) {
-                    String cmd = parts[0];
-                    String lockName = parts[1];
-                    String clientId = parts[2];
-                    
-                    // Modify local map as per requirements
-                    synchronized (this) {
-                        if (cmd.equals("LOCK")) {
-                            lockMap.put(lockName, clientId);
-                            System.out.println("SYNC: Lock " + lockName + " acquired by " + clientId);
-                        } else if (cmd.equals("UNLOCK")) {
-                            lockMap.remove(lockName);
-                            System.out.println("SYNC: Lock " + lockName + " released by " + clientId);
-                        }
+    private void handOffMovedLocks() {
+        ShardMap map = shards.getMap();
+        String shard = shards.getShard();
+        // Requests checked against the previous map finish first; after that no
+        // moved name can be taken here, so one pass over the table is enough
+        lockStripes.lockAll(allStripes);
+        lockStripes.unlockAll(allStripes);
+        int moved = 0;
+        for (String lockName : new ArrayList<>(lockMap.keySet())) {
+            if (!isLeader || shards.getMap() != map) {
+                return; // Started again by the next leader / for the next map
+            }
+            String target = map.shardOf(lockName);
+            if (!target.equals(shard)) {
+                if (!handOff(lockName, target, map.getVersion())) {
+                    return;
+                }
+                moved++;
+            }
+        }
+        // Shared holds are not moved: new ones are refused here until the holders have
+        // released the name, and the hand-off is done once none is left
+        int draining = 0;
+        for (Map.Entry<String, SharedLocks.Holders> entry : sharedLocks.entrySet()) {
+            if (!map.shardOf(entry.getKey()).equals(shard)) {
+                draining++;
+            }
+        }
+        if (draining > 0) {
+            Log.info(serverIp, "Shard {} handed off {} locks; {} moved names still held in shared mode", shard, moved, draining);
+            return;
+        }
+        if (isLeader && shards.getMap() == map) {
+            Log.info(serverIp, "Shard {} handed off {} locks for shard map version {}", shard, moved, map.getVersion());
+            shards.markHandoffDone(shard, map.getVersion());
+            shards.broadcast("HANDOFF_DONE," + shard + "," + map.getVersion());
+        }
+    }
+
+    // Move one held lock to its new shard. It is adopted there (and committed) before
+    // it is dropped here, so it is never free in between. The call to the other shard
+    // and the replication happen outside the stripe: the name is only marked in
+    // handingOff meanwhile, and requests that would change it (those the new shard
+    // imports from here included) wait for the move and then run again. Waiting
+    // clients queue again on the new shard with what is left of their wait.
+    private boolean handOff(String lockName, String target, long version) {
+        CompletableFuture<Void> moved = new CompletableFuture<>();
+        String owner;
+        long ttlMs;
+        ReentrantLock stripe = lockStripes.lockFor(lockName);
+        stripe.lock();
+        try {
+            owner = lockMap.get(lockName);
+            if (!isLeader || owner == null) {
+                return isLeader;
+            }
+            Lease lease = leases.get(lockName);
+            ttlMs = lease != null ? Math.max(1, lease.remainingMs()) : 0;
+            handingOff.put(lockName, moved);
+        } finally {
+            stripe.unlock();
+        }
+
+        List<Waiter> waiters = new ArrayList<>();
+        CompletableFuture<Long> replicated = null;
+        String response = "ERROR";
+        try {
+            response = shards.callNow(target, "ADOPT," + version + "," + lockName + "," + owner
+                    + (ttlMs > 0 ? "," + ttlMs : ""), config.replicationTimeoutMs + 5000);
+        } finally {
+            stripe.lock();
+            try {
+                handingOff.remove(lockName);
+                if (isLeader && (response.equals("SUCCESS") || response.equals("FAIL"))) {
+                    cancelLease(lockName);
+                    lockMap.remove(lockName);
+                    Waiter waiter;
+                    while ((waiter = nextWaiter(lockName)) != null) {
+                        waiter.timeout.cancel();
+                        waiters.add(waiter);
                     }
+                    // Followers drop it like an expired lease (only if that owner still holds it)
+                    replicated = notifyFollowers("EXPIRE," + lockName + "," + owner);
                 }
-                
-                // Send acknowledgment
-                out.println("ACK");
+            } finally {
+                stripe.unlock();
+                moved.complete(null);
             }
+        }
+        if (response.equals("FAIL")) {
+            Log.warn(serverIp, "{} is held by another client in shard {}; dropping {}'s copy", lockName, target, owner);
+        } else if (!response.equals("SUCCESS")) {
+            Log.warn(serverIp, "Cannot hand {} to shard {}: {}", lockName, target, response);
+            return false;
+        }
+        if (replicated == null) {
+            return false; // Stepped down meanwhile
+        }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+        for (Waiter waiter : waiters) {
+            long waitMs = TimeUnit.NANOSECONDS.toMillis(waiter.waitUntilNanos - System.nanoTime());
+            if (waitMs <= 0) {
+                waiter.response.complete("TIMEOUT");
+            } else {
+                routeToShard(target, "LOCK_WAIT", lockName, waiter.clientId, waiter.ttlMs, waitMs, 0)
+                        .thenAccept(waiter.response::complete);
+            }
+        }
+        try {
+            replicated.get(config.replicationTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            Log.warn(serverIp, "Hand-off of {} not committed here: {}", lockName, e);
         }
+        return true;
     }
 
-    public void connectLeader(String info) {
-        // Method to notify leader about this server
-        if (!isLeader) {
-            System.out.println("[" + serverIp + "] Attempting to register with leader...");
-            try (Socket leaderSocket = new Socket("10.0.2.3", 5000);
-                 PrintWriter out = new PrintWriter(leaderSocket.getOutputStream(), true);
-                 BufferedReader in = new BufferedReader(new InputStreamReader(leaderSocket.getInputStream()))) {
-                
-                leaderSocket.setSoTimeout(5000); // 5 seconds timeout
-                
-                String registrationMsg = "REGISTER," + serverIp + ":" + port;
-                System.out.println("[" + serverIp + "] Sending registration: " + registrationMsg);
-                out.println(registrationMsg);
-                
-                String response = in.readLine();
-                if ("REGISTERED".equals(response)) {
-                    System.out.println("[" + serverIp + "] Successfully registered with leader");
-                } else {
-                    System.err.println("[" + serverIp + "] Registration failed. Response: " + response);
-                }
-                
-            } catch (java.net.SocketTimeoutException e) {
-                System.err.println("[" + serverIp + "] Timeout while registering with leader: " + e.getMessage());
-            } catch (IOException e) {
-                System.err.println("[" + serverIp + "] Error registering with leader: " + e.getMessage());
-                System.err.println("Make sure the leader server is running on 10.0.2.3:5000");
+    // Leader, under the lock name's stripe: the lock expires in ttlMs unless renewed
+    private void grantLease(String lockName, String clientId, long ttlMs) {
+        Lease lease = new Lease(clientId, ttlMs);
+        Lease previous = leases.put(lockName, lease);
+        if (previous != null) {
+            previous.timeout.cancel();
+        }
+        lease.timeout = timerWheel.schedule(() -> onLeaseTimeout(lockName, lease), ttlMs);
+    }
+
+    // Leader, under the lock name's stripe
+    private void cancelLease(String lockName) {
+        Lease lease = leases.remove(lockName);
+        if (lease != null) {
+            lease.timeout.cancel();
+        }
+    }
+
+    // Timer wheel thread: re-arm a lease that was renewed since its timeout was
+    // scheduled, otherwise expire it on a worker (expiring takes the stripe)
+    private void onLeaseTimeout(String lockName, Lease lease) {
+        long remainingMs = lease.remainingMs();
+        if (remainingMs > 0) {
+            lease.timeout = timerWheel.schedule(() -> onLeaseTimeout(lockName, lease), remainingMs);
+            return;
+        }
+        requestExecutor.execute(() -> expireLease(lockName, lease));
+    }
+
+    // Release an expired lock like an UNLOCK by its owner, replicated as
+    // "EXPIRE,lockName,owner" (followers only drop it if that owner still holds it)
+    // or as a HANDOFF to the next waiter
+    private void expireLease(String lockName, Lease lease) {
+        ReentrantLock stripe = lockStripes.lockFor(lockName);
+        stripe.lock();
+        try {
+            if (leases.get(lockName) != lease) {
+                return; // Released or taken again in the meantime
             }
-        } else {
-            System.out.println("[" + serverIp + "] This is the leader server, no registration needed");
+            CompletableFuture<Void> moving = handingOff.get(lockName);
+            if (moving != null) {
+                moving.thenRunAsync(() -> expireLease(lockName, lease), requestExecutor);
+                return; // Expired after the hand-off, unless it moved
+            }
+            if (lease.remainingMs() > 0) {
+                lease.timeout = timerWheel.schedule(() -> onLeaseTimeout(lockName, lease), lease.remainingMs());
+                return; // Renewed in the meantime
+            }
+            leases.remove(lockName);
+            if (lease.owner.equals(lockMap.get(lockName))) {
+                Log.debug(serverIp, "Lease of {} on {} expired after {}ms, lock released", lease.owner, lockName, lease.ttlMs);
+                releaseLock(lockName, lease.owner, "EXPIRE").whenComplete((seq, e) -> {
+                    if (e != null) {
+                        Log.warn(serverIp, "Expiry of {} not committed yet: {}", lockName,
+                                e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+                    }
+                });
+            }
+        } finally {
+            stripe.unlock();
         }
     }
 
-    public void inform(String tmpIp, String info) {
-        // Synchronized method to inform other servers
-        threadPool.submit(() -> {
-            try {
-                String[] parts = tmpIp.split(":");
-                String ip = parts[0];
-                int port = Integer.parseInt(parts[1]);
-                
-                Socket socket = new Socket(ip, port);
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                out.println(info);
-                socket.close();
-                
-            } catch (IOException e) {
-                e.printStackTrace();
+    // Leader, under the client ID's stripe (or all stripes): the session ends in ttlMs unless kept alive
+    private void grantSession(String clientId, long ttlMs) {
+        Lease session = new Lease(clientId, ttlMs);
+        sessions.put(clientId, session);
+        session.timeout = timerWheel.schedule(() -> onSessionTimeout(clientId, session), ttlMs);
+    }
+
+    // Timer wheel thread: like onLeaseTimeout, for a session
+    private void onSessionTimeout(String clientId, Lease session) {
+        long remainingMs = session.remainingMs();
+        if (remainingMs > 0) {
+            session.timeout = timerWheel.schedule(() -> onSessionTimeout(clientId, session), remainingMs);
+            return;
+        }
+        requestExecutor.execute(() -> endSession(clientId, session, false).thenAccept(response -> {
+            if (response.equals("NO_QUORUM")) {
+                Log.warn(serverIp, "Expiry of the session of {} not committed yet", clientId);
             }
-        });
+        }));
+    }
+
+    // Hand a mutation to replication; the future completes with its sequence number
+    // once it is committed, or fails with Replicator.NoQuorumException
+    private CompletableFuture<Long> notifyFollowers(String message) {
+        return notifyFollowers(Collections.singletonList(message));
+    }
+
+    // Several mutations replicated as one entry: followers apply and acknowledge them together
+    private CompletableFuture<Long> notifyFollowers(List<String> messages) {
+        if (Log.TRACE) {
+            Log.trace(serverIp, "Notifying {} followers with message: {}", followerServers.size(),
+                    messages.size() == 1 ? messages.get(0) : messages.size() + " mutations");
+        }
+        
+        if (groupCommitter != null) {
+            // Shipped with the other mutations of the current batch
+            return groupCommitter.submit(messages);
+        }
+        return replicator.replicate(messages);
     }
 
+    private static final int STATUS_MAX_LOCKS = 20;
+    // Most UTF-8 bytes of holder IDs in an OWN answer, which must fit in a binary
+    // frame (BinaryProtocol.MAX_FRAME_LENGTH) with its prefix
+    private static final int OWN_MAX_BYTES = 16 * 1024;
+
     public void printStatus() {
         System.out.println("\n=== SERVER STATUS ===");
         System.out.println("Server IP: " + serverIp);
         System.out.println("Port: " + port);
-        System.out.println("Role: " + (isLeader ? "LEADER" : "FOLLOWER"));
-        System.out.println("Active locks: " + lockMap.size());
-        System.out.println("Registered followers: " + followerServers.size());
+        System.out.println("Role: " + election.getRole() + " in term " + election.getCurrentTerm()
+                + ", leader " + (election.getLeaderId() != null ? election.getLeaderId() : "unknown"));
+        System.out.println("Active locks: " + lockMap.size() + (sharedLocks.size() > 0
+                ? ", held in shared mode: " + sharedLocks.size() + " (" + sharedLocks.holdCount() + " holders)" : ""));
+        System.out.println("Cluster members: " + (followerServers.size() + 1));
+        if (shards != null) {
+            System.out.println("Shard: " + shards.getShard() + " of shard map " + shards.getMap()
+                    + (isLeader && shards.isHandingOff() ? " (handing off moved locks)" : ""));
+        }
+        replicator.printStatus();
+        if (isLeader) {
+            System.out.println("Leased locks: " + leases.size() + ", client sessions: " + sessions.size()
+                    + ", locks with waiters: " + waitQueues.size()
+                    + " (timer wheel: " + timerWheel.getPendingCount() + " timeouts)");
+        } else {
+            System.out.println("Applied seq: " + appliedSeq + " (term " + appliedTerm + ")");
+        }
+        if (groupCommitter != null) {
+            System.out.println("Group commit batch size: " + replicationBatchSizes.summary());
+        }
+        if (wal != null) {
+            wal.printStatus();
+        }
+        requestLatency.forEach((cmd, latency) -> {
+            if (latency.getCount() > 0) {
+                System.out.println(cmd + " latency (us): " + latency.summary());
+            }
+        });
         
         if (!lockMap.isEmpty()) {
+            // A sample only: the full table can be millions of locks
             System.out.println("Current locks:");
-            lockMap.forEach((lockName, clientId) -> 
-                System.out.println("   - " + lockName + " -> " + clientId));
+            lockMap.entrySet().stream().limit(STATUS_MAX_LOCKS).forEach(lock ->
+                System.out.println("   - " + lock.getKey() + " -> " + lock.getValue()));
+            if (lockMap.size() > STATUS_MAX_LOCKS) {
+                System.out.println("   ... and " + (lockMap.size() - STATUS_MAX_LOCKS) + " more");
+            }
+        }
+        if (sharedLocks.size() > 0) {
+            System.out.println("Shared locks and semaphores:");
+            sharedLocks.entrySet().stream().limit(STATUS_MAX_LOCKS).forEach(lock ->
+                System.out.println("   - " + lock.getKey() + " -> " + ownerOf(lock.getKey())));
+            if (sharedLocks.size() > STATUS_MAX_LOCKS) {
+                System.out.println("   ... and " + (sharedLocks.size() - STATUS_MAX_LOCKS) + " more");
+            }
         }
         
         if (!followerServers.isEmpty()) {
-            System.out.println("Followers:");
+            System.out.println("Other members:");
             followerServers.forEach(follower -> 
                 System.out.println("   - " + follower));
         }
@@ -546,19 +2478,15 @@ public class Server {
             System.out.println("Example: java Server 127.0.0.1 5000 leader");
             System.out.println("Example: java Server 10.0.2.3 5000 leader");
             System.out.println("Example: java Server 10.0.2.4 5000 follower");
+            System.out.println("The leader is elected; \"leader\" only makes this server campaign at once");
             return;
         }
         
         String serverIp = args[0];
         int port = Integer.parseInt(args[1]);
-        boolean isLeader = args.length > 2 && args[2].equals("leader");
-        
-        Server server = new Server(serverIp, port, isLeader);
+        boolean preferLeader = args.length > 2 && args[2].equals("leader");
         
-        // Register with leader if this is a follower
-        if (!isLeader) {
-            server.connectLeader("REGISTER");
-        }
+        Server server = new Server(serverIp, port, preferLeader);
         
         // Print initial status
         server.printStatus();
@@ -566,6 +2494,7 @@ public class Server {
         // Add shutdown hook to print final status
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("\nServer shutting down...");
+            server.shutdown();
             server.printStatus();
         }));
         
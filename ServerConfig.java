@@ -0,0 +1,133 @@
+// Tunables for a Server instance. Defaults can be overridden with -Ddls.<name>=<value>
+// on the command line, e.g. java -Ddls.ioThreads=4 Server 10.0.2.3 5000 leader
+public class ServerConfig {
+    // Number of selector threads serving client, SYNC and REGISTER connections
+    public int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    // Worker threads that run client requests off the I/O threads
+    public int workerThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    // Number of lock-name stripes guarding LOCK/UNLOCK state transitions
+    public int lockStripes = 1024;
+
+    // Lock table implementation: "hash" (a ConcurrentHashMap) or "compact" (int
+    // arrays and byte arenas, a few tens of bytes per lock, for tens of millions of locks)
+    public String lockTable = "hash";
+
+    // How long the leader waits for a replicated mutation to reach a quorum
+    public long replicationTimeoutMs = 10000;
+
+    // Most requests a follower keeps waiting on the leader (forwarded mutations and
+    // linearizable reads); beyond that new ones are answered BUSY
+    public int pendingMax = 100000;
+
+    // Follower ACKs needed to commit a mutation: "majority" (of the whole cluster,
+    // leader included), "all", or a number of followers no smaller than a majority
+    // (checked at startup, see Replicator.checkCommitQuorum)
+    public String commitQuorum = "majority";
+
+    // Replicated entries kept in memory for followers that fall behind
+    public int replicationLogMaxEntries = 100000;
+
+    // Group commit: ship mutations collected within the window (or up to the
+    // size limit) to the followers as one batched SYNC
+    public boolean groupCommit = false;
+    public long groupCommitWindowMs = 2;
+    public int groupCommitMaxBatch = 128;
+
+    // Most lock names one MLOCK / MUNLOCK may carry
+    public int multiLockMax = 1024;
+
+    // Lease given to a LOCK that does not ask for one (0 = held until UNLOCK)
+    public long leaseDefaultTtlMs = 0;
+    // Resolution and size of the timer wheel that expires leases
+    public long leaseTickMs = 100;
+    public int leaseWheelSize = 512;
+
+    // How a follower answers OWN: "stale" (its own lock table as is, no round trip)
+    // or "readIndex" (after applying up to the leader's commit point; linearizable)
+    public String followerReads = "stale";
+
+    // Write-ahead log and snapshots (see WriteAheadLog); persistence is off while dataDir is empty
+    public String dataDir = "";
+    // When a logged mutation counts as durable: "always" (fsync every record), "batch"
+    // (one fsync per batch of records written together) or "interval" (fsync every
+    // walFsyncIntervalMs; a crash can lose that much)
+    public String walFsync = "batch";
+    public long walFsyncIntervalMs = 100;
+    // Log segment size that starts a new segment, and how often closed segments are folded into a snapshot
+    public long walSegmentBytes = 64L * 1024 * 1024;
+    public long snapshotIntervalMs = 60000;
+
+    // Voting members as "ip:port,ip:port,..." (empty = Server.SERVER_PORTS)
+    public String cluster = "";
+    // A follower that hears nothing from a leader for a random time between
+    // electionTimeoutMs and twice that starts an election; leaders send
+    // heartbeats every heartbeatMs
+    public long electionTimeoutMs = 300;
+    public long heartbeatMs = 100;
+
+    // Shard map file (see ShardMap); when set, this node's cluster is its shard and
+    // the file is re-read every shardMapPollMs for a new version
+    public String shardMap = "";
+    public long shardMapPollMs = 1000;
+    // Threads that make the blocking calls to other shards, and the calls that may wait
+    // for one of them; beyond that new ones are answered BUSY
+    public int shardRouterThreads = 64;
+    public int shardRouterQueueMax = 10000;
+
+    // Port of the plain-text metrics endpoint (GET /metrics, Prometheus format; 0 = off).
+    // The same metrics are also answered to the STATS command.
+    public int metricsPort = 0;
+
+    // How this server connects to the other members (not a system property:
+    // LocalCluster sets it to run several servers behind fault-injecting links)
+    public Transport transport = Transport.DIRECT;
+
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.ioThreads = Integer.getInteger("dls.ioThreads", config.ioThreads);
+        config.workerThreads = Integer.getInteger("dls.workerThreads", config.workerThreads);
+        config.lockStripes = Integer.getInteger("dls.lockStripes", config.lockStripes);
+        config.lockTable = System.getProperty("dls.lockTable", config.lockTable);
+        config.replicationTimeoutMs = Long.getLong("dls.replicationTimeoutMs", config.replicationTimeoutMs);
+        config.pendingMax = Integer.getInteger("dls.pending.max", config.pendingMax);
+        config.commitQuorum = System.getProperty("dls.commitQuorum", config.commitQuorum);
+        config.replicationLogMaxEntries = Integer.getInteger("dls.replicationLogMaxEntries", config.replicationLogMaxEntries);
+        config.groupCommit = Boolean.parseBoolean(System.getProperty("dls.groupCommit", String.valueOf(config.groupCommit)));
+        config.groupCommitWindowMs = Long.getLong("dls.groupCommit.windowMs", config.groupCommitWindowMs);
+        config.groupCommitMaxBatch = Integer.getInteger("dls.groupCommit.maxBatch", config.groupCommitMaxBatch);
+        config.multiLockMax = Integer.getInteger("dls.multiLockMax", config.multiLockMax);
+        config.leaseDefaultTtlMs = Long.getLong("dls.lease.defaultTtlMs", config.leaseDefaultTtlMs);
+        config.leaseTickMs = Long.getLong("dls.lease.tickMs", config.leaseTickMs);
+        config.leaseWheelSize = Integer.getInteger("dls.lease.wheelSize", config.leaseWheelSize);
+        config.followerReads = System.getProperty("dls.followerReads", config.followerReads);
+        config.dataDir = System.getProperty("dls.dataDir", config.dataDir);
+        config.walFsync = System.getProperty("dls.wal.fsync", config.walFsync);
+        config.walFsyncIntervalMs = Long.getLong("dls.wal.fsyncIntervalMs", config.walFsyncIntervalMs);
+        config.walSegmentBytes = Long.getLong("dls.wal.segmentBytes", config.walSegmentBytes);
+        config.snapshotIntervalMs = Long.getLong("dls.snapshotIntervalMs", config.snapshotIntervalMs);
+        config.cluster = System.getProperty("dls.cluster", config.cluster);
+        config.electionTimeoutMs = Long.getLong("dls.election.timeoutMs", config.electionTimeoutMs);
+        config.heartbeatMs = Long.getLong("dls.election.heartbeatMs", config.heartbeatMs);
+        config.shardMap = System.getProperty("dls.shardMap", config.shardMap);
+        config.shardMapPollMs = Long.getLong("dls.shardMap.pollMs", config.shardMapPollMs);
+        config.shardRouterThreads = Integer.getInteger("dls.shardMap.routerThreads", config.shardRouterThreads);
+        config.shardRouterQueueMax = Integer.getInteger("dls.shardMap.routerQueueMax", config.shardRouterQueueMax);
+        config.metricsPort = Integer.getInteger("dls.metrics.port", config.metricsPort);
+        return config;
+    }
+
+    @Override
+    public String toString() {
+        return "ioThreads=" + ioThreads + ", workerThreads=" + workerThreads + ", lockStripes=" + lockStripes
+                + (lockTable.equals("hash") ? "" : ", lockTable=" + lockTable)
+                + ", replicationTimeoutMs=" + replicationTimeoutMs + ", commitQuorum=" + commitQuorum
+                + (leaseDefaultTtlMs > 0 ? ", leaseDefaultTtlMs=" + leaseDefaultTtlMs : "")
+                + ", followerReads=" + followerReads + ", electionTimeoutMs=" + electionTimeoutMs
+                + (dataDir.isEmpty() ? "" : ", dataDir=" + dataDir + ", walFsync=" + walFsync)
+                + (shardMap.isEmpty() ? "" : ", shardMap=" + shardMap)
+                + (metricsPort > 0 ? ", metricsPort=" + metricsPort : "")
+                + (groupCommit ? ", groupCommit(windowMs=" + groupCommitWindowMs + ", maxBatch=" + groupCommitMaxBatch + ")" : "");
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+// Partition of the lock namespace into shards, each served by its own replication
+// group (leader election, replication log and lock table). A lock name belongs to
+// the shard that follows its hash on a consistent-hash ring where every shard owns
+// POINTS_PER_SHARD points, so adding or removing a shard only moves the names of
+// the ring segments it gains or loses (about 1/N of them).
+//
+// A map is read from a file (dls.shardMap) or a SHARD_MAP message, one entry per
+// line (';' also separates lines):
+//
+//   version 2
+//   shard a 10.0.2.3:5000,10.0.2.4:5000,10.0.2.5:5000
+//   shard b 10.0.3.3:5000,10.0.3.4:5000,10.0.3.5:5000 since 2
+//
+// A shard takes part in the versions [since, until) (defaults 1 and forever), so a
+// map also describes the ring of the version before it: the names whose owner
+// differs between the two rings are handed from the old shard to the new one
+// while both keep serving (see Server.handOffMovedLocks).
+//
+// Only the part of a name between '{' and the next '}' is hashed if it has one,
+// so "{order42}.a" and "{order42}.b" always share a shard (and can be taken
+// together by MLOCK).
+public final class ShardMap {
+    public static final int POINTS_PER_SHARD = 160;
+
+    // One version's ring: sorted point hashes and the shard owning each point
+    private static final class Ring {
+        final long[] points;
+        final String[] owners;
+
+        Ring(Collection<String> shards) {
+            TreeMap<Long, String> sorted = new TreeMap<>();
+            for (String shard : shards) {
+                for (int i = 0; i < POINTS_PER_SHARD; i++) {
+                    sorted.putIfAbsent(hash(shard + "#" + i), shard);
+                }
+            }
+            points = new long[sorted.size()];
+            owners = new String[sorted.size()];
+            int i = 0;
+            for (Map.Entry<Long, String> point : sorted.entrySet()) {
+                points[i] = point.getKey();
+                owners[i++] = point.getValue();
+            }
+        }
+
+        String ownerOf(long hash) {
+            int index = Arrays.binarySearch(points, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return owners[index == points.length ? 0 : index];
+        }
+    }
+
+    private final long version;
+    private final String text;
+    // Shards of this version -> sorted "ip:port" of their members
+    private final Map<String, List<String>> shards = new LinkedHashMap<>();
+    // Shards of the previous version (empty when nothing moved)
+    private final Set<String> previousShards = new LinkedHashSet<>();
+    private final Ring ring;
+    private final Ring previousRing;
+
+    private ShardMap(long version, String text, Map<String, List<String>> shards, Set<String> previousShards) {
+        this.version = version;
+        this.text = text;
+        this.shards.putAll(shards);
+        this.ring = new Ring(shards.keySet());
+        if (!previousShards.isEmpty() && !previousShards.equals(shards.keySet())) {
+            this.previousShards.addAll(previousShards);
+            this.previousRing = new Ring(previousShards);
+        } else {
+            this.previousRing = null;
+        }
+    }
+
+    public static ShardMap load(File file) throws IOException {
+        return parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+
+    public static ShardMap parse(String text) {
+        long version = 1;
+        List<String[]> entries = new ArrayList<>();
+        for (String line : text.split("[\n;]")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] words = line.split("\\s+");
+            if (words[0].equals("version") && words.length == 2) {
+                version = Long.parseLong(words[1]);
+            } else if (words[0].equals("shard") && (words.length == 3 || words.length == 5 || words.length == 7)) {
+                entries.add(words);
+            } else {
+                throw new IllegalArgumentException("Invalid shard map line: " + line);
+            }
+        }
+        Map<String, List<String>> shards = new LinkedHashMap<>();
+        Set<String> previousShards = new LinkedHashSet<>();
+        Set<String> members = new HashSet<>();
+        for (String[] words : entries) {
+            long since = 1;
+            long until = Long.MAX_VALUE;
+            for (int i = 3; i < words.length; i += 2) {
+                if (words[i].equals("since")) {
+                    since = Long.parseLong(words[i + 1]);
+                } else if (words[i].equals("until")) {
+                    until = Long.parseLong(words[i + 1]);
+                } else {
+                    throw new IllegalArgumentException("Invalid shard map line: " + String.join(" ", words));
+                }
+            }
+            List<String> shardMembers = new ArrayList<>();
+            for (String member : words[2].split(",")) {
+                if (!member.trim().isEmpty()) {
+                    shardMembers.add(member.trim());
+                }
+            }
+            Collections.sort(shardMembers);
+            for (String member : shardMembers) {
+                if (!members.add(member)) {
+                    throw new IllegalArgumentException(member + " is in more than one shard");
+                }
+            }
+            if (since <= version && version < until) {
+                shards.put(words[1], shardMembers);
+            }
+            if (since <= version - 1 && version - 1 < until) {
+                previousShards.add(words[1]);
+            }
+        }
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("Shard map version " + version + " has no shard");
+        }
+        return new ShardMap(version, text.trim(), shards, previousShards);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // The map in its text form, with ';' between lines (for SHARD_MAP)
+    public String toLine() {
+        return text.replaceAll("\\s*\n\\s*", ";");
+    }
+
+    public Set<String> shardIds() {
+        return shards.keySet();
+    }
+
+    public List<String> membersOf(String shard) {
+        List<String> members = shards.get(shard);
+        return members != null ? members : Collections.emptyList();
+    }
+
+    // Shard that lists this member, or null
+    public String shardOfMember(String member) {
+        for (Map.Entry<String, List<String>> shard : shards.entrySet()) {
+            if (shard.getValue().contains(member)) {
+                return shard.getKey();
+            }
+        }
+        return null;
+    }
+
+    // Every member of every shard
+    public List<String> allMembers() {
+        List<String> members = new ArrayList<>();
+        shards.values().forEach(members::addAll);
+        return members;
+    }
+
+    public String shardOf(String lockName) {
+        return ring.ownerOf(hash(hashKey(lockName)));
+    }
+
+    // Shard of the lock name in the previous version, or null if no shard changed
+    public String previousShardOf(String lockName) {
+        return previousRing != null ? previousRing.ownerOf(hash(hashKey(lockName))) : null;
+    }
+
+    // Shards of the previous version that hand names over to another shard
+    public Set<String> previousShards() {
+        return previousShards;
+    }
+
+    // Shard owning all these names, or null if they span several
+    public String shardOfAll(Collection<String> lockNames) {
+        String shard = null;
+        for (String name : lockNames) {
+            String owner = shardOf(name);
+            if (shard != null && !shard.equals(owner)) {
+                return null;
+            }
+            shard = owner;
+        }
+        return shard;
+    }
+
+    private static String hashKey(String lockName) {
+        int open = lockName.indexOf('{');
+        if (open >= 0) {
+            int close = lockName.indexOf('}', open + 1);
+            if (close > open + 1) {
+                return lockName.substring(open + 1, close);
+            }
+        }
+        return lockName;
+    }
+
+    // 64-bit FNV-1a over the UTF-16 code units, finished with MurmurHash3's fmix64 so
+    // that similar names spread over the whole ring
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe51a85b3L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "version " + version + " " + shards.keySet() + (previousRing != null ? " (from " + previousShards + ")" : "");
+    }
+}
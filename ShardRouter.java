@@ -0,0 +1,210 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// This server's view of the shard map (see ShardMap) and its calls to the other
+// shards. All of them are one request line answered by one line, on a short-lived
+// connection to any member of the target shard:
+//
+//   ROUTE,<version>,<client request>     a request for a name of that shard
+//   IMPORT,<version>,<client request>    to the previous owner of a name being handed off:
+//                                        answered normally while it still holds the lock,
+//                                        "MOVED" (or "MOVED,DONE" once it holds none) otherwise
+//   ADOPT,<version>,<name>,<owner>[,<ttlMs>]   a held lock handed to its new shard
+//   HANDOFF_DONE,<shard>,<version>       the shard holds no lock of another shard any more
+//   SHARD_MAP,<map>                      a newer map
+//
+// The last two are answered OK.
+//
+// A member that is not its shard's leader (for IMPORT / ADOPT) answers NOT_LEADER
+// and the next member is tried. A member with an older map answers OLD_MAP; it is
+// sent this map and the request again, so requests are never served under two
+// different maps.
+public class ShardRouter {
+
+    private final String serverIp;
+    private final String selfId;
+    private final File mapFile;
+    private final Executor executor;
+    private final Runnable onNewMap;
+    private final Transport transport;
+    private volatile ShardMap map;
+    private volatile long fileModified;
+    // Shard of this server; it keeps its members when the map changes
+    private final String shard;
+    // Shards of the previous map that finished handing off to the current one
+    private final Set<String> handoffDone = ConcurrentHashMap.newKeySet();
+    // Member that last answered, per shard: tried first next time
+    private final Map<String, String> lastMember = new ConcurrentHashMap<>();
+
+    public ShardRouter(String serverIp, String selfId, File mapFile, Executor executor, Runnable onNewMap,
+                       Transport transport) throws IOException {
+        this.serverIp = serverIp;
+        this.selfId = selfId;
+        this.mapFile = mapFile;
+        this.executor = executor;
+        this.onNewMap = onNewMap;
+        this.transport = transport;
+        this.fileModified = mapFile.lastModified();
+        this.map = ShardMap.load(mapFile);
+        this.shard = map.shardOfMember(selfId);
+        if (shard == null) {
+            throw new IllegalArgumentException(selfId + " is in no shard of " + mapFile + " " + map);
+        }
+    }
+
+    public ShardMap getMap() {
+        return map;
+    }
+
+    public String getShard() {
+        return shard;
+    }
+
+    public List<String> shardMembers() {
+        return map.membersOf(shard);
+    }
+
+    // Re-read the map file if it changed (called every dls.shardMap.pollMs)
+    public void poll() {
+        long modified = mapFile.lastModified();
+        if (modified == fileModified) {
+            return;
+        }
+        fileModified = modified;
+        try {
+            ShardMap newMap = ShardMap.load(mapFile);
+            if (install(newMap)) {
+                // Tell every member now rather than on their first request
+                broadcast("SHARD_MAP," + newMap.toLine());
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.warn(serverIp, "Cannot load shard map {}: {}", mapFile, e.getMessage());
+        }
+    }
+
+    // Use newMap if it is newer. This shard's membership cannot change (that would
+    // need a joint consensus change); a shard that is dropped from the map still
+    // serves its locks until it has handed them all off.
+    public synchronized boolean install(ShardMap newMap) {
+        if (newMap.getVersion() <= map.getVersion()) {
+            return false;
+        }
+        List<String> members = newMap.membersOf(shard);
+        if (!members.isEmpty() && !members.equals(map.membersOf(shard))) {
+            Log.warn(serverIp, "Ignoring shard map version {}: the members of shard {} cannot change", newMap.getVersion(), shard);
+            return false;
+        }
+        if (members.isEmpty() && newMap.shardOfMember(selfId) != null) {
+            Log.warn(serverIp, "Ignoring shard map version {}: {} moved to another shard", newMap.getVersion(), selfId);
+            return false;
+        }
+        map = newMap;
+        handoffDone.clear();
+        Log.info(serverIp, "Shard map {} installed (this node: shard {})", newMap, shard);
+        onNewMap.run();
+        return true;
+    }
+
+    // Shard of the previous map that may still hold this lock name (it is being
+    // handed to this shard), or null if this shard can serve it alone
+    public String importSource(String lockName) {
+        String source = map.previousShardOf(lockName);
+        if (source == null || source.equals(shard) || handoffDone.contains(source)) {
+            return null;
+        }
+        return source;
+    }
+
+    // This shard lost lock names in the current map and has not moved its locks yet
+    public boolean isHandingOff() {
+        return map.previousShards().contains(shard) && !handoffDone.contains(shard);
+    }
+
+    public boolean isHandoffDone(String source) {
+        return handoffDone.contains(source);
+    }
+
+    public void markHandoffDone(String source, long version) {
+        if (version == map.getVersion() && handoffDone.add(source)) {
+            Log.info(serverIp, "Shard {} finished its hand-off for version {}", source, version);
+        }
+    }
+
+    // Send one request line to the shard and return its answer ("ERROR" if no member
+    // could be reached, NOT_LEADER if none of them leads, BUSY if too many calls are waiting)
+    public CompletableFuture<String> call(String target, String request, long timeoutMs) {
+        try {
+            return CompletableFuture.supplyAsync(() -> callNow(target, request, timeoutMs), executor);
+        } catch (RejectedExecutionException e) {
+            Log.debug(serverIp, "Too many calls to other shards, answering BUSY");
+            return CompletableFuture.completedFuture("BUSY");
+        }
+    }
+
+    // Blocking form of call
+    public String callNow(String target, String request, long timeoutMs) {
+        List<String> members = new ArrayList<>(map.membersOf(target));
+        String preferred = lastMember.get(target);
+        if (preferred != null && members.remove(preferred)) {
+            members.add(0, preferred);
+        }
+        String response = null;
+        for (String member : members) {
+            response = send(member, request, timeoutMs);
+            // The request can only be retried elsewhere if this member did not take it
+            if (response != null && !response.equals("NOT_LEADER")) {
+                lastMember.put(target, member);
+                return response;
+            }
+        }
+        return response != null ? response : "ERROR";
+    }
+
+    // Fire and forget to every other member of every shard (one that misses a new map
+    // is sent it on its first OLD_MAP answer)
+    public void broadcast(String line) {
+        for (String member : map.allMembers()) {
+            if (!member.equals(selfId)) {
+                try {
+                    executor.execute(() -> send(member, line, 1000));
+                } catch (RejectedExecutionException e) {
+                    Log.warn(serverIp, "Too many calls to other shards, not sending {} to {}", line, member);
+                }
+            }
+        }
+    }
+
+    // The member's answer, or null if it could not be reached (then nothing was sent).
+    // Connecting and each answer take at most timeoutMs.
+    private String send(String member, String request, long timeoutMs) {
+        int timeout = (int) Math.min(Integer.MAX_VALUE, timeoutMs);
+        try (Socket socket = new Socket()) {
+            try {
+                socket.connect(transport.addressOf(member), timeout);
+            } catch (IOException e) {
+                Log.warn(serverIp, "Cannot reach {}: {}", member, e.getMessage());
+                return null;
+            }
+            socket.setSoTimeout(timeout);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.println(request);
+            String response = in.readLine();
+            if ("OLD_MAP".equals(response)) {
+                out.println("SHARD_MAP," + map.toLine());
+                in.readLine();
+                out.println(request);
+                response = in.readLine();
+            }
+            return response != null ? response : "ERROR";
+        } catch (SocketTimeoutException e) {
+            Log.warn(serverIp, "Timeout waiting for {}: {}", member, e.getMessage());
+            return "TIMEOUT";
+        } catch (IOException e) {
+            Log.warn(serverIp, "Error calling {}: {}", member, e.getMessage());
+            return "ERROR";
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Lock names held in shared mode: lock name -> holders, next to the lock table
+// of exclusive owners (a name is in one or the other, or free). permits = 0 is a
+// shared (reader) lock, held by any number of clients at once; permits = N > 0 a
+// counting semaphore, held by at most N clients, one permit each. The permits are
+// set by the first holder and the name is free again once its last holder
+// releases it. Like LockTable, it is indexed by holder for the client sessions.
+// Writers hold the lock name's stripe; reads take none (OWN), so the holder
+// sets are concurrent and a reader may see a set that is being emptied.
+public class SharedLocks {
+
+    public static final class Holders {
+        // 0 = shared lock, N = semaphore of N permits
+        public final int permits;
+        private final Set<String> clients = ConcurrentHashMap.newKeySet();
+
+        Holders(int permits) {
+            this.permits = permits;
+        }
+
+        public Set<String> clients() {
+            return Collections.unmodifiableSet(clients);
+        }
+
+        public boolean isFull() {
+            return permits > 0 && clients.size() >= permits;
+        }
+    }
+
+    private final Map<String, Holders> byName = new ConcurrentHashMap<>();
+    // Holder -> lock names, for the client sessions
+    private final Map<String, Set<String>> byClient = new ConcurrentHashMap<>();
+
+    // Holders of lockName, null if it is not held in shared mode
+    public Holders get(String lockName) {
+        return byName.get(lockName);
+    }
+
+    public boolean isHeld(String lockName) {
+        return byName.containsKey(lockName);
+    }
+
+    // Add clientId to the holders (a replicated SHARE: checked on the leader already)
+    public void acquire(String lockName, String clientId, int permits) {
+        byName.computeIfAbsent(lockName, k -> new Holders(permits)).clients.add(clientId);
+        // Inside compute: a release of another name by the same client (on another
+        // stripe) may drop the set at the same time, and an add to a dropped set is lost
+        byClient.compute(clientId, (k, names) -> {
+            if (names == null) {
+                names = ConcurrentHashMap.newKeySet();
+            }
+            names.add(lockName);
+            return names;
+        });
+    }
+
+    // Drop clientId from the holders; false if it did not hold lockName
+    public boolean release(String lockName, String clientId) {
+        Holders holders = byName.get(lockName);
+        if (holders == null || !holders.clients.remove(clientId)) {
+            return false;
+        }
+        if (holders.clients.isEmpty()) {
+            byName.remove(lockName);
+        }
+        byClient.computeIfPresent(clientId, (k, names) -> {
+            names.remove(lockName);
+            return names.isEmpty() ? null : names;
+        });
+        return true;
+    }
+
+    // The lock names clientId holds in shared mode, as of now (a copy)
+    public List<String> locksOf(String clientId) {
+        Set<String> names = byClient.get(clientId);
+        return names == null ? Collections.emptyList() : new ArrayList<>(names);
+    }
+
+    // Lock names held in shared mode
+    public int size() {
+        return byName.size();
+    }
+
+    // Holds over all names
+    public int holdCount() {
+        int count = 0;
+        for (Holders holders : byName.values()) {
+            count += holders.clients.size();
+        }
+        return count;
+    }
+
+    public Set<Map.Entry<String, Holders>> entrySet() {
+        return Collections.unmodifiableMap(byName).entrySet();
+    }
+
+    public void clear() {
+        byName.clear();
+        byClient.clear();
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+// Leader side of a bulk state transfer to a follower that joined, restarted
+// without usable state, or fell behind the replication log. The lock table is
+// streamed on its own blocking connection as
+//
+//   SNAPSHOT_BEGIN,<seq>,<term>,<leaderTerm>
+//   SNAPSHOT,<name>,<owner>,<leaseTtlMs>,<name>,<owner>,<leaseTtlMs>,...   (chunks of about CHUNK_CHARS)
+//   SHARES,<name>,<holder>,<permits>,...                                   (shared holds, one per holder, same chunks)
+//   SESSIONS,<clientId>,<ttlMs>,<clientId>,<ttlMs>,...                    (open client sessions, same chunks)
+//   SNAPSHOT_END,<seq>,<count>
+//
+// and the follower answers "SNAPSHOT_DONE,<seq>" once it has installed it.
+// <term> is the term of the entry at <seq>; the follower rejects a transfer
+// whose <leaderTerm> is older than the leader it knows. Lease TTLs (0 = none)
+// travel with the owners so that the follower could take over the leases if
+// it is elected leader, and so do the client sessions. <count> counts the
+// exclusive locks only.
+// The table is read without any lock while writes go on: every entry up to
+// <seq> is already applied to it, later ones may or may not be, and the
+// follower's replication channel resumes right after <seq>. Replaying those
+// entries ends every lock in the state of its last mutation, so the follower
+// converges to the leader's table. Back-pressure comes from the socket, so a
+// large table is never buffered in memory.
+public class StateTransfer {
+    private static final int CHUNK_CHARS = 16 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final String serverIp;
+    private final Map<String, String> lockMap;
+    private final SharedLocks sharedLocks;
+    private final ToLongFunction<String> leaseTtl;
+    private final Supplier<Map<String, Long>> sessionTtls;
+    private final long replyTimeoutMs;
+    private final Transport transport;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "state-transfer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public StateTransfer(String serverIp, Map<String, String> lockMap, SharedLocks sharedLocks, ToLongFunction<String> leaseTtl,
+                         Supplier<Map<String, Long>> sessionTtls, long replyTimeoutMs, Transport transport) {
+        this.serverIp = serverIp;
+        this.lockMap = lockMap;
+        this.sharedLocks = sharedLocks;
+        this.leaseTtl = leaseTtl;
+        this.sessionTtls = sessionTtls;
+        this.replyTimeoutMs = replyTimeoutMs;
+        this.transport = transport;
+    }
+
+    // Stream the lock table as of (at least) seq, an entry of term, to follower
+    // "ip:port"; completes with the number of locks sent once the follower confirmed it
+    public CompletableFuture<Integer> send(String follower, long seq, long term, long leaderTerm) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return transfer(follower, seq, term, leaderTerm);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private int transfer(String follower, long seq, long term, long leaderTerm) throws IOException {
+        long startedAt = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.connect(transport.addressOf(follower), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout((int) replyTimeoutMs);
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            Log.info(serverIp, "Transferring state as of seq {} to {}", seq, follower);
+            out.write("SNAPSHOT_BEGIN," + seq + "," + term + "," + leaderTerm + "\n");
+            StringBuilder chunk = new StringBuilder(CHUNK_CHARS + 256);
+            int count = 0;
+            for (Map.Entry<String, String> entry : lockMap.entrySet()) {
+                String lockName = entry.getKey();
+                String owner = entry.getValue();
+                long ttl = leaseTtl.applyAsLong(lockName);
+                if (chunk.length() > 0 && chunk.length() + lockName.length() + owner.length() + 24 > CHUNK_CHARS) {
+                    out.write(chunk.append('\n').toString());
+                    chunk.setLength(0);
+                }
+                if (chunk.length() == 0) {
+                    chunk.append("SNAPSHOT");
+                }
+                chunk.append(',').append(lockName).append(',').append(owner).append(',').append(ttl);
+                count++;
+            }
+            if (chunk.length() > 0) {
+                out.write(chunk.append('\n').toString());
+                chunk.setLength(0);
+            }
+            for (Map.Entry<String, SharedLocks.Holders> entry : sharedLocks.entrySet()) {
+                String lockName = entry.getKey();
+                for (String holder : entry.getValue().clients()) {
+                    if (chunk.length() > 0 && chunk.length() + lockName.length() + holder.length() + 16 > CHUNK_CHARS) {
+                        out.write(chunk.append('\n').toString());
+                        chunk.setLength(0);
+                    }
+                    if (chunk.length() == 0) {
+                        chunk.append("SHARES");
+                    }
+                    chunk.append(',').append(lockName).append(',').append(holder).append(',').append(entry.getValue().permits);
+                }
+            }
+            if (chunk.length() > 0) {
+                out.write(chunk.append('\n').toString());
+                chunk.setLength(0);
+            }
+            for (Map.Entry<String, Long> session : sessionTtls.get().entrySet()) {
+                if (chunk.length() > 0 && chunk.length() + session.getKey().length() + 24 > CHUNK_CHARS) {
+                    out.write(chunk.append('\n').toString());
+                    chunk.setLength(0);
+                }
+                if (chunk.length() == 0) {
+                    chunk.append("SESSIONS");
+                }
+                chunk.append(',').append(session.getKey()).append(',').append(session.getValue());
+            }
+            if (chunk.length() > 0) {
+                out.write(chunk.append('\n').toString());
+            }
+            out.write("SNAPSHOT_END," + seq + "," + count + "\n");
+            out.flush();
+
+            String reply = in.readLine();
+            if (!("SNAPSHOT_DONE," + seq).equals(reply)) {
+                throw new IOException("Unexpected reply to the state transfer: " + reply);
+            }
+            Log.info(serverIp, "Transferred {} locks to {} in {}ms", count, follower,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            return count;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hashed wheel timer: a single thread advances a ring of buckets every tickMs
+// and runs the timeouts that fell due. Scheduling and cancelling are O(1) and
+// never touch the wheel itself (new timeouts go through a queue, cancelled ones
+// are dropped when their bucket comes round), so millions of pending timeouts
+// cost one small object each and no thread or scheduled task.
+// Timeouts fire up to one tick late, never early.
+public class TimerWheel implements Runnable {
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] wheel;
+    private final int mask;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long startNanos;
+    private long tick;
+
+    public TimerWheel(String name, long tickMs, int wheelSize) {
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = newWheel(size);
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.worker = new Thread(this, name);
+        this.worker.setDaemon(true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<Timeout>[] newWheel(int size) {
+        return (ArrayDeque<Timeout>[]) new ArrayDeque<?>[size];
+    }
+
+    public void start() {
+        startNanos = System.nanoTime();
+        worker.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        worker.interrupt();
+    }
+
+    // Timeouts scheduled and neither fired nor dropped yet (cancelled ones count until dropped)
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    // Run task on the wheel thread in delayMs (rounded up to the next tick).
+    // Tasks must be short; anything blocking belongs on another executor.
+    public Timeout schedule(Runnable task, long delayMs) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs)));
+        pending.incrementAndGet();
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            long wakeAt = startNanos + (tick + 1) * tickNanos;
+            long sleepNanos = wakeAt - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        break;
+                    }
+                    continue;
+                }
+            }
+            transferScheduled();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    // Move newly scheduled timeouts into their bucket
+    private void transferScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.cancelled) {
+                pending.decrementAndGet();
+                continue;
+            }
+            long dueTick = Math.max(tick, (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos - 1);
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            wheel[(int) (dueTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        for (Iterator<Timeout> it = bucket.iterator(); it.hasNext(); ) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+                pending.decrementAndGet();
+            } else if (timeout.remainingRounds <= 0) {
+                it.remove();
+                pending.decrementAndGet();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    Log.error(name, "Timer task failed: {}", e);
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+}
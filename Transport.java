@@ -0,0 +1,17 @@
+import java.net.InetSocketAddress;
+
+// How a server reaches the other members, by their "ip:port" IDs: every
+// server-to-server connection (replication, votes, forwarded requests, read
+// index, state transfer, shard calls) is opened to the address given here.
+// DIRECT is the address in the ID. LocalCluster gives each of its servers one
+// that leads through an in-process relay per link, where it injects latency,
+// drops and partitions.
+public interface Transport {
+
+    Transport DIRECT = member -> {
+        String[] parts = member.split(":");
+        return new InetSocketAddress(parts[0], Integer.parseInt(parts[1]));
+    };
+
+    InetSocketAddress addressOf(String member);
+}
@@ -0,0 +1,696 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// Durable append-only log of replicated entries (sequence number + LOCK/UNLOCK/...
+// op lines), with periodic snapshots so that recovery only replays the tail.
+//
+// Files in the data directory:
+//   wal-<firstSeq>.log       segments of records [int length][int crc32][long seq][long term][int n]
+//                            [n x (int length, UTF-8 op)]
+//   snapshot-<seq>.snap      lock table as of seq: [int magic][long seq][long term][int count]
+//                            [count x (name, owner, long leaseTtlMs)][int sessions]
+//                            [sessions x (clientId, long ttlMs)][int shared]
+//                            [shared x (name, int permits, int holders, holders x clientId)][int crc32],
+//                            strings as (int length, UTF-8)
+//
+// A single writer thread appends records in submission order and syncs them to
+// disk according to the fsync policy; append() futures complete once the record
+// is as durable as the policy promises; a failed write or sync stops the log for
+// good. Snapshots are not taken from the live lock table: the snapshot thread
+// rolls the log to a new segment and folds the closed segments into the
+// previous snapshot, so a snapshot is exactly the state at its sequence number
+// and never blocks writers.
+public class WriteAheadLog implements Runnable {
+
+    public enum FsyncPolicy {
+        ALWAYS,   // fsync after every record
+        BATCH,    // fsync once per batch of records written together (group commit)
+        INTERVAL; // fsync every fsyncIntervalMs; records complete once written
+
+        static FsyncPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    // Lock table rebuilt from a snapshot and log records
+    public static class State {
+        public long seq;
+        // Leader term of the entry at seq
+        public long term;
+        // Same implementation as the server's (dls.lockTable): recovery and compaction
+        // hold every lock here too
+        public final Map<String, String> owners;
+        // Lock names held in shared mode
+        public final SharedLocks shared = new SharedLocks();
+        public final Map<String, Long> leaseTtls = new HashMap<>();
+        // Open client sessions, client ID -> session TTL
+        public final Map<String, Long> sessionTtls = new HashMap<>();
+
+        State(String lockTable) {
+            this.owners = LockTable.create(lockTable);
+        }
+
+        // Same meaning as Server.processSync, plus the lease of LOCK / HANDOFF
+        void apply(String op) {
+            String[] parts = op.split(",");
+            if (parts.length < 3) {
+                return;
+            }
+            String lockName = parts[1];
+            String clientId = parts[2];
+            switch (parts[0]) {
+                case "SESSION":
+                    // "SESSION,clientId,ttlMs"
+                    sessionTtls.put(parts[1], Long.parseLong(parts[2]));
+                    break;
+                case "SESSION_END":
+                    sessionTtls.remove(parts[1]);
+                    break;
+                case "LOCK":
+                    owners.put(lockName, clientId);
+                    setTtl(lockName, parts, 3);
+                    break;
+                case "HANDOFF":
+                    owners.put(lockName, clientId);
+                    setTtl(lockName, parts, 4);
+                    break;
+                case "UNLOCK":
+                    owners.remove(lockName);
+                    leaseTtls.remove(lockName);
+                    break;
+                case "EXPIRE":
+                    if (owners.remove(lockName, clientId)) {
+                        leaseTtls.remove(lockName);
+                    }
+                    break;
+                case "SHARE":
+                    // "SHARE,lockName,clientId,permits"
+                    shared.acquire(lockName, clientId, Integer.parseInt(parts[3]));
+                    break;
+                case "RELEASE":
+                    shared.release(lockName, clientId);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void setTtl(String lockName, String[] parts, int index) {
+            if (parts.length > index) {
+                leaseTtls.put(lockName, Long.parseLong(parts[index]));
+            } else {
+                leaseTtls.remove(lockName);
+            }
+        }
+    }
+
+    private static class Record {
+        static final int APPEND = 0;
+        static final int ROLL = 1;
+        static final int STOP = 2;
+        static final int RESET = 3;
+
+        final int kind;
+        final long seq;
+        final long term;
+        final List<String> ops;
+        final State state;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Record(int kind, long seq, long term, List<String> ops) {
+            this(kind, seq, term, ops, null);
+        }
+
+        Record(int kind, long seq, long term, List<String> ops, State state) {
+            this.kind = kind;
+            this.seq = seq;
+            this.term = term;
+            this.ops = ops;
+            this.state = state;
+        }
+    }
+
+    private static final int SNAPSHOT_MAGIC = 0x444C5334; // "DLS4"
+    private static final int MAX_BATCH = 1024;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+
+    private final String serverIp;
+    private final File dir;
+    private final FsyncPolicy policy;
+    private final long fsyncIntervalMs;
+    private final long segmentBytes;
+    private final long snapshotIntervalMs;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final ScheduledExecutorService snapshotter;
+    private volatile boolean running = true;
+    // Held while snapshot files and closed segments are rewritten or deleted
+    private final Object filesLock = new Object();
+
+    // Writer thread only
+    private FileChannel segment;
+    private long segmentSize;
+    private long lastWrittenSeq;
+    private ByteBuffer encodeBuffer = ByteBuffer.allocate(64 * 1024);
+
+    private volatile long currentSegmentFirstSeq;
+    private volatile long durableSeq;
+    private volatile long snapshotSeq;
+    // Lock table implementation of the recovered and compacted states
+    private final String lockTable;
+
+    public WriteAheadLog(String serverIp, ServerConfig config) {
+        this.serverIp = serverIp;
+        this.dir = new File(config.dataDir);
+        this.policy = FsyncPolicy.parse(config.walFsync);
+        this.fsyncIntervalMs = Math.max(1, config.walFsyncIntervalMs);
+        this.segmentBytes = config.walSegmentBytes;
+        this.snapshotIntervalMs = config.snapshotIntervalMs;
+        this.lockTable = config.lockTable;
+        this.writer = new Thread(this, "wal-writer");
+        this.writer.setDaemon(true);
+        this.snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "wal-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public FsyncPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getDurableSeq() {
+        return durableSeq;
+    }
+
+    // Load the latest snapshot and replay the log after it. A record torn by a crash
+    // at the end of the last segment is cut off. Must be called once, before start().
+    public State recover() throws IOException {
+        Files.createDirectories(dir.toPath());
+        long startedAt = System.nanoTime();
+        State state = new State(lockTable);
+        List<File> snapshots = listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        if (!snapshots.isEmpty()) {
+            readSnapshot(snapshots.get(snapshots.size() - 1), state);
+        }
+        snapshotSeq = state.seq;
+        long fromSnapshot = state.owners.size();
+        int replayed = 0;
+        List<File> segments = listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        for (int i = 0; i < segments.size(); i++) {
+            replayed += replaySegment(segments.get(i), state, i == segments.size() - 1);
+        }
+        lastWrittenSeq = state.seq;
+        durableSeq = state.seq;
+        if (Log.INFO) {
+            Log.info(serverIp, "Recovered " + state.owners.size() + " locks up to seq " + state.seq + " of term " + state.term
+                    + " (" + fromSnapshot + " from snapshot " + snapshotSeq + ", " + replayed + " log records) in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt) + "ms");
+        }
+        return state;
+    }
+
+    public void start() throws IOException {
+        openSegment(lastWrittenSeq + 1);
+        writer.start();
+        if (snapshotIntervalMs > 0) {
+            snapshotter.scheduleWithFixedDelay(this::snapshotQuietly, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Queue an entry of the given leader term; entries must be appended in sequence
+    // order. Completes once the record is written (and synced, unless the policy is INTERVAL).
+    public CompletableFuture<Void> append(long seq, long term, List<String> ops) {
+        return enqueue(new Record(Record.APPEND, seq, term, ops));
+    }
+
+    // Replace everything logged so far by a snapshot of owners, shared holds, leases and
+    // sessions as of seq (a state transfer from the leader); later appends continue after seq
+    public CompletableFuture<Void> reset(long seq, long term, Map<String, String> owners, SharedLocks shared,
+                                         Map<String, Long> leaseTtls, Map<String, Long> sessionTtls) {
+        State state = new State(lockTable);
+        state.seq = seq;
+        state.term = term;
+        state.owners.putAll(owners);
+        for (Map.Entry<String, SharedLocks.Holders> entry : shared.entrySet()) {
+            for (String clientId : entry.getValue().clients()) {
+                state.shared.acquire(entry.getKey(), clientId, entry.getValue().permits);
+            }
+        }
+        state.leaseTtls.putAll(leaseTtls);
+        state.sessionTtls.putAll(sessionTtls);
+        return enqueue(new Record(Record.RESET, seq, term, null, state));
+    }
+
+    private CompletableFuture<Void> enqueue(Record record) {
+        if (!running) {
+            record.done.completeExceptionally(new IOException("Write-ahead log is closed"));
+            return record.done;
+        }
+        queue.add(record);
+        // Closed or failed meanwhile: unless the writer took it, it may be gone already
+        if (!running && queue.remove(record)) {
+            record.done.completeExceptionally(new IOException("Write-ahead log is closed"));
+        }
+        return record.done;
+    }
+
+    // Write and sync everything queued so far, then stop the writer
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        snapshotter.shutdownNow();
+        queue.add(new Record(Record.STOP, 0, 0, null));
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Record> batch = new ArrayList<>();
+        long lastForceAt = System.nanoTime();
+        boolean dirty = false;
+        boolean stop = false;
+        while (!stop) {
+            try {
+                Record first = queue.poll(policy == FsyncPolicy.INTERVAL ? fsyncIntervalMs : 1000, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH);
+                }
+                for (Record record : batch) {
+                    if (record.kind == Record.STOP) {
+                        stop = true;
+                    } else if (record.kind == Record.ROLL) {
+                        if (segmentSize > 0) {
+                            openSegment(lastWrittenSeq + 1);
+                        }
+                    } else if (record.kind == Record.RESET) {
+                        replaceWith(record.state);
+                        dirty = false;
+                    } else {
+                        if (segmentSize >= segmentBytes) {
+                            openSegment(record.seq);
+                        }
+                        write(record);
+                        dirty = true;
+                        if (policy == FsyncPolicy.ALWAYS) {
+                            segment.force(false);
+                            dirty = false;
+                            durableSeq = record.seq;
+                            record.done.complete(null);
+                        }
+                    }
+                }
+                long now = System.nanoTime();
+                if (dirty && (policy == FsyncPolicy.BATCH || stop
+                        || now - lastForceAt >= TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMs))) {
+                    segment.force(false);
+                    dirty = false;
+                    lastForceAt = now;
+                }
+                for (Record record : batch) {
+                    if (record.kind == Record.APPEND && policy != FsyncPolicy.ALWAYS) {
+                        durableSeq = record.seq;
+                    }
+                    record.done.complete(null);
+                }
+            } catch (IOException e) {
+                fail(e, batch);
+                stop = true;
+            } catch (InterruptedException e) {
+                // Only close() stops the writer
+            }
+            batch.clear();
+        }
+        // Appended after close() or a failure
+        queue.drainTo(batch);
+        for (Record record : batch) {
+            record.done.completeExceptionally(new IOException("Write-ahead log is closed"));
+        }
+        try {
+            if (segment != null) {
+                segment.force(false);
+                segment.close();
+            }
+        } catch (IOException e) {
+            Log.error(serverIp, "Failed to close the write-ahead log: {}", e);
+        }
+        Log.info(serverIp, "Write-ahead log closed at seq {}", lastWrittenSeq);
+    }
+
+    // Writer thread: a write or sync failed. Writing on after the failed record would
+    // leave it torn in the middle of the log, and a sync that failed once cannot be
+    // trusted when retried (the kernel may have dropped the dirty pages), so the log
+    // stops here: the torn tail is cut off if the disk lets us, and this record and
+    // every later one fail. Records completed before stay valid; recovery replays
+    // the log up to the failure.
+    private void fail(IOException e, List<Record> batch) {
+        Log.error(serverIp, "Write-ahead log failure, no longer logging after seq {}: {}", lastWrittenSeq, e);
+        running = false;
+        snapshotter.shutdownNow();
+        if (segment != null) {
+            try {
+                segment.truncate(segmentSize);
+            } catch (IOException truncateFailure) {
+                Log.warn(serverIp, "Could not cut the torn record off the write-ahead log: {}", truncateFailure);
+            }
+        }
+        for (Record record : batch) {
+            record.done.completeExceptionally(e);
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        int bodyLength = 8 + 8 + 4;
+        List<byte[]> encoded = new ArrayList<>(record.ops.size());
+        for (String op : record.ops) {
+            byte[] bytes = op.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            bodyLength += 4 + bytes.length;
+        }
+        if (encodeBuffer.capacity() < 8 + bodyLength) {
+            encodeBuffer = ByteBuffer.allocate(Math.max(8 + bodyLength, encodeBuffer.capacity() * 2));
+        }
+        ByteBuffer buffer = encodeBuffer;
+        buffer.clear();
+        buffer.putInt(bodyLength).putInt(0).putLong(record.seq).putLong(record.term).putInt(encoded.size());
+        for (byte[] bytes : encoded) {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, bodyLength);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+        segmentSize += 8 + bodyLength;
+        lastWrittenSeq = record.seq;
+    }
+
+    // Writer thread: the snapshot of state becomes the whole log
+    private void replaceWith(State state) throws IOException {
+        synchronized (filesLock) {
+            File snapshot = writeSnapshot(state);
+            segment.close();
+            segment = null;
+            for (File file : listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+                if (!file.equals(snapshot)) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+            for (File file : listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+                Files.deleteIfExists(file.toPath());
+            }
+            snapshotSeq = state.seq;
+        }
+        lastWrittenSeq = state.seq;
+        durableSeq = state.seq;
+        openSegment(state.seq + 1);
+        Log.info(serverIp, "Write-ahead log replaced by a snapshot of {} locks at seq {}", state.owners.size(), state.seq);
+    }
+
+    // Writer thread (or start()): continue in a new segment whose first record is firstSeq
+    private void openSegment(long firstSeq) throws IOException {
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+        }
+        File file = new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+        segment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = segment.size();
+        currentSegmentFirstSeq = firstSeq;
+    }
+
+    // Records in one segment after state.seq; returns how many were applied
+    private int replaySegment(File file, State state, boolean last) throws IOException {
+        int applied = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size == 0) {
+                return 0;
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            while (data.remaining() > 0) {
+                int start = data.position();
+                int bodyLength = data.remaining() >= 8 ? data.getInt() : -1;
+                if (bodyLength < 20 || bodyLength > data.remaining() - 4) {
+                    truncateTorn(file, channel, start, last);
+                    break;
+                }
+                int expectedCrc = data.getInt();
+                ByteBuffer body = data.slice();
+                body.limit(bodyLength);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != expectedCrc) {
+                    truncateTorn(file, channel, start, last);
+                    break;
+                }
+                data.position(start + 8 + bodyLength);
+                long seq = body.getLong();
+                long term = body.getLong();
+                int count = body.getInt();
+                if (seq <= state.seq) {
+                    continue; // Already in the snapshot
+                }
+                for (int i = 0; i < count; i++) {
+                    state.apply(getString(body));
+                }
+                state.seq = seq;
+                state.term = term;
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    private void truncateTorn(File file, FileChannel channel, long position, boolean last) throws IOException {
+        if (!last) {
+            throw new IOException("Corrupt record at offset " + position + " of " + file + " (not the last segment)");
+        }
+        Log.warn(serverIp, "Truncating torn record at offset {} of {}", position, file);
+        channel.truncate(position);
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (Exception e) {
+            Log.error(serverIp, "Snapshot failed: {}", e);
+        }
+    }
+
+    // Fold the closed segments into a new snapshot, then delete them and the old snapshot
+    public void snapshot() throws IOException, InterruptedException, ExecutionException {
+        Record roll = new Record(Record.ROLL, 0, 0, null);
+        queue.add(roll);
+        roll.done.get();
+        synchronized (filesLock) {
+            compact();
+        }
+    }
+
+    private void compact() throws IOException {
+        long current = currentSegmentFirstSeq;
+        List<File> closed = new ArrayList<>();
+        for (File file : listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (seqOf(file, SEGMENT_PREFIX, SEGMENT_SUFFIX) < current) {
+                closed.add(file);
+            }
+        }
+        if (closed.isEmpty()) {
+            return;
+        }
+        long startedAt = System.nanoTime();
+        State state = new State(lockTable);
+        List<File> oldSnapshots = listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        if (!oldSnapshots.isEmpty()) {
+            readSnapshot(oldSnapshots.get(oldSnapshots.size() - 1), state);
+        }
+        for (File file : closed) {
+            replaySegment(file, state, false);
+        }
+        File snapshot = writeSnapshot(state);
+        for (File file : oldSnapshots) {
+            if (!file.equals(snapshot)) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        for (File file : closed) {
+            Files.deleteIfExists(file.toPath());
+        }
+        snapshotSeq = state.seq;
+        Log.info(serverIp, "Snapshot of {} locks at seq {} written in {}ms, {} segments compacted", state.owners.size(), state.seq,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), closed.size());
+    }
+
+    private File writeSnapshot(State state) throws IOException {
+        File file = new File(dir, String.format("%s%020d%s", SNAPSHOT_PREFIX, state.seq, SNAPSHOT_SUFFIX));
+        File tmp = new File(dir, file.getName() + ".tmp");
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.putInt(SNAPSHOT_MAGIC).putLong(state.seq).putLong(state.term).putInt(state.owners.size());
+            for (Map.Entry<String, String> entry : state.owners.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] owner = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                int needed = 4 + name.length + 4 + owner.length + 8;
+                if (buffer.remaining() < needed) {
+                    flushSnapshotBuffer(channel, buffer, crc);
+                    if (buffer.capacity() < needed) {
+                        buffer = ByteBuffer.allocate(needed);
+                    }
+                }
+                buffer.putInt(name.length).put(name).putInt(owner.length).put(owner);
+                buffer.putLong(state.leaseTtls.getOrDefault(entry.getKey(), 0L));
+            }
+            if (buffer.remaining() < 4) {
+                flushSnapshotBuffer(channel, buffer, crc);
+            }
+            buffer.putInt(state.sessionTtls.size());
+            for (Map.Entry<String, Long> entry : state.sessionTtls.entrySet()) {
+                byte[] clientId = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                int needed = 4 + clientId.length + 8;
+                if (buffer.remaining() < needed) {
+                    flushSnapshotBuffer(channel, buffer, crc);
+                    if (buffer.capacity() < needed) {
+                        buffer = ByteBuffer.allocate(needed);
+                    }
+                }
+                buffer.putInt(clientId.length).put(clientId).putLong(entry.getValue());
+            }
+            if (buffer.remaining() < 4) {
+                flushSnapshotBuffer(channel, buffer, crc);
+            }
+            buffer.putInt(state.shared.size());
+            for (Map.Entry<String, SharedLocks.Holders> entry : state.shared.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                List<byte[]> holders = new ArrayList<>();
+                int needed = 4 + name.length + 8;
+                for (String clientId : entry.getValue().clients()) {
+                    byte[] bytes = clientId.getBytes(StandardCharsets.UTF_8);
+                    holders.add(bytes);
+                    needed += 4 + bytes.length;
+                }
+                if (buffer.remaining() < needed) {
+                    flushSnapshotBuffer(channel, buffer, crc);
+                    if (buffer.capacity() < needed) {
+                        buffer = ByteBuffer.allocate(needed);
+                    }
+                }
+                buffer.putInt(name.length).put(name).putInt(entry.getValue().permits).putInt(holders.size());
+                for (byte[] clientId : holders) {
+                    buffer.putInt(clientId.length).put(clientId);
+                }
+            }
+            flushSnapshotBuffer(channel, buffer, crc);
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    private static void flushSnapshotBuffer(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.flip();
+        crc.update(buffer.array(), 0, buffer.limit());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Memory-mapped read of a snapshot into state
+    private static void readSnapshot(File file, State state) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < 28) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+            ByteBuffer content = data.duplicate();
+            content.limit((int) size - 4);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            if ((int) crc.getValue() != data.getInt((int) size - 4)) {
+                throw new IOException("Snapshot " + file + " is corrupt (checksum mismatch)");
+            }
+            if (data.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            state.seq = data.getLong();
+            state.term = data.getLong();
+            int count = data.getInt();
+            for (int i = 0; i < count; i++) {
+                String name = getString(data);
+                String owner = getString(data);
+                long ttl = data.getLong();
+                state.owners.put(name, owner);
+                if (ttl > 0) {
+                    state.leaseTtls.put(name, ttl);
+                }
+            }
+            int sessions = data.getInt();
+            for (int i = 0; i < sessions; i++) {
+                String clientId = getString(data);
+                state.sessionTtls.put(clientId, data.getLong());
+            }
+            int shared = data.getInt();
+            for (int i = 0; i < shared; i++) {
+                String name = getString(data);
+                int permits = data.getInt();
+                int holders = data.getInt();
+                for (int h = 0; h < holders; h++) {
+                    state.shared.acquire(name, getString(data), permits);
+                }
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private List<File> listFiles(String prefix, String suffix) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(suffix));
+        List<File> sorted = new ArrayList<>(files == null ? Collections.emptyList() : Arrays.asList(files));
+        sorted.sort(Comparator.comparing(File::getName));
+        return sorted;
+    }
+
+    private static long seqOf(File file, String prefix, String suffix) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+    }
+
+    public void printStatus() {
+        System.out.println("Write-ahead log: " + dir + ", fsync " + policy.name().toLowerCase()
+                + ", durable seq " + durableSeq + ", snapshot seq " + snapshotSeq + ", queued " + queue.size());
+    }
+}
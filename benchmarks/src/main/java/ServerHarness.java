@@ -0,0 +1,94 @@
+import bench.LocalServer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// LocalServer on top of Server's package-private methods (see bench.LocalServer).
+// The server is built but never started: no socket is opened, no election runs.
+public final class ServerHarness implements LocalServer {
+    private final Server server;
+    private long appliedSeq;
+
+    // Decoded binary request, the values Server.onFrame keeps in locals
+    static final class Frame {
+        final String cmd;
+        final long requestId;
+        final long ttlMs;
+        final long waitMs;
+        final int permits;
+        final String lockName;
+        final String clientId;
+
+        Frame(String cmd, long requestId, long ttlMs, long waitMs, int permits, String lockName, String clientId) {
+            this.cmd = cmd;
+            this.requestId = requestId;
+            this.ttlMs = ttlMs;
+            this.waitMs = waitMs;
+            this.permits = permits;
+            this.lockName = lockName;
+            this.clientId = clientId;
+        }
+    }
+
+    private ServerHarness(Server server) {
+        this.server = server;
+    }
+
+    public static LocalServer create(boolean leader, int stripeCount, String lockTable) throws IOException {
+        // A cluster of one: every mutation commits as soon as it is applied. Other
+        // tunables may be set with -Ddls.<name>, as for a server.
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        config.cluster = "127.0.0.1:5000";
+        config.lockStripes = stripeCount;
+        config.lockTable = lockTable;
+        Server server = new Server("127.0.0.1", 5000, false, config);
+        if (leader) {
+            server.becomeLeader(1);
+        }
+        return new ServerHarness(server);
+    }
+
+    @Override
+    public String request(String cmd, String lockName, String clientId) {
+        return server.processRequest(cmd, lockName, clientId, 0, 0, 0, false).join();
+    }
+
+    @Override
+    public void apply(List<String> ops) {
+        server.applySyncEntry(++appliedSeq, 1, ops).join();
+    }
+
+    @Override
+    public Object parseText(String line) {
+        return Server.parseRequest(line, 0);
+    }
+
+    @Override
+    public Object parseFrame(ByteBuffer frame) {
+        frame.getInt();
+        byte opcode = frame.get();
+        long requestId = frame.getLong();
+        String cmd = BinaryProtocol.commandOf(opcode);
+        long ttlMs = frame.getLong();
+        long waitMs = frame.getLong();
+        int permits = frame.getInt();
+        String lockName = BinaryProtocol.getString(frame);
+        String clientId = BinaryProtocol.getString(frame);
+        return new Frame(cmd, requestId, ttlMs, waitMs, permits, lockName, clientId);
+    }
+
+    @Override
+    public ByteBuffer encodeFrame(String cmd, String lockName, String clientId, long ttlMs, long waitMs) {
+        return BinaryProtocol.encodeRequest(BinaryProtocol.opcodeOf(cmd), 1, lockName, clientId, ttlMs, waitMs, 0);
+    }
+
+    @Override
+    public int lockCount() {
+        return server.lockTable().size();
+    }
+
+    @Override
+    public void close() {
+        server.shutdown();
+    }
+}
@@ -0,0 +1,60 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// A Server driven directly by the benchmarks, without sockets, election or
+// replication threads. JMH needs benchmarks in a named package while the server
+// classes are in the default package, which only the default package can use:
+// ServerHarness, in the default package, implements this on top of the server's
+// package-private methods.
+public interface LocalServer {
+
+    // Leader of a one-member cluster: mutations commit as soon as they are in the replication log
+    static LocalServer leader(int stripes) {
+        return create(true, stripes, "hash");
+    }
+
+    static LocalServer leader(int stripes, String lockTable) {
+        return create(true, stripes, lockTable);
+    }
+
+    // Follower that applies whatever entries it is given
+    static LocalServer follower(int stripes) {
+        return create(false, stripes, "hash");
+    }
+
+    static LocalServer follower(int stripes, String lockTable) {
+        return create(false, stripes, lockTable);
+    }
+
+    // lockTable: dls.lockTable, "hash" or "compact"
+    static LocalServer create(boolean leader, int stripes, String lockTable) {
+        try {
+            return (LocalServer) Class.forName("ServerHarness").getMethod("create", boolean.class, int.class, String.class)
+                    .invoke(null, leader, stripes, lockTable);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create a server", e);
+        }
+    }
+
+    // Server.processRequest, waiting for the answer
+    String request(String cmd, String lockName, String clientId);
+
+    // Server.applySyncEntry with the next sequence number
+    void apply(List<String> ops);
+
+    // Server.parseRequest; null if the line is malformed
+    Object parseText(String line);
+
+    // The fields of a binary request frame (from encodeFrame), decoded as Server.onFrame does
+    Object parseFrame(ByteBuffer frame);
+
+    // A binary request frame as a client sends it, length included
+    ByteBuffer encodeFrame(String cmd, String lockName, String clientId, long ttlMs, long waitMs);
+
+    // Locks held, as the server's lock table counts them
+    int lockCount();
+
+    void close();
+}
@@ -0,0 +1,123 @@
+package bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// LOCK + UNLOCK and OWN against the lock table of a one-member cluster, with lock
+// names drawn uniformly, from a Zipf distribution (a few hot names) or all the same
+// name, to see how the lock stripes hold up as contention grows. The nested classes
+// run the same benchmarks with 1, 4 and 16 threads, against both lock table
+// implementations (dls.lockTable).
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public abstract class LockTableBenchmark {
+
+    @Param({"uniform", "zipf", "single"})
+    public String distribution;
+
+    @Param({"100000"})
+    public int keys;
+
+    @Param({"1024"})
+    public int stripes;
+
+    @Param({"hash", "compact"})
+    public String lockTable;
+
+    private LocalServer server;
+    private String[] names;
+    // Zipf (s = 1) over the names: DRAW_TABLE entries, each name filling a share
+    // proportional to 1 / rank, so a draw is one array read
+    private int[] zipfTable;
+
+    private static final int DRAW_TABLE = 1 << 20;
+
+    @Setup
+    public void setUp() {
+        server = LocalServer.leader(stripes, lockTable);
+        names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "lock-" + i;
+        }
+        if (distribution.equals("zipf")) {
+            double total = 0;
+            for (int rank = 1; rank <= keys; rank++) {
+                total += 1.0 / rank;
+            }
+            zipfTable = new int[DRAW_TABLE];
+            int filled = 0;
+            double cumulative = 0;
+            for (int rank = 1; rank <= keys && filled < DRAW_TABLE; rank++) {
+                cumulative += 1.0 / rank / total;
+                int end = (int) Math.min(DRAW_TABLE, Math.round(cumulative * DRAW_TABLE));
+                while (filled < end) {
+                    zipfTable[filled++] = rank - 1;
+                }
+            }
+            while (filled < DRAW_TABLE) {
+                zipfTable[filled++] = keys - 1;
+            }
+        } else if (!distribution.equals("uniform") && !distribution.equals("single")) {
+            throw new IllegalArgumentException("Unknown distribution " + distribution);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        String clientId;
+        SplittableRandom random;
+
+        @Setup
+        public void setUp() {
+            clientId = "client-" + Thread.currentThread().getId();
+            random = new SplittableRandom(clientId.hashCode());
+        }
+    }
+
+    private String nextName(Client client) {
+        switch (distribution) {
+            case "single":
+                return names[0];
+            case "zipf":
+                return names[zipfTable[client.random.nextInt(DRAW_TABLE)]];
+            default:
+                return names[client.random.nextInt(keys)];
+        }
+    }
+
+    // A failed LOCK (the name is held by another thread) is answered without a
+    // mutation; UNLOCK then answers NOT_OWNER. Both are part of the workload.
+    @Benchmark
+    public String lockUnlock(Client client) {
+        String name = nextName(client);
+        server.request("LOCK", name, client.clientId);
+        return server.request("UNLOCK", name, client.clientId);
+    }
+
+    @Benchmark
+    public String own(Client client) {
+        return server.request("OWN", nextName(client), client.clientId);
+    }
+
+    @Threads(1)
+    public static class OneThread extends LockTableBenchmark {
+    }
+
+    @Threads(4)
+    public static class FourThreads extends LockTableBenchmark {
+    }
+
+    @Threads(16)
+    public static class SixteenThreads extends LockTableBenchmark {
+    }
+}
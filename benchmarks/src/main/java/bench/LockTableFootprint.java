@@ -0,0 +1,80 @@
+package bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+// Heap held per lock by each lock table implementation, and the collector's work
+// while the table fills. Not a JMH benchmark (it measures memory, once): a
+// follower applies count LOCK mutations of distinct names from clients owners
+// in batches, then the live heap after a full GC is compared with the empty
+// server's. Run one implementation per JVM, with a heap large enough for it:
+//
+//   java -Xmx8g -cp benchmarks/target/benchmarks.jar bench.LockTableFootprint compact 10000000
+public final class LockTableFootprint {
+
+    private static final int BATCH = 1000;
+
+    public static void main(String[] args) {
+        String lockTable = args.length > 0 ? args[0] : "hash";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int owners = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        // The follower keeps its last entries for a leader change (dls.replicationLogMaxEntries),
+        // which would hold every mutation applied here, not the table
+        if (System.getProperty("dls.replicationLogMaxEntries") == null) {
+            System.setProperty("dls.replicationLogMaxEntries", "16");
+        }
+        LocalServer server = LocalServer.follower(1024, lockTable);
+        long before = liveHeap();
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTimeMs();
+        long startedAt = System.nanoTime();
+        List<String> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < count; i++) {
+            // Names of the form they take in practice: a prefix and an ID, 12 to 20 bytes
+            batch.add("LOCK,order-" + (100_000_000 + i) + ",client-" + (i % owners));
+            if (batch.size() == BATCH || i == count - 1) {
+                server.apply(batch);
+                batch = new ArrayList<>(BATCH);
+            }
+        }
+        long fillMs = (System.nanoTime() - startedAt) / 1_000_000;
+        long gcs = gcCount() - gcCountBefore;
+        long gcMs = gcTimeMs() - gcTimeBefore;
+        long after = liveHeap();
+        if (server.lockCount() != count) {
+            throw new IllegalStateException("Expected " + count + " locks, found " + server.lockCount());
+        }
+
+        System.out.printf("lockTable=%s locks=%d owners=%d%n", lockTable, count, owners);
+        System.out.printf("  heap held: %.1f MB, %.1f bytes per lock%n", (after - before) / 1e6, (double) (after - before) / count);
+        System.out.printf("  fill: %d ms, %d collections taking %d ms%n", fillMs, gcs, gcMs);
+        server.close();
+    }
+
+    // Heap in use after a full collection (System.gc is a full GC with the default collectors)
+    private static long liveHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTimeMs() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+}
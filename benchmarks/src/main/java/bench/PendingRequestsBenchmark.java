@@ -0,0 +1,61 @@
+package bench;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+
+// Registering and completing a forwarded request in the pending-request map: the
+// numeric request IDs the server uses (one AtomicLong, Long keys) against the
+// "lockName:clientId:cmd" string keys they replaced, which cost a concatenation
+// and a string hash per request. The nested classes add threads.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public abstract class PendingRequestsBenchmark {
+
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final ConcurrentHashMap<Long, Object> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Object> byKey = new ConcurrentHashMap<>();
+
+    @State(Scope.Thread)
+    public static class Request {
+        final Object pending = new Object();
+        String clientId;
+        int counter;
+
+        @Setup
+        public void setUp() {
+            clientId = "client-" + Thread.currentThread().getId();
+        }
+    }
+
+    @Benchmark
+    public Object numericId(Request request) {
+        long id = nextRequestId.incrementAndGet();
+        byId.put(id, request.pending);
+        return byId.remove(id);
+    }
+
+    @Benchmark
+    public Object stringKey(Request request) {
+        String key = "lock-" + (request.counter++ & 1023) + ":" + request.clientId + ":LOCK";
+        byKey.put(key, request.pending);
+        return byKey.remove(key);
+    }
+
+    @Threads(1)
+    public static class OneThread extends PendingRequestsBenchmark {
+    }
+
+    @Threads(4)
+    public static class FourThreads extends PendingRequestsBenchmark {
+    }
+
+    @Threads(16)
+    public static class SixteenThreads extends PendingRequestsBenchmark {
+    }
+}
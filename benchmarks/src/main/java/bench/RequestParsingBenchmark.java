@@ -0,0 +1,74 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Decoding one request: a text line (Server.parseRequest) against a binary frame
+// (as Server.onFrame reads it).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestParsingBenchmark {
+
+    private LocalServer server;
+    private String lockLine;
+    private String lockWaitLine;
+    private String multiLockLine;
+    private ByteBuffer lockFrame;
+    private ByteBuffer lockWaitFrame;
+
+    @Setup
+    public void setUp() {
+        server = LocalServer.follower(16);
+        lockLine = "LOCK,orders/42,client-7";
+        lockWaitLine = "LOCK_WAIT,orders/42,client-7,500,30000";
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            names.append(i == 0 ? "" : ";").append("{order42}.item-").append(i);
+        }
+        multiLockLine = "MLOCK," + names + ",client-7,30000";
+        lockFrame = server.encodeFrame("LOCK", "orders/42", "client-7", 0, 0);
+        lockWaitFrame = server.encodeFrame("LOCK_WAIT", "orders/42", "client-7", 30000, 500);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public Object textLock() {
+        return server.parseText(lockLine);
+    }
+
+    @Benchmark
+    public Object textLockWait() {
+        return server.parseText(lockWaitLine);
+    }
+
+    @Benchmark
+    public Object textMultiLock() {
+        return server.parseText(multiLockLine);
+    }
+
+    @Benchmark
+    public Object binaryLock() {
+        return server.parseFrame(lockFrame.duplicate());
+    }
+
+    @Benchmark
+    public Object binaryLockWait() {
+        return server.parseFrame(lockWaitFrame.duplicate());
+    }
+
+    // Baseline: the cost of the duplicate() the binary benchmarks include
+    @Benchmark
+    public void duplicateOnly(Blackhole blackhole) {
+        blackhole.consume(lockFrame.duplicate());
+    }
+}
@@ -0,0 +1,62 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A follower applying replicated entries (Server.applySyncEntry) of batchSize
+// mutations each, as group commit sends them. Entries alternate between taking
+// and releasing the same names, so the lock table stays the same size.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SyncApplyBenchmark {
+
+    @Param({"1", "16", "128"})
+    public int batchSize;
+
+    @Param({"1024"})
+    public int stripes;
+
+    @Param({"hash", "compact"})
+    public String lockTable;
+
+    private LocalServer server;
+    private final List<List<String>> locks = new ArrayList<>();
+    private final List<List<String>> unlocks = new ArrayList<>();
+    private int next;
+
+    private static final int ENTRIES = 64;
+
+    @Setup
+    public void setUp() {
+        server = LocalServer.follower(stripes, lockTable);
+        for (int e = 0; e < ENTRIES; e++) {
+            List<String> lock = new ArrayList<>();
+            List<String> unlock = new ArrayList<>();
+            for (int i = 0; i < batchSize; i++) {
+                String name = "lock-" + e + "-" + i;
+                lock.add("LOCK," + name + ",client-" + i);
+                unlock.add("UNLOCK," + name + ",client-" + i);
+            }
+            locks.add(lock);
+            unlocks.add(unlock);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    // One entry per invocation: throughput is in entries, times batchSize in mutations
+    @Benchmark
+    public void apply() {
+        int entry = next++ % (2 * ENTRIES);
+        server.apply(entry < ENTRIES ? locks.get(entry) : unlocks.get(entry - ENTRIES));
+    }
+}
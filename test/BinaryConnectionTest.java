@@ -0,0 +1,153 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Binary frames sent straight to the leader of a LocalCluster of three nodes:
+// pipelined requests answered by request ID, frames the server refuses without
+// closing the connection, and a connection with too many requests in flight
+// not read from until one is answered.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class BinaryConnectionTest extends ClusterTestBase {
+    private Socket socket;
+    private DataOutputStream out;
+    private DataInputStream in;
+
+    @BeforeEach
+    void connect() throws Exception {
+        startCluster();
+        socket = new Socket();
+        socket.connect(cluster.clientAddress(leader), 5000);
+        socket.setSoTimeout(10_000);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out.write(BinaryProtocol.MAGIC);
+    }
+
+    @AfterEach
+    void disconnect() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    // A response: status, request ID and payload
+    private static final class Answer {
+        final byte status;
+        final long requestId;
+        final String payload;
+
+        Answer(byte status, long requestId, String payload) {
+            this.status = status;
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+    }
+
+    private void write(ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    private void send(byte opcode, long requestId, String lockName, String clientId, long ttlMs, long waitMs, int permits)
+            throws IOException {
+        write(BinaryProtocol.encodeRequest(opcode, requestId, lockName, clientId, ttlMs, waitMs, permits));
+    }
+
+    private Answer read() throws IOException {
+        out.flush();
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        ByteBuffer response = ByteBuffer.wrap(body);
+        return new Answer(response.get(), response.getLong(), BinaryProtocol.getString(response));
+    }
+
+    private Answer request(byte opcode, long requestId, String lockName, String clientId, long ttlMs, long waitMs, int permits)
+            throws IOException {
+        send(opcode, requestId, lockName, clientId, ttlMs, waitMs, permits);
+        Answer answer = read();
+        assertEquals(requestId, answer.requestId);
+        return answer;
+    }
+
+    @Test
+    void answersPipelinedRequestsByRequestId() throws Exception {
+        int count = 100;
+        for (int i = 1; i <= count; i++) {
+            send(BinaryProtocol.OP_LOCK, i, "lock-" + i, "client-" + i, 0, 0, 0);
+        }
+        Map<Long, Byte> statuses = new HashMap<>();
+        for (int i = 1; i <= count; i++) {
+            Answer answer = read();
+            assertNull(statuses.put(answer.requestId, answer.status), "answered twice: " + answer.requestId);
+        }
+        for (long id = 1; id <= count; id++) {
+            assertEquals(BinaryProtocol.STATUS_SUCCESS, statuses.get(id));
+        }
+
+        Answer owner = request(BinaryProtocol.OP_OWN, 500, "lock-7", "X", 0, 0, 0);
+        assertEquals(BinaryProtocol.STATUS_OWNER, owner.status);
+        assertEquals("client-7", owner.payload);
+        assertEquals(BinaryProtocol.STATUS_FAIL, request(BinaryProtocol.OP_LOCK, 501, "lock-7", "other", 0, 0, 0).status);
+        assertEquals(BinaryProtocol.STATUS_NONE, request(BinaryProtocol.OP_OWN, 502, "free", "X", 0, 0, 0).status);
+    }
+
+    @Test
+    void stopsReadingAtTheLimitOfRequestsInFlight() throws Exception {
+        assertEquals(BinaryProtocol.STATUS_SUCCESS, request(BinaryProtocol.OP_LOCK, 1, "busy", "A", 0, 0, 0).status);
+        int waiting = Connection.MAX_FRAMES_IN_FLIGHT;
+        for (int i = 0; i < waiting; i++) {
+            send(BinaryProtocol.OP_LOCK_WAIT, 100 + i, "busy", "B" + i, 0, 1500, 0);
+        }
+        // Not read while every slot waits for the lock, so answered after the first wait ran out
+        send(BinaryProtocol.OP_OWN, 2, "busy", "X", 0, 0, 0);
+        Answer first = read();
+        assertEquals(BinaryProtocol.STATUS_TIMEOUT, first.status);
+        assertTrue(first.requestId >= 100);
+        boolean owned = false;
+        for (int i = 0; i < waiting; i++) {
+            Answer answer = read();
+            if (answer.requestId == 2) {
+                assertEquals("A", answer.payload);
+                owned = true;
+            } else {
+                assertEquals(BinaryProtocol.STATUS_TIMEOUT, answer.status);
+            }
+        }
+        assertTrue(owned);
+        assertEquals(BinaryProtocol.STATUS_SUCCESS, request(BinaryProtocol.OP_UNLOCK, 3, "busy", "A", 0, 0, 0).status);
+    }
+
+    @Test
+    void refusesInvalidFramesAndKeepsTheConnection() throws Exception {
+        assertEquals(BinaryProtocol.STATUS_INVALID_COMMAND, request((byte) 99, 1, "orders", "A", 0, 0, 0).status);
+        // Names the text replication log could not carry
+        assertEquals(BinaryProtocol.STATUS_INVALID_FORMAT, request(BinaryProtocol.OP_LOCK, 2, "a,b", "A", 0, 0, 0).status);
+        assertEquals(BinaryProtocol.STATUS_INVALID_FORMAT, request(BinaryProtocol.OP_LOCK, 3, "orders", "A\nB", 0, 0, 0).status);
+        assertEquals(BinaryProtocol.STATUS_INVALID_FORMAT, request(BinaryProtocol.OP_LOCK, 4, "", "A", 0, 0, 0).status);
+        assertEquals(BinaryProtocol.STATUS_INVALID_FORMAT, request(BinaryProtocol.OP_LOCK, 5, "orders", "A", -1, 0, 0).status);
+        assertEquals(BinaryProtocol.STATUS_INVALID_FORMAT, request(BinaryProtocol.OP_LOCK_WAIT, 6, "orders", "A", 0, 0, 0).status);
+        assertEquals(BinaryProtocol.STATUS_INVALID_FORMAT, request(BinaryProtocol.OP_OPEN_SESSION, 7, "", "A", 0, 0, 0).status);
+        // Only a semaphore has permits, and a shared hold no lease
+        assertEquals(BinaryProtocol.STATUS_INVALID_FORMAT, request(BinaryProtocol.OP_LOCK, 8, "orders", "A", 0, 0, 3).status);
+        assertEquals(BinaryProtocol.STATUS_INVALID_FORMAT, request(BinaryProtocol.OP_ACQUIRE, 9, "pool", "A", 0, 0, 0).status);
+        assertEquals(BinaryProtocol.STATUS_INVALID_FORMAT, request(BinaryProtocol.OP_ACQUIRE, 10, "pool", "A", 500, 0, 2).status);
+
+        // A body cut short: too short to hold the request ID even
+        ByteBuffer truncated = ByteBuffer.allocate(4 + 5);
+        truncated.putInt(5).put(BinaryProtocol.OP_LOCK).putInt(0).flip();
+        write(truncated);
+        Answer answer = read();
+        assertEquals(BinaryProtocol.STATUS_INVALID_FORMAT, answer.status);
+        assertEquals(0, answer.requestId);
+
+        assertEquals(BinaryProtocol.STATUS_SUCCESS, request(BinaryProtocol.OP_LOCK, 11, "orders", "A", 0, 0, 0).status);
+        assertEquals(BinaryProtocol.STATUS_SUCCESS, request(BinaryProtocol.OP_ACQUIRE, 12, "pool", "A", 0, 0, 2).status);
+    }
+}
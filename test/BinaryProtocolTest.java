@@ -0,0 +1,118 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// BinaryProtocol framing: requests read back field by field, the answer words
+// and their statuses, and answers that would not fit in a frame.
+class BinaryProtocolTest {
+
+    private static String repeat(String s, int times) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            result.append(s);
+        }
+        return result.toString();
+    }
+
+    @Test
+    void encodesARequestFieldByField() {
+        ByteBuffer frame = BinaryProtocol.encodeRequest(BinaryProtocol.OP_ACQUIRE, 42, "pool-é", "client-7", 0, 1500, 3);
+        assertEquals(frame.remaining() - 4, frame.getInt());
+        assertEquals(BinaryProtocol.OP_ACQUIRE, frame.get());
+        assertEquals(42, frame.getLong());
+        assertEquals(0, frame.getLong());
+        assertEquals(1500, frame.getLong());
+        assertEquals(3, frame.getInt());
+        assertEquals("pool-é", BinaryProtocol.getString(frame));
+        assertEquals("client-7", BinaryProtocol.getString(frame));
+        assertFalse(frame.hasRemaining());
+
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.encodeRequest(BinaryProtocol.OP_LOCK, 1,
+                repeat("a", BinaryProtocol.MAX_FRAME_LENGTH), "C", 0, 0, 0));
+    }
+
+    @Test
+    void refusesAStringLongerThanTheFrame() {
+        ByteBuffer body = ByteBuffer.allocate(6);
+        body.putShort((short) 10).put("abcd".getBytes(StandardCharsets.UTF_8)).flip();
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.getString(body));
+    }
+
+    @Test
+    void mapsEveryCommandToAnOpcodeAndBack() {
+        String[] commands = {"LOCK", "UNLOCK", "OWN", "RENEW", "LOCK_WAIT", "MLOCK", "MUNLOCK", "OPEN_SESSION",
+                "KEEPALIVE", "CLOSE_SESSION", "LOCK_SHARED", "ACQUIRE"};
+        for (String command : commands) {
+            assertEquals(command, BinaryProtocol.commandOf(BinaryProtocol.opcodeOf(command)));
+        }
+        assertNull(BinaryProtocol.commandOf((byte) 0));
+        assertNull(BinaryProtocol.commandOf((byte) 99));
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.opcodeOf("STATS"));
+    }
+
+    @Test
+    void mapsAnswerWordsToStatusesAndBack() {
+        String[] words = {"SUCCESS", "FAIL", "NONE", "TIMEOUT", "NO_QUORUM", "ERROR", "INVALID_FORMAT", "INVALID_COMMAND",
+                "NOT_LEADER", "CROSS_SHARD", "BUSY"};
+        for (String word : words) {
+            byte status = BinaryProtocol.statusOf("LOCK", word);
+            assertEquals(word, BinaryProtocol.responseOf(status, ""));
+            // OWN answers all of these but SUCCESS and FAIL itself: they are never taken for an owner
+            if (!word.equals("SUCCESS") && !word.equals("FAIL")) {
+                assertEquals(status, BinaryProtocol.statusOf("OWN", word), word);
+            }
+        }
+        // Any other answer to OWN is an owner, even one named like an answer to LOCK
+        assertEquals(BinaryProtocol.STATUS_OWNER, BinaryProtocol.statusOf("OWN", "SUCCESS"));
+        assertEquals(BinaryProtocol.STATUS_OWNER, BinaryProtocol.statusOf("OWN", "FAIL"));
+        assertEquals(BinaryProtocol.STATUS_ERROR, BinaryProtocol.statusOf("OWN", ""));
+        assertEquals(BinaryProtocol.STATUS_OWNER, BinaryProtocol.statusOf("OWN", "client-7"));
+        assertEquals(BinaryProtocol.STATUS_OWNER, BinaryProtocol.statusOf("OWN", "SHARED:2:a;b"));
+        assertEquals("client-7", BinaryProtocol.responseOf(BinaryProtocol.STATUS_OWNER, "client-7"));
+        // An answer no word stands for, to anything but OWN
+        assertEquals(BinaryProtocol.STATUS_ERROR, BinaryProtocol.statusOf("LOCK", "client-7"));
+        assertEquals("ERROR", BinaryProtocol.responseOf((byte) 99, ""));
+    }
+
+    @Test
+    void framesAnAnswerWithItsRequestId() {
+        ByteBuffer frame = BinaryProtocol.encodeResponse(Long.MAX_VALUE, "LOCK", "SUCCESS");
+        assertEquals(BinaryProtocol.RESPONSE_HEADER_LENGTH + 2, frame.getInt());
+        assertEquals(BinaryProtocol.STATUS_SUCCESS, frame.get());
+        assertEquals(Long.MAX_VALUE, frame.getLong());
+        assertEquals("", BinaryProtocol.getString(frame));
+
+        frame = BinaryProtocol.encodeResponse(3, "OWN", "client-é");
+        frame.getInt();
+        assertEquals(BinaryProtocol.STATUS_OWNER, frame.get());
+        assertEquals(3, frame.getLong());
+        assertEquals("client-é", BinaryProtocol.getString(frame));
+    }
+
+    @Test
+    void measuresUtf8WithoutEncoding() {
+        for (String value : new String[] {"", "client-7", "café", "жж", "€", "🔒lock", "\ud800x"}) {
+            assertEquals(value.getBytes(StandardCharsets.UTF_8).length, BinaryProtocol.utf8Length(value), value);
+        }
+    }
+
+    @Test
+    void answersErrorForAnOwnerLongerThanAFrame() {
+        // 3 bytes a char: the length prefix would wrap past 64 KB
+        String owner = repeat("€", 30_000);
+        ByteBuffer frame = BinaryProtocol.encodeResponse(9, "OWN", owner);
+        assertEquals(frame.remaining() - 4, frame.getInt());
+        assertEquals(BinaryProtocol.STATUS_ERROR, frame.get());
+        assertEquals(9, frame.getLong());
+        assertEquals("", BinaryProtocol.getString(frame));
+
+        String fits = repeat("a", BinaryProtocol.MAX_FRAME_LENGTH - BinaryProtocol.RESPONSE_HEADER_LENGTH - 2);
+        frame = BinaryProtocol.encodeResponse(10, "OWN", fits);
+        assertEquals(BinaryProtocol.MAX_FRAME_LENGTH, frame.getInt());
+        assertEquals(BinaryProtocol.STATUS_OWNER, frame.get());
+        assertEquals(10, frame.getLong());
+        assertEquals(fits, BinaryProtocol.getString(frame));
+    }
+}
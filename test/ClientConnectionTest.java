@@ -0,0 +1,192 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// ClientConnection against a scripted binary-protocol server: pipelined requests
+// from many threads matched to their answers by request ID, requests that time
+// out or cannot be framed, and a dropped connection failing what was in flight.
+// No request is left behind in inFlight.
+@Timeout(value = 30, unit = TimeUnit.SECONDS)
+class ClientConnectionTest {
+    private static final long TIMEOUT_MS = 300;
+
+    // One request frame as the server read it
+    private static final class Request {
+        final byte opcode;
+        final long requestId;
+        final String lockName;
+        final String clientId;
+
+        Request(ByteBuffer body) {
+            opcode = body.get();
+            requestId = body.getLong();
+            body.getLong();
+            body.getLong();
+            body.getInt();
+            lockName = BinaryProtocol.getString(body);
+            clientId = BinaryProtocol.getString(body);
+        }
+    }
+
+    private final TimerWheel timeouts = new TimerWheel("test-timeouts", 10, 64);
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private ServerSocket listener;
+    private Socket accepted;
+    private DataOutputStream toClient;
+    private ClientConnection connection;
+
+    @BeforeEach
+    void connect() throws Exception {
+        timeouts.start();
+        listener = new ServerSocket(0);
+        CompletableFuture<Socket> socket = CompletableFuture.supplyAsync(() -> {
+            try {
+                return listener.accept();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        connection = ClientConnection.open("127.0.0.1", listener.getLocalPort(), timeouts, TIMEOUT_MS);
+        accepted = socket.get(5, TimeUnit.SECONDS);
+        toClient = new DataOutputStream(accepted.getOutputStream());
+        DataInputStream fromClient = new DataInputStream(new BufferedInputStream(accepted.getInputStream()));
+        Thread reader = new Thread(() -> {
+            try {
+                assertEquals(BinaryProtocol.MAGIC, fromClient.readByte());
+                while (true) {
+                    byte[] body = new byte[fromClient.readInt()];
+                    fromClient.readFully(body);
+                    requests.add(new Request(ByteBuffer.wrap(body)));
+                }
+            } catch (IOException e) {
+                // Closed by the test
+            }
+        }, "test-server");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        connection.close();
+        accepted.close();
+        listener.close();
+        timeouts.shutdown();
+    }
+
+    private synchronized void answer(Request request, String response) throws IOException {
+        ByteBuffer frame = BinaryProtocol.encodeResponse(request.requestId, BinaryProtocol.commandOf(request.opcode), response);
+        toClient.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        toClient.flush();
+    }
+
+    private CompletableFuture<String> own(String lockName) {
+        return connection.send(BinaryProtocol.OP_OWN, lockName, "client", 0, 0, 0);
+    }
+
+    @Test
+    void concurrentRequestsGetTheirOwnAnswersInAnyOrder() throws Exception {
+        int threads = 8;
+        int perThread = 50;
+        ExecutorService senders = Executors.newFixedThreadPool(threads);
+        List<Future<Map<String, CompletableFuture<String>>>> sent = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            sent.add(senders.submit(() -> {
+                Map<String, CompletableFuture<String>> results = new HashMap<>();
+                for (int i = 0; i < perThread; i++) {
+                    String name = "lock-" + thread + "-" + i;
+                    results.put(name, own(name));
+                }
+                return results;
+            }));
+        }
+        // Answered all at once, in an order unrelated to the sending one; the owner is
+        // the lock name, so that each answer shows whose it is
+        List<Request> received = new ArrayList<>();
+        while (received.size() < threads * perThread) {
+            received.add(requests.poll(5, TimeUnit.SECONDS));
+        }
+        Collections.shuffle(received, new Random(1));
+        for (Request request : received) {
+            answer(request, "owner-of-" + request.lockName);
+        }
+        try {
+            for (Future<Map<String, CompletableFuture<String>>> results : sent) {
+                for (Map.Entry<String, CompletableFuture<String>> result : results.get(5, TimeUnit.SECONDS).entrySet()) {
+                    assertEquals("owner-of-" + result.getKey(), result.getValue().get(5, TimeUnit.SECONDS));
+                }
+            }
+        } finally {
+            senders.shutdownNow();
+        }
+        Set<Long> requestIds = new HashSet<>();
+        received.forEach(request -> requestIds.add(request.requestId));
+        assertEquals(threads * perThread, requestIds.size());
+        assertEquals(0, connection.inFlightCount());
+    }
+
+    @Test
+    void anUnansweredRequestTimesOutAndItsLateAnswerIsIgnored() throws Exception {
+        CompletableFuture<String> result = own("slow");
+        Request request = requests.poll(5, TimeUnit.SECONDS);
+        assertEquals("TIMEOUT", result.get(TIMEOUT_MS + 2000, TimeUnit.MILLISECONDS));
+        assertEquals(0, connection.inFlightCount());
+
+        answer(request, "too-late");
+        CompletableFuture<String> next = own("next");
+        answer(requests.poll(5, TimeUnit.SECONDS), "NONE");
+        assertEquals("NONE", next.get(5, TimeUnit.SECONDS));
+        assertFalse(connection.isClosed());
+
+        // LOCK_WAIT also gets the time it may wait for the lock
+        CompletableFuture<String> waiting = connection.send(BinaryProtocol.OP_LOCK_WAIT, "queued", "client", 0, 1000, 0);
+        Thread.sleep(TIMEOUT_MS + 200);
+        assertFalse(waiting.isDone());
+        assertEquals("TIMEOUT", waiting.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void aDroppedConnectionFailsEveryRequestInFlight() throws Exception {
+        List<CompletableFuture<String>> pending = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            pending.add(own("lock-" + i));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(requests.poll(5, TimeUnit.SECONDS));
+        }
+        assertEquals(5, connection.inFlightCount());
+
+        accepted.close();
+        for (CompletableFuture<String> result : pending) {
+            assertEquals("ERROR", result.get(5, TimeUnit.SECONDS));
+        }
+        assertTrue(connection.isClosed());
+        assertEquals(0, connection.inFlightCount());
+        // Later requests fail at once instead of waiting for their timeout
+        assertEquals("ERROR", own("after").get(1, TimeUnit.SECONDS));
+        assertEquals(0, connection.inFlightCount());
+    }
+
+    @Test
+    void aRequestTooLargeForAFrameIsRefusedWithoutBeingSent() throws Exception {
+        char[] name = new char[BinaryProtocol.MAX_FRAME_LENGTH];
+        Arrays.fill(name, 'x');
+        assertEquals("INVALID_FORMAT", own(new String(name)).get(1, TimeUnit.SECONDS));
+        assertEquals(0, connection.inFlightCount());
+
+        CompletableFuture<String> next = own("next");
+        answer(requests.poll(5, TimeUnit.SECONDS), "NONE");
+        assertEquals("NONE", next.get(5, TimeUnit.SECONDS));
+        assertTrue(requests.isEmpty());
+    }
+}
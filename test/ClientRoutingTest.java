@@ -0,0 +1,175 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A leader-aware Client on a LocalCluster of three nodes: it learns the leader
+// from a follower's TOPOLOGY and sends its writes there, answers OWN from the
+// node it asks, follows the next leader when the leader dies, and asks for the
+// topology again after a write answered NOT_LEADER (sent again) or ERROR (not).
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class ClientRoutingTest extends ClusterTestBase {
+    private final List<Client> clients = new ArrayList<>();
+    private final List<ServerSocket> fakes = new ArrayList<>();
+
+    @BeforeEach
+    void start() throws Exception {
+        startCluster();
+    }
+
+    @AfterEach
+    void closeClients() throws IOException {
+        for (Client client : clients) {
+            client.close();
+        }
+        for (ServerSocket fake : fakes) {
+            fake.close();
+        }
+    }
+
+    private Client client(String host, int port, boolean binary, int poolSize) {
+        Client client = new Client(host, port, "app", binary, poolSize);
+        client.setLeaderAware(true);
+        clients.add(client);
+        return client;
+    }
+
+    // A leader-aware client that only knows the given node
+    private Client clientOf(int node, boolean binary, int poolSize) {
+        return client("127.0.0.1", cluster.clientAddress(node).getPort(), binary, poolSize);
+    }
+
+    private long count(int node, String cmd) {
+        return sample(cluster.server(node), "dls_request_latency_us_count{cmd=\"" + cmd + "\"}");
+    }
+
+    // Leader named by a node's TOPOLOGY (TOPOLOGY,<term>,<leader>,<members>)
+    private String leaderNamedBy(int node) throws IOException {
+        return send(node, "TOPOLOGY").split(",")[2];
+    }
+
+    // Until a follower has heard from the leader its TOPOLOGY names none (or the old one)
+    private void awaitLeaderKnown(int node, int leaderNode) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!leaderNamedBy(node).equals(cluster.memberId(leaderNode)) && System.nanoTime() - deadline < 0) {
+            Thread.sleep(20);
+        }
+        assertEquals(cluster.memberId(leaderNode), leaderNamedBy(node));
+    }
+
+    @Test
+    void writesGoToTheLeaderAndReadsToTheNodeAsked() throws Exception {
+        int seed = followers().get(0);
+        awaitLeaderKnown(seed, leader);
+        for (boolean binary : new boolean[] {false, true}) {
+            Client client = clientOf(seed, binary, binary ? 2 : 0);
+            for (int i = 0; i < 10; i++) {
+                assertEquals("SUCCESS", client.request("LOCK", "lock-" + binary + "-" + i, 0, 0));
+            }
+        }
+        assertEquals("SUCCESS", clientOf(seed, true, 2).lockAsync("async", 0).get(5, TimeUnit.SECONDS));
+        for (int follower : followers()) {
+            assertEquals(0, count(follower, "LOCK"), "LOCKs sent to follower " + follower);
+        }
+        assertEquals(21, count(leader, "LOCK"));
+
+        // OWN is answered by whichever member it is sent to, in turn over all of them
+        awaitSameLocksEverywhere();
+        Client client = clientOf(seed, false, 0);
+        for (int i = 0; i < 3 * NODES; i++) {
+            assertEquals("app", client.request("OWN", "lock-false-" + i % 10, 0, 0));
+        }
+        for (int node = 0; node < NODES; node++) {
+            assertEquals(3, count(node, "OWN"), "OWNs answered by node " + node);
+        }
+    }
+
+    @Test
+    void followsTheNextLeaderWhenTheLeaderDies() throws Exception {
+        int seed = followers().get(0);
+        awaitLeaderKnown(seed, leader);
+        Client client = clientOf(seed, false, 0);
+        Client pooled = clientOf(seed, true, 1);
+        assertEquals("SUCCESS", client.request("LOCK", "before", 0, 0));
+        assertEquals("SUCCESS", pooled.lockAsync("before-async", 0).get(5, TimeUnit.SECONDS));
+
+        cluster.stop(leader);
+        int newLeader = awaitLeaderAmong(followers());
+        for (int follower : followers()) {
+            awaitLeaderKnown(follower, newLeader);
+        }
+        // Refused by the old leader, then sent to the one the topology names now
+        assertEquals("SUCCESS", client.request("LOCK", "after", 0, 0));
+        assertEquals("SUCCESS", pooled.lockAsync("after-async", 0).get(10, TimeUnit.SECONDS));
+        assertEquals("app", cluster.server(newLeader).lockTable().get("after"));
+        assertEquals("app", cluster.server(newLeader).lockTable().get("after-async"));
+        assertEquals("app", cluster.server(newLeader).lockTable().get("before"));
+    }
+
+    // A text server that answers TOPOLOGY naming the next of leaders (itself if null)
+    // and every other line with the next of answers, recording the lines it was sent
+    private ServerSocket fakeMember(Deque<String> leaders, Deque<String> answers, List<String> received) throws IOException {
+        ServerSocket fake = new ServerSocket(0);
+        fakes.add(fake);
+        String self = "127.0.0.1:" + fake.getLocalPort();
+        Thread thread = new Thread(() -> {
+            while (!fake.isClosed()) {
+                try (Socket socket = fake.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                    String line = in.readLine();
+                    received.add(line);
+                    if (line.equals("TOPOLOGY")) {
+                        String next = leaders.poll();
+                        String named = next != null ? next : self;
+                        out.println("TOPOLOGY,7," + named + "," + self + ";" + cluster.memberId(leader));
+                    } else {
+                        out.println(answers.poll());
+                    }
+                } catch (IOException e) {
+                    // Closed by the test
+                }
+            }
+        }, "fake-member");
+        thread.setDaemon(true);
+        thread.start();
+        return fake;
+    }
+
+    @Test
+    void asksForTheTopologyAgainAfterNotLeaderOrError() throws Exception {
+        List<String> received = new CopyOnWriteArrayList<>();
+        Deque<String> leaders = new ConcurrentLinkedDeque<>();
+        ServerSocket fake = fakeMember(leaders, new ConcurrentLinkedDeque<>(Arrays.asList("NOT_LEADER", "ERROR")), received);
+        String self = "127.0.0.1:" + fake.getLocalPort();
+        Client client = client("127.0.0.1", fake.getLocalPort(), false, 0);
+
+        // The fake takes itself for the leader, and answers NOT_LEADER: nothing was done,
+        // so the write is sent again to the leader it names when asked again
+        leaders.add(self);
+        leaders.add(cluster.memberId(leader));
+        assertEquals("SUCCESS", client.request("LOCK", "orders", 0, 0));
+        assertEquals(Arrays.asList("TOPOLOGY", "LOCK,orders,app", "TOPOLOGY"), received);
+        assertEquals("app", leader().lockTable().get("orders"));
+
+        // Answered ERROR: the outcome is unknown, so it is not sent again, but the
+        // next request asks for the topology first
+        received.clear();
+        leaders.add(self);
+        client = client("127.0.0.1", fake.getLocalPort(), false, 0);
+        assertEquals("ERROR", client.request("UNLOCK", "orders", 0, 0));
+        assertEquals(Arrays.asList("TOPOLOGY", "UNLOCK,orders,app"), received);
+        leaders.add(cluster.memberId(leader));
+        assertEquals("SUCCESS", client.request("UNLOCK", "orders", 0, 0));
+        assertEquals(Arrays.asList("TOPOLOGY", "UNLOCK,orders,app", "TOPOLOGY"), received);
+        assertNull(leader().lockTable().get("orders"));
+    }
+}
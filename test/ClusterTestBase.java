@@ -0,0 +1,173 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Base of the tests that run a LocalCluster of three nodes. The cluster takes free
+// ports (see LocalCluster.freeBasePort), kept across restarts of the same test so
+// that the nodes keep their member IDs; subclasses change the nodes' configuration
+// in configure() and send requests straight to a node's request path.
+abstract class ClusterTestBase {
+    protected static final int NODES = 3;
+
+    protected LocalCluster cluster;
+    // Node that led when the cluster last started
+    protected int leader;
+    private int basePort;
+
+    // Configuration of each node, on top of a 2 s replication timeout
+    protected void configure(ServerConfig config, int node) {
+    }
+
+    // (Re)start the cluster and wait for a leader that every node follows
+    protected int startCluster() throws Exception {
+        if (cluster != null) {
+            cluster.close();
+        }
+        if (basePort == 0) {
+            basePort = LocalCluster.freeBasePort(NODES);
+        }
+        cluster = new LocalCluster(NODES, basePort, 1, (config, node) -> {
+            config.replicationTimeoutMs = 2000;
+            configure(config, node);
+        });
+        cluster.start();
+        leader = cluster.awaitLeader(10_000);
+        assertTrue(leader >= 0, "no leader elected");
+        awaitSettled();
+        return leader;
+    }
+
+    // Wait for every node to be in the leader's term, so that a node that began
+    // campaigning before it heard from the leader does not depose it under the
+    // test's first requests
+    private void awaitSettled() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() - deadline < 0) {
+            int current = cluster.leader();
+            if (current >= 0) {
+                leader = current;
+                long term = sample(leader(), "dls_term");
+                boolean settled = true;
+                for (int node = 0; node < NODES; node++) {
+                    Server server = cluster.server(node);
+                    settled &= server != null && sample(server, "dls_term") == term && (node == leader || !server.isLeader());
+                }
+                if (settled) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+        fail("Cluster did not settle on a leader: " + cluster.status());
+    }
+
+    @AfterEach
+    void stopCluster() {
+        if (cluster != null) {
+            cluster.close();
+        }
+    }
+
+    protected Server leader() {
+        return cluster.server(leader);
+    }
+
+    protected List<Integer> followers() {
+        List<Integer> followers = new ArrayList<>();
+        for (int node = 0; node < NODES; node++) {
+            if (node != leader) {
+                followers.add(node);
+            }
+        }
+        return followers;
+    }
+
+    // Wait for one of the given nodes to lead (another node left, or was cut off)
+    protected int awaitLeaderAmong(List<Integer> nodes) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() - deadline < 0) {
+            for (int node : nodes) {
+                Server server = cluster.server(node);
+                if (server != null && server.isLeader()) {
+                    return node;
+                }
+            }
+            Thread.sleep(10);
+        }
+        fail("No leader elected among nodes " + nodes);
+        return -1;
+    }
+
+    protected String request(int node, String cmd, String lockName, String clientId, long ttlMs) throws Exception {
+        return cluster.server(node).processRequest(cmd, lockName, clientId, ttlMs, 0, 0, false).get(5, TimeUnit.SECONDS);
+    }
+
+    protected String request(int node, String cmd, String lockName, String clientId) throws Exception {
+        return request(node, cmd, lockName, clientId, 0);
+    }
+
+    protected String request(String cmd, String lockName, String clientId, long ttlMs) throws Exception {
+        return request(leader, cmd, lockName, clientId, ttlMs);
+    }
+
+    protected String request(String cmd, String lockName, String clientId) throws Exception {
+        return request(leader, cmd, lockName, clientId, 0);
+    }
+
+    protected String acquire(String lockName, String clientId, int permits) throws Exception {
+        return leader().processRequest("ACQUIRE", lockName, clientId, 0, 0, permits, false).get(5, TimeUnit.SECONDS);
+    }
+
+    // A LOCK_WAIT on the leader, answered once the lock is handed over or the wait is over
+    protected CompletableFuture<String> lockWait(String lockName, String clientId, long waitMs) {
+        return leader().processRequest("LOCK_WAIT", lockName, clientId, 0, waitMs, 0, false);
+    }
+
+    // One text line to a node's client port, and its answer
+    protected String send(int node, String line) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(cluster.clientAddress(node), 5000);
+            socket.setSoTimeout(10_000);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.println(line);
+            return in.readLine();
+        }
+    }
+
+    // Value of one sample ("name" or "name{labels}") of a server's metrics
+    protected static long sample(Server server, String sample) {
+        for (String line : server.collectMetrics().toText().split("\n")) {
+            if (line.startsWith(sample + " ")) {
+                return Long.parseLong(line.substring(sample.length() + 1));
+            }
+        }
+        fail("No sample " + sample);
+        return -1;
+    }
+
+    // Wait for a node's lock table to become expected
+    protected void awaitLocks(int node, Map<String, String> expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!expected.equals(cluster.server(node).lockTable()) && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, new HashMap<>(cluster.server(node).lockTable()), "node " + node);
+    }
+
+    // Wait for every running node to have the leader's lock table
+    protected void awaitSameLocksEverywhere() throws InterruptedException {
+        Map<String, String> expected = new HashMap<>(leader().lockTable());
+        for (int node = 0; node < NODES; node++) {
+            if (cluster.server(node) != null) {
+                awaitLocks(node, expected);
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// CompactLockTable against a HashMap: growth of its segments, removed slots and
+// names, and client handles reused by another client.
+class CompactLockTableTest {
+
+    @Test
+    void growsFromEmptySegmentsToManyLocks() {
+        CompactLockTable table = new CompactLockTable();
+        long emptyBytes = table.footprintBytes();
+        int count = 200_000;
+        for (int i = 0; i < count; i++) {
+            assertNull(table.put("order-" + i, "client-" + (i % 100)));
+        }
+        assertEquals(count, table.size());
+        assertEquals(100, table.ownerCount());
+        assertTrue(table.footprintBytes() > emptyBytes);
+        for (int i = 0; i < count; i++) {
+            assertEquals("client-" + (i % 100), table.get("order-" + i));
+        }
+        assertNull(table.get("order-" + count));
+        assertEquals(count / 100, table.locksOf("client-7").size());
+        assertEquals(count, table.entrySet().size());
+    }
+
+    @Test
+    void removesLocksAndTakesTheirNamesAgain() {
+        CompactLockTable table = new CompactLockTable();
+        for (int i = 0; i < 10_000; i++) {
+            table.put("lock-" + i, "a");
+        }
+        for (int i = 0; i < 10_000; i += 2) {
+            assertEquals("a", table.remove("lock-" + i));
+        }
+        assertNull(table.remove("lock-0"));
+        assertFalse(table.remove("lock-1", "b"));
+        assertTrue(table.remove("lock-1", "a"));
+        assertEquals(4_999, table.size());
+        assertEquals(4_999, table.locksOf("a").size());
+        assertFalse(table.containsKey("lock-0"));
+
+        // Removed slots and names are reclaimed while the table keeps being used
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 10_000; i += 2) {
+                table.put("lock-" + i, "b");
+            }
+            for (int i = 0; i < 10_000; i += 2) {
+                assertTrue(table.remove("lock-" + i, "b"));
+            }
+        }
+        assertEquals(4_999, table.size());
+        assertTrue(table.locksOf("b").isEmpty());
+        assertEquals(1, table.ownerCount());
+        for (int i = 3; i < 10_000; i += 2) {
+            assertEquals("a", table.get("lock-" + i));
+        }
+    }
+
+    @Test
+    void movesALockToItsNewOwnersIndex() {
+        CompactLockTable table = new CompactLockTable();
+        table.put("x", "a");
+        table.put("y", "a");
+        assertEquals("a", table.put("x", "b"));
+        assertEquals(Collections.singletonList("y"), table.locksOf("a"));
+        assertEquals(Collections.singletonList("x"), table.locksOf("b"));
+    }
+
+    @Test
+    void reusesTheHandleOfAClientThatHoldsNothing() {
+        CompactLockTable table = new CompactLockTable();
+        for (int i = 0; i < 1000; i++) {
+            table.put("a-" + i, "first");
+        }
+        // Leaves removed slots in first's lists; its handle is free once the last one goes
+        for (int i = 0; i < 1000; i++) {
+            table.remove("a-" + i);
+        }
+        assertEquals(0, table.ownerCount());
+        assertTrue(table.locksOf("first").isEmpty());
+
+        // second gets first's handle: none of first's old slots may show up as second's
+        for (int i = 0; i < 10; i++) {
+            table.put("b-" + i, "second");
+        }
+        assertEquals(1, table.ownerCount());
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            expected.add("b-" + i);
+        }
+        assertEquals(expected, new HashSet<>(table.locksOf("second")));
+        assertTrue(table.locksOf("first").isEmpty());
+        assertNull(table.get("a-1"));
+
+        // And first comes back under another (or the same, freed) handle
+        table.put("a-1", "first");
+        assertEquals(Collections.singletonList("a-1"), table.locksOf("first"));
+        assertEquals(10, table.locksOf("second").size());
+        assertEquals(2, table.ownerCount());
+    }
+
+    @Test
+    void matchesAHashMapUnderRandomOperations() {
+        CompactLockTable table = new CompactLockTable();
+        Map<String, String> model = new HashMap<>();
+        Random random = new Random(42);
+        for (int op = 0; op < 300_000; op++) {
+            String name = "n" + random.nextInt(5_000);
+            String owner = "c" + random.nextInt(50);
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    assertEquals(model.put(name, owner), table.put(name, owner));
+                    break;
+                case 2:
+                    assertEquals(model.remove(name), table.remove(name));
+                    break;
+                default:
+                    assertEquals(model.remove(name, owner), table.remove(name, owner));
+                    break;
+            }
+        }
+        assertEquals(model, new HashMap<>(table));
+        Map<String, Set<String>> byOwner = new HashMap<>();
+        model.forEach((name, owner) -> byOwner.computeIfAbsent(owner, k -> new HashSet<>()).add(name));
+        assertEquals(byOwner.size(), table.ownerCount());
+        for (int c = 0; c < 50; c++) {
+            assertEquals(byOwner.getOrDefault("c" + c, Collections.emptySet()), new HashSet<>(table.locksOf("c" + c)));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// GroupCommitter with a shipper that records the batches it is given: mutations
+// queued within a window go out together, in order, and share the batch's fate.
+@Timeout(value = 30, unit = TimeUnit.SECONDS)
+class GroupCommitterTest {
+
+    private final List<List<String>> shipped = Collections.synchronizedList(new ArrayList<>());
+
+    private CompletableFuture<Long> ship(List<String> messages) {
+        shipped.add(messages);
+        return CompletableFuture.completedFuture((long) shipped.size());
+    }
+
+    private static void assertNoQuorum(CompletableFuture<Long> committed) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> committed.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(Replicator.NoQuorumException.class, e.getCause());
+    }
+
+    private static List<String> lines(int from, int to) {
+        List<String> lines = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            lines.add("LOCK,lock-" + i + ",C");
+        }
+        return lines;
+    }
+
+    @Test
+    void shipsWhatIsQueuedWithinAWindowAsOneBatch() throws Exception {
+        Histogram batchSizes = new Histogram();
+        GroupCommitter committer = new GroupCommitter("test", 50, 1000, this::ship, batchSizes);
+        List<CompletableFuture<Long>> pending = new ArrayList<>();
+        // Queued before the flusher runs: all of them are waiting when it takes the first
+        for (String line : lines(0, 10)) {
+            pending.add(committer.submit(line));
+        }
+        committer.start();
+        try {
+            for (CompletableFuture<Long> committed : pending) {
+                assertEquals(1L, committed.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(Collections.singletonList(lines(0, 10)), shipped);
+            assertEquals(1, batchSizes.getCount());
+            assertEquals(0, committer.getQueuedCount());
+
+            // A later mutation goes out in a batch of its own
+            assertEquals(2L, committer.submit("UNLOCK,lock-0,C").get(5, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList("UNLOCK,lock-0,C"), shipped.get(1));
+        } finally {
+            committer.shutdown();
+        }
+    }
+
+    @Test
+    void shipsAFullBatchWithoutWaitingOutTheWindow() throws Exception {
+        GroupCommitter committer = new GroupCommitter("test", 60_000, 4, this::ship, new Histogram());
+        List<CompletableFuture<Long>> pending = new ArrayList<>();
+        for (String line : lines(0, 8)) {
+            pending.add(committer.submit(line));
+        }
+        committer.start();
+        try {
+            for (int i = 0; i < 8; i++) {
+                assertEquals(i < 4 ? 1L : 2L, pending.get(i).get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(Arrays.asList(lines(0, 4), lines(4, 8)), shipped);
+        } finally {
+            committer.shutdown();
+        }
+    }
+
+    @Test
+    void neverSplitsTheMutationsOfOneSubmit() throws Exception {
+        GroupCommitter committer = new GroupCommitter("test", 50, 1, this::ship, new Histogram());
+        CompletableFuture<Long> batch = committer.submit(lines(0, 3));
+        CompletableFuture<Long> single = committer.submit("LOCK,lock-3,C");
+        committer.start();
+        try {
+            assertEquals(1L, batch.get(5, TimeUnit.SECONDS));
+            assertEquals(2L, single.get(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(lines(0, 3), lines(3, 4)), shipped);
+        } finally {
+            committer.shutdown();
+        }
+    }
+
+    @Test
+    void aFailedShipmentFailsEveryMutationOfTheBatch() throws Exception {
+        CompletableFuture<Long> refused = new CompletableFuture<>();
+        refused.completeExceptionally(new Replicator.NoQuorumException("1 of 2 acks"));
+        GroupCommitter committer = new GroupCommitter("test", 50, 1000, messages -> {
+            if (shipped.isEmpty()) {
+                shipped.add(messages);
+                return refused;
+            }
+            if (shipped.size() == 1) {
+                shipped.add(messages);
+                throw new IllegalStateException("not leading");
+            }
+            return ship(messages);
+        }, new Histogram());
+        List<CompletableFuture<Long>> pending = new ArrayList<>();
+        for (String line : lines(0, 5)) {
+            pending.add(committer.submit(line));
+        }
+        committer.start();
+        try {
+            for (CompletableFuture<Long> committed : pending) {
+                assertNoQuorum(committed);
+            }
+            CompletableFuture<Long> thrown = committer.submit("LOCK,lock-5,C");
+            ExecutionException e = assertThrows(ExecutionException.class, () -> thrown.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+
+            // The committer carries on with the next batch
+            assertEquals(3L, committer.submit("LOCK,lock-6,C").get(5, TimeUnit.SECONDS));
+        } finally {
+            committer.shutdown();
+        }
+    }
+
+    @Test
+    void failsWhatItHoldsWhenShutDown() throws Exception {
+        // A window far longer than the test: the batch is still being collected at shutdown
+        GroupCommitter committer = new GroupCommitter("test", 60_000, 1000, this::ship, new Histogram());
+        committer.start();
+        List<CompletableFuture<Long>> pending = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            pending.add(committer.submit("LOCK,lock-" + i + ",C"));
+        }
+        committer.shutdown();
+        for (CompletableFuture<Long> committed : pending) {
+            assertNoQuorum(committed);
+        }
+        assertNoQuorum(committer.submit("LOCK,late,C"));
+        assertTrue(shipped.isEmpty());
+    }
+}
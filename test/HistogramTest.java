@@ -0,0 +1,115 @@
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Histogram: values below 64 are counted exactly, larger ones in buckets of about
+// 3% whose upper bound a percentile reports (never above the maximum), up to
+// Long.MAX_VALUE; counts and sums stay exact under concurrent recording.
+@Timeout(value = 30, unit = TimeUnit.SECONDS)
+class HistogramTest {
+
+    @Test
+    void anEmptyHistogramReportsZero() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getPercentile(99.9));
+        assertEquals(0.0, histogram.getMean());
+        assertEquals("count=0 mean=0.0 p50=0 p90=0 p99=0 p999=0 max=0", histogram.summary().replace(',', '.'));
+    }
+
+    @Test
+    void countsSmallValuesExactly() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 60; value++) {
+            histogram.record(value);
+        }
+        assertEquals(60, histogram.getCount());
+        assertEquals(60 * 61 / 2, histogram.getSum());
+        assertEquals(60, histogram.getMax());
+        assertEquals(30, histogram.getPercentile(50));
+        assertEquals(54, histogram.getPercentile(90));
+        assertEquals(60, histogram.getPercentile(99));
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals("count=60 mean=30.5 p50=30 p90=54 p99=60 p999=60 max=60",
+                histogram.summary().replace(',', '.'));
+    }
+
+    @Test
+    void reportsTheUpperBoundOfALargeValuesBucketButNeverMoreThanTheMaximum() {
+        Histogram histogram = new Histogram();
+        // 64 and 65 share the first bucket past the exact range
+        histogram.record(64);
+        assertEquals(64, histogram.getPercentile(50));
+        histogram.record(1000);
+        assertEquals(65, histogram.getPercentile(50));
+        // 1000 is in [992, 1007]: 32 buckets per power of two
+        assertEquals(1000, histogram.getPercentile(100));
+        histogram.record(5000);
+        assertEquals(1007, histogram.getPercentile(60));
+    }
+
+    @Test
+    void percentilesAreWithinThreePercentOfTheExactOnes() {
+        Random random = new Random(42);
+        Histogram histogram = new Histogram();
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 20);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : new double[] {1, 10, 50, 90, 99, 99.9, 100}) {
+            long exact = values[(int) Math.ceil(values.length * percentile / 100) - 1];
+            long reported = histogram.getPercentile(percentile);
+            assertTrue(reported >= exact, percentile + ": " + reported + " < " + exact);
+            assertTrue(reported <= exact + exact / 32, percentile + ": " + reported + " too far above " + exact);
+        }
+        assertEquals(values[values.length - 1], histogram.getMax());
+    }
+
+    @Test
+    void takesTheWholeRangeAndNegativeValuesAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+        histogram.record(-5);
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(2, histogram.getCount());
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    void concurrentRecordsAreAllCounted() throws Exception {
+        Histogram histogram = new Histogram();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                done.add(threads.submit(() -> {
+                    for (int i = 1; i <= 10_000; i++) {
+                        histogram.record(i);
+                    }
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(80_000, histogram.getCount());
+        assertEquals(8L * 10_000 * 10_001 / 2, histogram.getSum());
+        assertEquals(10_000, histogram.getMax());
+        long median = histogram.getPercentile(50);
+        assertTrue(median >= 5000 && median <= 5000 + 5000 / 32, "median " + median);
+    }
+}
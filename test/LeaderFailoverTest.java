@@ -0,0 +1,63 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Leader failover on a LocalCluster of three nodes: committed locks survive the
+// leader, a new one is elected by the others, and a leader cut off from the
+// majority neither commits nor keeps what it could not commit.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class LeaderFailoverTest extends ClusterTestBase {
+
+    @Override
+    protected void configure(ServerConfig config, int node) {
+        config.replicationTimeoutMs = 1000;
+    }
+
+    @Test
+    void committedLocksSurviveTheLeader() throws Exception {
+        startCluster();
+        for (int i = 0; i < 20; i++) {
+            assertEquals("SUCCESS", request(leader, "LOCK", "lock-" + i, "A"));
+        }
+
+        cluster.stop(leader);
+        int newLeader = awaitLeaderAmong(followers());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("A", cluster.server(newLeader).lockTable().get("lock-" + i));
+        }
+        assertEquals("FAIL", request(newLeader, "LOCK", "lock-0", "B"));
+        assertEquals("SUCCESS", request(newLeader, "UNLOCK", "lock-0", "A"));
+        assertEquals("SUCCESS", request(newLeader, "LOCK", "lock-0", "B"));
+        assertEquals("SUCCESS", request(newLeader, "LOCK", "lock-20", "B"));
+
+        // The old leader comes back as a follower and catches up
+        cluster.start(leader);
+        awaitLocks(leader, new HashMap<>(cluster.server(newLeader).lockTable()));
+        assertFalse(cluster.server(leader).isLeader());
+        assertEquals(newLeader, cluster.leader());
+    }
+
+    @Test
+    void leaderCutOffFromTheMajorityCannotCommit() throws Exception {
+        startCluster();
+        assertEquals("SUCCESS", request(leader, "LOCK", "before", "A"));
+
+        cluster.partition(leader);
+        // Applied on the isolated leader, but no follower acknowledges it
+        assertEquals("NO_QUORUM", request(leader, "LOCK", "isolated", "A"));
+
+        int newLeader = awaitLeaderAmong(followers());
+        assertEquals("SUCCESS", request(newLeader, "LOCK", "isolated", "B"));
+
+        cluster.heal();
+        // The old leader steps down and takes the majority's state, dropping its own write
+        Map<String, String> expected = new HashMap<>(cluster.server(newLeader).lockTable());
+        assertEquals("B", expected.get("isolated"));
+        awaitLocks(leader, expected);
+        assertFalse(cluster.server(leader).isLeader());
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Lock leases on a LocalCluster of three nodes: an unrenewed lock is released
+// on every node, RENEW keeps it, and a released lock's lease cannot expire the
+// next owner.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class LockLeaseTest extends ClusterTestBase {
+
+    @BeforeEach
+    void start() throws Exception {
+        startCluster();
+    }
+
+    private void awaitReleasedEverywhere(String lockName) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (int node = 0; node < NODES; node++) {
+            while (cluster.server(node).lockTable().containsKey(lockName) && System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+            }
+            assertNull(cluster.server(node).lockTable().get(lockName), "still held on node " + node);
+        }
+    }
+
+    @Test
+    void appliesTheDefaultTtlToLocksThatGiveNone() {
+        assertEquals(30_000, Server.parseRequest("LOCK,a,A", 30_000).ttlMs);
+        assertEquals(500, Server.parseRequest("LOCK,a,A,500", 30_000).ttlMs);
+        assertEquals(0, Server.parseRequest("RENEW,a,A", 30_000).ttlMs);
+        assertNull(Server.parseRequest("LOCK,a,A,soon", 30_000));
+    }
+
+    @Test
+    void anUnrenewedLockIsReleasedOnEveryNode() throws Exception {
+        long lockedAt = System.nanoTime();
+        assertEquals("SUCCESS", request("LOCK", "orders", "A", 300));
+        assertEquals("A", request("OWN", "orders", "X", 0));
+        awaitReleasedEverywhere("orders");
+        assertTrue(System.nanoTime() - lockedAt >= TimeUnit.MILLISECONDS.toNanos(300), "released before its lease ran out");
+        assertEquals("NONE", request("OWN", "orders", "X", 0));
+        assertEquals("FAIL", request("UNLOCK", "orders", "A", 0));
+        assertEquals("SUCCESS", request("LOCK", "orders", "B", 0));
+    }
+
+    @Test
+    void renewingKeepsTheLock() throws Exception {
+        assertEquals("SUCCESS", request("LOCK", "orders", "A", 300));
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(100);
+            assertEquals("SUCCESS", request("RENEW", "orders", "A", 0));
+        }
+        assertEquals("A", request("OWN", "orders", "X", 0));
+        assertEquals("FAIL", request("RENEW", "orders", "B", 0));
+
+        // A RENEW with a TTL of its own replaces the lease's
+        assertEquals("SUCCESS", request("RENEW", "orders", "A", 1500));
+        Thread.sleep(600);
+        assertEquals("A", request("OWN", "orders", "X", 0));
+        awaitReleasedEverywhere("orders");
+        assertEquals("FAIL", request("RENEW", "orders", "A", 0));
+    }
+
+    @Test
+    void aLockWithoutALeaseCannotBeRenewed() throws Exception {
+        assertEquals("SUCCESS", request("LOCK", "orders", "A", 0));
+        assertEquals("FAIL", request("RENEW", "orders", "A", 300));
+        Thread.sleep(500);
+        assertEquals("A", request("OWN", "orders", "X", 0));
+    }
+
+    @Test
+    void theLeaseOfAReleasedLockDoesNotExpireTheNextOwner() throws Exception {
+        assertEquals("SUCCESS", request("LOCK", "orders", "A", 200));
+        assertEquals("SUCCESS", request("UNLOCK", "orders", "A", 0));
+        assertEquals("SUCCESS", request("LOCK", "orders", "B", 0));
+        Thread.sleep(600);
+        for (int node = 0; node < NODES; node++) {
+            assertEquals("B", cluster.server(node).lockTable().get("orders"));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// LockStripes: a lock name always maps to the same stripe, several names are
+// locked in one ascending order, and the stripes serialize their lock names.
+@Timeout(value = 30, unit = TimeUnit.SECONDS)
+class LockStripesTest {
+
+    @Test
+    void roundsUpToAPowerOfTwoAndMapsANameToOneStripe() {
+        LockStripes stripes = new LockStripes(1000);
+        assertEquals(1024, stripes.size());
+        for (int i = 0; i < 10_000; i++) {
+            String name = "lock-" + i;
+            int index = stripes.indexOf(name);
+            assertTrue(index >= 0 && index < 1024);
+            assertSame(stripes.lockFor(name), stripes.lockFor(new String(name)));
+        }
+        assertEquals(1, new LockStripes(1).size());
+    }
+
+    @Test
+    void ordersAndDeduplicatesTheStripesOfSeveralNames() {
+        LockStripes stripes = new LockStripes(8);
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            names.add("lock-" + i);
+        }
+        int[] indices = stripes.indicesOf(names);
+        assertEquals(8, indices.length);
+        for (int i = 1; i < indices.length; i++) {
+            assertTrue(indices[i - 1] < indices[i]);
+        }
+        assertArrayEquals(new int[] {stripes.indexOf("a")}, stripes.indicesOf(Arrays.asList("a", "a", "a")));
+
+        stripes.lockAll(indices);
+        for (String name : names) {
+            assertTrue(stripes.lockFor(name).isHeldByCurrentThread());
+        }
+        stripes.unlockAll(indices);
+        for (String name : names) {
+            assertFalse(stripes.lockFor(name).isLocked());
+        }
+    }
+
+    @Test
+    void overlappingSetsTakenInOrderDoNotDeadlock() throws Exception {
+        LockStripes stripes = new LockStripes(16);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int seed = t;
+                done.add(threads.submit(() -> {
+                    Random random = new Random(seed);
+                    for (int round = 0; round < 5_000; round++) {
+                        List<String> names = new ArrayList<>();
+                        for (int i = 0; i < 4; i++) {
+                            names.add("lock-" + random.nextInt(64));
+                        }
+                        int[] indices = stripes.indicesOf(names);
+                        stripes.lockAll(indices);
+                        stripes.unlockAll(indices);
+                    }
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get(20, TimeUnit.SECONDS);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    void serializesTheChangesOfALockName() throws Exception {
+        LockStripes stripes = new LockStripes(4);
+        int[] counter = new int[1];
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                done.add(threads.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 50_000; i++) {
+                        ReentrantLock stripe = stripes.lockFor("hot");
+                        stripe.lock();
+                        try {
+                            counter[0]++;
+                        } finally {
+                            stripe.unlock();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : done) {
+                future.get(20, TimeUnit.SECONDS);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(200_000, counter[0]);
+    }
+
+    @Test
+    void countsTheLocksThatHadToWait() throws Exception {
+        LockStripes stripes = new LockStripes(4);
+        ReentrantLock stripe = stripes.lockFor("hot");
+        stripe.lock();
+        stripe.unlock();
+        assertEquals(0, stripes.getContendedCount());
+
+        stripe.lock();
+        Thread waiter = new Thread(() -> {
+            stripe.lock();
+            stripe.unlock();
+        });
+        waiter.start();
+        while (!stripe.hasQueuedThreads()) {
+            Thread.sleep(1);
+        }
+        stripe.unlock();
+        waiter.join();
+        assertEquals(1, stripes.getContendedCount());
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// LOCK_WAIT on the leader of a LocalCluster of three nodes: waiters take the
+// lock in the order they came, on an UNLOCK or an expired lease, and a waiter
+// that timed out or went away is skipped.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class LockWaitTest extends ClusterTestBase {
+
+    @BeforeEach
+    void start() throws Exception {
+        startCluster();
+    }
+
+    @Test
+    void takesAFreeLockAtOnce() throws Exception {
+        assertEquals("SUCCESS", lockWait("orders", "A", 1000).get(5, TimeUnit.SECONDS));
+        assertEquals("A", request("OWN", "orders", "X", 0));
+        // Already the owner: nothing to wait for
+        assertEquals("FAIL", lockWait("orders", "A", 1000).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void handsTheLockToWaitersInTheOrderTheyCame() throws Exception {
+        assertEquals("SUCCESS", request("LOCK", "orders", "A", 0));
+        List<CompletableFuture<String>> waiters = new ArrayList<>();
+        for (String clientId : new String[] {"B", "C", "D"}) {
+            waiters.add(lockWait("orders", clientId, 10_000));
+        }
+        assertEquals("FAIL", request("LOCK", "orders", "E", 0));
+
+        String owner = "A";
+        for (int i = 0; i < 3; i++) {
+            for (int j = i; j < 3; j++) {
+                assertFalse(waiters.get(j).isDone());
+            }
+            assertEquals("SUCCESS", request("UNLOCK", "orders", owner, 0));
+            assertEquals("SUCCESS", waiters.get(i).get(5, TimeUnit.SECONDS));
+            owner = String.valueOf((char) ('B' + i));
+            // Handed over in the same entry: never free in between, on any node
+            assertEquals(owner, request("OWN", "orders", "X", 0));
+            for (int node = 0; node < NODES; node++) {
+                awaitOwner(node, "orders", owner);
+            }
+        }
+        assertEquals("SUCCESS", request("UNLOCK", "orders", "D", 0));
+        assertEquals("NONE", request("OWN", "orders", "X", 0));
+    }
+
+    private void awaitOwner(int node, String lockName, String owner) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!owner.equals(cluster.server(node).lockTable().get(lockName)) && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(owner, cluster.server(node).lockTable().get(lockName));
+    }
+
+    @Test
+    void aWaiterTimesOutAndIsNotHandedTheLockAfterwards() throws Exception {
+        assertEquals("SUCCESS", request("LOCK", "orders", "A", 0));
+        long waitedFrom = System.nanoTime();
+        assertEquals("TIMEOUT", lockWait("orders", "B", 200).get(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - waitedFrom >= TimeUnit.MILLISECONDS.toNanos(200), "timed out early");
+
+        assertEquals("SUCCESS", request("UNLOCK", "orders", "A", 0));
+        assertEquals("NONE", request("OWN", "orders", "X", 0));
+    }
+
+    @Test
+    void skipsAWaiterWhoseClientWentAway() throws Exception {
+        assertEquals("SUCCESS", request("LOCK", "orders", "A", 0));
+        CompletableFuture<String> gone = lockWait("orders", "B", 10_000);
+        CompletableFuture<String> next = lockWait("orders", "C", 10_000);
+        // What the server does with the waiters of a closed connection
+        gone.cancel(false);
+
+        assertEquals("SUCCESS", request("UNLOCK", "orders", "A", 0));
+        assertEquals("SUCCESS", next.get(5, TimeUnit.SECONDS));
+        assertEquals("C", request("OWN", "orders", "X", 0));
+    }
+
+    @Test
+    void anExpiredLeaseHandsTheLockToTheFirstWaiter() throws Exception {
+        assertEquals("SUCCESS", request("LOCK", "orders", "A", 200));
+        CompletableFuture<String> waiter = lockWait("orders", "B", 10_000);
+        assertEquals("SUCCESS", waiter.get(5, TimeUnit.SECONDS));
+        assertEquals("B", request("OWN", "orders", "X", 0));
+        assertEquals("FAIL", request("UNLOCK", "orders", "A", 0));
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// GET /metrics and STATS on a LocalCluster of three nodes, each with its own
+// metrics port: well-formed Prometheus text whose samples follow the requests
+// served, and the same samples in the STATS reply.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class MetricsEndpointTest extends ClusterTestBase {
+    private static final Pattern SAMPLE = Pattern.compile("[a-z_]+(\\{[a-z_]+=\"[^\"]*\"(,[a-z_]+=\"[^\"]*\")*\\})? -?\\d+");
+
+    private final int[] metricsPorts = new int[NODES];
+
+    @Override
+    protected void configure(ServerConfig config, int node) {
+        config.metricsPort = metricsPorts[node];
+    }
+
+    @BeforeEach
+    void start() throws Exception {
+        for (int node = 0; node < NODES; node++) {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                metricsPorts[node] = probe.getLocalPort();
+            }
+        }
+        startCluster();
+    }
+
+    private String scrape(int node) throws IOException {
+        HttpURLConnection http = (HttpURLConnection) new URL("http://127.0.0.1:" + metricsPorts[node] + "/metrics").openConnection();
+        http.setConnectTimeout(5000);
+        http.setReadTimeout(5000);
+        try {
+            assertEquals(200, http.getResponseCode());
+            assertEquals("text/plain; version=0.0.4; charset=utf-8", http.getContentType());
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = http.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    body.write(buffer, 0, n);
+                }
+            }
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            http.disconnect();
+        }
+    }
+
+    // Sample -> value, checking that every family is typed once, before its samples
+    private static Map<String, Long> parse(String text) {
+        Map<String, Long> samples = new LinkedHashMap<>();
+        Set<String> typed = new HashSet<>();
+        String family = null;
+        for (String line : text.split("\n")) {
+            if (line.startsWith("# TYPE ")) {
+                String[] words = line.split(" ");
+                assertEquals(4, words.length, line);
+                assertTrue(typed.add(words[2]), "typed twice: " + line);
+                assertTrue(Arrays.asList("gauge", "counter", "summary").contains(words[3]), line);
+                family = words[2];
+                continue;
+            }
+            assertTrue(SAMPLE.matcher(line).matches(), line);
+            String name = line.substring(0, line.lastIndexOf(' '));
+            assertTrue(name.startsWith(family), line + " outside family " + family);
+            assertNull(samples.put(name, Long.parseLong(line.substring(name.length() + 1))), "twice: " + line);
+        }
+        return samples;
+    }
+
+    @Test
+    void scrapesWellFormedMetricsThatFollowTheRequests() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assertEquals("SUCCESS", send(leader, "LOCK,lock-" + i + ",A"));
+        }
+        assertEquals("A", send(leader, "OWN,lock-0,X"));
+
+        Map<String, Long> samples = parse(scrape(leader));
+        assertEquals(1, samples.get("dls_leader"));
+        assertEquals(5, samples.get("dls_request_latency_us_count{cmd=\"LOCK\"}"));
+        assertEquals(1, samples.get("dls_request_latency_us_count{cmd=\"OWN\"}"));
+        assertEquals(5, samples.get("dls_locks_held"));
+        long p50 = samples.get("dls_request_latency_us{cmd=\"LOCK\",quantile=\"0.5\"}");
+        long max = samples.get("dls_request_latency_us_max{cmd=\"LOCK\"}");
+        assertTrue(p50 > 0 && p50 <= max, p50 + " / " + max);
+        for (int follower : followers()) {
+            assertTrue(samples.containsKey("dls_replication_lag{follower=\"" + cluster.memberId(follower) + "\"}"));
+        }
+
+        for (int follower : followers()) {
+            Map<String, Long> followerSamples = parse(scrape(follower));
+            assertEquals(0, followerSamples.get("dls_leader"));
+            assertEquals(0, followerSamples.get("dls_request_latency_us_count{cmd=\"LOCK\"}"));
+        }
+    }
+
+    @Test
+    void answersStatsWithTheScrapedSamples() throws Exception {
+        assertEquals("SUCCESS", send(leader, "LOCK,orders,A"));
+        List<String> reply = new ArrayList<>();
+        try (Socket socket = new Socket()) {
+            socket.connect(cluster.clientAddress(leader), 5000);
+            socket.setSoTimeout(10_000);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.println("STATS");
+            String line;
+            while (!(line = in.readLine()).equals("END")) {
+                reply.add(line);
+            }
+            // The connection takes the next request after the reply
+            out.println("OWN,orders,X");
+            assertEquals("A", in.readLine());
+        }
+        Set<String> stats = new LinkedHashSet<>();
+        for (String line : reply) {
+            assertTrue(line.startsWith("STAT "), line);
+            assertTrue(SAMPLE.matcher(line.substring(5)).matches(), line);
+            stats.add(line.substring(5, line.lastIndexOf(' ')));
+        }
+        assertEquals(new ArrayList<>(parse(scrape(leader)).keySet()), new ArrayList<>(stats));
+    }
+}
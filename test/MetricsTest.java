@@ -0,0 +1,80 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Metrics text: one "# TYPE" line per family before its samples, a summary's
+// quantiles, _sum and _count with their labels and its maxima as a gauge family
+// of their own, and the same samples as "STAT" lines for the STATS command.
+class MetricsTest {
+
+    private static Histogram histogramOf(long... values) {
+        Histogram histogram = new Histogram();
+        for (long value : values) {
+            histogram.record(value);
+        }
+        return histogram;
+    }
+
+    private static Metrics sampleMetrics() {
+        return new Metrics()
+                .summary("dls_request_latency_us", "cmd=\"LOCK\"", histogramOf(10, 20))
+                .summary("dls_request_latency_us", "cmd=\"OWN\"", new Histogram())
+                .summary("dls_batch_size", "", histogramOf(3))
+                .gauge("dls_leader", 1)
+                .gauge("dls_replication_lag", "follower=\"10.0.2.4:5000\"", 7)
+                .counter("dls_log_dropped_total", 2);
+    }
+
+    @Test
+    void writesThePrometheusTextFormat() {
+        assertEquals("# TYPE dls_request_latency_us summary\n"
+                + "dls_request_latency_us{cmd=\"LOCK\",quantile=\"0.5\"} 10\n"
+                + "dls_request_latency_us{cmd=\"LOCK\",quantile=\"0.99\"} 20\n"
+                + "dls_request_latency_us{cmd=\"LOCK\",quantile=\"0.999\"} 20\n"
+                + "dls_request_latency_us_sum{cmd=\"LOCK\"} 30\n"
+                + "dls_request_latency_us_count{cmd=\"LOCK\"} 2\n"
+                + "dls_request_latency_us{cmd=\"OWN\",quantile=\"0.5\"} 0\n"
+                + "dls_request_latency_us{cmd=\"OWN\",quantile=\"0.99\"} 0\n"
+                + "dls_request_latency_us{cmd=\"OWN\",quantile=\"0.999\"} 0\n"
+                + "dls_request_latency_us_sum{cmd=\"OWN\"} 0\n"
+                + "dls_request_latency_us_count{cmd=\"OWN\"} 0\n"
+                + "# TYPE dls_request_latency_us_max gauge\n"
+                + "dls_request_latency_us_max{cmd=\"LOCK\"} 20\n"
+                + "dls_request_latency_us_max{cmd=\"OWN\"} 0\n"
+                + "# TYPE dls_batch_size summary\n"
+                + "dls_batch_size{quantile=\"0.5\"} 3\n"
+                + "dls_batch_size{quantile=\"0.99\"} 3\n"
+                + "dls_batch_size{quantile=\"0.999\"} 3\n"
+                + "dls_batch_size_sum 3\n"
+                + "dls_batch_size_count 1\n"
+                + "# TYPE dls_batch_size_max gauge\n"
+                + "dls_batch_size_max 3\n"
+                + "# TYPE dls_leader gauge\n"
+                + "dls_leader 1\n"
+                + "# TYPE dls_replication_lag gauge\n"
+                + "dls_replication_lag{follower=\"10.0.2.4:5000\"} 7\n"
+                + "# TYPE dls_log_dropped_total counter\n"
+                + "dls_log_dropped_total 2\n", sampleMetrics().toText());
+    }
+
+    @Test
+    void endsWithTheMaximaOfATrailingSummary() {
+        Metrics metrics = new Metrics().gauge("dls_leader", 0).summary("dls_batch_size", "", histogramOf(5));
+        assertTrue(metrics.toText().endsWith("dls_batch_size_count 1\n# TYPE dls_batch_size_max gauge\ndls_batch_size_max 5\n"),
+                metrics.toText());
+    }
+
+    @Test
+    void answersStatsWithTheSameSamples() {
+        String reply = sampleMetrics().toStatsReply();
+        assertTrue(reply.startsWith("STAT dls_request_latency_us{cmd=\"LOCK\",quantile=\"0.5\"} 10\n"), reply);
+        assertTrue(reply.endsWith("STAT dls_log_dropped_total 2\nEND"), reply);
+        assertFalse(reply.contains("# TYPE"));
+        String[] lines = reply.split("\n");
+        String[] samples = sampleMetrics().toText().replaceAll("(?m)^#.*\n", "").split("\n");
+        assertEquals(samples.length + 1, lines.length);
+        for (int i = 0; i < samples.length; i++) {
+            assertEquals("STAT " + samples[i], lines[i]);
+        }
+    }
+}
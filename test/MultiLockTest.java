@@ -0,0 +1,121 @@
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// MLOCK / MUNLOCK on the leader of a LocalCluster of three nodes: a batch takes
+// or releases all of its locks or none of them, on every node, and overlapping
+// batches run concurrently without deadlocking.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class MultiLockTest extends ClusterTestBase {
+
+    @Override
+    protected void configure(ServerConfig config, int node) {
+        config.multiLockMax = 8;
+    }
+
+    @BeforeEach
+    void start() throws Exception {
+        startCluster();
+    }
+
+    @Test
+    void takesEveryLockOfTheBatchOrNone() throws Exception {
+        assertEquals("SUCCESS", request("MLOCK", "a;b;c", "A"));
+        assertEquals("A", request("OWN", "b", "X"));
+        assertEquals("SUCCESS", request("LOCK", "e", "B"));
+        assertEquals("SUCCESS", request("LOCK_SHARED", "f", "B"));
+
+        // One name of each batch is taken: none of the others is
+        assertEquals("FAIL", request("MLOCK", "d;c", "B"));
+        assertEquals("FAIL", request("MLOCK", "d;e", "A"));
+        assertEquals("FAIL", request("MLOCK", "d;f", "A"));
+        assertEquals("NONE", request("OWN", "d", "X"));
+
+        awaitSameLocksEverywhere();
+        Map<String, String> expected = new HashMap<>();
+        expected.put("a", "A");
+        expected.put("b", "A");
+        expected.put("c", "A");
+        expected.put("e", "B");
+        assertEquals(expected, leader().lockTable());
+    }
+
+    @Test
+    void releasesEveryLockOfTheBatchOrNone() throws Exception {
+        assertEquals("SUCCESS", request("MLOCK", "a;b;c", "A"));
+        assertEquals("SUCCESS", request("LOCK", "d", "B"));
+
+        // Not the owner of d: a, b and c stay held
+        assertEquals("FAIL", request("MUNLOCK", "a;b;d", "A"));
+        assertEquals("FAIL", request("MUNLOCK", "a;b;x", "A"));
+        assertEquals("A", request("OWN", "a", "X"));
+
+        assertEquals("SUCCESS", request("MUNLOCK", "c;a;b", "A"));
+        for (String name : new String[] {"a", "b", "c"}) {
+            assertEquals("NONE", request("OWN", name, "X"));
+        }
+        awaitSameLocksEverywhere();
+        assertEquals(Collections.singletonMap("d", "B"), leader().lockTable());
+    }
+
+    @Test
+    void handsReleasedLocksToTheirWaiters() throws Exception {
+        assertEquals("SUCCESS", request("MLOCK", "a;b", "A"));
+        CompletableFuture<String> waiter = lockWait("b", "B", 10_000);
+        assertEquals("SUCCESS", request("MUNLOCK", "a;b", "A"));
+        assertEquals("SUCCESS", waiter.get(5, TimeUnit.SECONDS));
+        assertEquals("NONE", request("OWN", "a", "X"));
+        assertEquals("B", request("OWN", "b", "X"));
+        awaitSameLocksEverywhere();
+    }
+
+    @Test
+    void refusesEmptyNamesAndBatchesOverTheLimit() throws Exception {
+        assertEquals("INVALID_FORMAT", request("MLOCK", "a;;b", "A"));
+        assertEquals("INVALID_FORMAT", request("MLOCK", "a;b;", "A"));
+        assertEquals("INVALID_FORMAT", request("MLOCK", "1;2;3;4;5;6;7;8;9", "A"));
+        // Repeated names count once
+        assertEquals("SUCCESS", request("MLOCK", "1;2;3;4;5;6;7;8;8;1", "A"));
+        assertEquals(8, leader().lockTable().size());
+    }
+
+    @Test
+    void overlappingBatchesNeverShareALock() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                String clientId = "client-" + t;
+                int seed = t;
+                done.add(clients.submit(() -> {
+                    Random random = new Random(seed);
+                    for (int round = 0; round < 50; round++) {
+                        StringBuilder names = new StringBuilder();
+                        for (int i = 0; i < 4; i++) {
+                            names.append(i > 0 ? ";" : "").append("lock-").append(random.nextInt(16));
+                        }
+                        String batch = names.toString();
+                        if (request("MLOCK", batch, clientId).equals("SUCCESS")) {
+                            for (String name : batch.split(";")) {
+                                assertEquals(clientId, leader().lockTable().get(name));
+                            }
+                            assertEquals("SUCCESS", request("MUNLOCK", batch, clientId));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get(40, TimeUnit.SECONDS);
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+        assertTrue(leader().lockTable().isEmpty());
+        awaitSameLocksEverywhere();
+    }
+}
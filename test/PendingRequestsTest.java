@@ -0,0 +1,224 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// PendingRequests on a 10 ms timer wheel: each request answered once, by its
+// answer, its deadline (TIMEOUT) or the apply of the entry it waits for, with
+// nothing left behind; and BUSY from a follower whose limit is reached.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class PendingRequestsTest extends ClusterTestBase {
+
+    private final TimerWheel wheel = new TimerWheel("test-wheel", 10, 64);
+    private final AtomicLong appliedSeq = new AtomicLong();
+    // Answers by entry ID
+    private final Map<Long, List<String>> answers = new ConcurrentHashMap<>();
+
+    @AfterEach
+    void stopWheel() {
+        wheel.shutdown();
+    }
+
+    // Only aFollowerAtItsLimitAnswersBusy starts the cluster
+    @Override
+    protected void configure(ServerConfig config, int node) {
+        config.replicationTimeoutMs = 5000;
+        config.pendingMax = 2;
+    }
+
+    private PendingRequests.Entry add(PendingRequests pending, long timeoutMs) {
+        long[] id = new long[1];
+        PendingRequests.Entry entry = pending.add(response -> answered(id[0], response), timeoutMs);
+        if (entry != null) {
+            id[0] = entry.getId();
+        }
+        return entry;
+    }
+
+    private void answered(long id, String response) {
+        answers.computeIfAbsent(id, k -> Collections.synchronizedList(new ArrayList<>())).add(response);
+    }
+
+    private List<String> answersOf(PendingRequests.Entry entry) {
+        return answers.getOrDefault(entry.getId(), Collections.emptyList());
+    }
+
+    private void awaitAnswer(PendingRequests.Entry entry) throws InterruptedException {
+        while (answersOf(entry).isEmpty()) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void answersEachRequestOnceUnderItsOwnId() {
+        wheel.start();
+        PendingRequests pending = new PendingRequests("test", wheel, 100, appliedSeq::get);
+        PendingRequests.Entry first = add(pending, 10_000);
+        PendingRequests.Entry second = add(pending, 10_000);
+        assertNotEquals(first.getId(), second.getId());
+        assertEquals(2, pending.size());
+
+        assertTrue(pending.complete(first.getId(), "SUCCESS"));
+        assertFalse(pending.complete(first.getId(), "FAIL"));
+        assertEquals(Collections.singletonList("SUCCESS"), answersOf(first));
+        assertTrue(answersOf(second).isEmpty());
+
+        // A client that went away is not answered
+        assertTrue(pending.drop(second.getId()));
+        assertFalse(pending.complete(second.getId(), "SUCCESS"));
+        assertTrue(answersOf(second).isEmpty());
+        assertEquals(0, pending.size());
+    }
+
+    @Test
+    void answersTimeoutAtTheDeadlineAndClosesTheForward() throws Exception {
+        wheel.start();
+        PendingRequests pending = new PendingRequests("test", wheel, 100, appliedSeq::get);
+        long addedAt = System.nanoTime();
+        PendingRequests.Entry entry = add(pending, 100);
+        Socket forward = new Socket();
+        assertTrue(pending.setForward(entry.getId(), forward));
+
+        awaitAnswer(entry);
+        assertEquals(0, pending.size());
+        assertTrue(System.nanoTime() - addedAt >= TimeUnit.MILLISECONDS.toNanos(100), "expired early");
+        assertEquals(Collections.singletonList("TIMEOUT"), answersOf(entry));
+        assertTrue(forward.isClosed());
+        assertEquals(1, pending.getExpiredCount());
+
+        // The leader's late answer finds nothing, and nothing more is sent for it
+        assertFalse(pending.complete(entry.getId(), "SUCCESS"));
+        assertFalse(pending.setForward(entry.getId(), new Socket()));
+        assertEquals(Collections.singletonList("TIMEOUT"), answersOf(entry));
+    }
+
+    @Test
+    void refusesRequestsAboveTheLimit() {
+        wheel.start();
+        PendingRequests pending = new PendingRequests("test", wheel, 3, appliedSeq::get);
+        List<PendingRequests.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            entries.add(add(pending, 10_000));
+        }
+        assertNull(add(pending, 10_000));
+        assertEquals(1, pending.getRejectedCount());
+
+        pending.complete(entries.get(0).getId(), "SUCCESS");
+        assertNotNull(add(pending, 10_000));
+        assertEquals(3, pending.size());
+    }
+
+    @Test
+    void answersOnceTheCommittedEntryIsApplied() {
+        wheel.start();
+        PendingRequests pending = new PendingRequests("test", wheel, 100, appliedSeq::get);
+        appliedSeq.set(5);
+        PendingRequests.Entry applied = add(pending, 10_000);
+        pending.awaitApply(applied.getId(), 4);
+        assertEquals(Collections.singletonList("SUCCESS"), answersOf(applied));
+
+        PendingRequests.Entry waiting = add(pending, 10_000);
+        pending.awaitApply(waiting.getId(), 7);
+        assertEquals(1, pending.awaitingApplyCount());
+        appliedSeq.set(6);
+        pending.appliedUpTo(6);
+        assertTrue(answersOf(waiting).isEmpty());
+        appliedSeq.set(7);
+        pending.appliedUpTo(7);
+        assertEquals(Collections.singletonList("SUCCESS"), answersOf(waiting));
+        assertEquals(0, pending.awaitingApplyCount());
+        assertEquals(0, pending.size());
+    }
+
+    @Test
+    void answersAReadWithWhatItReadsOnceApplied() {
+        wheel.start();
+        PendingRequests pending = new PendingRequests("test", wheel, 100, appliedSeq::get);
+        long[] id = new long[1];
+        PendingRequests.Entry read = pending.addRead(response -> answered(id[0], response),
+                () -> CompletableFuture.completedFuture("client-7"), 10_000);
+        id[0] = read.getId();
+        pending.awaitApply(read.getId(), 3);
+        assertTrue(answersOf(read).isEmpty());
+        appliedSeq.set(3);
+        pending.appliedUpTo(3);
+        assertEquals(Collections.singletonList("client-7"), answersOf(read));
+    }
+
+    @Test
+    void leavesNothingWaitingForAnApplyThatNeverComes() throws Exception {
+        wheel.start();
+        PendingRequests pending = new PendingRequests("test", wheel, 100, appliedSeq::get);
+        PendingRequests.Entry dropped = add(pending, 10_000);
+        PendingRequests.Entry expired = add(pending, 50);
+        pending.awaitApply(dropped.getId(), 9);
+        pending.awaitApply(expired.getId(), 9);
+        assertEquals(2, pending.awaitingApplyCount());
+
+        pending.drop(dropped.getId());
+        awaitAnswer(expired);
+        assertEquals(0, pending.size());
+        assertEquals(0, pending.awaitingApplyCount());
+        appliedSeq.set(9);
+        pending.appliedUpTo(9);
+        assertTrue(answersOf(dropped).isEmpty());
+        assertEquals(Collections.singletonList("TIMEOUT"), answersOf(expired));
+    }
+
+    @Test
+    void aFollowerAtItsLimitAnswersBusy() throws Exception {
+        startCluster();
+        int follower = (leader + 1) % NODES;
+
+        try (Socket socket = new Socket()) {
+            socket.connect(cluster.clientAddress(follower), 5000);
+            socket.setSoTimeout(10_000);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.write(BinaryProtocol.MAGIC);
+            // Answered NOT_LEADER until the follower has heard from the leader
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            byte status;
+            do {
+                sendLock(out, 0, "warm-up");
+                status = ByteBuffer.wrap(readBody(in)).get();
+            } while (status == BinaryProtocol.STATUS_NOT_LEADER && System.nanoTime() - deadline < 0);
+            assertEquals(BinaryProtocol.STATUS_SUCCESS, status);
+
+            // Forwarded requests take a while to reach the leader: they stay pending meanwhile
+            cluster.setLatency(follower, leader, 500);
+            for (int i = 1; i <= 3; i++) {
+                sendLock(out, i, "lock-" + i);
+            }
+            Map<Long, Byte> statuses = new HashMap<>();
+            for (int i = 0; i < 3; i++) {
+                ByteBuffer response = ByteBuffer.wrap(readBody(in));
+                status = response.get();
+                statuses.put(response.getLong(), status);
+            }
+            List<Byte> counted = new ArrayList<>(statuses.values());
+            assertEquals(2, Collections.frequency(counted, BinaryProtocol.STATUS_SUCCESS), statuses.toString());
+            assertEquals(1, Collections.frequency(counted, BinaryProtocol.STATUS_BUSY), statuses.toString());
+        }
+        assertEquals(3, leader().lockTable().size());
+    }
+
+    private static void sendLock(DataOutputStream out, long requestId, String lockName) throws IOException {
+        ByteBuffer frame = BinaryProtocol.encodeRequest(BinaryProtocol.OP_LOCK, requestId, lockName, "A", 0, 0, 0);
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        out.flush();
+    }
+
+    private static byte[] readBody(DataInputStream in) throws IOException {
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        return body;
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Follower OWN in read-index mode on a LocalCluster of three nodes: a follower
+// the leader's entries reach late still answers with every write committed
+// before the read, only a leader hands out its commit point, and a leader that
+// was cut off stops answering from its own table.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class ReadIndexTest extends ClusterTestBase {
+    // One-way delay of the link from the leader to the slow follower
+    private static final long LAG_MS = 500;
+
+    private int slow;
+
+    @Override
+    protected void configure(ServerConfig config, int node) {
+        config.followerReads = "readIndex";
+        config.replicationTimeoutMs = 5000;
+        // Heartbeats held up on the slow link must not look like a lost leader
+        config.electionTimeoutMs = 3000;
+    }
+
+    @BeforeEach
+    void start() throws Exception {
+        startCluster();
+        slow = (leader + 1) % NODES;
+        // Until the slow follower has heard from the leader it knows no one to ask
+        // and its reads fail; take that before its link is slowed down
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!send(slow, "OWN,warm-up,X").equals("NONE") && System.nanoTime() - deadline < 0) {
+            Thread.sleep(20);
+        }
+        assertEquals("NONE", send(slow, "OWN,warm-up,X"));
+    }
+
+    @Test
+    void aLaggingFollowerReadsWhatWasCommittedBeforeTheRead() throws Exception {
+        cluster.setLatency(leader, slow, LAG_MS);
+        // Committed with the other follower's ACK while the entry is still on its way here
+        assertEquals("SUCCESS", request("LOCK", "orders", "A"));
+        assertNull(cluster.server(slow).lockTable().get("orders"));
+        assertEquals("A", send(slow, "OWN,orders,X"));
+
+        assertEquals("SUCCESS", request("UNLOCK", "orders", "A"));
+        assertEquals("SUCCESS", request("LOCK", "orders", "B"));
+        assertEquals("B", send(slow, "OWN,orders,X"));
+        assertEquals("NONE", send(slow, "OWN,never-taken,X"));
+    }
+
+    @Test
+    void concurrentReadsAllSeeTheWrite() throws Exception {
+        cluster.setLatency(leader, slow, LAG_MS);
+        assertEquals("SUCCESS", request("LOCK", "orders", "A"));
+        ExecutorService readers = Executors.newFixedThreadPool(8);
+        try {
+            Future<?>[] reads = new Future<?>[32];
+            for (int i = 0; i < reads.length; i++) {
+                reads[i] = readers.submit(() -> send(slow, "OWN,orders,X"));
+            }
+            for (Future<?> read : reads) {
+                assertEquals("A", read.get(20, TimeUnit.SECONDS));
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    @Test
+    void onlyTheLeaderAnswersWithItsCommitPoint() throws Exception {
+        assertEquals("SUCCESS", request("LOCK", "orders", "A"));
+        String index = send(leader, "READ_INDEX");
+        assertTrue(index.startsWith("INDEX,"), index);
+        assertTrue(Long.parseLong(index.substring(6)) >= 2);
+        assertEquals("NOT_LEADER", send(slow, "READ_INDEX"));
+    }
+
+    @Test
+    void aLeaderCutOffFromTheOthersStopsAnsweringOwn() throws Exception {
+        assertEquals("SUCCESS", request("LOCK", "orders", "A"));
+        assertEquals("A", send(leader, "OWN,orders,X"));
+
+        int old = leader;
+        cluster.partition(old);
+        int newLeader = awaitLeaderAmong(followers());
+        assertEquals("SUCCESS", request(newLeader, "UNLOCK", "orders", "A"));
+        assertEquals("SUCCESS", request(newLeader, "LOCK", "orders", "B"));
+
+        // The old leader has not heard of the new term, but its lease ran out before the election
+        assertTrue(cluster.server(old).isLeader());
+        assertEquals("A", cluster.server(old).lockTable().get("orders"));
+        assertEquals("NOT_LEADER", send(old, "OWN,orders,X"));
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Replication channels on a LocalCluster of three nodes: the encoding of log
+// entries, concurrent writes pipelined to every follower, and a follower that
+// comes back being sent what it missed.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class ReplicationChannelTest extends ClusterTestBase {
+
+    @BeforeEach
+    void start() throws Exception {
+        startCluster();
+    }
+
+    private void awaitCaughtUp(int node) throws InterruptedException {
+        awaitLocks(node, new HashMap<>(leader().lockTable()));
+        assertEquals(sample(leader(), "dls_replication_last_seq"), sample(cluster.server(node), "dls_applied_seq"));
+    }
+
+    @Test
+    void encodesOneMutationAsASyncAndSeveralAsABatch() {
+        assertEquals("SYNC,7,2,LOCK,a,A",
+                ReplicationChannel.encode(7, new Replicator.Entry(2, Collections.singletonList("LOCK,a,A"))));
+        assertEquals("SYNC_BATCH,8,2,3\nLOCK,a,A\nUNLOCK,b,B\nLOCK,c,C",
+                ReplicationChannel.encode(8, new Replicator.Entry(2, Arrays.asList("LOCK,a,A", "UNLOCK,b,B", "LOCK,c,C"))));
+    }
+
+    @Test
+    void concurrentWritesReachEveryFollowerInOrder() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                String clientId = "client-" + t;
+                done.add(clients.submit(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        assertEquals("SUCCESS", request("LOCK", clientId + "-lock-" + i, clientId));
+                        if (i % 5 == 0) {
+                            assertEquals("SUCCESS", request("UNLOCK", clientId + "-lock-" + i, clientId));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+        assertEquals(8 * 40, leader().lockTable().size());
+
+        for (int follower : followers()) {
+            awaitCaughtUp(follower);
+            String member = cluster.memberId(follower);
+            assertEquals(0, sample(leader(), "dls_replication_lag{follower=\"" + member + "\"}"));
+        }
+    }
+
+    @Test
+    void aFollowerThatComesBackIsSentWhatItMissed() throws Exception {
+        assertEquals("SUCCESS", request("LOCK", "before", "A"));
+        int follower = followers().get(0);
+        awaitCaughtUp(follower);
+
+        cluster.stop(follower);
+        // The other follower still makes a quorum
+        for (int i = 0; i < 20; i++) {
+            assertEquals("SUCCESS", request("LOCK", "while-down-" + i, "A"));
+        }
+        assertEquals("SUCCESS", request("UNLOCK", "before", "A"));
+
+        cluster.start(follower);
+        awaitCaughtUp(follower);
+        assertNull(cluster.server(follower).lockTable().get("before"));
+        assertEquals("A", cluster.server(follower).lockTable().get("while-down-19"));
+        assertEquals(leader, cluster.leader());
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Client sessions on a LocalCluster of three nodes: a session that is not kept
+// alive releases every lock of its client on every node, KEEPALIVE keeps it,
+// CLOSE_SESSION ends it at once, and a new leader takes the sessions over.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class SessionTest extends ClusterTestBase {
+
+    @BeforeEach
+    void start() throws Exception {
+        startCluster();
+    }
+
+    // Wait until no running node has an exclusive lock of clientId
+    private void awaitReleasedEverywhere(String clientId) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (int node = 0; node < NODES; node++) {
+            Server server = cluster.server(node);
+            if (server == null) {
+                continue;
+            }
+            while (server.lockTable().containsValue(clientId) && System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+            }
+            assertFalse(server.lockTable().containsValue(clientId), "still held on node " + node);
+        }
+    }
+
+    private void lockSome(String clientId) throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assertEquals("SUCCESS", request("LOCK", clientId + "-lock-" + i, clientId));
+        }
+        assertEquals("SUCCESS", request("LOCK_SHARED", "catalog", clientId));
+    }
+
+    @Test
+    void aSessionNotKeptAliveReleasesItsLocksOnEveryNode() throws Exception {
+        assertEquals("SUCCESS", request("OPEN_SESSION", "", "A", 300));
+        lockSome("A");
+        assertEquals("SUCCESS", request("LOCK", "other", "B"));
+        CompletableFuture<String> waiter = lockWait("A-lock-0", "B", 10_000);
+
+        // Handed to the waiting client in the same entry as the release
+        assertEquals("SUCCESS", waiter.get(5, TimeUnit.SECONDS));
+        awaitReleasedEverywhere("A");
+        assertEquals("B", request("OWN", "A-lock-0", "X"));
+        assertEquals("NONE", request("OWN", "A-lock-1", "X"));
+        assertEquals("NONE", request("OWN", "catalog", "X"));
+        assertEquals("B", request("OWN", "other", "X"));
+        // Its locks are gone: the client has to open a new session
+        assertEquals("FAIL", request("KEEPALIVE", "", "A"));
+    }
+
+    @Test
+    void keepalivesKeepTheSession() throws Exception {
+        assertEquals("SUCCESS", request("OPEN_SESSION", "", "A", 300));
+        lockSome("A");
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(100);
+            assertEquals("SUCCESS", request("KEEPALIVE", "", "A"));
+        }
+        assertEquals("A", request("OWN", "A-lock-4", "X"));
+        assertTrue(request("OWN", "catalog", "X").startsWith("SHARED:1:"));
+
+        awaitReleasedEverywhere("A");
+        assertEquals("NONE", request("OWN", "catalog", "X"));
+    }
+
+    @Test
+    void closingTheSessionReleasesItsLocksAtOnce() throws Exception {
+        assertEquals("SUCCESS", request("OPEN_SESSION", "", "A", 60_000));
+        lockSome("A");
+        assertEquals("SUCCESS", request("CLOSE_SESSION", "", "A"));
+        assertEquals("NONE", request("OWN", "A-lock-0", "X"));
+        awaitReleasedEverywhere("A");
+        assertEquals("FAIL", request("CLOSE_SESSION", "", "A"));
+        assertEquals("FAIL", request("KEEPALIVE", "", "A"));
+        assertEquals("FAIL", request("KEEPALIVE", "", "never-opened"));
+    }
+
+    @Test
+    void aNewLeaderExpiresTheSessionsItTookOver() throws Exception {
+        assertEquals("SUCCESS", request("OPEN_SESSION", "", "A", 1000));
+        lockSome("A");
+        assertEquals("SUCCESS", request("LOCK", "other", "B"));
+
+        cluster.stop(leader);
+        int newLeader = awaitLeaderAmong(followers());
+        assertEquals("A", cluster.server(newLeader).lockTable().get("A-lock-0"));
+
+        awaitReleasedEverywhere("A");
+        assertEquals("B", cluster.server(newLeader).lockTable().get("other"));
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// ShardMap placement on the consistent-hash ring and the previous version's ring,
+// and ShardRouter installing new maps and bringing members with an older map up
+// to date (OLD_MAP) before asking again.
+@Timeout(value = 30, unit = TimeUnit.SECONDS)
+class ShardMapTest {
+    private static final String V1 = "version 1\n"
+            + "shard a 10.0.2.3:5000,10.0.2.4:5000\n"
+            + "shard b 10.0.3.3:5000,10.0.3.4:5000\n"
+            + "shard c 10.0.4.3:5000,10.0.4.4:5000 since 2";
+    private static final String V2 = V1.replace("version 1", "version 2");
+
+    @TempDir
+    Path dir;
+
+    private ShardRouter router(String selfId, Transport transport, Runnable onNewMap) throws IOException {
+        File file = dir.resolve("shards").toFile();
+        Files.write(file.toPath(), V1.getBytes(StandardCharsets.UTF_8));
+        return new ShardRouter(selfId, selfId, file, Runnable::run, onNewMap, transport);
+    }
+
+    @Test
+    void placesEveryNameOnOneShardAndSpreadsThemEvenly() {
+        ShardMap map = ShardMap.parse(V1);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), map.shardIds());
+        assertEquals(Arrays.asList("10.0.2.3:5000", "10.0.2.4:5000"), map.membersOf("a"));
+        assertEquals("b", map.shardOfMember("10.0.3.4:5000"));
+        assertNull(map.shardOfMember("10.0.4.3:5000"));
+        assertNull(map.previousShardOf("lock-1"));
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            String shard = map.shardOf("lock-" + i);
+            assertEquals(shard, map.shardOf(new String("lock-" + i)));
+            counts.merge(shard, 1, Integer::sum);
+        }
+        assertEquals(2, counts.size());
+        for (int count : counts.values()) {
+            assertTrue(count > 3500 && count < 6500, counts.toString());
+        }
+    }
+
+    @Test
+    void namesWithTheSameHashTagShareAShard() {
+        ShardMap map = ShardMap.parse(V1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(map.shardOf("{order" + i + "}.a"), map.shardOf("{order" + i + "}.b"));
+            assertEquals(map.shardOf("order" + i), map.shardOf("{order" + i + "}.c"));
+        }
+        assertNotNull(map.shardOfAll(Arrays.asList("{order1}.a", "{order1}.b", "{order1}.c")));
+        String other = null;
+        for (int i = 0; other == null; i++) {
+            if (!map.shardOf("lock-" + i).equals(map.shardOf("lock-0"))) {
+                other = "lock-" + i;
+            }
+        }
+        assertNull(map.shardOfAll(Arrays.asList("lock-0", other)));
+    }
+
+    @Test
+    void anAddedShardOnlyTakesNamesAndRemembersWhereTheyWere() {
+        ShardMap before = ShardMap.parse(V1);
+        ShardMap after = ShardMap.parse(V2);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), after.shardIds());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), after.previousShards());
+
+        int moved = 0;
+        for (int i = 0; i < 10_000; i++) {
+            String name = "lock-" + i;
+            assertEquals(before.shardOf(name), after.previousShardOf(name));
+            if (!after.shardOf(name).equals(before.shardOf(name))) {
+                // Nothing moves between the shards that were already there
+                assertEquals("c", after.shardOf(name));
+                moved++;
+            }
+        }
+        assertTrue(moved > 2000 && moved < 4700, "moved " + moved);
+    }
+
+    @Test
+    void rejectsInvalidMaps() {
+        assertThrows(IllegalArgumentException.class, () -> ShardMap.parse("version 1"));
+        assertThrows(IllegalArgumentException.class, () -> ShardMap.parse("shard a 10.0.2.3:5000\nshard b 10.0.2.3:5000"));
+        assertThrows(IllegalArgumentException.class, () -> ShardMap.parse("shard a 10.0.2.3:5000 from 2"));
+        assertEquals("version 1;shard a 10.0.2.3:5000", ShardMap.parse("version 1\n  shard a 10.0.2.3:5000\n").toLine());
+    }
+
+    @Test
+    void installsOnlyNewerMapsThatKeepThisShardsMembers() throws IOException {
+        AtomicInteger installed = new AtomicInteger();
+        ShardRouter router = router("10.0.2.3:5000", Transport.DIRECT, installed::incrementAndGet);
+        assertEquals("a", router.getShard());
+        assertEquals(Arrays.asList("10.0.2.3:5000", "10.0.2.4:5000"), router.shardMembers());
+
+        assertFalse(router.install(ShardMap.parse(V1)));
+        // Another member in this shard, or this node moved to another shard
+        assertFalse(router.install(ShardMap.parse(V2.replace("10.0.2.4:5000", "10.0.2.5:5000"))));
+        assertFalse(router.install(ShardMap.parse("version 2\nshard b 10.0.2.3:5000,10.0.3.3:5000")));
+        assertEquals(1, router.getMap().getVersion());
+        assertEquals(0, installed.get());
+
+        assertTrue(router.install(ShardMap.parse(V2)));
+        assertEquals(2, router.getMap().getVersion());
+        assertEquals(1, installed.get());
+        assertTrue(router.isHandingOff());
+        String moved = null;
+        for (int i = 0; moved == null; i++) {
+            if ("a".equals(router.getMap().previousShardOf("lock-" + i)) && router.getMap().shardOf("lock-" + i).equals("c")) {
+                moved = "lock-" + i;
+            }
+        }
+        // Only the shard that took the name over imports it
+        assertNull(router.importSource(moved));
+
+        router.markHandoffDone("a", 1);
+        assertTrue(router.isHandingOff());
+        router.markHandoffDone("a", 2);
+        assertFalse(router.isHandingOff());
+    }
+
+    @Test
+    void aShardDroppedFromTheMapStillHandsItsNamesOff() throws IOException {
+        ShardRouter router = router("10.0.3.3:5000", Transport.DIRECT, () -> { });
+        assertTrue(router.install(ShardMap.parse("version 2\nshard a 10.0.2.3:5000,10.0.2.4:5000\n"
+                + "shard b 10.0.3.3:5000,10.0.3.4:5000 until 2")));
+        assertEquals("b", router.getShard());
+        assertTrue(router.isHandingOff());
+    }
+
+    @Test
+    void aMemberWithAnOlderMapIsSentThisOneAndAskedAgain() throws Exception {
+        try (ServerSocket member = new ServerSocket(0)) {
+            List<String> received = new CopyOnWriteArrayList<>();
+            Thread fake = new Thread(() -> {
+                try (Socket socket = member.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                    received.add(in.readLine());
+                    out.println("OLD_MAP");
+                    received.add(in.readLine());
+                    out.println("OK");
+                    received.add(in.readLine());
+                    out.println("SUCCESS");
+                } catch (IOException e) {
+                    received.add(e.toString());
+                }
+            });
+            fake.start();
+
+            // Every member of shard b is the fake one
+            ShardRouter router = router("10.0.2.3:5000",
+                    id -> new InetSocketAddress(member.getInetAddress(), member.getLocalPort()), () -> { });
+            assertEquals("SUCCESS", router.call("b", "ROUTE,1,LOCK,x,A", 5000).get(10, TimeUnit.SECONDS));
+            fake.join(5000);
+            assertEquals(Arrays.asList("ROUTE,1,LOCK,x,A", "SHARD_MAP," + router.getMap().toLine(), "ROUTE,1,LOCK,x,A"), received);
+        }
+    }
+
+    @Test
+    void anUnreachableShardIsAnError() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        ShardRouter router = router("10.0.2.3:5000",
+                id -> new InetSocketAddress("127.0.0.1", closedPort), () -> { });
+        assertEquals("ERROR", router.callNow("b", "ROUTE,1,OWN,x,A", 1000));
+    }
+}
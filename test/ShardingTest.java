@@ -0,0 +1,212 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Sharded lock names on a LocalCluster of three shards of two nodes: requests
+// reach the shard of their name from any node, MLOCK stays within one shard,
+// and a lock held while a new shard takes its name over stays held by the same
+// client (IMPORT, ADOPT) until the old shard has handed everything off.
+@Timeout(value = 90, unit = TimeUnit.SECONDS)
+class ShardingTest {
+    private static final int NODES = 6;
+
+    @TempDir
+    Path dir;
+
+    private LocalCluster cluster;
+    private File mapFile;
+
+    // Shards a (nodes 0, 1) and b (2, 3); c (4, 5) joins in version 2
+    private String map(long version) {
+        return "version " + version + "\n"
+                + "shard a " + cluster.memberId(0) + "," + cluster.memberId(1) + "\n"
+                + "shard b " + cluster.memberId(2) + "," + cluster.memberId(3) + "\n"
+                + "shard c " + cluster.memberId(4) + "," + cluster.memberId(5) + " since 2";
+    }
+
+    @BeforeEach
+    void start() throws Exception {
+        mapFile = dir.resolve("shards").toFile();
+        cluster = new LocalCluster(NODES, LocalCluster.freeBasePort(NODES), 1, (config, node) -> {
+            config.shardMap = mapFile.getPath();
+            config.shardMapPollMs = 100;
+            config.replicationTimeoutMs = 2000;
+        });
+        Files.write(mapFile.toPath(), map(1).getBytes(StandardCharsets.UTF_8));
+        for (int node = 0; node < 4; node++) {
+            cluster.start(node);
+        }
+        awaitLeader(0, 1);
+        awaitLeader(2, 3);
+    }
+
+    @AfterEach
+    void stop() {
+        cluster.close();
+    }
+
+    // The node of the two that leads their shard
+    private int awaitLeader(int first, int second) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() - deadline < 0) {
+            for (int node : new int[] {first, second}) {
+                if (cluster.server(node) != null && cluster.server(node).isLeader()) {
+                    return node;
+                }
+            }
+            Thread.sleep(10);
+        }
+        fail("No leader among nodes " + first + " and " + second);
+        return -1;
+    }
+
+    private String send(int node, String line) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(cluster.clientAddress(node), 5000);
+            socket.setSoTimeout(15_000);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.println(line);
+            return in.readLine();
+        }
+    }
+
+    // Until every node knows its shard's leader, requests to it may come back NOT_LEADER
+    private String sendUntilServed(int node, String line) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        String response = send(node, line);
+        while ((response.equals("NOT_LEADER") || response.equals("ERROR")) && System.nanoTime() - deadline < 0) {
+            Thread.sleep(50);
+            response = send(node, line);
+        }
+        return response;
+    }
+
+    private String nameOn(ShardMap map, String shard, String prefix) {
+        for (int i = 0; ; i++) {
+            if (map.shardOf(prefix + i).equals(shard)) {
+                return prefix + i;
+            }
+        }
+    }
+
+    @Test
+    void anyNodeServesEveryShardButMlockStaysInOne() throws Exception {
+        ShardMap map = ShardMap.parse(map(1));
+        String onA = nameOn(map, "a", "lock-");
+        String onB = nameOn(map, "b", "lock-");
+        assertEquals("SUCCESS", sendUntilServed(0, "LOCK," + onB + ",A"));
+        assertEquals("SUCCESS", sendUntilServed(3, "LOCK," + onA + ",A"));
+        int leaderA = awaitLeader(0, 1);
+        int leaderB = awaitLeader(2, 3);
+        assertEquals("A", cluster.server(leaderB).lockTable().get(onB));
+        assertNull(cluster.server(leaderA).lockTable().get(onB));
+        assertEquals("A", sendUntilServed(1, "OWN," + onB + ",X"));
+        assertEquals("FAIL", sendUntilServed(2, "LOCK," + onA + ",B"));
+
+        assertEquals("CROSS_SHARD", send(0, "MLOCK," + onA + ";" + onB + ",B"));
+        assertEquals("CROSS_SHARD", send(2, "MLOCK," + onB + ";" + onA + ",B"));
+        assertNull(cluster.server(leaderB).lockTable().get(onA));
+        // Names with the same hash tag always share a shard
+        assertEquals("SUCCESS", sendUntilServed(1, "MLOCK,{order}.x;{order}.y;{order}.z,B"));
+        assertEquals("B", sendUntilServed(2, "OWN,{order}.y,X"));
+    }
+
+    @Test
+    void aLockStaysExclusiveWhileItsNameMovesToANewShard() throws Exception {
+        ShardMap before = ShardMap.parse(map(1));
+        ShardMap after = ShardMap.parse(map(2));
+        List<String> moving = new ArrayList<>();
+        for (int i = 0; moving.size() < 6; i++) {
+            if (after.shardOf("lock-" + i).equals("c")) {
+                moving.add("lock-" + i);
+            }
+        }
+        for (String name : moving) {
+            assertEquals("SUCCESS", sendUntilServed(moving.indexOf(name) % 4, "LOCK," + name + ",A"));
+        }
+        int leaderA = awaitLeader(0, 1);
+        int leaderB = awaitLeader(2, 3);
+
+        // Slow the old shards' calls to the new one, so that requests meet the hand-off half way
+        for (int from = 0; from < 4; from++) {
+            for (int to = 4; to < NODES; to++) {
+                cluster.setLatency(from, to, 50);
+                cluster.setLatency(to, from, 50);
+            }
+        }
+        AtomicBoolean stop = new AtomicBoolean();
+        List<String> taken = new CopyOnWriteArrayList<>();
+        ExecutorService contenders = Executors.newFixedThreadPool(2);
+        List<Future<?>> running = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            int first = t;
+            running.add(contenders.submit(() -> {
+                for (int i = first; !stop.get(); i++) {
+                    String name = moving.get(i % moving.size());
+                    int node = i % NODES;
+                    if (cluster.server(node) == null) {
+                        continue;
+                    }
+                    String response = send(node, "LOCK," + name + ",B");
+                    if (response.equals("SUCCESS")) {
+                        taken.add(name + " on node " + node);
+                    }
+                }
+                return null;
+            }));
+        }
+        try {
+            Files.write(mapFile.toPath(), map(2).getBytes(StandardCharsets.UTF_8));
+            mapFile.setLastModified(mapFile.lastModified() + 2000);
+            cluster.start(4);
+            cluster.start(5);
+            int leaderC = awaitLeader(4, 5);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (!handedOff(leaderA) || !handedOff(leaderB)) {
+                assertTrue(System.nanoTime() - deadline < 0, "hand-off not done");
+                Thread.sleep(20);
+            }
+            // A few more rounds against the new shard alone
+            Thread.sleep(300);
+            stop.set(true);
+            for (Future<?> contender : running) {
+                contender.get(30, TimeUnit.SECONDS);
+            }
+            assertEquals(Collections.emptyList(), taken);
+
+            for (String name : moving) {
+                assertEquals("A", cluster.server(leaderC).lockTable().get(name), name);
+                String old = before.shardOf(name).equals("a") ? "a" : "b";
+                assertNull(cluster.server(old.equals("a") ? leaderA : leaderB).lockTable().get(name), name);
+                assertEquals("A", sendUntilServed(0, "OWN," + name + ",X"));
+            }
+        } finally {
+            stop.set(true);
+            contenders.shutdownNow();
+        }
+        String name = moving.get(0);
+        assertEquals("FAIL", sendUntilServed(5, "LOCK," + name + ",B"));
+        assertEquals("SUCCESS", sendUntilServed(2, "UNLOCK," + name + ",A"));
+        assertEquals("SUCCESS", sendUntilServed(1, "LOCK," + name + ",B"));
+    }
+
+    // The shard led by this node moved every lock it lost under version 2
+    private boolean handedOff(int leader) {
+        ShardRouter router = cluster.server(leader).shardRouter();
+        return router.getMap().getVersion() == 2 && router.isHandoffDone(router.getShard());
+    }
+}
@@ -0,0 +1,123 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Shared locks and semaphores on the leader of a LocalCluster of three nodes:
+// exclusion against exclusive locks, full semaphores, a queued writer stopping
+// new readers, the release of a client's shared holds with its session, and a
+// holder list cut to fit in a binary frame.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class SharedLocksTest extends ClusterTestBase {
+
+    @BeforeEach
+    void start() throws Exception {
+        startCluster();
+    }
+
+    @Test
+    void permitsAreTheirOwnRequestField() {
+        Server.TextRequest request = Server.parseRequest("ACQUIRE,pool,A,3", 30_000);
+        assertEquals(3, request.permits);
+        assertEquals(0, request.ttlMs);
+        assertEquals(0, Server.parseRequest("LOCK,pool,A,500", 30_000).permits);
+        assertNull(Server.parseRequest("ACQUIRE,pool,A", 30_000));
+        assertNull(Server.parseRequest("ACQUIRE,pool,A,0", 30_000));
+        assertNull(Server.parseRequest("ACQUIRE,pool,A,3000000000", 30_000));
+    }
+
+    @Test
+    void sharedAndExclusiveHoldsExcludeEachOther() throws Exception {
+        assertEquals("SUCCESS", request("LOCK_SHARED", "catalog", "R1"));
+        assertEquals("SUCCESS", request("LOCK_SHARED", "catalog", "R2"));
+        assertEquals("FAIL", request("LOCK_SHARED", "catalog", "R2"));
+        assertEquals("FAIL", request("LOCK", "catalog", "W"));
+        assertEquals("FAIL", acquire("catalog", "S", 2));
+        assertTrue(request("OWN", "catalog", "X").startsWith("SHARED:2:"));
+
+        assertEquals("SUCCESS", request("UNLOCK", "catalog", "R1"));
+        assertEquals("SUCCESS", request("UNLOCK", "catalog", "R2"));
+        assertEquals("NONE", request("OWN", "catalog", "X"));
+        assertEquals("SUCCESS", request("LOCK", "catalog", "W"));
+        assertEquals("FAIL", request("LOCK_SHARED", "catalog", "R1"));
+        assertEquals("FAIL", acquire("catalog", "S", 2));
+    }
+
+    @Test
+    void aFullSemaphoreTurnsClientsAway() throws Exception {
+        assertEquals("SUCCESS", acquire("pool", "A", 2));
+        assertEquals("FAIL", acquire("pool", "A", 2));
+        assertEquals("SUCCESS", acquire("pool", "B", 2));
+        assertEquals("FAIL", acquire("pool", "C", 2));
+        // Every holder gives the permits of the first one
+        assertEquals("FAIL", acquire("pool", "C", 3));
+        assertEquals("FAIL", request("LOCK_SHARED", "pool", "C"));
+        assertTrue(request("OWN", "pool", "X").startsWith("SEMAPHORE:2/2:"));
+
+        assertEquals("SUCCESS", request("UNLOCK", "pool", "A"));
+        assertEquals("SUCCESS", acquire("pool", "C", 2));
+        assertEquals("FAIL", request("UNLOCK", "pool", "A"));
+    }
+
+    @Test
+    void aQueuedWriterStopsNewReaders() throws Exception {
+        assertEquals("SUCCESS", request("LOCK_SHARED", "catalog", "R1"));
+        CompletableFuture<String> writer = lockWait("catalog", "W", 10_000);
+        assertFalse(writer.isDone());
+        // The writer is queued: readers that come after it are not let in
+        assertEquals("FAIL", request("LOCK_SHARED", "catalog", "R2"));
+
+        // The last reader hands the lock to the writer
+        assertEquals("SUCCESS", request("UNLOCK", "catalog", "R1"));
+        assertEquals("SUCCESS", writer.get(5, TimeUnit.SECONDS));
+        assertEquals("W", request("OWN", "catalog", "X"));
+    }
+
+    @Test
+    void theHolderListFitsInABinaryFrame() throws Exception {
+        // 20 holders of about 3 KB of UTF-8 each: far more than an answer may carry
+        StringBuilder longId = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longId.append('\u0436');
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals("SUCCESS", request("LOCK_SHARED", "catalog", longId + "-" + i));
+        }
+        String holders = request("OWN", "catalog", "X");
+        assertTrue(holders.startsWith("SHARED:20:"));
+        assertTrue(holders.endsWith(";..."));
+        assertTrue(holders.getBytes(StandardCharsets.UTF_8).length <= 16 * 1024 + 16);
+
+        ByteBuffer frame = BinaryProtocol.encodeResponse(7, "OWN", holders);
+        assertEquals(frame.remaining() - 4, frame.getInt());
+        assertEquals(BinaryProtocol.STATUS_OWNER, frame.get());
+        assertEquals(7, frame.getLong());
+        assertEquals(holders, BinaryProtocol.getString(frame));
+    }
+
+    @Test
+    void theEndOfASessionReleasesItsSharedHolds() throws Exception {
+        assertEquals("SUCCESS", request("OPEN_SESSION", "", "A", 10_000));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("SUCCESS", request("LOCK_SHARED", "catalog-" + i, "A"));
+            assertEquals("SUCCESS", acquire("pool-" + i, "A", 3));
+        }
+        assertEquals("SUCCESS", acquire("pool-0", "B", 3));
+        assertEquals("SUCCESS", request("LOCK", "orders", "A"));
+
+        assertEquals("SUCCESS", request("CLOSE_SESSION", "", "A"));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("NONE", request("OWN", "catalog-" + i, "X"));
+            if (i > 0) {
+                assertEquals("NONE", request("OWN", "pool-" + i, "X"));
+            }
+        }
+        assertEquals("SEMAPHORE:1/3:B", request("OWN", "pool-0", "X"));
+        assertEquals("NONE", request("OWN", "orders", "X"));
+    }
+}
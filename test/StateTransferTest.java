@@ -0,0 +1,157 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// State transfers on a LocalCluster of three nodes whose leader keeps only the
+// last few entries of its replication log: a follower that restarts from its own
+// write-ahead log, or that was cut off, is behind that log and catches up through
+// SNAPSHOT_BEGIN ... SNAPSHOT_END, shared holds and sessions included; a transfer
+// that breaks off leaves the follower's state as it was.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class StateTransferTest extends ClusterTestBase {
+    private static final int LOG_ENTRIES = 5;
+
+    @TempDir
+    Path dataDir;
+
+    @Override
+    protected void configure(ServerConfig config, int node) {
+        config.replicationLogMaxEntries = LOG_ENTRIES;
+        config.dataDir = dataDir.resolve("node" + node).toString();
+        config.snapshotIntervalMs = 200;
+    }
+
+    @BeforeEach
+    void start() throws Exception {
+        startCluster();
+    }
+
+    // Wait for a sample of a node's metrics to become the leader's
+    private void awaitSameSample(int node, String name) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (sample(cluster.server(node), name) != sample(leader(), name) && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(sample(leader(), name), sample(cluster.server(node), name), name + " of node " + node);
+    }
+
+    // Many more entries than the leader's log keeps, with shared holds and sessions among them
+    private void writeWhileAway() throws Exception {
+        assertEquals("SUCCESS", request("UNLOCK", "gone", "A"));
+        for (int i = 0; i < 500; i++) {
+            assertEquals("SUCCESS", request("LOCK", "lock-" + i, "C" + (i % 7)));
+        }
+        assertEquals("SUCCESS", request("LOCK_SHARED", "catalog", "R1"));
+        assertEquals("SUCCESS", request("LOCK_SHARED", "catalog", "R2"));
+        assertEquals("SUCCESS", acquire("pool", "P1", 3));
+        assertEquals("SUCCESS", acquire("pool", "P2", 3));
+        assertEquals("SUCCESS", request("OPEN_SESSION", "", "S1", 60_000));
+        assertEquals("SUCCESS", request("OPEN_SESSION", "", "S2", 60_000));
+    }
+
+    private void assertCaughtUp(int follower) throws Exception {
+        awaitSameLocksEverywhere();
+        assertNull(cluster.server(follower).lockTable().get("gone"));
+        awaitSameSample(follower, "dls_shared_locks_held");
+        awaitSameSample(follower, "dls_shared_holds");
+        awaitSameSample(follower, "dls_sessions");
+        assertEquals(4, sample(cluster.server(follower), "dls_shared_holds"));
+        assertEquals(2, sample(cluster.server(follower), "dls_sessions"));
+
+        // Entries after the transfer's seq follow it as usual
+        assertEquals("SUCCESS", request("LOCK", "after", "A"));
+        assertEquals("SUCCESS", request("UNLOCK", "catalog", "R1"));
+        assertEquals("SUCCESS", request("CLOSE_SESSION", "", "S1"));
+        awaitSameLocksEverywhere();
+        awaitSameSample(follower, "dls_shared_holds");
+        awaitSameSample(follower, "dls_sessions");
+        assertEquals(1, sample(cluster.server(follower), "dls_sessions"));
+    }
+
+    @Test
+    void aRestartedFollowerBehindTheLogCatchesUpFromATransfer() throws Exception {
+        assertEquals("SUCCESS", request("LOCK", "kept", "A"));
+        assertEquals("SUCCESS", request("LOCK", "gone", "A"));
+        awaitSameLocksEverywhere();
+        int follower = followers().get(0);
+        cluster.stop(follower);
+
+        writeWhileAway();
+        // It recovers "gone" from its own log, and the UNLOCK is no longer in the leader's:
+        // only the transfer's lock table can replace it
+        cluster.start(follower);
+        assertCaughtUp(follower);
+    }
+
+    @Test
+    void aFollowerCutOffBehindTheLogCatchesUpFromATransfer() throws Exception {
+        assertEquals("SUCCESS", request("LOCK", "gone", "A"));
+        awaitSameLocksEverywhere();
+        int follower = followers().get(0);
+        cluster.partition(follower);
+
+        writeWhileAway();
+        assertEquals("A", cluster.server(follower).lockTable().get("gone"));
+        cluster.heal();
+        assertCaughtUp(follower);
+        assertEquals(leader, cluster.leader());
+    }
+
+    // A transfer from the leader's term that stages a lock, a shared hold and a
+    // session, then ends with the given line (null: the connection just closes)
+    private void abortedTransfer(int follower, String end) throws IOException {
+        long term = sample(cluster.server(follower), "dls_term");
+        try (Socket socket = new Socket()) {
+            socket.connect(cluster.clientAddress(follower), 5000);
+            socket.setSoTimeout(10_000);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.println("SNAPSHOT_BEGIN,1000000," + term + "," + term);
+            out.println("SNAPSHOT,ghost,X,0,ghost-2,X,0");
+            out.println("SHARES,ghost-shared,X,2");
+            out.println("SESSIONS,X,60000");
+            if (end != null) {
+                out.println(end);
+                // A transfer that does not add up is refused by closing the connection
+                assertNull(in.readLine());
+            }
+        }
+    }
+
+    @Test
+    void anAbortedTransferLeavesTheStagedStateUnapplied() throws Exception {
+        assertEquals("SUCCESS", request("LOCK", "kept", "A"));
+        assertEquals("SUCCESS", request("LOCK_SHARED", "catalog", "R1"));
+        assertEquals("SUCCESS", request("OPEN_SESSION", "", "S1", 60_000));
+        awaitSameLocksEverywhere();
+        int follower = followers().get(0);
+        awaitSameSample(follower, "dls_sessions");
+        Map<String, String> before = new HashMap<>(cluster.server(follower).lockTable());
+
+        for (String end : new String[] {null, "SNAPSHOT_END,1000000,3", "SNAPSHOT_END,999999,2", "SYNC,1000001"}) {
+            abortedTransfer(follower, end);
+            Thread.sleep(100);
+            assertEquals(before, new HashMap<>(cluster.server(follower).lockTable()), "after " + end);
+            assertEquals(1, sample(cluster.server(follower), "dls_shared_holds"), "after " + end);
+            assertEquals(1, sample(cluster.server(follower), "dls_sessions"), "after " + end);
+        }
+
+        // The follower takes the leader's entries again
+        assertEquals("SUCCESS", request("LOCK", "after", "A"));
+        assertEquals("SUCCESS", request("UNLOCK", "catalog", "R1"));
+        awaitSameLocksEverywhere();
+        awaitSameSample(follower, "dls_shared_holds");
+        assertEquals(0, sample(cluster.server(follower), "dls_shared_holds"));
+        assertEquals(1, sample(cluster.server(follower), "dls_sessions"));
+        assertEquals(leader, cluster.leader());
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// TimerWheel with a 10 ms tick: timeouts fire once, never early and about a tick
+// late at most, also past a full turn of the wheel; cancelled ones never fire.
+@Timeout(value = 30, unit = TimeUnit.SECONDS)
+class TimerWheelTest {
+    private static final long TICK_MS = 10;
+    // Allowance for a busy test machine on top of the tick a timeout may be late
+    private static final long SLACK_MS = 200;
+
+    private final TimerWheel wheel = new TimerWheel("test-wheel", TICK_MS, 16);
+
+    @AfterEach
+    void stopWheel() {
+        wheel.shutdown();
+    }
+
+    private static void awaitPending(TimerWheel wheel, long count) throws InterruptedException {
+        while (wheel.getPendingCount() != count) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void firesNeitherEarlyNorMuchLate() throws Exception {
+        wheel.start();
+        // 16 slots of 10 ms: 500 and 1000 ms go round the wheel several times
+        long[] delays = {0, 1, 25, 95, 160, 500, 1000};
+        long[] firedAfterMs = new long[delays.length];
+        CountDownLatch fired = new CountDownLatch(delays.length);
+        long scheduledAt = System.nanoTime();
+        for (int i = 0; i < delays.length; i++) {
+            int index = i;
+            wheel.schedule(() -> {
+                firedAfterMs[index] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduledAt);
+                fired.countDown();
+            }, delays[i]);
+        }
+        assertTrue(fired.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < delays.length; i++) {
+            assertTrue(firedAfterMs[i] >= delays[i], "fired early: " + delays[i] + " ms after " + firedAfterMs[i] + " ms");
+            assertTrue(firedAfterMs[i] <= delays[i] + TICK_MS + SLACK_MS,
+                    "fired late: " + delays[i] + " ms after " + firedAfterMs[i] + " ms");
+        }
+        awaitPending(wheel, 0);
+    }
+
+    @Test
+    void firesEachTimeoutOnce() throws Exception {
+        wheel.start();
+        AtomicInteger runs = new AtomicInteger();
+        for (int i = 0; i < 10_000; i++) {
+            wheel.schedule(runs::incrementAndGet, i % 300);
+        }
+        awaitPending(wheel, 0);
+        Thread.sleep(TICK_MS * 20);
+        assertEquals(10_000, runs.get());
+    }
+
+    @Test
+    void cancelledTimeoutsNeverFire() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        List<TimerWheel.Timeout> timeouts = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            timeouts.add(wheel.schedule(runs::incrementAndGet, 50 + i));
+        }
+        assertEquals(100, wheel.getPendingCount());
+        // Half before they reach their bucket, half once they are in it
+        for (int i = 0; i < 100; i += 4) {
+            timeouts.get(i).cancel();
+        }
+        wheel.start();
+        Thread.sleep(20);
+        for (int i = 2; i < 100; i += 4) {
+            timeouts.get(i).cancel();
+        }
+        awaitPending(wheel, 0);
+        assertEquals(50, runs.get());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 2 == 0, timeouts.get(i).isCancelled());
+        }
+    }
+
+    @Test
+    void aFailingTaskDoesNotStopTheWheel() throws Exception {
+        wheel.start();
+        wheel.schedule(() -> {
+            throw new IllegalStateException("task failed");
+        }, 10);
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(fired::countDown, 50);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        awaitPending(wheel, 0);
+    }
+}
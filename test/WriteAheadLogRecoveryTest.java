@@ -0,0 +1,134 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Recovery from the write-ahead log on a LocalCluster of three nodes, each with
+// its own data directory: the whole cluster restarts into the state it had,
+// from snapshots and log segments, also when the last record of every log was
+// torn by a crash; and a log that stops at its first failed write.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class WriteAheadLogRecoveryTest extends ClusterTestBase {
+
+    @TempDir
+    Path dataDir;
+
+    // Restarts of the cluster find their data directories again
+    @Override
+    protected void configure(ServerConfig config, int node) {
+        config.dataDir = dataDir.resolve("node" + node).toString();
+        config.snapshotIntervalMs = 200;
+    }
+
+    private void assertEveryNodeHolds(Map<String, String> expected) throws InterruptedException {
+        for (int node = 0; node < NODES; node++) {
+            awaitLocks(node, expected);
+        }
+    }
+
+    @Test
+    void clusterRestartsFromSnapshotsAndLogs() throws Exception {
+        startCluster();
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            assertEquals("SUCCESS", request(leader, "LOCK", "lock-" + i, "C" + (i % 3)));
+            expected.put("lock-" + i, "C" + (i % 3));
+        }
+        // Let a snapshot fold the first segments, then log more after it
+        Thread.sleep(600);
+        for (int i = 0; i < 100; i += 4) {
+            assertEquals("SUCCESS", request(leader, "UNLOCK", "lock-" + i, "C" + (i % 3)));
+            expected.remove("lock-" + i);
+        }
+        assertEquals("SUCCESS", request(leader, "LOCK", "late", "D"));
+        expected.put("late", "D");
+
+        startCluster();
+        assertEveryNodeHolds(expected);
+        assertEquals("FAIL", request(leader, "LOCK", "lock-1", "D"));
+        assertEquals("SUCCESS", request(leader, "LOCK", "lock-0", "D"));
+    }
+
+    @Test
+    void tornLastRecordIsCutOff() throws Exception {
+        startCluster();
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            assertEquals("SUCCESS", request(leader, "LOCK", "lock-" + i, "C"));
+            expected.put("lock-" + i, "C");
+        }
+        cluster.close();
+        cluster = null;
+
+        // A crash in the middle of the next record: its header promises more than was written
+        for (int node = 0; node < NODES; node++) {
+            File lastSegment = lastSegment(dataDir.resolve("node" + node).toFile());
+            try (FileChannel channel = FileChannel.open(lastSegment.toPath(), StandardOpenOption.APPEND)) {
+                ByteBuffer torn = ByteBuffer.allocate(12);
+                torn.putInt(64).putInt(0x12345678).putInt(7).flip();
+                channel.write(torn);
+            }
+        }
+
+        startCluster();
+        assertEveryNodeHolds(expected);
+        // The log goes on after the cut, and recovers again
+        assertEquals("SUCCESS", request(leader, "LOCK", "after", "D"));
+        expected.put("after", "D");
+        startCluster();
+        assertEveryNodeHolds(expected);
+    }
+
+    @Test
+    void aFailedWriteStopsTheLog() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.dataDir = dataDir.resolve("failing").toString();
+        config.walFsync = "always";
+        config.snapshotIntervalMs = 0;
+        WriteAheadLog wal = new WriteAheadLog("test", config);
+        wal.recover();
+        wal.start();
+        for (int seq = 1; seq <= 5; seq++) {
+            wal.append(seq, 1, Collections.singletonList("LOCK,lock-" + seq + ",C")).get(5, TimeUnit.SECONDS);
+        }
+
+        // The disk goes away under the writer for a moment: the next record fails
+        java.lang.reflect.Field segment = WriteAheadLog.class.getDeclaredField("segment");
+        segment.setAccessible(true);
+        ((FileChannel) segment.get(wal)).close();
+        CompletableFuture<Void> failed = wal.append(6, 1, Collections.singletonList("LOCK,lock-6,C"));
+        assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+
+        // It is back, but the log does not go on after a record it failed to write
+        segment.set(wal, FileChannel.open(lastSegment(new File(config.dataDir)).toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND));
+        CompletableFuture<Void> later = wal.append(7, 1, Collections.singletonList("LOCK,lock-7,C"));
+        assertThrows(ExecutionException.class, () -> later.get(5, TimeUnit.SECONDS));
+        wal.close();
+
+        WriteAheadLog.State state = new WriteAheadLog("test", config).recover();
+        assertEquals(5, state.seq);
+        assertEquals(5, state.owners.size());
+        assertFalse(state.owners.containsKey("lock-7"));
+    }
+
+    private static File lastSegment(File dir) throws IOException {
+        File[] segments = dir.listFiles((d, name) -> name.startsWith("wal-") && name.endsWith(".log"));
+        if (segments == null || segments.length == 0) {
+            throw new IOException("No log segment in " + dir);
+        }
+        Arrays.sort(segments, Comparator.comparing(File::getName));
+        return segments[segments.length - 1];
+    }
+}